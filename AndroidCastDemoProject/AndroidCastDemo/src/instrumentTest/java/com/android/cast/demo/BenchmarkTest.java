@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Runs the benchmarks and logs their reports. Only gross regressions fail, as timings on a shared
+ * device are noisy.
+ */
+public class BenchmarkTest extends TestCase {
+    private static final String TAG = BenchmarkTest.class.getSimpleName();
+
+    private static final long SEED = 42;
+
+    public void testPositionKeySmallBoard() {
+        PositionKeyBenchmark.Report report = PositionKeyBenchmark.run(3, 20000, new Random(SEED));
+        Log.i(TAG, report.toString());
+        assertNull("Incremental and rescanned keys differ", report.getMismatch());
+    }
+
+    public void testPositionKeyLargeBoard() {
+        PositionKeyBenchmark.Report report = PositionKeyBenchmark.run(19, 20, new Random(SEED));
+        Log.i(TAG, report.toString());
+        assertNull("Incremental and rescanned keys differ", report.getMismatch());
+        // A move touches one cell instead of all 361.
+        assertTrue(report.toString(),
+                report.getIncrementalNanos() * 10 < report.getRescanNanos());
+    }
+
+    public void testBoardCodecLargeBoard() throws JSONException {
+        BoardCodecBenchmark.Report report = BoardCodecBenchmark.run(19, 0.5f, 2000,
+                new Random(SEED));
+        Log.i(TAG, report.toString());
+        // Two bits per cell against a number and a comma.
+        assertTrue(report.toString(), report.getPackedBytes() * 4 < report.getArrayBytes());
+    }
+
+    public void testLeaderboard() throws IOException {
+        File file = File.createTempFile("leaderboard", ".snapshot");
+        try {
+            LeaderboardBenchmark.Report report =
+                    LeaderboardBenchmark.run(100000, 100000, new Random(SEED), file);
+            Log.i(TAG, report.toString());
+            // Queries walk O(log n) links, so even a large leaderboard answers in microseconds.
+            assertTrue(report.toString(), report.getRankNanos() < 100000);
+            assertTrue(report.toString(), report.getRecordNanos() < 100000);
+        } finally {
+            file.delete();
+        }
+    }
+}
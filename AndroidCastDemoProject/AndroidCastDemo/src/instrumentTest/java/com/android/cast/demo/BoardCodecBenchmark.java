@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Random;
+
+/**
+ * Compares the size and decode speed of {@code board_layout_response} messages carrying the board
+ * as a JSON array and as a {@link PackedBoard}, on random boards of any size.
+ *
+ * <p>Both decoders start from the message text, as received from the channel, and fill the same
+ * cell buffer.
+ */
+public class BoardCodecBenchmark {
+
+    /**
+     * The results of a benchmark run.
+     */
+    public static final class Report {
+        private int mCells;
+        private int mArrayBytes;
+        private int mPackedBytes;
+        private double mArrayDecodeNanos;
+        private double mPackedDecodeNanos;
+
+        /**
+         * Returns the size of the array message.
+         */
+        public int getArrayBytes() {
+            return mArrayBytes;
+        }
+
+        /**
+         * Returns the size of the packed message.
+         */
+        public int getPackedBytes() {
+            return mPackedBytes;
+        }
+
+        /**
+         * Returns the average time to decode an array message.
+         */
+        public double getArrayDecodeNanos() {
+            return mArrayDecodeNanos;
+        }
+
+        /**
+         * Returns the average time to decode a packed message.
+         */
+        public double getPackedDecodeNanos() {
+            return mPackedDecodeNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d cells: array %d bytes, %.0f ns; packed %d bytes, %.0f ns",
+                    mCells, mArrayBytes, mArrayDecodeNanos, mPackedBytes, mPackedDecodeNanos);
+        }
+    }
+
+    private BoardCodecBenchmark() {
+    }
+
+    /**
+     * Decodes random boards in both formats.
+     *
+     * @param side the number of rows and columns of the board
+     * @param fill the fraction of cells holding a piece
+     * @param iterations the number of times each format is decoded
+     */
+    public static Report run(int side, float fill, int iterations, Random random)
+            throws JSONException {
+        int[] cells = new int[side * side];
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < cells.length; ++i) {
+            cells[i] = (random.nextFloat() < fill) ? 1 + random.nextInt(2) : 0;
+            array.put(cells[i]);
+        }
+        JSONObject arrayMessage = new JSONObject();
+        arrayMessage.put("event", "board_layout_response");
+        arrayMessage.put("board", array);
+        String arrayText = arrayMessage.toString();
+        JSONObject packedMessage = new JSONObject();
+        packedMessage.put("event", "board_layout_response");
+        packedMessage.put("board_packed", PackedBoard.encode(cells, cells.length));
+        String packedText = packedMessage.toString();
+
+        Report report = new Report();
+        report.mCells = cells.length;
+        report.mArrayBytes = arrayText.length();
+        report.mPackedBytes = packedText.length();
+        int[] buffer = new int[cells.length];
+        long sink = 0;
+
+        // The first pass warms up the JIT, and the second is reported.
+        for (int pass = 0; pass < 2; ++pass) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; ++i) {
+                JSONArray board = new JSONObject(arrayText).getJSONArray("board");
+                for (int j = 0; j < board.length(); ++j) {
+                    buffer[j] = board.getInt(j);
+                }
+                sink += buffer[i % buffer.length];
+            }
+            report.mArrayDecodeNanos = (double) (System.nanoTime() - start) / iterations;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; ++i) {
+                String board = new JSONObject(packedText).getString("board_packed");
+                PackedBoard.decode(board, buffer);
+                sink += buffer[i % buffer.length];
+            }
+            report.mPackedDecodeNanos = (double) (System.nanoTime() - start) / iterations;
+        }
+        if (sink == Long.MIN_VALUE) {
+            // Keeps the decoded cells live.
+            throw new AssertionError();
+        }
+        return report;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import com.android.cast.demo.GameView.State;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.Field;
+
+/**
+ * Tests the persistent positions and the undo, redo and branching of {@link BoardHistory}.
+ */
+public class BoardHistoryTest extends TestCase {
+    private static final int X = State.PLAYER_X.getValue();
+    private static final int O = State.PLAYER_O.getValue();
+    private static final int EMPTY = State.EMPTY.getValue();
+
+    public void testAncestorAt() {
+        BoardHistory history = new BoardHistory(19);
+        int moves = 300;
+        BoardHistory.Entry[] line = new BoardHistory.Entry[moves + 1];
+        line[0] = history.getRoot();
+        for (int i = 1; i <= moves; ++i) {
+            line[i] = history.play(i / 19, i % 19, (i % 2 == 0) ? State.PLAYER_O : State.PLAYER_X);
+            assertEquals(i, line[i].getDepth());
+            assertSame(line[i - 1], line[i].getParent());
+        }
+        for (int from = 0; from <= moves; from += 7) {
+            for (int depth = 0; depth <= from; ++depth) {
+                assertSame(from + " to " + depth, line[depth], line[from].ancestorAt(depth));
+            }
+            assertNull(line[from].ancestorAt(from + 1));
+            assertNull(line[from].ancestorAt(-1));
+        }
+    }
+
+    public void testUndoRedo() {
+        BoardHistory history = new BoardHistory(3);
+        assertFalse(history.canUndo());
+        BoardHistory.Entry first = history.play(0, 0, State.PLAYER_X);
+        BoardHistory.Entry second = history.play(1, 1, State.PLAYER_O);
+        assertFalse(history.canRedo());
+
+        assertSame(first, history.undo());
+        assertEquals(EMPTY, history.getCurrent().getPosition().get(1, 1));
+        assertSame(history.getRoot(), history.undo());
+        assertFalse(history.canUndo());
+        assertSame(history.getRoot(), history.undo());
+
+        assertSame(first, history.redo());
+        assertSame(second, history.redo());
+        assertFalse(history.canRedo());
+        assertSame(second, history.redo());
+        assertEquals(O, history.getCurrent().getPosition().get(1, 1));
+    }
+
+    public void testBranches() {
+        BoardHistory history = new BoardHistory(3);
+        BoardHistory.Entry first = history.play(0, 0, State.PLAYER_X);
+        BoardHistory.Entry mainLine = history.play(1, 1, State.PLAYER_O);
+        BoardHistory.Entry mainTip = history.play(2, 2, State.PLAYER_X);
+
+        // Playing after an undo starts a branch and drops the old moves from the redo line.
+        history.undo();
+        history.undo();
+        BoardHistory.Entry branch = history.play(2, 0, State.PLAYER_O);
+        assertSame(first, branch.getParent());
+        assertFalse(history.canRedo());
+        assertEquals(EMPTY, branch.getPosition().get(1, 1));
+        assertEquals(O, mainLine.getPosition().get(1, 1));
+
+        // Checking out an entry off the redo line makes it the end of the line.
+        assertSame(mainLine, history.checkout(mainLine));
+        assertFalse(history.canRedo());
+        assertSame(mainTip, history.checkout(mainTip));
+        assertSame(mainLine, history.undo());
+        assertSame(mainTip, history.redo());
+
+        // Checking out an entry on the redo line keeps the rest of the line.
+        history.checkout(first);
+        assertSame(mainLine, history.redo());
+        assertSame(mainTip, history.redo());
+
+        history.checkout(branch);
+        assertFalse(history.canRedo());
+        assertSame(first, history.undo());
+        assertSame(branch, history.redo());
+        assertEquals(X, history.getCurrent().getPosition().get(0, 0));
+    }
+
+    public void testPositionsArePersistent() throws Exception {
+        BoardHistory.Position empty = new BoardHistory.Position(19);
+        BoardHistory.Position one = empty.with(0, 0, X);
+        BoardHistory.Position two = one.with(18, 18, O);
+        assertEquals(EMPTY, empty.get(0, 0));
+        assertEquals(X, one.get(0, 0));
+        assertEquals(EMPTY, one.get(18, 18));
+        assertEquals(X, two.get(0, 0));
+        assertEquals(O, two.get(18, 18));
+        assertSame(two, two.with(18, 18, O));
+
+        // The two moves are in different leaves, so the second one copies only its own path.
+        Object[] oneRoot = (Object[]) root(one);
+        Object[] twoRoot = (Object[]) root(two);
+        assertNotSame(oneRoot, twoRoot);
+        int shared = 0;
+        int copied = 0;
+        for (int i = 0; i < oneRoot.length; ++i) {
+            if (oneRoot[i] != null && oneRoot[i] == twoRoot[i]) {
+                ++shared;
+            } else if (twoRoot[i] != null) {
+                ++copied;
+            }
+        }
+        assertEquals(1, shared);
+        assertEquals(1, copied);
+    }
+
+    public void testCellsOutsideTheBoardAreRejected() {
+        BoardHistory.Position position = new BoardHistory.Position(2).with(1, 1, X);
+        assertEquals(X, position.get(1, 1));
+        int[][] cells = {{0, 2}, {2, 0}, {-1, 0}, {0, -1}};
+        for (int[] cell : cells) {
+            try {
+                position.get(cell[0], cell[1]);
+                fail("Read cell " + cell[0] + ", " + cell[1] + " of a 2x2 board");
+            } catch (IndexOutOfBoundsException e) {
+                // Expected.
+            }
+        }
+    }
+
+    private static Object root(BoardHistory.Position position) throws Exception {
+        Field field = BoardHistory.Position.class.getDeclaredField("mRoot");
+        field.setAccessible(true);
+        return field.get(position);
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import java.util.concurrent.Executor;
+
+/**
+ * An executor which runs each task on the calling thread, for tests which drive streams and
+ * receivers synchronously.
+ */
+final class DirectExecutor implements Executor {
+    static final DirectExecutor INSTANCE = new DirectExecutor();
+
+    private DirectExecutor() {
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        command.run();
+    }
+}
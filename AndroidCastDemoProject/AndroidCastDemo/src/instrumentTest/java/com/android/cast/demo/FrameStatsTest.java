@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cast.demo;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests which frames {@link FrameStats} counts as janky.
+ */
+public class FrameStatsTest extends TestCase {
+    // Long enough that scheduling noise does not move a frame across a threshold.
+    private static final long BUDGET_MS = 50;
+
+    private FrameStats mStats;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStats = new FrameStats(TimeUnit.MILLISECONDS.toNanos(BUDGET_MS));
+    }
+
+    public void testWaitForVsyncIsNotJank() throws Exception {
+        mStats.onInvalidate(FrameStats.TRIGGER_SET_CELL);
+        Thread.sleep(BUDGET_MS * 5 / 4);
+        mStats.onDraw(System.nanoTime());
+        assertEquals(1, mStats.getFrameCount());
+        assertEquals(0, mStats.getJankyFrameCount());
+    }
+
+    public void testMissedFrameIsJank() throws Exception {
+        mStats.onInvalidate(FrameStats.TRIGGER_SET_CELL);
+        Thread.sleep(BUDGET_MS * 3);
+        mStats.onDraw(System.nanoTime());
+        assertEquals(1, mStats.getJankyFrameCount());
+        assertEquals(1, mStats.getJankyFrameCount(FrameStats.TRIGGER_SET_CELL));
+    }
+
+    public void testSlowDrawIsJank() throws Exception {
+        mStats.onInvalidate(FrameStats.TRIGGER_UPDATE_BOARD);
+        long drawStart = System.nanoTime();
+        Thread.sleep(BUDGET_MS * 5 / 4);
+        mStats.onDraw(drawStart);
+        assertEquals(1, mStats.getJankyFrameCount());
+        assertEquals(1, mStats.getJankyFrameCount(FrameStats.TRIGGER_UPDATE_BOARD));
+    }
+}
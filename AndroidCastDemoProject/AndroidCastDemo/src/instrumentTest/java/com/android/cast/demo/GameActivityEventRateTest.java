@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import android.content.Intent;
+import android.os.Build;
+import android.test.ActivityInstrumentationTestCase2;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.Choreographer;
+import android.widget.TextView;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pushes moved events into a running game at 1,000 per second and checks that the board and the
+ * info text are each updated at most once per display frame.
+ */
+public class GameActivityEventRateTest extends ActivityInstrumentationTestCase2<GameActivity> {
+    private static final int EVENTS_PER_SECOND = 1000;
+    private static final int SECONDS = 3;
+    private static final int EVENTS = EVENTS_PER_SECOND * SECONDS;
+    // Updates whose frame straddles the start or the end of the measurement.
+    private static final int SLACK = 2;
+    private static final long DELIVERY_TIMEOUT_MS = 10000;
+
+    // Only touched on the main thread.
+    private int mFrames;
+    private int mTextChanges;
+    private int mMovesDispatched;
+    private boolean mCountingFrames;
+
+    private final Choreographer.FrameCallback mFrameCounter = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (mCountingFrames) {
+                ++mFrames;
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+    };
+
+    public GameActivityEventRateTest() {
+        super(GameActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // A pass-and-play game needs no Cast device.
+        Intent intent = new Intent();
+        intent.putExtra(GameActivity.EXTRA_OFFLINE, true);
+        setActivityIntent(intent);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mCountingFrames = false;
+            }
+        });
+        super.tearDown();
+    }
+
+    public void testUiWorkIsBoundedPerFrame() throws Throwable {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            // Frames are counted with the Choreographer.
+            return;
+        }
+        final GameActivity activity = getActivity();
+        final GameView gameView = (GameView) activity.findViewById(R.id.game_view);
+        final TextView infoView = (TextView) activity.findViewById(R.id.info_turn);
+        final GameMessageStream stream = activity.getGameMessageStream();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                gameView.setFrameStatsEnabled(true);
+                infoView.addTextChangedListener(new TextWatcher() {
+                    @Override
+                    public void beforeTextChanged(CharSequence s, int start, int count,
+                            int after) {
+                    }
+
+                    @Override
+                    public void onTextChanged(CharSequence s, int start, int before, int count) {
+                    }
+
+                    @Override
+                    public void afterTextChanged(Editable s) {
+                        ++mTextChanges;
+                    }
+                });
+                // Subscribers run after onGameMove, which posts the updates.
+                stream.getEventBus().subscribe(new GameEventBus.Subscriber() {
+                    @Override
+                    public void onEvent(GameEvent event) {
+                        ++mMovesDispatched;
+                    }
+                }, null, GameEvent.TYPE_MOVED);
+            }
+        });
+        getInstrumentation().waitForIdleSync();
+
+        final long[] before = new long[2];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                before[0] = gameView.getFrameStats().getInvalidateCount();
+                before[1] = mTextChanges;
+                mCountingFrames = true;
+                Choreographer.getInstance().postFrameCallback(mFrameCounter);
+            }
+        });
+
+        long start = System.nanoTime();
+        long interval = TimeUnit.SECONDS.toNanos(1) / EVENTS_PER_SECOND;
+        for (int i = 0; i < EVENTS; ++i) {
+            long due = start + i * interval;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            int cell = i % 9;
+            stream.onMessageReceived(new JSONObject()
+                    .put("event", "moved")
+                    .put("player", (i & 1) == 0 ? GameMessageStream.PLAYER_X
+                            : GameMessageStream.PLAYER_O)
+                    .put("row", cell / 3)
+                    .put("column", cell % 3)
+                    .put("game_over", false));
+        }
+        awaitMovesDispatched(EVENTS);
+        getInstrumentation().waitForIdleSync();
+
+        final long[] after = new long[3];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mCountingFrames = false;
+                after[0] = gameView.getFrameStats().getInvalidateCount();
+                after[1] = mTextChanges;
+                after[2] = mFrames;
+            }
+        });
+        long invalidates = after[0] - before[0];
+        long textChanges = after[1] - before[1];
+        long frames = after[2];
+        String counts = EVENTS + " events, " + frames + " frames, " + invalidates
+                + " invalidates, " + textChanges + " text changes";
+        assertTrue(counts, invalidates > 0 && textChanges > 0);
+        assertTrue(counts, invalidates <= frames + SLACK);
+        assertTrue(counts, textChanges <= frames + SLACK);
+    }
+
+    private void awaitMovesDispatched(final int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT_MS;
+        final int[] dispatched = new int[1];
+        do {
+            Thread.sleep(10);
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    dispatched[0] = mMovesDispatched;
+                }
+            });
+        } while (dispatched[0] < count && System.currentTimeMillis() < deadline);
+        assertEquals("Moves dispatched", count, dispatched[0]);
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cast.demo;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hammers a {@link GameMessageStream} with inbound messages and commands from several threads at
+ * once, and checks that events are delivered once each, in order, on one thread at a time, and
+ * are not recycled while a subscriber still holds them.
+ */
+public class GameMessageStreamStressTest extends TestCase {
+    private static final int PRODUCERS = 4;
+    private static final int EVENTS_PER_PRODUCER = 5000;
+    private static final int REQUESTERS = 2;
+    private static final int REQUESTS_PER_REQUESTER = 500;
+    private static final long TIMEOUT_MS = 60000;
+
+    // Responses to requests are tagged with this in clock_x; producers use their index.
+    private static final int RESPONSE_TAG = 100;
+
+    private ExecutorService mDecodeExecutor;
+    private ExecutorService mCallbackExecutor;
+    private ExecutorService mResponder;
+    private ExecutorService mSubscriberExecutor;
+    private GameMessageStream mStream;
+
+    private final List<String> mFailures = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger mInCallback = new AtomicInteger();
+    private final AtomicInteger mInlineEvents = new AtomicInteger();
+    private final AtomicInteger mAsyncEvents = new AtomicInteger();
+    private final AtomicInteger mResponses = new AtomicInteger();
+    private final int[] mLastSequence = new int[PRODUCERS];
+    private final int[] mAsyncLastSequence = new int[PRODUCERS];
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDecodeExecutor = Executors.newSingleThreadExecutor();
+        mCallbackExecutor = Executors.newSingleThreadExecutor();
+        mResponder = Executors.newSingleThreadExecutor();
+        mSubscriberExecutor = Executors.newFixedThreadPool(2);
+        mStream = new GameMessageStream(mDecodeExecutor, mCallbackExecutor);
+        mStream.setTransport(new GameMessageStream.Transport() {
+            @Override
+            public void send(final JSONObject payload) {
+                mResponder.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        respond(payload);
+                    }
+                });
+            }
+        });
+        for (int i = 0; i < PRODUCERS; ++i) {
+            mLastSequence[i] = -1;
+            mAsyncLastSequence[i] = -1;
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDecodeExecutor.shutdownNow();
+        mCallbackExecutor.shutdownNow();
+        mResponder.shutdownNow();
+        mSubscriberExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testConcurrentMessagesAndCommands() throws Exception {
+        mStream.getEventBus().subscribe(new GameEventBus.Subscriber() {
+            @Override
+            public void onEvent(GameEvent event) {
+                onInlineEvent(event);
+            }
+        }, null, GameEvent.TYPE_MOVED);
+        mStream.getEventBus().subscribe(new GameEventBus.Subscriber() {
+            @Override
+            public void onEvent(GameEvent event) {
+                // Runs on a pool while the stream keeps recycling events for later messages,
+                // so an event recycled too early shows up here as a gap or a repeat.
+                checkConsistent(event);
+                checkOrder(event, mAsyncLastSequence);
+                mAsyncEvents.incrementAndGet();
+            }
+        }, mSubscriberExecutor, GameEvent.TYPE_MOVED);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < PRODUCERS; ++i) {
+            final int producer = i;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    for (int sequence = 0; sequence < EVENTS_PER_PRODUCER; ++sequence) {
+                        mStream.onMessageReceived(moved(producer, sequence, null));
+                    }
+                }
+            }));
+        }
+        final List<ResponseFuture<?>> futures =
+                Collections.synchronizedList(new ArrayList<ResponseFuture<?>>());
+        for (int i = 0; i < REQUESTERS; ++i) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    for (int j = 0; j < REQUESTS_PER_REQUESTER; ++j) {
+                        if (j % 2 == 0) {
+                            futures.add(mStream.moveAsync(j % 3, (j / 3) % 3, TIMEOUT_MS));
+                        } else {
+                            futures.add(mStream.requestBoardLayoutAsync(TIMEOUT_MS));
+                        }
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(TIMEOUT_MS);
+        }
+
+        for (ResponseFuture<?> future : futures) {
+            assertNotNull(future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+        int movesSent = REQUESTERS * REQUESTS_PER_REQUESTER / 2;
+        int expected = PRODUCERS * EVENTS_PER_PRODUCER + movesSent;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while ((mInlineEvents.get() < expected || mAsyncEvents.get() < expected)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(mFailures.toString(), 0, mFailures.size());
+        assertEquals(REQUESTERS * REQUESTS_PER_REQUESTER, futures.size());
+        assertEquals(movesSent, mResponses.get());
+        assertEquals(expected, mInlineEvents.get());
+        assertEquals(expected, mAsyncEvents.get());
+        for (int i = 0; i < PRODUCERS; ++i) {
+            assertEquals(EVENTS_PER_PRODUCER - 1, mLastSequence[i]);
+            assertEquals(EVENTS_PER_PRODUCER - 1, mAsyncLastSequence[i]);
+        }
+        assertEquals(0, mStream.getPendingRequestCount());
+    }
+
+    private void onInlineEvent(GameEvent event) {
+        if (mInCallback.incrementAndGet() != 1) {
+            mFailures.add("Callbacks ran concurrently");
+        }
+        checkConsistent(event);
+        if (!checkOrder(event, mLastSequence)) {
+            mResponses.incrementAndGet();
+        }
+        mInlineEvents.incrementAndGet();
+        mInCallback.decrementAndGet();
+    }
+
+    /**
+     * Checks that a producer's event follows its previous one. Returns false for responses to
+     * requests, which are not ordered.
+     */
+    private boolean checkOrder(GameEvent event, int[] lastSequence) {
+        int tag = (int) event.getRemainingMillis(GameMessageStream.PLAYER_X);
+        int sequence = (int) event.getRemainingMillis(GameMessageStream.PLAYER_O);
+        if (tag == RESPONSE_TAG) {
+            return false;
+        }
+        if (sequence != lastSequence[tag] + 1) {
+            mFailures.add("Producer " + tag + " event " + sequence + " after "
+                    + lastSequence[tag]);
+        }
+        lastSequence[tag] = sequence;
+        return true;
+    }
+
+    // Every event encodes its sequence number in both its clocks and its cell.
+    private void checkConsistent(GameEvent event) {
+        int sequence = (int) event.getRemainingMillis(GameMessageStream.PLAYER_O);
+        if (event.getType() != GameEvent.TYPE_MOVED
+                || event.getRow() != sequence % 3
+                || event.getColumn() != (sequence / 3) % 3) {
+            mFailures.add("Event changed while held: sequence " + sequence + " at "
+                    + event.getRow() + ", " + event.getColumn());
+        }
+    }
+
+    private void respond(JSONObject command) {
+        try {
+            String requestId = command.getString("request_id");
+            if ("move".equals(command.getString("command"))) {
+                int sequence = command.getInt("row") + 3 * command.getInt("column");
+                mStream.onMessageReceived(moved(RESPONSE_TAG, sequence, requestId));
+            } else {
+                JSONArray board = new JSONArray();
+                for (int i = 0; i < 9; ++i) {
+                    board.put(0);
+                }
+                mStream.onMessageReceived(new JSONObject()
+                        .put("event", "board_layout_response")
+                        .put("board", board)
+                        .put("request_id", requestId));
+            }
+        } catch (JSONException e) {
+            mFailures.add("Unexpected command: " + command);
+        }
+    }
+
+    private static JSONObject moved(int tag, int sequence, String requestId) {
+        try {
+            JSONObject message = new JSONObject()
+                    .put("event", "moved")
+                    .put("player", GameMessageStream.PLAYER_X)
+                    .put("row", sequence % 3)
+                    .put("column", (sequence / 3) % 3)
+                    .put("game_over", false)
+                    .put("clock_x", tag)
+                    .put("clock_o", sequence);
+            if (requestId != null) {
+                message.put("request_id", requestId);
+            }
+            return message;
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the correlation of responses to asynchronous requests in {@link GameMessageStream}.
+ */
+public class GameMessageStreamTest extends TestCase {
+    private GameMessageStream mStream;
+    private JSONObject mSent;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStream = new GameMessageStream(DirectExecutor.INSTANCE, DirectExecutor.INSTANCE);
+        mStream.setTransport(new GameMessageStream.Transport() {
+            @Override
+            public void send(JSONObject payload) {
+                mSent = payload;
+            }
+        });
+    }
+
+    public void testMoveOutsideBoardFailsRequest() throws Exception {
+        ResponseFuture<Boolean> future = mStream.moveAsync(1, 1, 60000);
+        mStream.onMessageReceived(new JSONObject()
+                .put("event", "moved")
+                .put("player", "X")
+                .put("row", 7)
+                .put("column", 1)
+                .put("game_over", false)
+                .put("request_id", mSent.getString("request_id")));
+        assertFailedWithIOException(future);
+    }
+
+    public void testMalformedResponseFailsRequest() throws Exception {
+        ResponseFuture<Boolean> future = mStream.moveAsync(1, 1, 60000);
+        mStream.onMessageReceived(new JSONObject()
+                .put("event", "moved")
+                .put("request_id", mSent.getString("request_id")));
+        assertFailedWithIOException(future);
+    }
+
+    public void testMoveCompletesRequest() throws Exception {
+        ResponseFuture<Boolean> future = mStream.moveAsync(1, 1, 60000);
+        mStream.onMessageReceived(new JSONObject()
+                .put("event", "moved")
+                .put("player", "X")
+                .put("row", 1)
+                .put("column", 1)
+                .put("game_over", true)
+                .put("request_id", mSent.getString("request_id")));
+        assertTrue(future.get(0, TimeUnit.MILLISECONDS));
+        assertEquals(0, mStream.getPendingRequestCount());
+    }
+
+    public void testTimeoutArmedAfterResponseIsCounted() throws Exception {
+        ResponseFuture<Boolean> future = new ResponseFuture<Boolean>(mStream, "early", "moved");
+        future.complete(true);
+        int cancelled = GameMessageStream.getCancelledTimeoutCount();
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            ScheduledFuture<?> timeout = executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, 60, TimeUnit.SECONDS);
+            future.setTimeout(timeout);
+            assertTrue(timeout.isCancelled());
+            assertEquals(cancelled + 1, GameMessageStream.getCancelledTimeoutCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testLargePackedBoardDecodesIntoBuffer() throws Exception {
+        int[] board = new int[19 * 19];
+        for (int i = 0; i < board.length; i += 7) {
+            board[i] = 1 + i % 2;
+        }
+        int[] cells = new int[board.length];
+        ResponseFuture<Integer> future = mStream.requestBoardLayoutAsync(cells, 60000);
+        mStream.onMessageReceived(new JSONObject()
+                .put("event", "board_layout_response")
+                .put("board_packed", PackedBoard.encode(board, board.length))
+                .put("request_id", mSent.getString("request_id")));
+        assertEquals(board.length, future.get(0, TimeUnit.MILLISECONDS).intValue());
+        assertTrue(Arrays.equals(board, cells));
+        assertEquals(0, mStream.getPendingRequestCount());
+    }
+
+    public void testEmptyPackedBoardDecodesIntoBuffer() throws Exception {
+        // An empty board is run-length coded.
+        int[] board = new int[19 * 19];
+        int[] cells = new int[board.length];
+        Arrays.fill(cells, -1);
+        ResponseFuture<Integer> future = mStream.requestBoardLayoutAsync(cells, 60000);
+        mStream.onMessageReceived(new JSONObject()
+                .put("event", "board_layout_response")
+                .put("board_packed", PackedBoard.encode(board, board.length))
+                .put("request_id", mSent.getString("request_id")));
+        assertEquals(board.length, future.get(0, TimeUnit.MILLISECONDS).intValue());
+        assertTrue(Arrays.equals(board, cells));
+    }
+
+    public void testMalformedPackedBoardFailsRequest() throws Exception {
+        String packed = PackedBoard.encode(new int[19 * 19], 19 * 19);
+        ResponseFuture<Integer> future =
+                mStream.requestBoardLayoutAsync(new int[19 * 19], 60000);
+        mStream.onMessageReceived(new JSONObject()
+                .put("event", "board_layout_response")
+                .put("board_packed", packed.substring(0, packed.length() - 4))
+                .put("request_id", mSent.getString("request_id")));
+        assertFailedWithIOException(future);
+    }
+
+    public void testBoardLargerThanBufferFailsRequest() throws Exception {
+        ResponseFuture<Integer> future = mStream.requestBoardLayoutAsync(new int[4], 60000);
+        mStream.onMessageReceived(new JSONObject()
+                .put("event", "board_layout_response")
+                .put("board", cellArray(9))
+                .put("request_id", mSent.getString("request_id")));
+        assertFailedWithIOException(future);
+    }
+
+    public void testArrayBoardCompletesRequest() throws Exception {
+        ResponseFuture<int[][]> future = mStream.requestBoardLayoutAsync(60000);
+        mStream.onMessageReceived(new JSONObject()
+                .put("event", "board_layout_response")
+                .put("board", cellArray(16))
+                .put("request_id", mSent.getString("request_id")));
+        int[][] boardLayout = future.get(0, TimeUnit.MILLISECONDS);
+        assertEquals(4, boardLayout.length);
+        assertEquals(4, boardLayout[3].length);
+        assertEquals(15 % 3, boardLayout[3][3]);
+    }
+
+    public void testNonSquareBoardFailsRequest() throws Exception {
+        ResponseFuture<int[][]> future = mStream.requestBoardLayoutAsync(60000);
+        mStream.onMessageReceived(new JSONObject()
+                .put("event", "board_layout_response")
+                .put("board", cellArray(8))
+                .put("request_id", mSent.getString("request_id")));
+        assertFailedWithIOException(future);
+    }
+
+    private static JSONArray cellArray(int count) {
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < count; ++i) {
+            array.put(i % 3);
+        }
+        return array;
+    }
+
+    private void assertFailedWithIOException(ResponseFuture<?> future) throws Exception {
+        assertTrue("Request is still pending", future.isDone());
+        try {
+            future.get();
+            fail("Request succeeded");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(0, mStream.getPendingRequestCount());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Measures a {@link Leaderboard} of many players: recording results, rank and top-k queries, and
+ * saving and loading its snapshot.
+ */
+public class LeaderboardBenchmark {
+    private static final int TOP_K = 10;
+
+    /**
+     * The results of a benchmark run.
+     */
+    public static final class Report {
+        private int mPlayers;
+        private double mRecordNanos;
+        private double mRankNanos;
+        private double mTopNanos;
+        private double mSaveMillis;
+        private double mLoadMillis;
+        private long mSnapshotBytes;
+
+        /**
+         * Returns the average time to record a result between two existing players.
+         */
+        public double getRecordNanos() {
+            return mRecordNanos;
+        }
+
+        public double getRankNanos() {
+            return mRankNanos;
+        }
+
+        /**
+         * Returns the average time to read the top 10 players.
+         */
+        public double getTopNanos() {
+            return mTopNanos;
+        }
+
+        public double getLoadMillis() {
+            return mLoadMillis;
+        }
+
+        public long getSnapshotBytes() {
+            return mSnapshotBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d players: result %.0f ns, rank %.0f ns, top %d %.0f ns; "
+                    + "snapshot %d bytes, save %.1f ms, load %.1f ms", mPlayers, mRecordNanos,
+                    mRankNanos, TOP_K, mTopNanos, mSnapshotBytes, mSaveMillis, mLoadMillis);
+        }
+    }
+
+    private LeaderboardBenchmark() {
+    }
+
+    /**
+     * Plays random games until every player has a rating, then measures each operation.
+     *
+     * @param players the number of players
+     * @param iterations the number of times each query is timed
+     * @param file the snapshot file to write and read back
+     */
+    public static Report run(int players, int iterations, Random random, File file)
+            throws IOException {
+        String[] names = new String[players];
+        for (int i = 0; i < players; ++i) {
+            names[i] = "player" + i;
+        }
+        Leaderboard leaderboard = new Leaderboard();
+        for (int i = 0; i < players; ++i) {
+            // Games against oneself are not rated, so the opponent is anyone else.
+            int opponent = (i + 1 + random.nextInt(players - 1)) % players;
+            leaderboard.recordResult(names[i], names[opponent], false);
+        }
+
+        Report report = new Report();
+        report.mPlayers = players;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            int winner = random.nextInt(players);
+            int loser = random.nextInt(players);
+            if (winner != loser) {
+                leaderboard.recordResult(names[winner], names[loser], random.nextInt(8) == 0);
+            }
+        }
+        report.mRecordNanos = (double) (System.nanoTime() - start) / iterations;
+
+        long sink = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            sink += leaderboard.getEntry(names[random.nextInt(players)]).getRank();
+        }
+        report.mRankNanos = (double) (System.nanoTime() - start) / iterations;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            sink += leaderboard.getTop(TOP_K).size();
+        }
+        report.mTopNanos = (double) (System.nanoTime() - start) / iterations;
+
+        start = System.nanoTime();
+        leaderboard.save(file);
+        report.mSaveMillis = (System.nanoTime() - start) / 1e6;
+        report.mSnapshotBytes = file.length();
+
+        start = System.nanoTime();
+        Leaderboard loaded = Leaderboard.load(file);
+        report.mLoadMillis = (System.nanoTime() - start) / 1e6;
+        if (loaded.size() != leaderboard.size() || sink == Long.MIN_VALUE) {
+            throw new IOException("Snapshot lost players");
+        }
+        return report;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import junit.framework.TestCase;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests rating games on a {@link Leaderboard} and loading damaged snapshots.
+ */
+public class LeaderboardTest extends TestCase {
+    private static final int MAGIC = 0x54544c42;
+    private static final int VERSION = 1;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("leaderboard", ".snapshot");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testGameAgainstSelfIsNotRated() {
+        Leaderboard leaderboard = new Leaderboard();
+        leaderboard.recordResult("alice", "alice", false);
+        assertEquals(0, leaderboard.size());
+        assertNull(leaderboard.getEntry("alice"));
+    }
+
+    public void testSaveAndLoad() throws IOException {
+        Leaderboard leaderboard = new Leaderboard();
+        leaderboard.recordResult("alice", "bob", false);
+        leaderboard.recordResult("carol", "bob", true);
+        leaderboard.save(mFile);
+
+        Leaderboard loaded = Leaderboard.load(mFile);
+        assertEquals(3, loaded.size());
+        assertEquals(leaderboard.getTop(3).toString(), loaded.getTop(3).toString());
+        assertEquals(leaderboard.getRating("bob"), loaded.getRating("bob"));
+        assertEquals(1, loaded.getEntry("alice").getRank());
+    }
+
+    public void testLoadRejectsHugeSize() throws IOException {
+        // Claims Integer.MAX_VALUE players but holds none.
+        writeSnapshot(0xFF, 0xFF, 0xFF, 0xFF, 0x07);
+        assertLoadFails();
+    }
+
+    public void testLoadRejectsNegativeSize() throws IOException {
+        writeSnapshot(0xFF, 0xFF, 0xFF, 0xFF, 0x0F);
+        assertLoadFails();
+    }
+
+    public void testLoadRejectsTruncatedSnapshot() throws IOException {
+        Leaderboard leaderboard = new Leaderboard();
+        leaderboard.recordResult("alice", "bob", false);
+        leaderboard.save(mFile);
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        out.getChannel().truncate(mFile.length() - 2);
+        out.close();
+        assertLoadFails();
+    }
+
+    private void writeSnapshot(int... sizeBytes) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile));
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            for (int b : sizeBytes) {
+                out.writeByte(b);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void assertLoadFails() {
+        try {
+            Leaderboard.load(mFile);
+            fail("Loaded a damaged snapshot");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,585 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A headless load generator which plays bot-vs-bot games through the game protocol with many
+ * simulated senders, and reports throughput, errors and move latency.
+ *
+ * <p>Every client is a real {@link GameMessageStream} which repeatedly joins a game, plays its
+ * moves in turn, waits for the endgame, leaves and thinks before joining again. Clients are
+ * paired on {@link LocalReceiver}s, either a fixed pair per receiver or, with matchmaking, by a
+ * {@link Matchmaker} which seats each pair it makes at a new receiver. No thread is held per
+ * client: clients and receivers are event-driven state machines on {@link SerialExecutor}s
+ * sharing one small thread pool, so thousands of clients can run at once.
+ */
+public class LoadGenerator {
+    private static final String TAG = LoadGenerator.class.getSimpleName();
+
+    // The resolution of game clocks and of the matchmaker's search widening.
+    private static final long WHEEL_TICK_MILLIS = 10;
+
+    /**
+     * A class which creates the bot of each client.
+     */
+    public interface BotFactory {
+        Bot newBot(int client);
+    }
+
+    /**
+     * The parameters of a load run.
+     */
+    public static final class Config {
+        private int mClients = 100;
+        private long mDurationMillis = 10000;
+        private long mThinkTimeMillis = 0;
+        private long mMoveTimeoutMillis = 5000;
+        private int mThreads = Runtime.getRuntime().availableProcessors();
+        private long mSeed = System.nanoTime();
+        private BotFactory mBotFactory;
+        private GameClock.TimeControl mTimeControl;
+        private GameEventBus.Subscriber mSubscriber;
+        private int mBrackets;
+        private long mTargetWaitMillis;
+
+        /**
+         * Sets the number of simulated senders, rounded up to an even number.
+         */
+        public Config setClients(int clients) {
+            mClients = clients + (clients & 1);
+            return this;
+        }
+
+        public Config setDurationMillis(long durationMillis) {
+            mDurationMillis = durationMillis;
+            return this;
+        }
+
+        /**
+         * Sets the mean time a client waits before each move and before joining the next game.
+         * Actual waits are uniformly distributed between none and twice this time.
+         */
+        public Config setThinkTimeMillis(long thinkTimeMillis) {
+            mThinkTimeMillis = thinkTimeMillis;
+            return this;
+        }
+
+        /**
+         * Sets the time after which an unanswered move counts as a timeout error.
+         */
+        public Config setMoveTimeoutMillis(long moveTimeoutMillis) {
+            mMoveTimeoutMillis = moveTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Sets the number of threads all clients and receivers share.
+         */
+        public Config setThreads(int threads) {
+            mThreads = threads;
+            return this;
+        }
+
+        public Config setSeed(long seed) {
+            mSeed = seed;
+            return this;
+        }
+
+        /**
+         * Sets the factory of the clients' bots. By default every client plays random moves.
+         */
+        public Config setBotFactory(BotFactory botFactory) {
+            mBotFactory = botFactory;
+            return this;
+        }
+
+        /**
+         * Plays timed games under control, with the clocks of every receiver on one timer wheel.
+         * By default games are untimed.
+         */
+        public Config setTimeControl(GameClock.TimeControl timeControl) {
+            mTimeControl = timeControl;
+            return this;
+        }
+
+        /**
+         * Queues every join with a {@link Matchmaker} instead of seating clients in fixed pairs.
+         * Client i queues in bracket i % brackets.
+         *
+         * @param targetWaitMillis the wait after which a client's search widens by a bracket
+         */
+        public Config setMatchmaking(int brackets, long targetWaitMillis) {
+            mBrackets = brackets;
+            mTargetWaitMillis = targetWaitMillis;
+            return this;
+        }
+
+        /**
+         * Also passes every event each client receives to subscriber, inline on that client's
+         * executor. The subscriber is shared by all clients, so it must be thread-safe.
+         */
+        public Config setSubscriber(GameEventBus.Subscriber subscriber) {
+            mSubscriber = subscriber;
+            return this;
+        }
+    }
+
+    /**
+     * The results of a load run.
+     */
+    public static final class Report {
+        private final long mElapsedNanos;
+        private final long mGames;
+        private final long mMoves;
+        private final Map<String, Long> mErrors;
+        private final LatencyHistogram mLatency;
+        private final LatencyHistogram mMatchWaits;
+
+        private Report(long elapsedNanos, long games, long moves, Map<String, Long> errors,
+                LatencyHistogram latency, LatencyHistogram matchWaits) {
+            mElapsedNanos = elapsedNanos;
+            mGames = games;
+            mMoves = moves;
+            mErrors = errors;
+            mLatency = latency;
+            mMatchWaits = matchWaits;
+        }
+
+        public long getGames() {
+            return mGames;
+        }
+
+        /**
+         * Returns the number of moves acknowledged by a receiver.
+         */
+        public long getMoves() {
+            return mMoves;
+        }
+
+        public double getMovesPerSecond() {
+            return mMoves * 1e9 / Math.max(1, mElapsedNanos);
+        }
+
+        /**
+         * Returns the number of errors by error message, such as "It's not your turn.".
+         */
+        public Map<String, Long> getErrors() {
+            return mErrors;
+        }
+
+        public long getErrorCount() {
+            long count = 0;
+            for (long errors : mErrors.values()) {
+                count += errors;
+            }
+            return count;
+        }
+
+        /**
+         * Returns the fraction of moves which failed.
+         */
+        public double getErrorRate() {
+            long errors = getErrorCount();
+            return (errors == 0) ? 0 : (double) errors / (errors + mMoves);
+        }
+
+        /**
+         * Returns the histogram of times from sending a move until its moved event arrived.
+         */
+        public LatencyHistogram getMoveLatency() {
+            return mLatency;
+        }
+
+        /**
+         * Returns the histogram of times from joining until being matched, or null without
+         * matchmaking.
+         */
+        public LatencyHistogram getMatchWaits() {
+            return mMatchWaits;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format("%d games, %d moves in %.1fs: %.0f moves/s%n", mGames,
+                    mMoves, mElapsedNanos / 1e9, getMovesPerSecond()));
+            builder.append(String.format(
+                    "move latency ms: p50 %.3f, p90 %.3f, p99 %.3f, max %.3f%n",
+                    mLatency.getPercentile(50) / 1e6, mLatency.getPercentile(90) / 1e6,
+                    mLatency.getPercentile(99) / 1e6, mLatency.getPercentile(100) / 1e6));
+            if (mMatchWaits != null) {
+                builder.append(String.format(
+                        "match wait ms: p50 %.3f, p90 %.3f, p99 %.3f, max %.3f%n",
+                        mMatchWaits.getPercentile(50) / 1e6, mMatchWaits.getPercentile(90) / 1e6,
+                        mMatchWaits.getPercentile(99) / 1e6,
+                        mMatchWaits.getPercentile(100) / 1e6));
+            }
+            builder.append(String.format("%d errors (%.3f%%)%n", getErrorCount(),
+                    getErrorRate() * 100));
+            for (Map.Entry<String, Long> entry : mErrors.entrySet()) {
+                builder.append(String.format("  %6d %s%n", entry.getValue(), entry.getKey()));
+            }
+            return builder.toString();
+        }
+    }
+
+    private final Config mConfig;
+    private final AtomicLong mGames = new AtomicLong();
+    private final AtomicLong mMoves = new AtomicLong();
+    private final ConcurrentHashMap<String, AtomicLong> mErrors =
+            new ConcurrentHashMap<String, AtomicLong>();
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+
+    private final CountDownLatch mStopRequested = new CountDownLatch(1);
+
+    private ScheduledThreadPoolExecutor mPool;
+    private Matchmaker mMatchmaker;
+    private volatile boolean mStopping;
+
+    public LoadGenerator(Config config) {
+        mConfig = config;
+    }
+
+    /**
+     * Runs the load for the configured duration, or until {@link #stop()}, and returns its
+     * results. Blocks the calling thread, which must not be the main thread.
+     */
+    public Report run() throws InterruptedException {
+        final Config config = mConfig;
+        mPool = new ScheduledThreadPoolExecutor(Math.max(1, config.mThreads),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "LoadGenerator-" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        final TimerWheel wheel = (config.mTimeControl != null || config.mBrackets > 0)
+                ? new TimerWheel("LoadGenerator-wheel", WHEEL_TICK_MILLIS) : null;
+        final Random seeds = new Random(config.mSeed);
+        mMatchmaker = null;
+        if (config.mBrackets > 0) {
+            // Tables are made on the matchmaker's executor, which also owns seeds from now on.
+            mMatchmaker = new Matchmaker(config.mBrackets, config.mTargetWaitMillis,
+                    new SerialExecutor(mPool), wheel, new Matchmaker.TableFactory() {
+                        @Override
+                        public LocalReceiver newTable() {
+                            return newReceiver(seeds.nextLong(), wheel);
+                        }
+                    }, new Matchmaker.Listener() {
+                        @Override
+                        public void onMatched(Matchmaker.Ticket player1, Matchmaker.Ticket player2,
+                                LocalReceiver table) {
+                        }
+                    });
+        }
+        List<Client> clients = new ArrayList<Client>(config.mClients);
+        List<LocalReceiver.Channel> channels = new ArrayList<LocalReceiver.Channel>();
+        for (int i = 0; i < config.mClients; i += 2) {
+            LocalReceiver receiver =
+                    (mMatchmaker == null) ? newReceiver(seeds.nextLong(), wheel) : null;
+            for (int j = i; j < i + 2; ++j) {
+                Random random = new Random(seeds.nextLong());
+                Bot bot = (config.mBotFactory != null)
+                        ? config.mBotFactory.newBot(j) : new Bot.RandomBot(random);
+                Client client = new Client(j, bot, random);
+                if (receiver != null) {
+                    channels.add(receiver.connect(client.mStream));
+                }
+                clients.add(client);
+            }
+        }
+
+        mStopping = false;
+        long start = System.nanoTime();
+        for (Client client : clients) {
+            client.start();
+        }
+        mStopRequested.await(config.mDurationMillis, TimeUnit.MILLISECONDS);
+        mStopping = true;
+        long elapsed = System.nanoTime() - start;
+
+        // Let games in progress finish without starting new ones.
+        final CountDownLatch idle = new CountDownLatch(clients.size());
+        for (Client client : clients) {
+            client.awaitIdle(idle);
+        }
+        if (!idle.await(config.mMoveTimeoutMillis * 2, TimeUnit.MILLISECONDS)) {
+            Log.w(TAG, idle.getCount() + " clients did not finish their game");
+        }
+        for (LocalReceiver.Channel channel : channels) {
+            channel.close();
+        }
+        mPool.shutdown();
+        if (wheel != null) {
+            wheel.stop();
+        }
+
+        Map<String, Long> errors = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : mErrors.entrySet()) {
+            errors.put(entry.getKey(), entry.getValue().get());
+        }
+        return new Report(elapsed, mGames.get(), mMoves.get(),
+                Collections.unmodifiableMap(errors), mLatency,
+                (mMatchmaker != null) ? mMatchmaker.getWaitTimes() : null);
+    }
+
+    private LocalReceiver newReceiver(long seed, TimerWheel wheel) {
+        LocalReceiver receiver = new LocalReceiver(new SerialExecutor(mPool), new Random(seed));
+        if (mConfig.mTimeControl != null) {
+            receiver.setTimeControl(mConfig.mTimeControl, wheel);
+        }
+        return receiver;
+    }
+
+    /**
+     * Ends a run early. Games in progress are still finished. May be called from any thread.
+     */
+    public void stop() {
+        mStopRequested.countDown();
+    }
+
+    private void countError(String message) {
+        AtomicLong count = mErrors.get(message);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = mErrors.putIfAbsent(message, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * One simulated sender. All of its state is confined to its serial executor, which is also
+     * its stream's decode and callback executor.
+     */
+    private final class Client implements GameEventBus.Subscriber {
+        private final int mIndex;
+        private final Bot mBot;
+        private final Random mRandom;
+        private final Executor mExecutor;
+        private final GameMessageStream mStream;
+        private final int[] mBoard = new int[9];
+
+        private String mSymbol;
+        private boolean mInGame;
+        // The client's place in the matchmaker's queue, or at its table once matched.
+        private Matchmaker.Ticket mTicket;
+        private CountDownLatch mIdleLatch;
+
+        private final Runnable mJoinTask = new Runnable() {
+            @Override
+            public void run() {
+                join();
+            }
+        };
+        private final Runnable mMoveTask = new Runnable() {
+            @Override
+            public void run() {
+                move();
+            }
+        };
+
+        Client(int index, Bot bot, Random random) {
+            mIndex = index;
+            mBot = bot;
+            mRandom = random;
+            mExecutor = new SerialExecutor(mPool);
+            mStream = new GameMessageStream(mExecutor, mExecutor);
+            mStream.getEventBus().subscribe(this, null);
+            if (mConfig.mSubscriber != null) {
+                mStream.getEventBus().subscribe(mConfig.mSubscriber, null);
+            }
+        }
+
+        void start() {
+            mExecutor.execute(mJoinTask);
+        }
+
+        /**
+         * Counts latch down once this client is between games.
+         */
+        void awaitIdle(final CountDownLatch latch) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mIdleLatch = latch;
+                    if (mInGame && mSymbol == null) {
+                        // Still waiting for an opponent who may never join. A client the
+                        // matchmaker has already seated plays its game out instead.
+                        if (mTicket == null) {
+                            mInGame = false;
+                            mStream.leave();
+                        } else if (mTicket.cancel()) {
+                            mInGame = false;
+                            mTicket = null;
+                        }
+                    }
+                    if (!mInGame) {
+                        onIdle();
+                    }
+                }
+            });
+        }
+
+        private void join() {
+            if (mStopping) {
+                onIdle();
+                return;
+            }
+            mInGame = true;
+            mSymbol = null;
+            for (int i = 0; i < mBoard.length; ++i) {
+                mBoard[i] = GameView.State.EMPTY.getValue();
+            }
+            if (mMatchmaker != null) {
+                mTicket = mMatchmaker.join(mStream, "client-" + mIndex,
+                        mIndex % mConfig.mBrackets);
+            } else {
+                mStream.join("client-" + mIndex);
+            }
+        }
+
+        @Override
+        public void onEvent(GameEvent event) {
+            switch (event.getType()) {
+                case GameEvent.TYPE_JOINED:
+                    mSymbol = event.getPlayer();
+                    if (GameMessageStream.PLAYER_X.equals(mSymbol)) {
+                        think(mMoveTask);
+                    }
+                    break;
+                case GameEvent.TYPE_MOVED:
+                    boolean isX = GameMessageStream.PLAYER_X.equals(event.getPlayer());
+                    mBoard[event.getRow() * 3 + event.getColumn()] = isX
+                            ? GameView.State.PLAYER_X.getValue()
+                            : GameView.State.PLAYER_O.getValue();
+                    if (!event.isGameOver() && mSymbol != null
+                            && !mSymbol.equals(event.getPlayer())) {
+                        think(mMoveTask);
+                    }
+                    break;
+                case GameEvent.TYPE_ENDGAME:
+                    // An endgame before joined belongs to the game this client already left.
+                    if (mInGame && mSymbol != null) {
+                        endGame();
+                    }
+                    break;
+                case GameEvent.TYPE_ERROR:
+                    countError(event.getErrorMessage());
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void move() {
+            if (!mInGame || mSymbol == null) {
+                return;
+            }
+            int self = GameMessageStream.PLAYER_X.equals(mSymbol)
+                    ? GameView.State.PLAYER_X.getValue() : GameView.State.PLAYER_O.getValue();
+            int cell = mBot.chooseMove(mBoard, self);
+            if (cell < 0) {
+                return;
+            }
+            final long sent = System.nanoTime();
+            mStream.moveAsync(cell / 3, cell % 3, mConfig.mMoveTimeoutMillis).addCallback(
+                    new ResponseFuture.Callback<Boolean>() {
+                        @Override
+                        public void onSuccess(Boolean isGameOver) {
+                            mLatency.record(System.nanoTime() - sent);
+                            mMoves.incrementAndGet();
+                        }
+
+                        @Override
+                        public void onFailure(Exception error) {
+                            countError(error.getMessage() != null
+                                    ? error.getMessage() : error.getClass().getSimpleName());
+                            if (mInGame) {
+                                // Leaving abandons the game, which frees the opponent too.
+                                endGame();
+                            }
+                        }
+                    }, mExecutor);
+        }
+
+        private void endGame() {
+            if (GameMessageStream.PLAYER_X.equals(mSymbol)) {
+                // Both players see the end of a game; only one of them counts it.
+                mGames.incrementAndGet();
+            }
+            mInGame = false;
+            mSymbol = null;
+            mStream.leave();
+            if (mTicket != null) {
+                // Each table hosts a single game.
+                mTicket.getChannel().close();
+                mTicket = null;
+            }
+            if (mStopping) {
+                onIdle();
+            } else {
+                think(mJoinTask);
+            }
+        }
+
+        private void onIdle() {
+            if (mIdleLatch != null) {
+                mIdleLatch.countDown();
+                mIdleLatch = null;
+            }
+        }
+
+        private void think(Runnable task) {
+            long mean = mConfig.mThinkTimeMillis;
+            if (mean <= 0) {
+                mExecutor.execute(task);
+                return;
+            }
+            final Runnable next = task;
+            mPool.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    mExecutor.execute(next);
+                }
+            }, (long) (mRandom.nextDouble() * 2 * mean), TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cast.demo;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs short {@link LoadGenerator} loads against {@link LocalReceiver}s. Longer runs for sizing
+ * receivers use the same configuration with more clients and a longer duration.
+ */
+public class LoadGeneratorTest extends TestCase {
+    private static final String TAG = LoadGeneratorTest.class.getSimpleName();
+
+    private static final long SEED = 42;
+    private static final long DURATION_MS = 2000;
+
+    public void testRandomBots() throws Exception {
+        LoadGenerator.Report report = new LoadGenerator(new LoadGenerator.Config()
+                .setClients(1000)
+                .setDurationMillis(DURATION_MS)
+                .setSeed(SEED))
+                .run();
+        Log.i(TAG, report.toString());
+        assertTrue(report.getGames() > 0);
+        assertEquals(report.getMoves(), report.getMoveLatency().getCount());
+        assertEquals(report.toString(), 0, report.getErrorCount());
+    }
+
+    public void testScriptedBotsWithThinkTime() throws Exception {
+        LoadGenerator.Report report = new LoadGenerator(new LoadGenerator.Config()
+                .setClients(100)
+                .setDurationMillis(DURATION_MS)
+                .setThinkTimeMillis(5)
+                .setSeed(SEED)
+                .setBotFactory(new LoadGenerator.BotFactory() {
+                    @Override
+                    public Bot newBot(int client) {
+                        return new Bot.ScriptedBot(4, 0, 2, 6, 8);
+                    }
+                }))
+                .run();
+        Log.i(TAG, report.toString());
+        assertTrue(report.getGames() > 0);
+        assertEquals(report.toString(), 0, report.getErrorCount());
+    }
+
+    public void testTimedGames() throws Exception {
+        LoadGenerator.Report report = new LoadGenerator(new LoadGenerator.Config()
+                .setClients(100)
+                .setDurationMillis(DURATION_MS)
+                .setThinkTimeMillis(5)
+                .setSeed(SEED)
+                .setTimeControl(new GameClock.TimeControl(60000, 0, 0)))
+                .run();
+        Log.i(TAG, report.toString());
+        assertTrue(report.getGames() > 0);
+        assertEquals(report.toString(), 0, report.getErrorCount());
+    }
+
+    public void testMatchmaking() throws Exception {
+        LoadGenerator.Report report = new LoadGenerator(new LoadGenerator.Config()
+                .setClients(1000)
+                .setDurationMillis(DURATION_MS)
+                .setThinkTimeMillis(5)
+                .setSeed(SEED)
+                .setMatchmaking(8, 20))
+                .run();
+        Log.i(TAG, report.toString());
+        assertTrue(report.getGames() > 0);
+        // Every game was set up by the matchmaker, which seats two players per game.
+        assertTrue(report.getMatchWaits().getCount() >= 2 * report.getGames());
+        assertEquals(report.toString(), 0, report.getErrorCount());
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Tests timed games on a {@link LocalReceiver}, whose state is driven from the test thread.
+ */
+public class LocalReceiverTest extends TestCase {
+    // The receiver's tasks, including clock timeouts from the wheel's thread, run in drain().
+    private final LinkedBlockingQueue<Runnable> mTasks = new LinkedBlockingQueue<Runnable>();
+    private final Executor mReceiverExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mTasks.add(command);
+        }
+    };
+
+    private TimerWheel mWheel;
+    private LocalReceiver mReceiver;
+    private GameMessageStream[] mSeats;
+    private String[] mSymbols;
+    private String[] mEndStates;
+    private long[] mClocks;
+    // The seat playing X.
+    private int mX;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Timeouts fire a whole tick late, well after each test has made its move.
+        mWheel = new TimerWheel("LocalReceiverTest", 5000);
+        mReceiver = new LocalReceiver(mReceiverExecutor, new Random(42));
+        mSeats = new GameMessageStream[] {
+            new GameMessageStream(DirectExecutor.INSTANCE, DirectExecutor.INSTANCE),
+            new GameMessageStream(DirectExecutor.INSTANCE, DirectExecutor.INSTANCE)
+        };
+        mSymbols = new String[2];
+        mEndStates = new String[2];
+        mClocks = new long[] {-1, -1};
+        for (int i = 0; i < mSeats.length; ++i) {
+            final int seat = i;
+            mReceiver.connect(mSeats[i]);
+            mSeats[i].getEventBus().subscribe(new GameEventBus.Subscriber() {
+                @Override
+                public void onEvent(GameEvent event) {
+                    if (event.getType() == GameEvent.TYPE_JOINED) {
+                        mSymbols[seat] = event.getPlayer();
+                    } else if (event.getType() == GameEvent.TYPE_ENDGAME) {
+                        mEndStates[seat] = event.getEndState();
+                        return;
+                    }
+                    mClocks[0] = event.getRemainingMillis(GameMessageStream.PLAYER_X);
+                    mClocks[1] = event.getRemainingMillis(GameMessageStream.PLAYER_O);
+                }
+            }, null);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mWheel.stop();
+        super.tearDown();
+    }
+
+    public void testTimedGameSendsClocks() throws Exception {
+        mReceiver.setTimeControl(new GameClock.TimeControl(60000, 1000, 0), mWheel);
+        startGame();
+        // X's clock starts before the joined events are sent.
+        assertTrue(mClocks[0] > 59000 && mClocks[0] <= 60000);
+        assertEquals(60000, mClocks[1]);
+
+        ResponseFuture<Boolean> future = mSeats[mX].moveAsync(1, 1, 60000);
+        drain();
+        assertFalse(future.get());
+        // X used a little of their time and got the increment back, and O's clock is running.
+        assertTrue(mClocks[0] > 60000 && mClocks[0] <= 61000);
+        assertTrue(mClocks[1] > 59000 && mClocks[1] <= 60000);
+    }
+
+    public void testMoveAfterRunningOutOfTimeFailsRequest() throws Exception {
+        mReceiver.setTimeControl(new GameClock.TimeControl(1, 0, 0), mWheel);
+        startGame();
+        Thread.sleep(10);
+
+        ResponseFuture<Boolean> future = mSeats[mX].moveAsync(1, 1, 60000);
+        drain();
+        assertTrue("Move was not answered", future.isDone());
+        try {
+            future.get();
+            fail("Move was accepted");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+            assertEquals("You ran out of time.", e.getCause().getMessage());
+        }
+        assertEquals(0, mSeats[mX].getPendingRequestCount());
+        assertEquals(GameMessageStream.END_STATE_ABANDONED, mEndStates[0]);
+        assertEquals(GameMessageStream.END_STATE_ABANDONED, mEndStates[1]);
+    }
+
+    private void startGame() {
+        mSeats[0].join("first");
+        mSeats[1].join("second");
+        drain();
+        mX = GameMessageStream.PLAYER_X.equals(mSymbols[0]) ? 0 : 1;
+        assertEquals(GameMessageStream.PLAYER_O, mSymbols[1 - mX]);
+    }
+
+    private void drain() {
+        Runnable task;
+        while ((task = mTasks.poll()) != null) {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that players who leave the {@link Matchmaker} queue while being paired are either seated
+ * or gone, never both or neither, and that a player who could not leave already has a table.
+ */
+public class MatchmakerTest extends TestCase {
+    private static final int ROUNDS = 500;
+    private static final int PLAYERS = 2000;
+
+    private ExecutorService mExecutor;
+    private TimerWheel mWheel;
+    private Matchmaker mMatchmaker;
+    private final Set<Matchmaker.Ticket> mMatched =
+            Collections.newSetFromMap(new IdentityHashMap<Matchmaker.Ticket, Boolean>());
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = Executors.newSingleThreadExecutor();
+        mWheel = new TimerWheel("MatchmakerTest", 10);
+        mMatchmaker = new Matchmaker(1, 60000, mExecutor, mWheel, new Matchmaker.TableFactory() {
+            @Override
+            public LocalReceiver newTable() {
+                return new LocalReceiver(DirectExecutor.INSTANCE, new Random(42));
+            }
+        }, new Matchmaker.Listener() {
+            @Override
+            public void onMatched(Matchmaker.Ticket player1, Matchmaker.Ticket player2,
+                    LocalReceiver table) {
+                mMatched.add(player1);
+                mMatched.add(player2);
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdown();
+        mWheel.stop();
+        super.tearDown();
+    }
+
+    public void testCancelWhilePairing() throws Exception {
+        for (int round = 0; round < ROUNDS; ++round) {
+            // Holds pairing back until every player has joined and both cancellers are ready.
+            final CountDownLatch release = new CountDownLatch(1);
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            final Matchmaker.Ticket[] tickets = new Matchmaker.Ticket[PLAYERS];
+            for (int i = 0; i < PLAYERS; ++i) {
+                tickets[i] = join("player-" + i);
+            }
+            // Each canceller leaves with every other player, in queue order, racing the pairing.
+            final boolean[] left = new boolean[PLAYERS];
+            // Whether a player who could not leave had their table's channel by then.
+            final boolean[] seated = new boolean[PLAYERS];
+            Thread[] cancellers = new Thread[2];
+            for (int c = 0; c < cancellers.length; ++c) {
+                final int offset = c;
+                cancellers[c] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        for (int i = offset; i < PLAYERS; i += 2) {
+                            left[i] = tickets[i].cancel();
+                            seated[i] = !left[i] && tickets[i].getChannel() != null;
+                        }
+                    }
+                });
+                cancellers[c].start();
+            }
+            release.countDown();
+            for (Thread canceller : cancellers) {
+                canceller.join();
+            }
+            awaitMatching();
+            for (int i = 0; i < PLAYERS; ++i) {
+                assertEquals("Round " + round + ", player " + i, !left[i],
+                        mMatched.contains(tickets[i]));
+                assertTrue("Round " + round + ", player " + i + " has no channel",
+                        left[i] || seated[i]);
+            }
+            mMatched.clear();
+        }
+    }
+
+    private Matchmaker.Ticket join(String name) {
+        return mMatchmaker.join(
+                new GameMessageStream(DirectExecutor.INSTANCE, DirectExecutor.INSTANCE), name, 0);
+    }
+
+    private void awaitMatching() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+    }
+}
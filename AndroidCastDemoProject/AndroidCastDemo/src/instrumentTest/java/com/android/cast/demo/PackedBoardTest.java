@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Tests encoding boards with {@link PackedBoard} and decoding them into both kinds of buffer,
+ * including malformed input.
+ */
+public class PackedBoardTest extends TestCase {
+    private static final String ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    private static final int FORMAT_RAW = 0x10;
+    private static final int FORMAT_RLE = 0x11;
+
+    public void testEmptyBoardRoundTrip() {
+        String packed = assertRoundTrip(new int[19 * 19], 19);
+        assertEquals(FORMAT_RLE, formatOf(packed));
+    }
+
+    public void testSparseBoardRoundTrip() {
+        int[] board = new int[19 * 19];
+        board[0] = 1;
+        board[19 * 9 + 9] = 2;
+        board[200] = 1;
+        board[19 * 19 - 1] = 2;
+        String packed = assertRoundTrip(board, 19);
+        assertEquals(FORMAT_RLE, formatOf(packed));
+    }
+
+    public void testRunsLongerThanOneByteRoundTrip() {
+        // 400 empty bytes, more than one run can hold.
+        int[] board = new int[40 * 40];
+        board[40 * 20] = 2;
+        String packed = assertRoundTrip(board, 40);
+        assertEquals(FORMAT_RLE, formatOf(packed));
+    }
+
+    public void testDenseBoardRoundTrip() {
+        int[] board = new int[9 * 9];
+        for (int i = 0; i < board.length; ++i) {
+            board[i] = 1 + i % 2;
+        }
+        String packed = assertRoundTrip(board, 9);
+        assertEquals(FORMAT_RAW, formatOf(packed));
+    }
+
+    public void testRejectsZeroRun() {
+        assertRejected(base64(FORMAT_RLE, 9, 0, 0), 3);
+    }
+
+    public void testRejectsCellValueThree() {
+        assertRejected(base64(FORMAT_RAW, 4, 0x03), 2);
+        assertRejected(base64(FORMAT_RLE, 4, 0xC0), 2);
+    }
+
+    public void testRejectsTruncatedInput() {
+        // Nine cells need three bytes.
+        assertRejected(base64(FORMAT_RAW, 9, 0x01, 0x02), 3);
+        assertRejected(base64(FORMAT_RLE, 9, 0x01, 0x00), 3);
+        String packed = PackedBoard.encode(new int[] {1, 2, 1, 2, 1, 2, 1, 2, 1}, 9);
+        assertRejected(packed.substring(0, packed.length() - 4), 3);
+    }
+
+    public void testRejectsPaddedInput() {
+        // Sixteen cells need four bytes, and the padding comes after the second.
+        String packed = base64(FORMAT_RAW, 16, 0x01, 0x01);
+        assertTrue(packed.endsWith("=="));
+        assertRejected(packed + "AAAA", 4);
+    }
+
+    public void testRejectsUnknownFormatAndOtherSizes() {
+        assertRejected(base64(0x12, 4, 0x01), 2);
+        int[][] board = new int[3][3];
+        try {
+            PackedBoard.decode(PackedBoard.encode(new int[16], 16), board);
+            fail("Decoded a 4x4 board into a 3x3 one");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            PackedBoard.decode(PackedBoard.encode(new int[16], 16), new int[9]);
+            fail("Decoded 16 cells into a buffer of 9");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * Encodes board, checks that both decoders give it back, and returns the encoding.
+     */
+    private static String assertRoundTrip(int[] board, int size) {
+        String packed = PackedBoard.encode(board, board.length);
+
+        int[] cells = new int[board.length + 5];
+        Arrays.fill(cells, -1);
+        assertEquals(board.length, PackedBoard.decode(packed, cells));
+        assertTrue(Arrays.equals(board, Arrays.copyOf(cells, board.length)));
+
+        int[][] layout = new int[size][size];
+        for (int[] row : layout) {
+            Arrays.fill(row, -1);
+        }
+        PackedBoard.decode(packed, layout);
+        for (int i = 0; i < board.length; ++i) {
+            assertEquals("Cell " + i, board[i], layout[i / size][i % size]);
+        }
+        return packed;
+    }
+
+    private static void assertRejected(String packed, int size) {
+        try {
+            PackedBoard.decode(packed, new int[size * size]);
+            fail("Decoded " + packed + " into cells");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            PackedBoard.decode(packed, new int[size][size]);
+            fail("Decoded " + packed + " into a layout");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    private static int formatOf(String packed) {
+        return (ALPHABET.indexOf(packed.charAt(0)) << 2)
+                | (ALPHABET.indexOf(packed.charAt(1)) >> 4);
+    }
+
+    private static String base64(int... bytes) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < bytes.length; i += 3) {
+            int b0 = bytes[i];
+            int b1 = (i + 1 < bytes.length) ? bytes[i + 1] : 0;
+            int b2 = (i + 2 < bytes.length) ? bytes[i + 2] : 0;
+            builder.append(ALPHABET.charAt(b0 >> 2));
+            builder.append(ALPHABET.charAt(((b0 & 3) << 4) | (b1 >> 4)));
+            builder.append((i + 1 < bytes.length) ? ALPHABET.charAt(((b1 & 0xF) << 2) | (b2 >> 6))
+                    : '=');
+            builder.append((i + 2 < bytes.length) ? ALPHABET.charAt(b2 & 0x3F) : '=');
+        }
+        return builder.toString();
+    }
+}
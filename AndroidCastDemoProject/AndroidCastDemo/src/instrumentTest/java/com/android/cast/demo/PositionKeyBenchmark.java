@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures {@link PositionKey} on random games of any board size: the incremental update and
+ * canonical key after each move, against rebuilding the key from the whole board.
+ */
+public class PositionKeyBenchmark {
+
+    /**
+     * The results of a benchmark run.
+     */
+    public static final class Report {
+        private int mSide;
+        private double mIncrementalNanos;
+        private double mRescanNanos;
+        private String mMismatch;
+        private long mChecksum;
+
+        /**
+         * Returns the average time to play a move and read the canonical key incrementally.
+         */
+        public double getIncrementalNanos() {
+            return mIncrementalNanos;
+        }
+
+        /**
+         * Returns the average time to read the canonical key by setting every cell of a cleared
+         * key after a move.
+         */
+        public double getRescanNanos() {
+            return mRescanNanos;
+        }
+
+        /**
+         * Returns the first move after which the two keys differed, or null if they never did.
+         */
+        public String getMismatch() {
+            return mMismatch;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%dx%d: incremental %.0f ns/move, rescan %.0f ns/move", mSide,
+                    mSide, mIncrementalNanos, mRescanNanos);
+        }
+    }
+
+    /**
+     * Plays random games until the board is full, games times over, then replays them comparing
+     * both keys after every move.
+     *
+     * @param side the number of rows and columns of the board
+     */
+    public static Report run(int side, int games, Random random) {
+        int cells = side * side;
+        // Every game's moves, as cell indexes in the order they are played.
+        int[][] orders = new int[games][cells];
+        for (int[] order : orders) {
+            for (int i = 0; i < cells; ++i) {
+                order[i] = i;
+            }
+            for (int i = cells - 1; i > 0; --i) {
+                int j = random.nextInt(i + 1);
+                int swap = order[i];
+                order[i] = order[j];
+                order[j] = swap;
+            }
+        }
+        int x = GameView.State.PLAYER_X.getValue();
+        int o = GameView.State.PLAYER_O.getValue();
+        PositionKey incremental = new PositionKey(side);
+        PositionKey rescanned = new PositionKey(side);
+        int[][] board = new int[side][side];
+        long moves = (long) games * cells;
+        long sink = 0;
+
+        Report report = new Report();
+        report.mSide = side;
+        // The first pass warms up the JIT, and the second is reported.
+        for (int pass = 0; pass < 2; ++pass) {
+            long start = System.nanoTime();
+            for (int[] order : orders) {
+                incremental.clear();
+                for (int i = 0; i < cells; ++i) {
+                    incremental.set(order[i] / side, order[i] % side, (i & 1) == 0 ? x : o);
+                    sink += incremental.canonicalKey();
+                }
+            }
+            report.mIncrementalNanos = (double) (System.nanoTime() - start) / moves;
+
+            start = System.nanoTime();
+            for (int[] order : orders) {
+                for (int[] row : board) {
+                    Arrays.fill(row, 0);
+                }
+                for (int i = 0; i < cells; ++i) {
+                    board[order[i] / side][order[i] % side] = (i & 1) == 0 ? x : o;
+                    rescanned.clear();
+                    rescanned.setBoard(board);
+                    sink -= rescanned.canonicalKey();
+                }
+            }
+            report.mRescanNanos = (double) (System.nanoTime() - start) / moves;
+        }
+        // Keeps the timed keys alive.
+        report.mChecksum = sink;
+
+        for (int game = 0; game < games && report.mMismatch == null; ++game) {
+            int[] order = orders[game];
+            incremental.clear();
+            for (int[] row : board) {
+                Arrays.fill(row, 0);
+            }
+            for (int i = 0; i < cells; ++i) {
+                int value = (i & 1) == 0 ? x : o;
+                incremental.set(order[i] / side, order[i] % side, value);
+                board[order[i] / side][order[i] % side] = value;
+                rescanned.clear();
+                rescanned.setBoard(board);
+                if (incremental.canonicalKey() != rescanned.canonicalKey()) {
+                    report.mMismatch = "game " + game + ", move " + i;
+                    break;
+                }
+            }
+        }
+        return report;
+    }
+}
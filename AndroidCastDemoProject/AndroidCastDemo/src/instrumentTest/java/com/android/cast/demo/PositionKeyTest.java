@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import com.android.cast.demo.GameView.State;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests that {@link PositionKey} gives every rotation and reflection of a position the same key,
+ * and that its transforms map moves between them.
+ */
+public class PositionKeyTest extends TestCase {
+    private static final long SEED = 42;
+    private static final int TRANSFORMS = 8;
+
+    public void testTransformsAreInverted() {
+        PositionKey key = new PositionKey(5);
+        for (int t = 0; t < TRANSFORMS; ++t) {
+            for (int row = 0; row < 5; ++row) {
+                for (int column = 0; column < 5; ++column) {
+                    int cell = key.toCanonical(t, row, column);
+                    assertEquals(row * 5 + column, key.fromCanonical(t, cell / 5, cell % 5));
+                }
+            }
+        }
+    }
+
+    public void testSymmetricPositionsShareKey() {
+        Random random = new Random(SEED);
+        for (int size = 1; size <= 7; ++size) {
+            for (int round = 0; round < 20; ++round) {
+                checkSymmetries(randomBoard(size, random));
+            }
+        }
+    }
+
+    public void testSymmetricBoardKeepsKey() {
+        // The center cell alone is unchanged by every transform.
+        int[][] board = new int[3][3];
+        board[1][1] = State.PLAYER_X.getValue();
+        checkSymmetries(board);
+    }
+
+    public void testDifferentPositionsHaveDifferentKeys() {
+        PositionKey corner = new PositionKey(3);
+        corner.set(0, 0, State.PLAYER_X);
+        PositionKey edge = new PositionKey(3);
+        edge.set(0, 1, State.PLAYER_X);
+        PositionKey other = new PositionKey(3);
+        other.set(2, 2, State.PLAYER_O);
+        assertTrue(corner.canonicalKey() != edge.canonicalKey());
+        assertTrue(corner.canonicalKey() != other.canonicalKey());
+    }
+
+    /**
+     * Checks that all eight variants of board have one key and one canonical board, and that each
+     * variant's canonical transform maps every canonical cell back to the cell it came from.
+     */
+    private static void checkSymmetries(int[][] board) {
+        int size = board.length;
+        PositionKey original = keyOf(board);
+        int[] canonical = canonicalBoard(original, board);
+        for (int s = 0; s < TRANSFORMS; ++s) {
+            int[][] variant = new int[size][size];
+            for (int row = 0; row < size; ++row) {
+                for (int column = 0; column < size; ++column) {
+                    int cell = original.toCanonical(s, row, column);
+                    variant[cell / size][cell % size] = board[row][column];
+                }
+            }
+            PositionKey key = keyOf(variant);
+            assertEquals("Transform " + s, original.canonicalKey(), key.canonicalKey());
+            int[] variantCanonical = canonicalBoard(key, variant);
+            assertTrue("Transform " + s, Arrays.equals(canonical, variantCanonical));
+
+            int t = key.canonicalTransform();
+            for (int cell = 0; cell < size * size; ++cell) {
+                int from = key.fromCanonical(t, cell / size, cell % size);
+                assertEquals(variantCanonical[cell], variant[from / size][from % size]);
+            }
+        }
+    }
+
+    private static PositionKey keyOf(int[][] board) {
+        PositionKey key = new PositionKey(board.length);
+        key.setBoard(board);
+        return key;
+    }
+
+    private static int[] canonicalBoard(PositionKey key, int[][] board) {
+        int size = board.length;
+        int t = key.canonicalTransform();
+        int[] canonical = new int[size * size];
+        for (int row = 0; row < size; ++row) {
+            for (int column = 0; column < size; ++column) {
+                canonical[key.toCanonical(t, row, column)] = board[row][column];
+            }
+        }
+        return canonical;
+    }
+
+    private static int[][] randomBoard(int size, Random random) {
+        int[][] board = new int[size][size];
+        for (int[] row : board) {
+            for (int column = 0; column < size; ++column) {
+                row[column] = random.nextInt(3);
+            }
+        }
+        return board;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the smoothed round trip time and the timeouts {@link RttEstimator} derives from it.
+ */
+public class RttEstimatorTest extends TestCase {
+    private RttEstimator mEstimator;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mEstimator = new RttEstimator();
+    }
+
+    public void testInitialTimeout() {
+        assertEquals(RttEstimator.INITIAL_TIMEOUT_MS, mEstimator.getTimeoutMillis());
+        assertEquals(-1, mEstimator.getSmoothedMillis());
+        assertEquals(-1, mEstimator.getVarianceMillis());
+        assertEquals(0, mEstimator.getSampleCount());
+    }
+
+    public void testFirstSample() {
+        mEstimator.sample(millis(200));
+        // SRTT = R, RTTVAR = R / 2.
+        assertEquals(200, mEstimator.getSmoothedMillis());
+        assertEquals(100, mEstimator.getVarianceMillis());
+        assertEquals(200 + 4 * 100, mEstimator.getTimeoutMillis());
+        assertEquals(1, mEstimator.getSampleCount());
+    }
+
+    public void testSecondSample() {
+        mEstimator.sample(millis(200));
+        mEstimator.sample(millis(300));
+        // RTTVAR += (|R - SRTT| - RTTVAR) / 4, then SRTT += (R - SRTT) / 8.
+        assertEquals(100, mEstimator.getVarianceMillis());
+        assertEquals(212, mEstimator.getSmoothedMillis());
+        assertEquals(612, mEstimator.getTimeoutMillis());
+    }
+
+    public void testConverges() {
+        mEstimator.sample(millis(2000));
+        for (int i = 0; i < 200; ++i) {
+            mEstimator.sample(millis(800));
+        }
+        assertEquals(800, mEstimator.getSmoothedMillis());
+        assertEquals(0, mEstimator.getVarianceMillis());
+        assertEquals(800, mEstimator.getTimeoutMillis());
+    }
+
+    public void testClampsTimeout() {
+        mEstimator.sample(millis(10));
+        assertEquals(RttEstimator.MIN_TIMEOUT_MS, mEstimator.getTimeoutMillis());
+
+        RttEstimator slow = new RttEstimator();
+        slow.sample(millis(30000));
+        assertEquals(RttEstimator.MAX_TIMEOUT_MS, slow.getTimeoutMillis());
+    }
+
+    public void testBackoffDoublesUntilNextSample() {
+        mEstimator.sample(millis(200));
+        long timeout = mEstimator.getTimeoutMillis();
+        while (timeout < RttEstimator.MAX_TIMEOUT_MS) {
+            mEstimator.backoff();
+            assertEquals(Math.min(timeout * 2, RttEstimator.MAX_TIMEOUT_MS),
+                    mEstimator.getTimeoutMillis());
+            timeout = mEstimator.getTimeoutMillis();
+        }
+        mEstimator.backoff();
+        assertEquals(RttEstimator.MAX_TIMEOUT_MS, mEstimator.getTimeoutMillis());
+
+        // The next sample derives the timeout afresh: RTTVAR is now 75ms and SRTT 200ms.
+        mEstimator.sample(millis(200));
+        assertEquals(500, mEstimator.getTimeoutMillis());
+    }
+
+    public void testBackoffBeforeFirstSample() {
+        mEstimator.backoff();
+        assertEquals(2 * RttEstimator.INITIAL_TIMEOUT_MS, mEstimator.getTimeoutMillis());
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
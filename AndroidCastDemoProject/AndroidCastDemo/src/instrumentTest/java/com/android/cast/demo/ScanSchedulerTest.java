@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import com.google.cast.CastDevice;
+import com.google.cast.DeviceManager;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the burst, duty cycle and backoff of {@link ScanScheduler}, and its accounting of scan
+ * and CPU time, on a simulated clock.
+ */
+public class ScanSchedulerTest extends TestCase {
+    private FakeHost mHost;
+    private ScanScheduler mScheduler;
+    private Consumer mConsumer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHost = new FakeHost();
+        mScheduler = new ScanScheduler(mHost);
+        mConsumer = new Consumer();
+    }
+
+    public void testBurstThenDutyCycle() {
+        mScheduler.addConsumer(mConsumer);
+        assertTrue(mHost.mScanning);
+        mHost.advanceTo(ScanScheduler.BURST_MIN_MS - 1);
+        assertTrue(mHost.mScanning);
+        mHost.advanceTo(ScanScheduler.BURST_MIN_MS);
+        assertFalse(mHost.mScanning);
+
+        // Each pause is twice as long as the last, up to the maximum.
+        long[] pauses = {10000, 20000, 40000, 60000, 60000};
+        long now = mHost.mNow;
+        for (long pause : pauses) {
+            assertEquals(pause, mHost.mDelay);
+            now += pause;
+            mHost.advanceTo(now - 1);
+            assertFalse(mHost.mScanning);
+            mHost.advanceTo(now);
+            assertTrue(mHost.mScanning);
+            assertEquals(ScanScheduler.LOW_ON_MS, mHost.mDelay);
+            now += ScanScheduler.LOW_ON_MS;
+            mHost.advanceTo(now);
+            assertFalse(mHost.mScanning);
+        }
+        assertEquals(1 + pauses.length, mHost.mStarts);
+    }
+
+    public void testChangesExtendBurst() {
+        mScheduler.addConsumer(mConsumer);
+        mHost.advanceTo(3000);
+        mScheduler.onDeviceOnline("tv", null);
+        // Stable STABLE_MS after the change, which is past the minimum burst.
+        mHost.advanceTo(3000 + ScanScheduler.STABLE_MS - 1);
+        assertTrue(mHost.mScanning);
+        mHost.advanceTo(3000 + ScanScheduler.STABLE_MS);
+        assertFalse(mHost.mScanning);
+        assertEquals(1, mConsumer.mOnline.size());
+    }
+
+    public void testBurstEndsAtMaximumDespiteChanges() {
+        mScheduler.addConsumer(mConsumer);
+        for (long t = 1000; t < ScanScheduler.BURST_MAX_MS; t += 1000) {
+            mHost.advanceTo(t);
+            mScheduler.onDeviceOnline("tv" + t, null);
+            assertTrue(mHost.mScanning);
+        }
+        mHost.advanceTo(ScanScheduler.BURST_MAX_MS);
+        assertFalse(mHost.mScanning);
+    }
+
+    public void testRepeatedDeviceIsNotAChange() {
+        mScheduler.addConsumer(mConsumer);
+        mScheduler.onDeviceOnline("tv", null);
+        mHost.advanceTo(3000);
+        mScheduler.onDeviceOnline("tv", null);
+        mHost.advanceTo(ScanScheduler.BURST_MIN_MS);
+        assertFalse(mHost.mScanning);
+        assertEquals(2, mConsumer.mOnline.size());
+    }
+
+    public void testChangeWhileDutyCycledStartsBurst() {
+        mScheduler.addConsumer(mConsumer);
+        long lowOn = ScanScheduler.BURST_MIN_MS + ScanScheduler.LOW_OFF_MIN_MS;
+        mHost.advanceTo(lowOn);
+        assertTrue(mHost.mScanning);
+        mHost.advanceTo(lowOn + 1000);
+        mScheduler.onDeviceOffline("tv", null);
+        // Nothing was online, so nothing changed.
+        assertEquals(ScanScheduler.LOW_ON_MS, mHost.mDelay);
+        mScheduler.onDeviceOnline("tv", null);
+        assertEquals(ScanScheduler.BURST_MIN_MS, mHost.mDelay);
+
+        mHost.advanceTo(lowOn + ScanScheduler.LOW_ON_MS);
+        assertTrue(mHost.mScanning);
+        long burstEnd = lowOn + 1000 + ScanScheduler.BURST_MIN_MS;
+        mHost.advanceTo(burstEnd);
+        assertFalse(mHost.mScanning);
+        // The duty cycle starts over from the shortest pause.
+        assertEquals(ScanScheduler.LOW_OFF_MIN_MS, mHost.mDelay);
+    }
+
+    public void testNetworkErrorBacksOff() {
+        mScheduler.addConsumer(mConsumer);
+        long base = ScanScheduler.RETRY_MIN_MS;
+        for (int failures = 0; failures < 4; ++failures) {
+            mScheduler.onScanStateChanged(DeviceManager.SCAN_SUSPENDED_NETWORK_ERROR);
+            assertFalse(mHost.mScanning);
+            // Jittered by up to half the delay again.
+            assertTrue("Retry after " + mHost.mDelay, mHost.mDelay >= base);
+            assertTrue("Retry after " + mHost.mDelay, mHost.mDelay <= base * 3 / 2);
+            // A consumer joining does not cut the backoff short.
+            mScheduler.addConsumer(new Consumer());
+            assertFalse(mHost.mScanning);
+
+            mHost.advanceTo(mHost.mNow + mHost.mDelay);
+            assertTrue(mHost.mScanning);
+            base *= 2;
+        }
+        assertEquals(4, mConsumer.mStates.size());
+
+        // A burst which runs its course clears the failures.
+        mHost.advanceTo(mHost.mNow + ScanScheduler.BURST_MIN_MS);
+        assertFalse(mHost.mScanning);
+        mHost.advanceTo(mHost.mNow + ScanScheduler.LOW_OFF_MIN_MS);
+        mScheduler.onScanStateChanged(DeviceManager.SCAN_SUSPENDED_NETWORK_ERROR);
+        assertTrue(mHost.mDelay <= ScanScheduler.RETRY_MIN_MS * 3 / 2);
+    }
+
+    public void testStopsWhenLastConsumerLeaves() {
+        Consumer other = new Consumer();
+        mScheduler.addConsumer(mConsumer);
+        mScheduler.addConsumer(other);
+        mScheduler.onDeviceOnline("tv", null);
+        assertEquals(1, other.mOnline.size());
+
+        mScheduler.removeConsumer(mConsumer);
+        assertTrue(mHost.mScanning);
+        mScheduler.removeConsumer(other);
+        assertFalse(mHost.mScanning);
+        assertNull(mHost.mTask);
+
+        // Devices seen before are stale once nobody watched them.
+        Consumer late = new Consumer();
+        mScheduler.addConsumer(late);
+        assertTrue(mHost.mScanning);
+        assertEquals(0, late.mOnline.size());
+    }
+
+    public void testNewConsumerIsToldAboutDevices() {
+        mScheduler.addConsumer(mConsumer);
+        mScheduler.onDeviceOnline("tv", null);
+        mScheduler.onDeviceOnline("speaker", null);
+        mScheduler.onDeviceOffline("tv", null);
+        Consumer late = new Consumer();
+        mScheduler.addConsumer(late);
+        assertEquals(1, late.mOnline.size());
+    }
+
+    public void testAccounting() {
+        mScheduler.addConsumer(mConsumer);
+        // Scans for the burst, then pauses.
+        mHost.advanceTo(ScanScheduler.BURST_MIN_MS + 5000);
+        assertEquals(ScanScheduler.BURST_MIN_MS + 5000, mScheduler.getHeldMillis());
+        assertEquals(ScanScheduler.BURST_MIN_MS, mScheduler.getScanningMillis());
+        assertEquals(ScanScheduler.BURST_MIN_MS / FakeHost.SCANNING_CPU_RATIO,
+                mScheduler.getScanningCpuMillis());
+        assertEquals(5000 / FakeHost.PAUSED_CPU_RATIO, mScheduler.getPausedCpuMillis());
+
+        mScheduler.removeConsumer(mConsumer);
+        long held = mScheduler.getHeldMillis();
+        long pausedCpu = mScheduler.getPausedCpuMillis();
+        mHost.advanceTo(mHost.mNow + 100000);
+        assertEquals(held, mScheduler.getHeldMillis());
+        assertEquals(ScanScheduler.BURST_MIN_MS, mScheduler.getScanningMillis());
+        assertEquals(pausedCpu, mScheduler.getPausedCpuMillis());
+    }
+
+    /**
+     * A clock which only moves when told to, running the scheduler's task when it falls due, and
+     * a process which uses more CPU while scanning.
+     */
+    private static final class FakeHost implements ScanScheduler.Host {
+        static final long SCANNING_CPU_RATIO = 10;
+        static final long PAUSED_CPU_RATIO = 100;
+
+        boolean mScanning;
+        int mStarts;
+        long mNow;
+        long mCpu;
+        Runnable mTask;
+        long mDue;
+        long mDelay;
+
+        void advanceTo(long time) {
+            while (mTask != null && mDue <= time) {
+                moveTo(mDue);
+                Runnable task = mTask;
+                mTask = null;
+                task.run();
+            }
+            moveTo(time);
+        }
+
+        private void moveTo(long time) {
+            mCpu += (time - mNow) / (mScanning ? SCANNING_CPU_RATIO : PAUSED_CPU_RATIO);
+            mNow = time;
+        }
+
+        @Override
+        public void startScan() {
+            mScanning = true;
+            ++mStarts;
+        }
+
+        @Override
+        public void stopScan() {
+            mScanning = false;
+        }
+
+        @Override
+        public long now() {
+            return mNow;
+        }
+
+        @Override
+        public long cpuTime() {
+            return mCpu;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            mTask = task;
+            mDue = mNow + delayMillis;
+            mDelay = delayMillis;
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            mTask = null;
+        }
+    }
+
+    private static final class Consumer implements DeviceManager.Listener {
+        final List<Integer> mStates = new ArrayList<Integer>();
+        final List<CastDevice> mOnline = new ArrayList<CastDevice>();
+
+        @Override
+        public void onScanStateChanged(int state) {
+            mStates.add(state);
+        }
+
+        @Override
+        public void onDeviceOnline(CastDevice device) {
+            mOnline.add(device);
+        }
+
+        @Override
+        public void onDeviceOffline(CastDevice device) {
+        }
+    }
+}
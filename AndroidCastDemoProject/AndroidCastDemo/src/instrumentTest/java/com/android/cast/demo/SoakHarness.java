@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import android.os.Build;
+import android.os.Debug;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A long running soak test which pushes millions of protocol events through
+ * {@link GameMessageStream}s and their consumers, sampling the retained heap and the allocation
+ * rate as it goes, to catch slow leaks before a kiosk session does.
+ *
+ * <p>The events come from a {@link Load}, such as {@link GeneratorLoad}, which plays games between
+ * simulated senders on {@link LocalReceiver}s, or one which feeds a running game screen. After a
+ * warmup, the heap is measured after a full collection every {@code sampleEvents} events, and
+ * the bytes allocated by the process are counted per window, so the harness is meant to run on a
+ * device. The run fails if the retained heap grew by more than {@code maxRetainedGrowthBytes}
+ * over the second half of the run, or if any window allocated more than {@code maxBytesPerEvent}
+ * per event. Growth is only judged over the second half because bounded buffers, such as the
+ * trace ring and queues of pending timeouts, legitimately fill up during the first; a leak keeps
+ * growing in both.
+ */
+public class SoakHarness {
+    private static final String TAG = SoakHarness.class.getSimpleName();
+
+    private static final long POLL_MILLIS = 20;
+    private static final int GC_PASSES = 3;
+
+    /**
+     * A source of events which delivers them on threads of its own.
+     */
+    public interface Load {
+        void start();
+
+        /**
+         * Returns the number of events consumed so far.
+         */
+        long getEvents();
+
+        /**
+         * Returns false once the load has stopped by itself, such as after a failure.
+         */
+        boolean isRunning();
+
+        /**
+         * Stops the load and waits for its threads to finish.
+         */
+        void stop() throws InterruptedException;
+    }
+
+    /**
+     * The parameters of a soak run.
+     */
+    public static final class Config {
+        private long mEvents = 5000000;
+        private long mWarmupEvents = 200000;
+        private long mSampleEvents = 250000;
+        private long mMaxRetainedGrowthBytes = 2 * 1024 * 1024;
+        private long mMaxBytesPerEvent = 4096;
+
+        /**
+         * Sets the number of events to deliver after the warmup.
+         */
+        public Config setEvents(long events) {
+            mEvents = events;
+            return this;
+        }
+
+        /**
+         * Sets the number of events delivered before the first sample, so that caches, pools and
+         * compiled code have settled.
+         */
+        public Config setWarmupEvents(long warmupEvents) {
+            mWarmupEvents = warmupEvents;
+            return this;
+        }
+
+        public Config setSampleEvents(long sampleEvents) {
+            mSampleEvents = sampleEvents;
+            return this;
+        }
+
+        public Config setMaxRetainedGrowthBytes(long maxRetainedGrowthBytes) {
+            mMaxRetainedGrowthBytes = maxRetainedGrowthBytes;
+            return this;
+        }
+
+        public Config setMaxBytesPerEvent(long maxBytesPerEvent) {
+            mMaxBytesPerEvent = maxBytesPerEvent;
+            return this;
+        }
+    }
+
+    /**
+     * The heap after a number of events.
+     */
+    public static final class Sample {
+        private final long mEvents;
+        private final long mElapsedNanos;
+        private final long mRetainedBytes;
+        private final double mBytesPerEvent;
+
+        private Sample(long events, long elapsedNanos, long retainedBytes, double bytesPerEvent) {
+            mEvents = events;
+            mElapsedNanos = elapsedNanos;
+            mRetainedBytes = retainedBytes;
+            mBytesPerEvent = bytesPerEvent;
+        }
+
+        /**
+         * Returns the number of events delivered since the warmup.
+         */
+        public long getEvents() {
+            return mEvents;
+        }
+
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        /**
+         * Returns the heap in use after a full collection.
+         */
+        public long getRetainedBytes() {
+            return mRetainedBytes;
+        }
+
+        /**
+         * Returns the bytes allocated per event since the previous sample, by every thread.
+         */
+        public double getBytesPerEvent() {
+            return mBytesPerEvent;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%10d events %8.1fs: retained %7d KB, %6.0f B/event", mEvents,
+                    mElapsedNanos / 1e9, mRetainedBytes / 1024, mBytesPerEvent);
+        }
+    }
+
+    /**
+     * The results of a soak run.
+     */
+    public static final class Report {
+        private final List<Sample> mSamples;
+        private final List<String> mFailures;
+
+        private Report(List<Sample> samples, List<String> failures) {
+            mSamples = samples;
+            mFailures = failures;
+        }
+
+        public List<Sample> getSamples() {
+            return mSamples;
+        }
+
+        /**
+         * Returns the thresholds which were exceeded, if any.
+         */
+        public List<String> getFailures() {
+            return mFailures;
+        }
+
+        public boolean isPassed() {
+            return mFailures.isEmpty();
+        }
+
+        /**
+         * Returns the growth of the retained heap from the middle sample to the last.
+         */
+        public long getRetainedGrowthBytes() {
+            return retainedGrowth(mSamples);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (Sample sample : mSamples) {
+                builder.append(sample).append('\n');
+            }
+            builder.append("retained growth over the second half ")
+                    .append(getRetainedGrowthBytes() / 1024).append(" KB\n");
+            builder.append(isPassed() ? "PASSED" : "FAILED").append('\n');
+            for (String failure : mFailures) {
+                builder.append("  ").append(failure).append('\n');
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * A load of games played by {@link LoadGenerator} clients on {@link LocalReceiver}s, whose
+     * events are also counted by a subscriber on every client.
+     */
+    public static final class GeneratorLoad implements Load {
+        private final AtomicLong mEvents = new AtomicLong();
+        private final LoadGenerator mGenerator;
+        private Thread mRunner;
+        private volatile LoadGenerator.Report mReport;
+
+        public GeneratorLoad(LoadGenerator.Config config) {
+            mGenerator = new LoadGenerator(config
+                    .setDurationMillis(Long.MAX_VALUE)
+                    .setSubscriber(new GameEventBus.Subscriber() {
+                        @Override
+                        public void onEvent(GameEvent event) {
+                            mEvents.incrementAndGet();
+                        }
+                    }));
+        }
+
+        @Override
+        public void start() {
+            mRunner = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mReport = mGenerator.run();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, TAG);
+            mRunner.start();
+        }
+
+        @Override
+        public long getEvents() {
+            return mEvents.get();
+        }
+
+        @Override
+        public boolean isRunning() {
+            return mRunner.isAlive();
+        }
+
+        @Override
+        public void stop() throws InterruptedException {
+            mGenerator.stop();
+            mRunner.join();
+        }
+
+        /**
+         * Returns the load generator's report, once stopped.
+         */
+        public LoadGenerator.Report getReport() {
+            return mReport;
+        }
+    }
+
+    /**
+     * Counts the bytes allocated by the process. Uses the runtime's own statistics on API 23 and
+     * later, and the deprecated allocation counters before that.
+     */
+    private static final class AllocationCounter {
+        private static final int API_MARSHMALLOW = 23;
+        private static final String BYTES_ALLOCATED = "art.gc.bytes-allocated";
+
+        private final Method mGetRuntimeStat;
+        private long mBase;
+
+        AllocationCounter() {
+            Method getRuntimeStat = null;
+            if (Build.VERSION.SDK_INT >= API_MARSHMALLOW) {
+                try {
+                    getRuntimeStat = Debug.class.getMethod("getRuntimeStat", String.class);
+                } catch (NoSuchMethodException e) {
+                    Log.w(TAG, "Debug.getRuntimeStat is missing", e);
+                }
+            }
+            mGetRuntimeStat = getRuntimeStat;
+            if (mGetRuntimeStat == null) {
+                Debug.startAllocCounting();
+            }
+            reset();
+        }
+
+        /**
+         * Returns the bytes allocated since the last reset.
+         */
+        long read() {
+            if (mGetRuntimeStat == null) {
+                return Debug.getGlobalAllocSize() & 0xffffffffL;
+            }
+            return readRuntimeStat() - mBase;
+        }
+
+        void reset() {
+            if (mGetRuntimeStat == null) {
+                Debug.resetGlobalAllocSize();
+            } else {
+                mBase = readRuntimeStat();
+            }
+        }
+
+        void stop() {
+            if (mGetRuntimeStat == null) {
+                Debug.stopAllocCounting();
+            }
+        }
+
+        private long readRuntimeStat() {
+            try {
+                String value = (String) mGetRuntimeStat.invoke(null, BYTES_ALLOCATED);
+                return (value != null) ? Long.parseLong(value) : 0;
+            } catch (Exception e) {
+                throw new IllegalStateException("Cannot read " + BYTES_ALLOCATED, e);
+            }
+        }
+    }
+
+    private final Config mConfig;
+
+    public SoakHarness(Config config) {
+        mConfig = config;
+    }
+
+    /**
+     * Runs load until the configured number of events has been delivered, and returns its
+     * samples and verdict. Blocks the calling thread, which must not be the main thread.
+     */
+    public Report run(Load load) throws InterruptedException {
+        final Config config = mConfig;
+        load.start();
+
+        List<Sample> samples = new ArrayList<Sample>();
+        List<String> failures = new ArrayList<String>();
+        try {
+            awaitEvents(load, config.mWarmupEvents);
+            long base = load.getEvents();
+            long start = System.nanoTime();
+            long windowStart = base;
+            AllocationCounter allocations = new AllocationCounter();
+            samples.add(new Sample(0, 0, measureRetainedHeap(), 0));
+            allocations.reset();
+            for (long next = config.mSampleEvents; next <= config.mEvents;
+                    next += config.mSampleEvents) {
+                if (!awaitEvents(load, base + next)) {
+                    failures.add("Load stopped after " + (load.getEvents() - base) + " events");
+                    break;
+                }
+                // Read before the collection below, whose own allocations are not the events'.
+                long allocated = allocations.read();
+                long events = load.getEvents();
+                double bytesPerEvent = (double) allocated / (events - windowStart);
+                Sample sample = new Sample(events - base, System.nanoTime() - start,
+                        measureRetainedHeap(), bytesPerEvent);
+                samples.add(sample);
+                Log.i(TAG, sample.toString());
+                if (bytesPerEvent > config.mMaxBytesPerEvent) {
+                    failures.add(String.format("%.0f bytes allocated per event at %d events",
+                            bytesPerEvent, sample.getEvents()));
+                }
+                windowStart = load.getEvents();
+                allocations.reset();
+            }
+            allocations.stop();
+        } finally {
+            load.stop();
+        }
+
+        long growth = retainedGrowth(samples);
+        if (growth > config.mMaxRetainedGrowthBytes) {
+            failures.add("Retained heap grew by " + growth + " bytes");
+        }
+        if (!failures.isEmpty()) {
+            Log.e(TAG, "Soak failed: " + failures);
+        }
+        return new Report(Collections.unmodifiableList(samples),
+                Collections.unmodifiableList(failures));
+    }
+
+    private static long retainedGrowth(List<Sample> samples) {
+        if (samples.isEmpty()) {
+            return 0;
+        }
+        return samples.get(samples.size() - 1).getRetainedBytes()
+                - samples.get(samples.size() / 2).getRetainedBytes();
+    }
+
+    /**
+     * Waits until count events have been delivered, and returns false if the load stopped first.
+     */
+    private static boolean awaitEvents(Load load, long count) throws InterruptedException {
+        while (load.getEvents() < count) {
+            if (!load.isRunning()) {
+                return false;
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the heap in use after collecting garbage a few times, which is what survives
+     * rather than what happened to be in flight.
+     */
+    private static long measureRetainedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < GC_PASSES; ++i) {
+            System.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
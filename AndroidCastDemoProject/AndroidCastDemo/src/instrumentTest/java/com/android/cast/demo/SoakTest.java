@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cast.demo;
+
+import android.content.Intent;
+import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Soaks the game protocol with millions of events and fails if the retained heap grows or too
+ * much is allocated per event. See {@link SoakHarness}.
+ */
+public class SoakTest extends ActivityInstrumentationTestCase2<GameActivity> {
+    private static final String TAG = SoakTest.class.getSimpleName();
+
+    public SoakTest() {
+        super(GameActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // A pass-and-play game needs no Cast device.
+        Intent intent = new Intent();
+        intent.putExtra(GameActivity.EXTRA_OFFLINE, true);
+        setActivityIntent(intent);
+    }
+
+    public void testLocalReceivers() throws Exception {
+        SoakHarness.GeneratorLoad load =
+                new SoakHarness.GeneratorLoad(new LoadGenerator.Config().setClients(8));
+        SoakHarness.Report report = new SoakHarness(new SoakHarness.Config()
+                .setEvents(2000000)
+                .setWarmupEvents(100000)
+                .setSampleEvents(200000))
+                .run(load);
+        Log.i(TAG, report.toString() + load.getReport());
+        assertTrue(report.toString(), report.isPassed());
+        assertTrue(load.getReport().getMoves() > 0);
+    }
+
+    public void testGameScreen() throws Exception {
+        GameMessageStream stream = getActivity().getGameMessageStream();
+        // The default budget per event also covers the game over and error dialogs, so that
+        // building a new dialog for each of them would fail.
+        SoakHarness.Report report = new SoakHarness(new SoakHarness.Config()
+                .setEvents(300000)
+                .setWarmupEvents(30000)
+                .setSampleEvents(30000))
+                .run(new ScreenLoad(stream));
+        Log.i(TAG, report.toString());
+        assertTrue(report.toString(), report.isPassed());
+    }
+
+    /**
+     * Plays scripted games into the game screen's stream, as a receiver would send them, so that
+     * every event goes through the screen's own callbacks: the turn texts, board updates, the
+     * game over dialog and, every few games, an error dialog.
+     */
+    private static final class ScreenLoad implements SoakHarness.Load {
+        // Events sent but not yet handled on the main thread, which the feeder stays under.
+        private static final int MAX_BACKLOG = 256;
+        private static final int GAMES_PER_ERROR = 10;
+        // X wins along the top row.
+        private static final int[][] MOVES = {{0, 0}, {1, 0}, {0, 1}, {1, 1}, {0, 2}};
+
+        private final GameMessageStream mStream;
+        private final AtomicLong mEvents = new AtomicLong();
+        private final GameEventBus.Subscription mSubscription;
+        private volatile boolean mStopped;
+        private Thread mFeeder;
+        private long mSent;
+
+        ScreenLoad(GameMessageStream stream) {
+            mStream = stream;
+            // Inline subscribers run on the main thread after the screen's own callbacks.
+            mSubscription = stream.getEventBus().subscribe(new GameEventBus.Subscriber() {
+                @Override
+                public void onEvent(GameEvent event) {
+                    mEvents.incrementAndGet();
+                }
+            }, null);
+        }
+
+        @Override
+        public void start() {
+            mFeeder = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int game = 0; !mStopped; ++game) {
+                            playGame(game);
+                        }
+                    } catch (JSONException e) {
+                        Log.e(TAG, "Cannot create a message", e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, TAG);
+            mFeeder.start();
+        }
+
+        private void playGame(int game) throws JSONException, InterruptedException {
+            send(new JSONObject()
+                    .put("event", "joined")
+                    .put("player", GameMessageStream.PLAYER_X)
+                    .put("opponent", "Soak"));
+            for (int i = 0; i < MOVES.length; ++i) {
+                send(new JSONObject()
+                        .put("event", "moved")
+                        .put("player", (i % 2 == 0)
+                                ? GameMessageStream.PLAYER_X : GameMessageStream.PLAYER_O)
+                        .put("row", MOVES[i][0])
+                        .put("column", MOVES[i][1])
+                        .put("game_over", i == MOVES.length - 1));
+            }
+            send(new JSONObject()
+                    .put("event", "endgame")
+                    .put("end_state", GameMessageStream.END_STATE_X_WON)
+                    .put("winning_location",
+                            GameMessageStream.WinningLocation.ROW_0.getValue()));
+            if (game % GAMES_PER_ERROR == 0) {
+                send(new JSONObject()
+                        .put("event", "error")
+                        .put("message", "Soak error " + game));
+            }
+        }
+
+        private void send(JSONObject message) throws InterruptedException {
+            while (mSent - mEvents.get() > MAX_BACKLOG) {
+                if (mStopped) {
+                    return;
+                }
+                Thread.sleep(1);
+            }
+            mStream.onMessageReceived(message);
+            ++mSent;
+        }
+
+        @Override
+        public long getEvents() {
+            return mEvents.get();
+        }
+
+        @Override
+        public boolean isRunning() {
+            return mFeeder.isAlive();
+        }
+
+        @Override
+        public void stop() throws InterruptedException {
+            mStopped = true;
+            mFeeder.join();
+            mSubscription.cancel();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests when {@link TimerWheel} runs its timeouts, including after the wheel has been idle.
+ */
+public class TimerWheelTest extends TestCase {
+    private static final long TICK_MS = 1;
+    private static final long DELAY_MS = 200;
+    // Generous, as the test may share the machine with others.
+    private static final long SLACK_MS = 150;
+
+    private TimerWheel mWheel;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mWheel = new TimerWheel("TimerWheelTest", TICK_MS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mWheel.stop();
+        super.tearDown();
+    }
+
+    public void testRunsOnDeadline() throws Exception {
+        assertRunsOnDeadline();
+    }
+
+    public void testRunsOnDeadlineAfterIdle() throws Exception {
+        assertRunsOnDeadline();
+        // Hundreds of ticks pass with nothing on the wheel.
+        Thread.sleep(500);
+        assertRunsOnDeadline();
+        assertRunsOnDeadline();
+    }
+
+    public void testCancelledTimeoutDoesNotRun() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        TimerWheel.Timeout timeout = mWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        }, DELAY_MS);
+        assertTrue(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+        assertFalse(timeout.cancel());
+        assertFalse(ran.await(DELAY_MS + SLACK_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private void assertRunsOnDeadline() throws InterruptedException {
+        final AtomicLong ranAt = new AtomicLong();
+        final CountDownLatch ran = new CountDownLatch(1);
+        long start = System.nanoTime();
+        mWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ranAt.set(System.nanoTime());
+                ran.countDown();
+            }
+        }, DELAY_MS);
+        assertTrue(ran.await(DELAY_MS + SLACK_MS, TimeUnit.MILLISECONDS));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(ranAt.get() - start);
+        assertTrue("Ran after " + elapsedMs + "ms", elapsedMs >= DELAY_MS);
+    }
+}
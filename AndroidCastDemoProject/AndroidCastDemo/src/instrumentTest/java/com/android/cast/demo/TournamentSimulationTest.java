@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cast.demo;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays a whole {@link Tournament} on {@link StreamTable}s, each seated at its own
+ * {@link LocalReceiver}, with hundreds of matches in progress at once.
+ */
+public class TournamentSimulationTest extends TestCase {
+    private static final int PLAYERS = 512;
+    private static final int TABLES = 256;
+    private static final long SEED = 42;
+    private static final long TIMEOUT_MS = 60000;
+
+    private ExecutorService mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPool = Executors.newFixedThreadPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPool.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testEveryMatchReachesResult() throws Exception {
+        Random random = new Random(SEED);
+        List<String> players = new ArrayList<String>();
+        for (int i = 0; i < PLAYERS; ++i) {
+            players.add("player" + i);
+        }
+        List<StreamTable> tables = new ArrayList<StreamTable>();
+        for (int i = 0; i < TABLES; ++i) {
+            tables.add(newTable("table" + i, random,
+                    new Bot.RandomBot(new Random(random.nextLong())),
+                    new Bot.RandomBot(new Random(random.nextLong()))));
+        }
+
+        final List<Tournament.Match> finished =
+                Collections.synchronizedList(new ArrayList<Tournament.Match>());
+        final String[] champion = new String[1];
+        final int[] maxInProgress = new int[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        final Tournament[] tournament = new Tournament[1];
+        tournament[0] = new Tournament(players, tables, new SerialExecutor(mPool),
+                new Tournament.Listener() {
+                    @Override
+                    public void onMatchStarted(Tournament.Match match) {
+                        maxInProgress[0] =
+                                Math.max(maxInProgress[0], tournament[0].getMatchesInProgress());
+                    }
+
+                    @Override
+                    public void onMatchFinished(Tournament.Match match) {
+                        finished.add(match);
+                    }
+
+                    @Override
+                    public void onTournamentFinished(String winner) {
+                        champion[0] = winner;
+                        done.countDown();
+                    }
+                });
+        tournament[0].start();
+
+        assertTrue("Tournament did not finish", done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(PLAYERS - 1, finished.size());
+        assertTrue("Only " + maxInProgress[0] + " matches ran at once",
+                maxInProgress[0] >= TABLES / 2);
+        Set<String> losers = new HashSet<String>();
+        int upsets = 0;
+        for (Tournament.Match match : finished) {
+            String winner = match.getWinner();
+            if (winner.equals(match.getPlayer2())) {
+                // Only a game played to a win advances the lower seed.
+                ++upsets;
+            }
+            assertTrue(winner.equals(match.getPlayer1()) || winner.equals(match.getPlayer2()));
+            String loser = winner.equals(match.getPlayer1())
+                    ? match.getPlayer2() : match.getPlayer1();
+            assertTrue(loser + " lost twice", losers.add(loser));
+        }
+        assertNotNull(champion[0]);
+        assertFalse(losers.contains(champion[0]));
+        assertEquals(PLAYERS - 1, losers.size());
+        assertTrue("No match was won on the board", upsets > 0);
+    }
+
+    public void testErrorForfeitsMatch() throws Exception {
+        Random random = new Random(SEED);
+        List<String> players = new ArrayList<String>();
+        for (int i = 0; i < 8; ++i) {
+            players.add("player" + i);
+        }
+        // The first seat always makes an invalid move, which the receiver answers with an error
+        // while the game goes on. A single table plays every match, so the endgame of each
+        // abandoned game races the start of the next match.
+        List<StreamTable> tables = new ArrayList<StreamTable>();
+        tables.add(newTable("table", random, new CheatingBot(),
+                new Bot.RandomBot(new Random(random.nextLong()))));
+
+        final List<Tournament.Match> finished =
+                Collections.synchronizedList(new ArrayList<Tournament.Match>());
+        final CountDownLatch done = new CountDownLatch(1);
+        new Tournament(players, tables, new SerialExecutor(mPool), new Tournament.Listener() {
+            @Override
+            public void onMatchStarted(Tournament.Match match) {
+            }
+
+            @Override
+            public void onMatchFinished(Tournament.Match match) {
+                finished.add(match);
+            }
+
+            @Override
+            public void onTournamentFinished(String winner) {
+                done.countDown();
+            }
+        }).start();
+
+        assertTrue("Tournament did not finish", done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(players.size() - 1, finished.size());
+        for (Tournament.Match match : finished) {
+            assertEquals(match.getPlayer2(), match.getWinner());
+            assertTrue(match.isForfeit());
+            assertEquals(0, match.getDraws());
+        }
+    }
+
+    private StreamTable newTable(String name, Random random, Bot bot1, Bot bot2) {
+        LocalReceiver receiver =
+                new LocalReceiver(new SerialExecutor(mPool), new Random(random.nextLong()));
+        // Both seats call back on the table's executor, to which its state is confined.
+        SerialExecutor tableExecutor = new SerialExecutor(mPool);
+        GameMessageStream seat1 = new GameMessageStream(new SerialExecutor(mPool), tableExecutor);
+        GameMessageStream seat2 = new GameMessageStream(new SerialExecutor(mPool), tableExecutor);
+        receiver.connect(seat1);
+        receiver.connect(seat2);
+        return new StreamTable(name, seat1, bot1, seat2, bot2);
+    }
+
+    /**
+     * A bot which plays on an occupied cell whenever there is one.
+     */
+    private static class CheatingBot implements Bot {
+        @Override
+        public int chooseMove(int[] board, int self) {
+            for (int i = 0; i < board.length; ++i) {
+                if (board[i] != GameView.State.EMPTY.getValue()) {
+                    return i;
+                }
+            }
+            return 4;
+        }
+    }
+}
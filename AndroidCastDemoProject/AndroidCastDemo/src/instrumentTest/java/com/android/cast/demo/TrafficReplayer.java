@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays the inbound payloads of a {@link TrafficRecorder} capture into a headless
+ * {@link GameMessageStream}, either at the recorded pace or as fast as possible, to compare the
+ * decode and dispatch throughput of different builds on the same traffic.
+ *
+ * <p>Payloads are parsed before the clock starts, so only the stream's own work is measured.
+ * Decoding runs on one background thread, as it does in the app, and events are dispatched inline
+ * to a subscriber which counts them. Outbound payloads in the capture are skipped.
+ */
+public class TrafficReplayer {
+    private static final String TAG = TrafficReplayer.class.getSimpleName();
+
+    /**
+     * The results of a replay.
+     */
+    public static final class Report {
+        private long mMessages;
+        private long mEvents;
+        private long mElapsedNanos;
+
+        /**
+         * Returns the number of payloads fed to the stream.
+         */
+        public long getMessages() {
+            return mMessages;
+        }
+
+        /**
+         * Returns the number of events the stream dispatched.
+         */
+        public long getEvents() {
+            return mEvents;
+        }
+
+        /**
+         * Returns the time from the first payload until the last one had been dispatched.
+         */
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        public double getMessagesPerSecond() {
+            return (mElapsedNanos == 0) ? 0 : mMessages * 1e9 / mElapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d messages, %d events in %.1f ms (%.0f messages/s)",
+                    mMessages, mEvents, mElapsedNanos / 1e6, getMessagesPerSecond());
+        }
+    }
+
+    private final List<JSONObject> mPayloads = new ArrayList<JSONObject>();
+    // Nanoseconds from the first inbound payload, parallel to mPayloads.
+    private final List<Long> mOffsets = new ArrayList<Long>();
+
+    /**
+     * Reads the inbound payloads of a capture file. Payloads which are not valid JSON are skipped.
+     */
+    public TrafficReplayer(File file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != TrafficRecorder.MAGIC) {
+                throw new IOException(file + " is not a traffic capture");
+            }
+            long nanos = 0;
+            long firstInbound = -1;
+            int direction;
+            while ((direction = in.read()) != -1) {
+                nanos += readVarint(in);
+                byte[] bytes = new byte[(int) readVarint(in)];
+                in.readFully(bytes);
+                if (direction != TrafficRecorder.DIRECTION_INBOUND) {
+                    continue;
+                }
+                try {
+                    mPayloads.add(new JSONObject(new String(bytes, "UTF-8")));
+                } catch (JSONException e) {
+                    Log.w(TAG, "Skipping malformed payload", e);
+                    continue;
+                }
+                if (firstInbound < 0) {
+                    firstInbound = nanos;
+                }
+                mOffsets.add(nanos - firstInbound);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Truncated capture");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Returns the number of inbound payloads in the capture.
+     */
+    public int getMessageCount() {
+        return mPayloads.size();
+    }
+
+    /**
+     * Feeds the capture to a new headless stream and waits until every payload has been decoded
+     * and dispatched.
+     *
+     * @param recordedSpeed whether to keep the recorded gaps between payloads, rather than feed
+     *        them as fast as possible
+     * @param repeat the number of times to feed the whole capture
+     */
+    public Report replay(boolean recordedSpeed, int repeat) throws InterruptedException {
+        ExecutorService decodeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "TrafficReplayer-decode");
+            }
+        });
+        final AtomicLong events = new AtomicLong();
+        GameMessageStream stream = new GameMessageStream(decodeExecutor, DirectExecutor.INSTANCE);
+        stream.getEventBus().subscribe(new GameEventBus.Subscriber() {
+            @Override
+            public void onEvent(GameEvent event) {
+                events.incrementAndGet();
+            }
+        }, null);
+
+        Report report = new Report();
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < repeat; ++i) {
+                long passStart = System.nanoTime();
+                for (int j = 0; j < mPayloads.size(); ++j) {
+                    if (recordedSpeed) {
+                        long wait;
+                        while ((wait = passStart + mOffsets.get(j) - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                    stream.onMessageReceived(mPayloads.get(j));
+                }
+            }
+            final CountDownLatch drained = new CountDownLatch(1);
+            decodeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drained.countDown();
+                }
+            });
+            drained.await();
+            report.mElapsedNanos = System.nanoTime() - start;
+        } finally {
+            decodeExecutor.shutdown();
+        }
+        report.mMessages = (long) mPayloads.size() * repeat;
+        report.mEvents = events.get();
+        return report;
+    }
+}
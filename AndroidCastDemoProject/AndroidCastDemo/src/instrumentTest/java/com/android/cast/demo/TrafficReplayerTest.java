@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.cast.demo;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Captures a game played against a {@link LocalReceiver} with a {@link TrafficRecorder} and
+ * replays it with {@link TrafficReplayer}.
+ */
+public class TrafficReplayerTest extends TestCase {
+    // X wins along the top row; O plays the middle row.
+    private static final int[][] MOVES = {{0, 0}, {1, 0}, {0, 1}, {1, 1}, {0, 2}};
+    // joined, one moved per move and endgame.
+    private static final int INBOUND = 1 + MOVES.length + 1;
+    private static final long GAP_MS = 20;
+
+    private File mCapture;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCapture = File.createTempFile("traffic", ".capture");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCapture.delete();
+        super.tearDown();
+    }
+
+    public void testReplayAtMaximumSpeed() throws Exception {
+        recordGame(0);
+        TrafficReplayer replayer = new TrafficReplayer(mCapture);
+        // Outbound commands are in the capture but are not replayed.
+        assertEquals(INBOUND, replayer.getMessageCount());
+        TrafficReplayer.Report report = replayer.replay(false, 100);
+        assertEquals(INBOUND * 100, report.getMessages());
+        assertEquals(INBOUND * 100, report.getEvents());
+        assertTrue(report.getMessagesPerSecond() > 0);
+    }
+
+    public void testReplayAtRecordedSpeed() throws Exception {
+        recordGame(GAP_MS);
+        TrafficReplayer.Report report = new TrafficReplayer(mCapture).replay(true, 1);
+        assertEquals(INBOUND, report.getEvents());
+        // The moves were recorded GAP_MS apart, after the joined event.
+        assertTrue(report.toString(), report.getElapsedNanos()
+                >= TimeUnit.MILLISECONDS.toNanos(GAP_MS * (MOVES.length - 1)));
+    }
+
+    /**
+     * Plays one game between two seats on a receiver, capturing the traffic of the first seat.
+     */
+    private void recordGame(long gapMillis) throws Exception {
+        LocalReceiver receiver = new LocalReceiver(DirectExecutor.INSTANCE, new Random(42));
+        final GameMessageStream[] seats = {
+            new GameMessageStream(DirectExecutor.INSTANCE, DirectExecutor.INSTANCE),
+            new GameMessageStream(DirectExecutor.INSTANCE, DirectExecutor.INSTANCE)
+        };
+        final String[] symbols = new String[2];
+        for (int i = 0; i < seats.length; ++i) {
+            final int seat = i;
+            receiver.connect(seats[i]);
+            seats[i].getEventBus().subscribe(new GameEventBus.Subscriber() {
+                @Override
+                public void onEvent(GameEvent event) {
+                    symbols[seat] = event.getPlayer();
+                }
+            }, null, GameEvent.TYPE_JOINED);
+        }
+        TrafficRecorder recorder = new TrafficRecorder(mCapture);
+        seats[0].setTrafficRecorder(recorder);
+        seats[0].join("first");
+        seats[1].join("second");
+        int x = GameMessageStream.PLAYER_X.equals(symbols[0]) ? 0 : 1;
+        for (int i = 0; i < MOVES.length; ++i) {
+            Thread.sleep(gapMillis);
+            seats[(i % 2 == 0) ? x : 1 - x].move(MOVES[i][0], MOVES[i][1]);
+        }
+        recorder.close();
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import com.android.cast.demo.GameView.State;
+
+/**
+ * A persistent history of board positions supporting undo, redo and branching.
+ *
+ * <p>Every move creates a new {@link Entry} pointing at its parent, and every entry holds an
+ * immutable {@link Position}. Positions are stored in a bit-packed trie and a move copies only the
+ * path from the root to the changed cell, so each entry shares all but O(log n) of its storage with
+ * its parent, and any number of branches may be grown from any past entry. The position at any
+ * entry is available in constant time, and the ancestor at a given depth in O(log n).
+ */
+public class BoardHistory {
+    /**
+     * An immutable board position. Cells hold the int values of {@link State}, two bits each.
+     */
+    public static final class Position {
+        // Leaves hold 128 cells in two bits each, branches have 16 children.
+        private static final int LEAF_SHIFT = 7;
+        private static final int LEAF_MASK = (1 << LEAF_SHIFT) - 1;
+        private static final int BRANCH_SHIFT = 4;
+        private static final int BRANCH_MASK = (1 << BRANCH_SHIFT) - 1;
+
+        private final int mSize;
+        private final int mLevels;
+        // A long[] leaf if mLevels is 0, an Object[] branch otherwise. A null node is empty.
+        private final Object mRoot;
+
+        /**
+         * Creates an empty position with the given number of rows and columns.
+         */
+        public Position(int size) {
+            if (size <= 0) {
+                throw new IllegalArgumentException("Invalid board size: " + size);
+            }
+            int levels = 0;
+            long capacity = 1 << LEAF_SHIFT;
+            while (capacity < (long) size * size) {
+                capacity <<= BRANCH_SHIFT;
+                ++levels;
+            }
+            mSize = size;
+            mLevels = levels;
+            mRoot = null;
+        }
+
+        private Position(int size, int levels, Object root) {
+            mSize = size;
+            mLevels = levels;
+            mRoot = root;
+        }
+
+        public int getSize() {
+            return mSize;
+        }
+
+        /**
+         * Returns the State int value of the cell at the given row and column.
+         *
+         * @throws IndexOutOfBoundsException if the cell is not on the board
+         */
+        public int get(int row, int column) {
+            if (row < 0 || row >= mSize || column < 0 || column >= mSize) {
+                throw new IndexOutOfBoundsException("Invalid cell: " + row + ", " + column);
+            }
+            int index = row * mSize + column;
+            Object node = mRoot;
+            for (int level = mLevels; level > 0; --level) {
+                if (node == null) {
+                    return State.EMPTY.getValue();
+                }
+                int shift = LEAF_SHIFT + (level - 1) * BRANCH_SHIFT;
+                node = ((Object[]) node)[(index >>> shift) & BRANCH_MASK];
+            }
+            if (node == null) {
+                return State.EMPTY.getValue();
+            }
+            int bit = (index & LEAF_MASK) * 2;
+            return (int) (((long[]) node)[bit >>> 6] >>> (bit & 63)) & 3;
+        }
+
+        /**
+         * Returns the State of the cell at the given row and column.
+         */
+        public State getState(int row, int column) {
+            return State.fromInt(get(row, column));
+        }
+
+        /**
+         * Returns a position equal to this one except for the given cell, sharing all untouched
+         * nodes with this position.
+         *
+         * @throws IndexOutOfBoundsException if the cell is not on the board
+         */
+        public Position with(int row, int column, int value) {
+            if (row < 0 || row >= mSize || column < 0 || column >= mSize) {
+                throw new IndexOutOfBoundsException("Invalid cell: " + row + ", " + column);
+            }
+            if (value != State.PLAYER_X.getValue() && value != State.PLAYER_O.getValue()) {
+                value = State.EMPTY.getValue();
+            }
+            if (get(row, column) == value) {
+                return this;
+            }
+            return new Position(mSize, mLevels, with(mRoot, mLevels, row * mSize + column, value));
+        }
+
+        private static Object with(Object node, int level, int index, int value) {
+            if (level == 0) {
+                long[] words = (node == null)
+                        ? new long[(2 << LEAF_SHIFT) / 64] : ((long[]) node).clone();
+                int bit = (index & LEAF_MASK) * 2;
+                words[bit >>> 6] = (words[bit >>> 6] & ~(3L << (bit & 63)))
+                        | ((long) value << (bit & 63));
+                return words;
+            }
+            Object[] children = (node == null)
+                    ? new Object[1 << BRANCH_SHIFT] : ((Object[]) node).clone();
+            int slot = (index >>> (LEAF_SHIFT + (level - 1) * BRANCH_SHIFT)) & BRANCH_MASK;
+            children[slot] = with(children[slot], level - 1, index, value);
+            return children;
+        }
+
+        /**
+         * Writes this position into boardLayout, which must be at least getSize() square, and
+         * returns it so it can be passed straight to {@link GameView#updateBoard(int[][])}.
+         */
+        public int[][] toLayout(int[][] boardLayout) {
+            for (int i = 0; i < mSize; ++i) {
+                for (int j = 0; j < mSize; ++j) {
+                    boardLayout[i][j] = get(i, j);
+                }
+            }
+            return boardLayout;
+        }
+    }
+
+    /**
+     * A node of the history tree: a position together with the move that produced it.
+     */
+    public static final class Entry {
+        private final Entry mParent;
+        // Skew-binary jump pointer, giving O(log n) access to any ancestor.
+        private final Entry mJump;
+        private final Position mPosition;
+        private final int mDepth;
+        private final int mRow;
+        private final int mColumn;
+        private final int mValue;
+
+        private Entry(Entry parent, Position position, int row, int column, int value) {
+            mParent = parent;
+            mPosition = position;
+            mRow = row;
+            mColumn = column;
+            mValue = value;
+            if (parent == null) {
+                mDepth = 0;
+                mJump = null;
+            } else {
+                mDepth = parent.mDepth + 1;
+                Entry jump = parent.mJump;
+                if (jump != null && jump.mJump != null
+                        && parent.mDepth - jump.mDepth == jump.mDepth - jump.mJump.mDepth) {
+                    mJump = jump.mJump;
+                } else {
+                    mJump = parent;
+                }
+            }
+        }
+
+        /**
+         * Returns the entry this one was played from, or null for the initial position.
+         */
+        public Entry getParent() {
+            return mParent;
+        }
+
+        public Position getPosition() {
+            return mPosition;
+        }
+
+        /**
+         * Returns the number of moves between the initial position and this entry.
+         */
+        public int getDepth() {
+            return mDepth;
+        }
+
+        public int getRow() {
+            return mRow;
+        }
+
+        public int getColumn() {
+            return mColumn;
+        }
+
+        /**
+         * Returns the State int value placed by the move that produced this entry.
+         */
+        public int getValue() {
+            return mValue;
+        }
+
+        /**
+         * Returns the ancestor of this entry at the given depth, or null if depth is out of range.
+         */
+        public Entry ancestorAt(int depth) {
+            if (depth < 0 || depth > mDepth) {
+                return null;
+            }
+            Entry entry = this;
+            while (entry.mDepth > depth) {
+                entry = (entry.mJump.mDepth >= depth) ? entry.mJump : entry.mParent;
+            }
+            return entry;
+        }
+    }
+
+    private final Entry mRoot;
+    private Entry mCurrent;
+    private Entry mTip;
+
+    /**
+     * Creates a history starting from an empty board with the given number of rows and columns.
+     */
+    public BoardHistory(int size) {
+        mRoot = new Entry(null, new Position(size), -1, -1, State.EMPTY.getValue());
+        mCurrent = mRoot;
+        mTip = mRoot;
+    }
+
+    public Entry getRoot() {
+        return mRoot;
+    }
+
+    public Entry getCurrent() {
+        return mCurrent;
+    }
+
+    /**
+     * Plays a move on top of the current entry. Any moves that could previously be redone from
+     * here are dropped from the redo line, but stay reachable through entries the caller kept.
+     *
+     * @return the new current entry
+     */
+    public Entry play(int row, int column, State value) {
+        Position position = mCurrent.mPosition.with(row, column, value.getValue());
+        mCurrent = new Entry(mCurrent, position, row, column, value.getValue());
+        mTip = mCurrent;
+        return mCurrent;
+    }
+
+    public boolean canUndo() {
+        return mCurrent.mParent != null;
+    }
+
+    public boolean canRedo() {
+        return mTip.mDepth > mCurrent.mDepth;
+    }
+
+    /**
+     * Steps back one move, keeping it available for {@link #redo()}.
+     *
+     * @return the new current entry
+     */
+    public Entry undo() {
+        if (canUndo()) {
+            mCurrent = mCurrent.mParent;
+        }
+        return mCurrent;
+    }
+
+    /**
+     * Replays the next move of the redo line.
+     *
+     * @return the new current entry
+     */
+    public Entry redo() {
+        if (canRedo()) {
+            mCurrent = mTip.ancestorAt(mCurrent.mDepth + 1);
+        }
+        return mCurrent;
+    }
+
+    /**
+     * Makes any entry of this history current, for instance to explore a "what if" branch or to
+     * return from one. If the entry lies on the current redo line that line is kept, otherwise the
+     * entry becomes the end of the redo line.
+     */
+    public Entry checkout(Entry entry) {
+        if (mTip.ancestorAt(entry.mDepth) != entry) {
+            mTip = entry;
+        }
+        mCurrent = entry;
+        return mCurrent;
+    }
+}
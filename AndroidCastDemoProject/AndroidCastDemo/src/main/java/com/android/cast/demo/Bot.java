@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import java.util.Random;
+
+/**
+ * A computer player which chooses moves for one side of a game.
+ */
+public interface Bot {
+    /**
+     * Returns the cell to play next, as {@code row * 3 + column}.
+     * 
+     * @param board the current board, one State int value per cell in row-major order
+     * @param self the State int value of the bot's pieces
+     */
+    int chooseMove(int[] board, int self);
+
+    /**
+     * A bot which plays a uniformly random empty cell.
+     */
+    public static class RandomBot implements Bot {
+        private final Random mRandom;
+
+        public RandomBot(Random random) {
+            mRandom = random;
+        }
+
+        @Override
+        public int chooseMove(int[] board, int self) {
+            int empty = 0;
+            for (int value : board) {
+                if (value == GameView.State.EMPTY.getValue()) {
+                    ++empty;
+                }
+            }
+            if (empty == 0) {
+                return -1;
+            }
+            int pick = mRandom.nextInt(empty);
+            for (int i = 0; i < board.length; ++i) {
+                if (board[i] == GameView.State.EMPTY.getValue() && pick-- == 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * A bot which plays the first empty cell in a fixed order of preference, so that its games
+     * can be reproduced.
+     */
+    public static class ScriptedBot implements Bot {
+        private final int[] mCells;
+
+        /**
+         * @param cells cells in order of preference, as {@code row * 3 + column}
+         */
+        public ScriptedBot(int... cells) {
+            mCells = cells.clone();
+        }
+
+        @Override
+        public int chooseMove(int[] board, int self) {
+            for (int cell : mCells) {
+                if (board[cell] == GameView.State.EMPTY.getValue()) {
+                    return cell;
+                }
+            }
+            for (int i = 0; i < board.length; ++i) {
+                if (board[i] == GameView.State.EMPTY.getValue()) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import android.content.Context;
+import android.os.Handler;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.google.cast.CastDevice;
+import com.google.cast.CastDeviceAdapter;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A device list which applies discovery events in batches, so that a burst of devices coming
+ * online or going offline updates the list once rather than once per event.
+ *
+ * <p>Events are buffered for a short window and reduced to the latest state of each device id,
+ * so a device which flaps within the window, or is reported twice, changes nothing. The batch is
+ * applied as one diff: devices already listed keep their row, and rows whose device did not
+ * change are not rebound. Must only be used from the UI thread.
+ */
+public class DeviceListAdapter extends CastDeviceAdapter {
+    private static final long BATCH_WINDOW_MS = 150;
+
+    private static final Metrics.Counter LIST_UPDATES = Metrics.counter("discovery.list_updates");
+
+    private final Handler mHandler = new Handler();
+    // The latest event of each device id since the last batch: the device, or null if offline.
+    private final LinkedHashMap<String, CastDevice> mPending =
+            new LinkedHashMap<String, CastDevice>();
+    private final HashMap<String, CastDevice> mListed = new HashMap<String, CastDevice>();
+    private final HashMap<String, Long> mItemIds = new HashMap<String, Long>();
+    private long mNextItemId;
+    private boolean mFlushScheduled;
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            flush();
+        }
+    };
+
+    public DeviceListAdapter(Context context) {
+        super(context);
+        setNotifyOnChange(false);
+    }
+
+    /**
+     * Queues a device which came online.
+     */
+    public void onDeviceOnline(CastDevice device) {
+        queue(device.getDeviceId(), device);
+    }
+
+    /**
+     * Queues a device which went offline.
+     */
+    public void onDeviceOffline(CastDevice device) {
+        queue(device.getDeviceId(), null);
+    }
+
+    private void queue(String id, CastDevice device) {
+        mPending.put(id, device);
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushTask, BATCH_WINDOW_MS);
+        }
+    }
+
+    /**
+     * Drops queued events, for when the list is no longer shown.
+     */
+    public void cancelPending() {
+        mHandler.removeCallbacks(mFlushTask);
+        mFlushScheduled = false;
+        mPending.clear();
+    }
+
+    /**
+     * Applies the queued events and notifies the list once if anything changed.
+     */
+    private void flush() {
+        boolean changed = false;
+        for (Map.Entry<String, CastDevice> entry : mPending.entrySet()) {
+            String id = entry.getKey();
+            CastDevice device = entry.getValue();
+            CastDevice listed = mListed.get(id);
+            if (device == null) {
+                if (listed != null) {
+                    remove(listed);
+                    mListed.remove(id);
+                    changed = true;
+                }
+            } else if (listed == null) {
+                add(device);
+                mListed.put(id, device);
+                changed = true;
+            } else if (!equal(listed.getFriendlyName(), device.getFriendlyName())) {
+                // Replaced in place, so that the rows around it do not move.
+                int position = getPosition(listed);
+                remove(listed);
+                insert(device, position);
+                mListed.put(id, device);
+                changed = true;
+            }
+        }
+        mPending.clear();
+        if (changed) {
+            LIST_UPDATES.increment();
+            notifyDataSetChanged();
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return (a == null) ? b == null : a.equals(b);
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        String id = getItem(position).getDeviceId();
+        Long itemId = mItemIds.get(id);
+        if (itemId == null) {
+            itemId = mNextItemId++;
+            mItemIds.put(id, itemId);
+        }
+        return itemId;
+    }
+
+    /**
+     * Returns convertView as it is if it already shows the device at position, which the list
+     * offers for rows that kept their position.
+     */
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        CastDevice device = getItem(position);
+        if (convertView != null && convertView.getTag(R.id.device_row_device) == device) {
+            return convertView;
+        }
+        View view = super.getView(position, convertView, parent);
+        view.setTag(R.id.device_row_device, device);
+        return view;
+    }
+}
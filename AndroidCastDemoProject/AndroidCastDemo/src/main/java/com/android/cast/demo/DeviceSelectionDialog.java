@@ -21,13 +21,24 @@ import android.content.Context;
 import android.content.DialogInterface;
 
 import com.google.cast.CastDevice;
-import com.google.cast.CastDeviceAdapter;
 import com.google.cast.DeviceManager;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
- * A class to manage the CastDevice selection dialog.
+ * A class to manage the CastDevice selection dialog. Once a device is selected, and if any other
+ * devices were found, a second dialog offers to mirror the game on some of them.
  */
 public class DeviceSelectionDialog {
+    private static final LatencyHistogram FIRST_DEVICE_TIME =
+            Metrics.histogram("discovery.first_device_ns");
+    private static final Metrics.Counter DEVICES_ONLINE =
+            Metrics.counter("discovery.devices_online");
+    private static final Metrics.Counter DEVICES_OFFLINE =
+            Metrics.counter("discovery.devices_offline");
+    private static final Metrics.Counter SCAN_ERRORS = Metrics.counter("discovery.scan_errors");
+
     /**
      * Interface which provides methods to listen for device selection.
      */
@@ -48,11 +59,15 @@ public class DeviceSelectionDialog {
     }
 
     private AlertDialog mDialog;
+    private AlertDialog mMirrorDialog;
     private Context mContext;
-    private DeviceManager mDeviceManager;
-    private CastDeviceAdapter mDeviceAdapter;
+    private final DeviceManager.Listener mScanListener;
+    private DeviceListAdapter mDeviceAdapter;
     private CastDevice mDevice;
+    private final List<CastDevice> mMirrorDevices = new ArrayList<CastDevice>();
     private DeviceSelectionListener mListener;
+    private long mScanStartTime;
+    private boolean mScanErrorShown;
 
     /**
      * Creates a new DeviceSelectionDialog with the current context passed and initializes the 
@@ -60,13 +75,17 @@ public class DeviceSelectionDialog {
      */
     public DeviceSelectionDialog(Context context) {
         mContext = context;
-        mDeviceAdapter = new CastDeviceAdapter(mContext);
-        mDeviceManager = new DeviceManager(
-                TicTacToeApplication.getInstance().getCastContext());
-        mDeviceManager.addListener(new DeviceManager.Listener() {
+        mDeviceAdapter = new DeviceListAdapter(mContext);
+        mScanListener = new DeviceManager.Listener() {
             @Override
             public void onScanStateChanged(int state) {
                 if (state == DeviceManager.SCAN_SUSPENDED_NETWORK_ERROR) {
+                    SCAN_ERRORS.increment();
+                    // The scan is retried in the background, so say so only once.
+                    if (mScanErrorShown) {
+                        return;
+                    }
+                    mScanErrorShown = true;
                     new AlertDialog.Builder(mContext)
                             .setMessage(R.string.scan_failed_network_error)
                             .setPositiveButton(R.string.ok, null)
@@ -77,14 +96,20 @@ public class DeviceSelectionDialog {
 
             @Override
             public void onDeviceOnline(CastDevice device) {
-                mDeviceAdapter.add(device);
+                DEVICES_ONLINE.increment();
+                if (mScanStartTime != 0) {
+                    Metrics.recordSince(FIRST_DEVICE_TIME, mScanStartTime);
+                    mScanStartTime = 0;
+                }
+                mDeviceAdapter.onDeviceOnline(device);
             }
 
             @Override
             public void onDeviceOffline(CastDevice device) {
-                mDeviceAdapter.remove(device);
+                DEVICES_OFFLINE.increment();
+                mDeviceAdapter.onDeviceOffline(device);
             }
-        });
+        };
     }
 
     /**
@@ -104,7 +129,9 @@ public class DeviceSelectionDialog {
         mDialog = builder.create();
         mDialog.setOnDismissListener(listener);
         mDialog.setOnCancelListener(listener);
-        mDeviceManager.startScan();
+        mScanStartTime = Metrics.startTimer();
+        mScanErrorShown = false;
+        TicTacToeApplication.getInstance().getScanScheduler().addConsumer(mScanListener);
         mDialog.show();
     }
 
@@ -116,6 +143,9 @@ public class DeviceSelectionDialog {
         if (mDialog != null) {
             mDialog.dismiss();
         }
+        if (mMirrorDialog != null) {
+            mMirrorDialog.dismiss();
+        }
     }
 
     /**
@@ -125,10 +155,73 @@ public class DeviceSelectionDialog {
         return mDevice;
     }
 
+    /**
+     * Returns the devices selected to mirror the game shown on the selected device, possibly none.
+     */
+    public List<CastDevice> selectedMirrorDevices() {
+        return mMirrorDevices;
+    }
+
     public void setListener(DeviceSelectionListener listener) {
         mListener = listener;
     }
 
+    /**
+     * Offers the devices other than the selected one as mirrors. The listener is told about the
+     * selection once this dialog closes, with the checked devices, or none if it is cancelled.
+     *
+     * @return false if there are no other devices to offer
+     */
+    private boolean showMirrorSelection() {
+        final List<CastDevice> candidates = new ArrayList<CastDevice>();
+        for (int i = 0; i < mDeviceAdapter.getCount(); ++i) {
+            CastDevice device = mDeviceAdapter.getItem(i);
+            if (!device.equals(mDevice)) {
+                candidates.add(device);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return false;
+        }
+        CharSequence[] names = new CharSequence[candidates.size()];
+        for (int i = 0; i < names.length; ++i) {
+            names[i] = candidates.get(i).getFriendlyName();
+        }
+        final boolean[] checked = new boolean[names.length];
+        mMirrorDialog = new AlertDialog.Builder(mContext)
+                .setTitle(R.string.mirror_devices_title)
+                .setMultiChoiceItems(names, checked,
+                        new DialogInterface.OnMultiChoiceClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int index,
+                                    boolean isChecked) {
+                                checked[index] = isChecked;
+                            }
+                        })
+                .setPositiveButton(R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        for (int i = 0; i < checked.length; ++i) {
+                            if (checked[i]) {
+                                mMirrorDevices.add(candidates.get(i));
+                            }
+                        }
+                    }
+                })
+                .create();
+        mMirrorDialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
+            @Override
+            public void onDismiss(DialogInterface dialog) {
+                mMirrorDialog = null;
+                if (mListener != null) {
+                    mListener.onSelected(DeviceSelectionDialog.this);
+                }
+            }
+        });
+        mMirrorDialog.show();
+        return true;
+    }
+
     /**
      * A Listener class attached to this object's displayed dialog, which handles dismiss, cancel,
      * and click events by modifying instance variables accordingly.
@@ -137,15 +230,16 @@ public class DeviceSelectionDialog {
             DialogInterface.OnCancelListener, DialogInterface.OnDismissListener {
         @Override
         public void onDismiss(DialogInterface dialog) {
-            mDeviceManager.stopScan();
+            TicTacToeApplication.getInstance().getScanScheduler().removeConsumer(mScanListener);
+            mDeviceAdapter.cancelPending();
+            mDialog = null;
             if (mListener != null) {
-                if (mDevice != null) {
-                    mListener.onSelected(DeviceSelectionDialog.this);
-                } else {
+                if (mDevice == null) {
                     mListener.onCancelled(DeviceSelectionDialog.this);
+                } else if (!showMirrorSelection()) {
+                    mListener.onSelected(DeviceSelectionDialog.this);
                 }
             }
-            mDialog = null;
         }
 
         @Override
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A low-overhead trace of protocol events, kept in a preallocated ring buffer of fixed-size binary
+ * records. Recording an event formats no strings and allocates nothing; a disabled category costs
+ * a single branch. The buffer is only turned into text by {@link #dump(PrintWriter)}, for instance
+ * when a bug report is captured.
+ *
+ * <p>Records are written without locking, so a dump taken while events are being recorded may
+ * show a few torn entries at the head of the buffer.
+ */
+public final class EventTrace {
+    public static final int CATEGORY_SEND = 1;
+    public static final int CATEGORY_RECEIVE = 1 << 1;
+    public static final int CATEGORY_ALL = CATEGORY_SEND | CATEGORY_RECEIVE;
+
+    // Commands sent
+    public static final int EVENT_JOIN = 1;
+    public static final int EVENT_MOVE = 2;
+    public static final int EVENT_LEAVE = 3;
+    public static final int EVENT_BOARD_LAYOUT_REQUEST = 4;
+
+    // Events received
+    public static final int EVENT_JOINED = 5;
+    public static final int EVENT_MOVED = 6;
+    public static final int EVENT_ENDGAME = 7;
+    public static final int EVENT_ERROR = 8;
+    public static final int EVENT_BOARD_LAYOUT_RESPONSE = 9;
+    public static final int EVENT_UNKNOWN = 10;
+
+    private static final String[] EVENT_NAMES = {
+        "?", "join", "move", "leave", "board_layout_request", "joined", "moved", "endgame",
+        "error", "board_layout_response", "unknown"
+    };
+
+    private static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+    private static final int ARG_BITS = 24;
+    private static final long ARG_MASK = (1L << ARG_BITS) - 1;
+
+    private static final long[] sTimes = new long[CAPACITY];
+    private static final long[] sRecords = new long[CAPACITY];
+    private static final AtomicLong sNext = new AtomicLong();
+    private static volatile int sEnabled = CATEGORY_ALL;
+
+    private EventTrace() {
+    }
+
+    /**
+     * Enables recording for the given CATEGORY_* bit mask and disables it for all others.
+     */
+    public static void setEnabled(int categories) {
+        sEnabled = categories;
+    }
+
+    public static boolean isEnabled(int category) {
+        return (sEnabled & category) != 0;
+    }
+
+    /**
+     * Records an event without arguments.
+     */
+    public static void record(int category, int event) {
+        record(category, event, 0, 0);
+    }
+
+    /**
+     * Records an event with two int arguments, each truncated to 24 bits.
+     */
+    public static void record(int category, int event, int arg0, int arg1) {
+        if ((sEnabled & category) == 0) {
+            return;
+        }
+        int slot = (int) (sNext.getAndIncrement() & MASK);
+        sTimes[slot] = System.nanoTime();
+        sRecords[slot] = ((long) (category & 0xFF) << 56) | ((long) (event & 0xFF) << 48)
+                | ((arg0 & ARG_MASK) << ARG_BITS) | (arg1 & ARG_MASK);
+    }
+
+    /**
+     * Discards all recorded events.
+     */
+    public static void clear() {
+        sNext.set(0);
+    }
+
+    /**
+     * Writes the recorded events as text, oldest first, with times in milliseconds relative to
+     * the newest event.
+     */
+    public static void dump(PrintWriter writer) {
+        long end = sNext.get();
+        long start = Math.max(0, end - CAPACITY);
+        writer.println("EventTrace: " + (end - start) + " of " + end + " events");
+        if (end == start) {
+            return;
+        }
+        long newest = sTimes[(int) ((end - 1) & MASK)];
+        for (long i = start; i < end; ++i) {
+            int slot = (int) (i & MASK);
+            long record = sRecords[slot];
+            int category = (int) (record >>> 56);
+            int event = (int) (record >>> 48) & 0xFF;
+            int arg0 = signExtend((record >>> ARG_BITS) & ARG_MASK);
+            int arg1 = signExtend(record & ARG_MASK);
+            writer.printf("  %+10.3fms %-7s %s %d %d%n",
+                    (sTimes[slot] - newest) / 1e6,
+                    (category == CATEGORY_SEND) ? "send" : "receive",
+                    (event < EVENT_NAMES.length) ? EVENT_NAMES[event] : EVENT_NAMES[0],
+                    arg0, arg1);
+        }
+    }
+
+    private static int signExtend(long arg) {
+        return (int) (arg << (64 - ARG_BITS) >> (64 - ARG_BITS));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.view.View;
+
+/**
+ * Runs an action at most once per display frame, however many times it is scheduled in between.
+ * Callers accumulate pending state, call {@link #schedule()}, and apply all of it at once when the
+ * action runs on the next animation frame. Must only be used from the UI thread.
+ */
+public class FrameCoalescer implements Runnable {
+    // Used before Jelly Bean, which lacks View.postOnAnimation().
+    private static final long FRAME_DELAY_MS = 16;
+
+    private final View mView;
+    private final Runnable mAction;
+    private boolean mScheduled;
+
+    /**
+     * Creates a coalescer running action on the frames of the given view.
+     */
+    public FrameCoalescer(View view, Runnable action) {
+        mView = view;
+        mAction = action;
+    }
+
+    /**
+     * Schedules the action for the next frame, unless it is already scheduled.
+     */
+    public void schedule() {
+        if (mScheduled) {
+            return;
+        }
+        mScheduled = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            postOnAnimation();
+        } else {
+            mView.postDelayed(this, FRAME_DELAY_MS);
+        }
+    }
+
+    /**
+     * Drops a scheduled run of the action, if any.
+     */
+    public void cancel() {
+        if (mScheduled) {
+            mScheduled = false;
+            mView.removeCallbacks(this);
+        }
+    }
+
+    public boolean isScheduled() {
+        return mScheduled;
+    }
+
+    @Override
+    public void run() {
+        if (mScheduled) {
+            mScheduled = false;
+            mAction.run();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postOnAnimation() {
+        mView.postOnAnimation(this);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Frame timing for a view: how long each draw took, and how long it was since the view was
+ * invalidated, kept in a preallocated rolling window of the most recent frames. A frame is counted
+ * as janky if its draw took longer than the budget, or if it was drawn more than two budgets
+ * after the invalidate, since waiting for the next vsync alone may take up to one. Janky frames
+ * are attributed to the triggers which invalidated the view, so that stutter can be traced to,
+ * for instance, a board update or a resize.
+ *
+ * <p>Recording allocates nothing. Must be used on the view's UI thread only.
+ */
+public class FrameStats {
+    public static final int TRIGGER_SET_CELL = 1;
+    public static final int TRIGGER_PENDING_CELLS = 1 << 1;
+    public static final int TRIGGER_UPDATE_BOARD = 1 << 2;
+    public static final int TRIGGER_CLEAR_BOARD = 1 << 3;
+    public static final int TRIGGER_SET_FINISHED = 1 << 4;
+    public static final int TRIGGER_RESIZE = 1 << 5;
+    public static final int TRIGGER_BITMAPS = 1 << 6;
+    public static final int TRIGGER_RESTORE = 1 << 7;
+
+    private static final String[] TRIGGER_NAMES = {
+        "set_cell", "pending_cells", "update_board", "clear_board", "set_finished", "resize",
+        "bitmaps", "restore"
+    };
+
+    /**
+     * The budget of one frame at 60 frames per second.
+     */
+    public static final long DEFAULT_BUDGET_NANOS = 16666667;
+
+    private static final int WINDOW = 128;
+
+    private final long mBudgetNanos;
+    private final long[] mDrawNanos = new long[WINDOW];
+    private final long[] mLatencyNanos = new long[WINDOW];
+    private final int[] mTriggers = new int[WINDOW];
+    private final long[] mSortBuffer = new long[WINDOW];
+    private final int[] mJankByTrigger = new int[TRIGGER_NAMES.length + 1];
+    private long mFrames;
+    private long mJankyFrames;
+    private long mInvalidates;
+
+    // Triggers since the last draw, and when the first of them invalidated the view.
+    private int mPendingTriggers;
+    private long mInvalidatedAt;
+
+    public FrameStats() {
+        this(DEFAULT_BUDGET_NANOS);
+    }
+
+    public FrameStats(long budgetNanos) {
+        mBudgetNanos = budgetNanos;
+    }
+
+    /**
+     * Records that the view was invalidated by trigger, one of the TRIGGER_* constants.
+     */
+    public void onInvalidate(int trigger) {
+        ++mInvalidates;
+        if (mPendingTriggers == 0) {
+            mInvalidatedAt = System.nanoTime();
+        }
+        mPendingTriggers |= trigger;
+    }
+
+    /**
+     * Records a frame which started drawing at drawStartNanos and has just finished.
+     */
+    public void onDraw(long drawStartNanos) {
+        long end = System.nanoTime();
+        // Frames drawn without a trigger were requested by the system, such as on first layout.
+        long latency = (mPendingTriggers != 0) ? end - mInvalidatedAt : end - drawStartNanos;
+        int slot = (int) (mFrames % WINDOW);
+        mDrawNanos[slot] = end - drawStartNanos;
+        mLatencyNanos[slot] = latency;
+        mTriggers[slot] = mPendingTriggers;
+        ++mFrames;
+        if (isJanky(end - drawStartNanos, latency)) {
+            ++mJankyFrames;
+            if (mPendingTriggers == 0) {
+                ++mJankByTrigger[TRIGGER_NAMES.length];
+            }
+            for (int i = 0; i < TRIGGER_NAMES.length; ++i) {
+                if ((mPendingTriggers & (1 << i)) != 0) {
+                    ++mJankByTrigger[i];
+                }
+            }
+        }
+        mPendingTriggers = 0;
+    }
+
+    private boolean isJanky(long drawNanos, long latencyNanos) {
+        return drawNanos > mBudgetNanos || latencyNanos > 2 * mBudgetNanos;
+    }
+
+    /**
+     * Returns the number of times the view was invalidated, whether or not they were drawn in
+     * separate frames.
+     */
+    public long getInvalidateCount() {
+        return mInvalidates;
+    }
+
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * Returns the number of janky frames since this object was created.
+     */
+    public long getJankyFrameCount() {
+        return mJankyFrames;
+    }
+
+    /**
+     * Returns the number of janky frames which trigger, one of the TRIGGER_* constants,
+     * contributed to.
+     */
+    public int getJankyFrameCount(int trigger) {
+        return mJankByTrigger[Integer.numberOfTrailingZeros(trigger)];
+    }
+
+    /**
+     * Returns the given percentile, between 0 and 100, of the draw times in the window.
+     */
+    public long getDrawPercentile(double percentile) {
+        return percentile(mDrawNanos, percentile);
+    }
+
+    /**
+     * Returns the given percentile, between 0 and 100, of the invalidate-to-draw times in the
+     * window.
+     */
+    public long getLatencyPercentile(double percentile) {
+        return percentile(mLatencyNanos, percentile);
+    }
+
+    private long percentile(long[] values, double percentile) {
+        int count = (int) Math.min(mFrames, WINDOW);
+        if (count == 0) {
+            return 0;
+        }
+        System.arraycopy(values, 0, mSortBuffer, 0, count);
+        Arrays.sort(mSortBuffer, 0, count);
+        int rank = (int) Math.ceil(count * percentile / 100.0);
+        return mSortBuffer[Math.max(0, Math.min(count, rank) - 1)];
+    }
+
+    /**
+     * Clears the window and all counts.
+     */
+    public void reset() {
+        mFrames = 0;
+        mJankyFrames = 0;
+        mInvalidates = 0;
+        mPendingTriggers = 0;
+        Arrays.fill(mJankByTrigger, 0);
+    }
+
+    /**
+     * Writes the frame percentiles, jank counts by trigger, and the slowest frames in the window.
+     */
+    public void dump(PrintWriter writer) {
+        writer.println(String.format("FrameStats: %d frames, %d janky (budget %.1fms)", mFrames,
+                mJankyFrames, mBudgetNanos / 1e6));
+        writer.println(String.format("  draw ms: p50 %.2f, p90 %.2f, p99 %.2f",
+                getDrawPercentile(50) / 1e6, getDrawPercentile(90) / 1e6,
+                getDrawPercentile(99) / 1e6));
+        writer.println(String.format("  invalidate to draw ms: p50 %.2f, p90 %.2f, p99 %.2f",
+                getLatencyPercentile(50) / 1e6, getLatencyPercentile(90) / 1e6,
+                getLatencyPercentile(99) / 1e6));
+        for (int i = 0; i <= TRIGGER_NAMES.length; ++i) {
+            if (mJankByTrigger[i] != 0) {
+                String name = (i < TRIGGER_NAMES.length) ? TRIGGER_NAMES[i] : "system";
+                writer.println("  janky frames from " + name + ": " + mJankByTrigger[i]);
+            }
+        }
+        int count = (int) Math.min(mFrames, WINDOW);
+        for (int i = 0; i < count; ++i) {
+            if (isJanky(mDrawNanos[i], mLatencyNanos[i])) {
+                writer.println(String.format("  slow frame: draw %.2fms, latency %.2fms, %s",
+                        mDrawNanos[i] / 1e6, mLatencyNanos[i] / 1e6, triggerNames(mTriggers[i])));
+            }
+        }
+    }
+
+    private static String triggerNames(int triggers) {
+        if (triggers == 0) {
+            return "system";
+        }
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < TRIGGER_NAMES.length; ++i) {
+            if ((triggers & (1 << i)) != 0) {
+                if (builder.length() > 0) {
+                    builder.append('|');
+                }
+                builder.append(TRIGGER_NAMES[i]);
+            }
+        }
+        return builder.toString();
+    }
+}
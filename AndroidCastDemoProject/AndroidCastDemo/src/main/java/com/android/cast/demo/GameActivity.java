@@ -22,35 +22,135 @@ import android.content.DialogInterface;
 import android.content.pm.ActivityInfo;
 import android.content.res.Configuration;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.View;
 import android.widget.TextView;
+import android.widget.Toast;
 import com.android.cast.demo.GameView.State;
 import com.android.cast.demo.GameView.ICellListener;
 
 import com.google.cast.ApplicationChannel;
-import com.google.cast.ApplicationMetadata;
-import com.google.cast.ApplicationSession;
 import com.google.cast.CastContext;
 import com.google.cast.CastDevice;
 import com.google.cast.SessionError;
 
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+import java.util.concurrent.TimeoutException;
 
 /**
  * An activity which both presents a UI on the first screen and casts the TicTacToe game board to 
  * the selected Cast device and its attached second screen.
+ *
+ * <p>When started with {@link #EXTRA_OFFLINE}, the game is played against an in-process
+ * {@link LocalReceiver} instead, with both players taking turns on this device. The activity's
+ * stream and callbacks are the same in both modes. With {@link #EXTRA_CLOCK_MILLIS} the offline
+ * game is timed, and both players' clocks are shown under the board. Clocks sent by any receiver
+ * are shown the same way.
  */
 public class GameActivity extends Activity {
     private static final String TAG = GameActivity.class.getSimpleName();
 
-    private ApplicationSession mSession;
+    private static final String SNAPSHOT_FILE = "game.snapshot";
+    private static final long HEARTBEAT_INTERVAL_MS = 2000;
+    // Players are warned once the smoothed round trip time exceeds this, until it falls below
+    // half of it again.
+    private static final long LAG_WARNING_MS = 300;
+    private static final int MAX_RECONNECTS = 3;
+
+    private static final LatencyHistogram SESSION_START_TIME =
+            Metrics.histogram("session.start_ns");
+    private static final LatencyHistogram RECONNECT_TIME =
+            Metrics.histogram("session.reconnect_ns");
+    private static final Metrics.Counter SESSION_START_FAILURES =
+            Metrics.counter("session.start_failures");
+    private static final Metrics.Counter GAME_ERRORS = Metrics.counter("game.errors");
+    private static final Metrics.Counter MOVE_FAILURES = Metrics.counter("game.move_failures");
+    private static final Metrics.Counter CONNECTIONS_LOST =
+            Metrics.counter("session.connections_lost");
+
+    /**
+     * A boolean extra which starts a pass-and-play game without a Cast device.
+     */
+    public static final String EXTRA_OFFLINE = "com.android.cast.demo.OFFLINE";
+
+    /**
+     * A long extra which, along with {@link #EXTRA_OFFLINE}, gives each player this many
+     * milliseconds for the game. A player who runs out of time forfeits.
+     */
+    public static final String EXTRA_CLOCK_MILLIS = "com.android.cast.demo.CLOCK_MILLIS";
+
+    // Added to a player's clock after each of their moves in an offline timed game.
+    private static final long CLOCK_INCREMENT_MS = 2000;
+    // How often the running clock is redrawn, and the resolution of its timeout.
+    private static final long CLOCK_TICK_MS = 100;
+
+    private static final int LEADERBOARD_DUMP_SIZE = 10;
+    // The players shown on the receiver between games.
+    private static final int LEADERBOARD_RECEIVER_SIZE = 5;
+
+    private SessionGroup mSessionGroup;
     private SessionListener mSessionListener;
+    private long mSessionStartTime;
+    // SESSION_START_TIME, or RECONNECT_TIME while restarting a lost session.
+    private LatencyHistogram mSessionStartHistogram;
+    private HealthListener mHealthListener;
+    private boolean mLagging;
+    // Reconnects since the connection was last known to be healthy.
+    private int mReconnects;
     private TicTacToeStream mGameMessageStream;
 
+    private boolean mOffline;
+    private LocalReceiver.Channel mLocalChannel;
+    private GameMessageStream mLocalOpponent;
+    private LocalReceiver.Channel mLocalOpponentChannel;
+    private TimerWheel mClockWheel;
+    // The symbol of the player to move, or null while no game is in progress.
+    private String mTurn;
+    // The name this player joins under, and is rated under, or null while it is loading.
+    private String mPlayerName;
+    // Whether to join once the name has loaded.
+    private boolean mJoinPending;
+    // The symbol this player was assigned and the opponent's name, for rating the game.
+    private String mPlayerSymbol;
+    private String mOpponentName;
+    // Whether a move by X, and by O, was sent and not yet answered.
+    private final boolean[] mMovesInFlight = new boolean[2];
+
+    private GameSnapshot mSnapshot;
+    // Whether the board was restored from a snapshot and still has to be confirmed.
+    private boolean mBoardRestored;
+
+    private TrafficRecorder mTrafficRecorder;
+
     private GameView mGameView;
     private TextView mInfoView;
     private TextView mPlayerNameView;
+    private FrameCoalescer mInfoUpdater;
+    private String mPendingInfoText;
+    private String mTurnTextX;
+    private String mTurnTextO;
+    private TextView mClockView;
+    // Time left to X and O as of mClockTime, and the index of the player whose clock runs, or -1.
+    private final long[] mClockMillis = new long[2];
+    private long mClockTime;
+    private int mClockTurn = -1;
+    private final Runnable mClockTicker = new Runnable() {
+        @Override
+        public void run() {
+            showClocks();
+        }
+    };
+    // The dialog last shown, so that a new one replaces it rather than stacking on top.
+    private AlertDialog mDialog;
+    // Built once each and shown again with a new message, as they come up every game.
+    private AlertDialog mGameOverDialog;
+    private AlertDialog mErrorDialog;
 
     /** 
      * Called when the activity is first created. Initializes the game with necessary listeners 
@@ -64,35 +164,153 @@ public class GameActivity extends Activity {
         mGameView = (GameView) findViewById(R.id.game_view);
         mInfoView = (TextView) findViewById(R.id.info_turn);
         mPlayerNameView = (TextView) findViewById(R.id.player_name);
+        mClockView = (TextView) findViewById(R.id.clocks);
+        mInfoUpdater = new FrameCoalescer(mInfoView, new Runnable() {
+            @Override
+            public void run() {
+                mInfoView.setText(mPendingInfoText);
+            }
+        });
+        mTurnTextX = String.format(
+                getResources().getString(R.string.player_turn), GameMessageStream.PLAYER_X);
+        mTurnTextO = String.format(
+                getResources().getString(R.string.player_turn), GameMessageStream.PLAYER_O);
 
         mGameView.setFocusable(true);
         mGameView.setFocusableInTouchMode(true);
         mGameView.setCellListener(new CellListener());
+        mGameView.setFrameStatsEnabled(Metrics.isEnabled());
 
         mSessionListener = new SessionListener();
+        mHealthListener = new HealthListener();
         mGameMessageStream = new TicTacToeStream();
+        mGameMessageStream.getEventBus().subscribe(new GameEventBus.Subscriber() {
+            @Override
+            public void onEvent(GameEvent event) {
+                updateClocks(event);
+            }
+        }, MainThreadExecutor.getInstance(), GameEvent.TYPE_JOINED, GameEvent.TYPE_MOVED,
+                GameEvent.TYPE_ENDGAME);
+        mOffline = getIntent().getBooleanExtra(EXTRA_OFFLINE, false);
+        TicTacToeApplication.getInstance().runWhenPlayerNameLoaded(new Runnable() {
+            @Override
+            public void run() {
+                mPlayerName = TicTacToeApplication.getInstance().getPlayerName();
+                if (mJoinPending) {
+                    joinGame();
+                }
+            }
+        });
+
+        // A game on a receiver outlives this process, so its board is restored from the last
+        // snapshot to be drawn on the first frame, and confirmed once the session starts.
+        if (!mOffline) {
+            mSnapshot = new GameSnapshot(new File(getFilesDir(), SNAPSHOT_FILE));
+            int snapshot = mSnapshot.load();
+            if (snapshot != GameSnapshot.NONE && !GameSnapshot.isBoardEmpty(snapshot)) {
+                mGameView.restoreSnapshot(snapshot);
+                mBoardRestored = true;
+            }
+            mGameView.setStateListener(new GameView.IStateListener() {
+                @Override
+                public void onStateChanged(GameView view) {
+                    mSnapshot.save(view.getSnapshot());
+                }
+            });
+        }
     }
 
     /**
      * Called on application start. Using the previously selected Cast device, attempts to begin a 
-     * session using the application name TicTacToe.
+     * session using the application name TicTacToe, along with sessions on any mirror devices.
      */
     @Override
     protected void onStart() {
         super.onStart();
-        CastDevice selectedDevice = TicTacToeApplication.getInstance().getDevice();
-        CastContext castContext =
-                TicTacToeApplication.getInstance().getCastContext();
+        if (mOffline) {
+            startLocalGame();
+            return;
+        }
+        startSession(SESSION_START_TIME);
+    }
 
-        mSession = new ApplicationSession(castContext, selectedDevice);
-        mSession.setListener(mSessionListener);
+    /**
+     * Starts the sessions on the selected device and its mirrors.
+     *
+     * @param histogram the histogram the time until the primary session starts is recorded in
+     */
+    private void startSession(LatencyHistogram histogram) {
+        TicTacToeApplication application = TicTacToeApplication.getInstance();
+        CastDevice selectedDevice = application.getDevice();
+        CastContext castContext = application.getCastContext();
+
+        mSessionStartHistogram = histogram;
+        mSessionStartTime = Metrics.startTimer();
+        mSessionGroup = new SessionGroup(
+                castContext, selectedDevice, application.getMirrorDevices());
         try {
-            mSession.startSession("TicTacToe");
+            mSessionGroup.start("TicTacToe", mGameMessageStream, mSessionListener);
         } catch (IOException e) {
             Log.e(TAG, "Failed to open a session", e);
         }
     }
 
+    /**
+     * Connects the game's stream and a second, local seat to an in-process receiver, and joins
+     * both of them. The game is timed if the intent asks for clocks.
+     */
+    private void startLocalGame() {
+        LocalReceiver receiver =
+                new LocalReceiver(MainThreadExecutor.getInstance(), new Random());
+        long clockMillis = getIntent().getLongExtra(EXTRA_CLOCK_MILLIS, 0);
+        if (clockMillis > 0) {
+            mClockWheel = new TimerWheel("GameClock", CLOCK_TICK_MS);
+            receiver.setTimeControl(
+                    new GameClock.TimeControl(clockMillis, CLOCK_INCREMENT_MS, 0), mClockWheel);
+        }
+        mLocalChannel = receiver.connect(mGameMessageStream);
+        mLocalOpponent = new GameMessageStream(
+                MainThreadExecutor.getInstance(), MainThreadExecutor.getInstance());
+        mLocalOpponentChannel = receiver.connect(mLocalOpponent);
+        setInfoText(R.string.waiting_for_player_assignment);
+        joinGame();
+    }
+
+    /**
+     * Asks the receiver for the board restored from a snapshot, and replaces it with the
+     * receiver's board, which is empty if the game is over.
+     */
+    private void confirmRestoredBoard() {
+        mBoardRestored = false;
+        mGameMessageStream.requestBoardLayoutAsync().addCallback(
+                new ResponseFuture.Callback<int[][]>() {
+                    @Override
+                    public void onSuccess(int[][] boardLayout) {
+                        mGameView.updateBoard(boardLayout);
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        Log.w(TAG, "Unable to confirm the restored board", e);
+                    }
+                }, MainThreadExecutor.getInstance());
+    }
+
+    /**
+     * Joins a new game, with both seats in a pass-and-play game, or once the player name has
+     * loaded if it has not yet.
+     */
+    private void joinGame() {
+        mJoinPending = (mPlayerName == null);
+        if (mJoinPending) {
+            return;
+        }
+        mGameMessageStream.join(mPlayerName);
+        if (mLocalOpponent != null) {
+            mLocalOpponent.join("Opponent");
+        }
+    }
+
     /**
      * Removes the activity from memory when the activity is paused.
      */
@@ -107,21 +325,33 @@ public class GameActivity extends Activity {
      */
     @Override
     protected void onStop() {
-        if (mSession != null) {
-            if (mSession.hasChannel()) {
+        mJoinPending = false;
+        mGameMessageStream.stopHeartbeat();
+        if (mSessionGroup != null) {
+            if (mSessionGroup.hasPrimaryChannel()) {
                 mGameMessageStream.leave();
             }
-            try {
-                if (mSession.hasStarted()) {
-                    mSession.endSession();
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to end the session.", e);
-            } catch (IllegalStateException e) {
-                Log.e(TAG, "Unable to end session.", e);
-            }
+            mSessionGroup.end();
+        }
+        mSessionGroup = null;
+        if (mLocalChannel != null) {
+            mLocalChannel.close();
+            mLocalOpponentChannel.close();
+            mLocalChannel = null;
+            mLocalOpponentChannel = null;
+            mLocalOpponent = null;
+        }
+        if (mClockWheel != null) {
+            mClockWheel.stop();
+            mClockWheel = null;
+        }
+        mClockTurn = -1;
+        mClockView.removeCallbacks(mClockTicker);
+        stopTrafficCapture();
+        if (mDialog != null) {
+            mDialog.dismiss();
+            mDialog = null;
         }
-        mSession = null;
         super.onStop();
     }
 
@@ -134,6 +364,181 @@ public class GameActivity extends Activity {
         setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
     }
 
+    /**
+     * Appends the startup timings, protocol event trace, metrics, round trip time, frame timing
+     * and leaderboard to the activity's state, so that they are captured by
+     * {@code dumpsys activity} and bug reports. The arguments {@code capture start} and
+     * {@code capture stop} instead start and stop recording the game traffic, which the
+     * instrumentation tests' {@code TrafficReplayer} can replay.
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && args.length == 2 && "capture".equals(args[0])) {
+            if ("start".equals(args[1])) {
+                startTrafficCapture(writer);
+            } else {
+                File file = stopTrafficCapture();
+                writer.println((file != null) ? "Capture written to " + file : "Not capturing");
+            }
+            return;
+        }
+        super.dump(prefix, fd, writer, args);
+        StartupTrace.dump(writer);
+        EventTrace.dump(writer);
+        Metrics.dump(writer);
+        writer.println("Round trip: " + mGameMessageStream.getRttEstimator());
+        FrameStats frameStats = mGameView.getFrameStats();
+        if (frameStats != null) {
+            frameStats.dump(writer);
+        }
+        Leaderboard leaderboard = TicTacToeApplication.getInstance().getLeaderboard();
+        if (leaderboard != null) {
+            writer.println("Leaderboard (" + leaderboard.size() + " players):");
+            for (Leaderboard.Entry entry : leaderboard.getTop(LEADERBOARD_DUMP_SIZE)) {
+                writer.println("  " + entry);
+            }
+        }
+    }
+
+    private void startTrafficCapture(PrintWriter writer) {
+        stopTrafficCapture();
+        File file = new File(getFilesDir(), "traffic-" + System.currentTimeMillis() + ".cap");
+        try {
+            mTrafficRecorder = new TrafficRecorder(file);
+        } catch (IOException e) {
+            writer.println("Unable to capture to " + file + ": " + e);
+            return;
+        }
+        mGameMessageStream.setTrafficRecorder(mTrafficRecorder);
+        writer.println("Capturing to " + file);
+    }
+
+    /**
+     * Stops the traffic capture, if any, and returns the file it was written to.
+     */
+    private File stopTrafficCapture() {
+        if (mTrafficRecorder == null) {
+            return null;
+        }
+        mGameMessageStream.setTrafficRecorder(null);
+        mTrafficRecorder.close();
+        File file = mTrafficRecorder.getFile();
+        mTrafficRecorder = null;
+        return file;
+    }
+
+    /**
+     * Returns the stream of this player's seat, for instrumentation tests.
+     */
+    GameMessageStream getGameMessageStream() {
+        return mGameMessageStream;
+    }
+
+    /**
+     * Sets the info text immediately, dropping any text posted for the next frame.
+     */
+    private void setInfoText(int resId) {
+        mInfoUpdater.cancel();
+        mInfoView.setText(resId);
+    }
+
+    /**
+     * Sets the info text on the next display frame. Only the last text posted before that frame
+     * is shown.
+     */
+    private void postInfoText(String text) {
+        mPendingInfoText = text;
+        mInfoUpdater.schedule();
+    }
+
+    /**
+     * Takes both players' remaining times from a joined or moved event of a timed game, and starts
+     * counting down the clock of the player to move. An endgame event stops the clocks.
+     */
+    private void updateClocks(GameEvent event) {
+        if (event.getType() == GameEvent.TYPE_ENDGAME) {
+            mClockTurn = -1;
+            mClockView.removeCallbacks(mClockTicker);
+            return;
+        }
+        long clockX = event.getRemainingMillis(GameMessageStream.PLAYER_X);
+        if (clockX < 0) {
+            mClockView.setVisibility(View.GONE);
+            return;
+        }
+        mClockMillis[0] = clockX;
+        mClockMillis[1] = event.getRemainingMillis(GameMessageStream.PLAYER_O);
+        mClockTime = SystemClock.elapsedRealtime();
+        if (event.getType() == GameEvent.TYPE_JOINED) {
+            mClockTurn = 0;
+        } else if (event.isGameOver()) {
+            mClockTurn = -1;
+        } else {
+            mClockTurn = GameMessageStream.PLAYER_X.equals(event.getPlayer()) ? 1 : 0;
+        }
+        mClockView.setVisibility(View.VISIBLE);
+        showClocks();
+    }
+
+    /**
+     * Shows both clocks, and redraws them shortly while one of them runs.
+     */
+    private void showClocks() {
+        long elapsed = SystemClock.elapsedRealtime() - mClockTime;
+        long clockX = mClockMillis[0] - ((mClockTurn == 0) ? elapsed : 0);
+        long clockO = mClockMillis[1] - ((mClockTurn == 1) ? elapsed : 0);
+        mClockView.setText(String.format(getResources().getString(R.string.clocks),
+                formatClock(clockX), formatClock(clockO)));
+        mClockView.removeCallbacks(mClockTicker);
+        if (mClockTurn >= 0) {
+            mClockView.postDelayed(mClockTicker, CLOCK_TICK_MS);
+        }
+    }
+
+    /**
+     * Formats a remaining time as minutes and seconds, rounding up so that 0:00 means flagged.
+     */
+    private static String formatClock(long millis) {
+        long seconds = (Math.max(0, millis) + 999) / 1000;
+        return String.format("%d:%02d", seconds / 60, seconds % 60);
+    }
+
+    /**
+     * Displays an error reported by the receiver.
+     */
+    private void showErrorDialog(String errorMessage) {
+        if (mErrorDialog == null) {
+            mErrorDialog = new AlertDialog.Builder(GameActivity.this)
+                    .setTitle(R.string.error)
+                    .setMessage(errorMessage)
+                    .setCancelable(false)
+                    .setPositiveButton(R.string.ok, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int id) {
+                            dialog.cancel();
+                        }
+                    })
+                    .create();
+        }
+        replaceDialog(mErrorDialog, errorMessage);
+    }
+
+    /**
+     * Shows dialog with the given message in place of any other dialog still showing, so that
+     * dialogs do not pile up when games end or errors arrive faster than the player dismisses
+     * them.
+     */
+    private void replaceDialog(AlertDialog dialog, String message) {
+        if (mDialog != null && mDialog != dialog) {
+            mDialog.dismiss();
+        }
+        mDialog = dialog;
+        dialog.setMessage(message);
+        if (!dialog.isShowing()) {
+            dialog.show();
+        }
+    }
+
     /**
      * Returns the string representation of a State object representing a player, or null if the 
      * passed player does not correspond to an X or O player.
@@ -150,7 +555,7 @@ public class GameActivity extends Activity {
     }
 
     /**
-     * Builds and displays a dialog indicating the completion of the game, whether by forfeit or 
+     * Displays a dialog indicating the completion of the game, whether by forfeit or 
      * by one player winning.
      */
     private void setFinished(
@@ -170,26 +575,29 @@ public class GameActivity extends Activity {
         }
         mGameView.setFinished(row, column, diagonal);
 
-        new AlertDialog.Builder(GameActivity.this)
-                .setTitle(R.string.game_over)
-                .setMessage(text)
-                .setCancelable(false)
-                .setPositiveButton(R.string.play_again, new DialogInterface.OnClickListener() {
-                    @Override
-                    public void onClick(DialogInterface dialog, int id) {
-                        mPlayerNameView.setText(null);
-                        mInfoView.setText(R.string.waiting_for_player_assignment);
-                        mGameMessageStream.join("MyName");
-                    }
-                })
-                .setNegativeButton(R.string.leave, new DialogInterface.OnClickListener() {
-                    @Override
-                    public void onClick(DialogInterface dialog, int id) {
-                        finish();
-                    }
-                })
-                .create()
-                .show();
+        if (mGameOverDialog == null) {
+            mGameOverDialog = new AlertDialog.Builder(GameActivity.this)
+                    .setTitle(R.string.game_over)
+                    .setMessage(text)
+                    .setCancelable(false)
+                    .setPositiveButton(R.string.play_again,
+                            new DialogInterface.OnClickListener() {
+                                @Override
+                                public void onClick(DialogInterface dialog, int id) {
+                                    mPlayerNameView.setText(null);
+                                    setInfoText(R.string.waiting_for_player_assignment);
+                                    joinGame();
+                                }
+                            })
+                    .setNegativeButton(R.string.leave, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int id) {
+                            finish();
+                        }
+                    })
+                    .create();
+        }
+        replaceDialog(mGameOverDialog, text);
     }
 
     /**
@@ -199,7 +607,49 @@ public class GameActivity extends Activity {
     private class CellListener implements ICellListener {
         @Override
         public void onCellSelected(int row, int column) {
-            mGameMessageStream.move(row, column);
+            // Out of turn taps, and taps while this player's last move is unanswered, would only
+            // be rejected by the receiver, so they are dropped here.
+            String player = mTurn;
+            if (player == null) {
+                return;
+            }
+            GameMessageStream seat = null;
+            if (player.equals(convertGameStateToPlayer(mGameView.getAssignedPlayer()))) {
+                seat = mGameMessageStream;
+            } else if (mLocalOpponent != null) {
+                // In pass-and-play, the other player's moves are made through the second seat.
+                seat = mLocalOpponent;
+            }
+            final int index = GameMessageStream.PLAYER_X.equals(player) ? 0 : 1;
+            if (seat == null || mMovesInFlight[index]) {
+                return;
+            }
+            mMovesInFlight[index] = true;
+            seat.moveAsync(row, column).addCallback(
+                    new ResponseFuture.Callback<Boolean>() {
+                        @Override
+                        public void onSuccess(Boolean isGameOver) {
+                            mMovesInFlight[index] = false;
+                        }
+
+                        @Override
+                        public void onFailure(Exception e) {
+                            MOVE_FAILURES.increment();
+                            if (e instanceof TimeoutException) {
+                                // The move may still be applied, so another tap could play
+                                // twice. Its late moved event, or losing the session, clears
+                                // the flag instead.
+                                Log.w(TAG, "Move was not answered in time", e);
+                                return;
+                            }
+                            mMovesInFlight[index] = false;
+                            if (e instanceof IOException && e.getMessage() != null) {
+                                showErrorDialog(e.getMessage());
+                            } else {
+                                Log.w(TAG, "Move failed", e);
+                            }
+                        }
+                    }, MainThreadExecutor.getInstance());
         }
     }
 
@@ -207,21 +657,22 @@ public class GameActivity extends Activity {
      * A class which listens to session start events. On detection, it attaches the game's message
      * stream and joins a player to the game.
      */
-    private class SessionListener implements ApplicationSession.Listener {
+    private class SessionListener implements SessionGroup.Listener {
         @Override
-        public void onSessionStarted(ApplicationMetadata appMetadata) {
-            mInfoView.setText(R.string.waiting_for_player_assignment);
-            ApplicationChannel channel = mSession.getChannel();
-            if (channel == null) {
-                Log.w(TAG, "onStarted: channel is null");
-                return;
-            }
+        public void onSessionStarted(ApplicationChannel channel) {
+            Metrics.recordSince(mSessionStartHistogram, mSessionStartTime);
+            setInfoText(R.string.waiting_for_player_assignment);
             channel.attachMessageStream(mGameMessageStream);
-            mGameMessageStream.join("MyName");
+            if (mBoardRestored) {
+                confirmRestoredBoard();
+            }
+            joinGame();
+            mGameMessageStream.startHeartbeat(HEARTBEAT_INTERVAL_MS, mHealthListener);
         }
 
         @Override
         public void onSessionStartFailed(SessionError error) {
+            SESSION_START_FAILURES.increment();
             Log.d(TAG, "start session failed: " + error.toString());
         }
 
@@ -231,6 +682,87 @@ public class GameActivity extends Activity {
         }
     }
 
+    /**
+     * Rates a finished game against the opponent on the leaderboard, then shows the top of the
+     * leaderboard on the receiver until the next game. Abandoned games, and games against a
+     * player of the same name, are not rated.
+     */
+    private void recordResult(String endState) {
+        String opponent = mOpponentName;
+        mOpponentName = null;
+        if (opponent == null) {
+            return;
+        }
+        Runnable showLeaderboard = new Runnable() {
+            @Override
+            public void run() {
+                showLeaderboardOnReceiver();
+            }
+        };
+        if (GameMessageStream.END_STATE_ABANDONED.equals(endState)
+                || opponent.equals(mPlayerName)) {
+            showLeaderboard.run();
+            return;
+        }
+        TicTacToeApplication application = TicTacToeApplication.getInstance();
+        if (GameMessageStream.END_STATE_DRAW.equals(endState)) {
+            application.recordGameResult(mPlayerName, opponent, true, showLeaderboard);
+        } else if (mPlayerSymbol.equals(GameMessageStream.END_STATE_X_WON.equals(endState)
+                ? GameMessageStream.PLAYER_X : GameMessageStream.PLAYER_O)) {
+            application.recordGameResult(mPlayerName, opponent, false, showLeaderboard);
+        } else {
+            application.recordGameResult(opponent, mPlayerName, false, showLeaderboard);
+        }
+    }
+
+    /**
+     * Sends the best players to the receiver, unless the session has ended meanwhile.
+     */
+    private void showLeaderboardOnReceiver() {
+        Leaderboard leaderboard = TicTacToeApplication.getInstance().getLeaderboard();
+        if (leaderboard == null || mSessionGroup == null || !mSessionGroup.hasPrimaryChannel()) {
+            return;
+        }
+        mGameMessageStream.sendLeaderboard(leaderboard.getTop(LEADERBOARD_RECEIVER_SIZE));
+    }
+
+    /**
+     * A class which warns the player while the connection to the receiver is slow, and restarts
+     * the session when the receiver stops answering.
+     */
+    private class HealthListener implements GameMessageStream.HealthListener {
+        @Override
+        public void onRoundTripTime(long smoothedMillis, long varianceMillis) {
+            mReconnects = 0;
+            if (!mLagging && smoothedMillis > LAG_WARNING_MS) {
+                mLagging = true;
+                Toast.makeText(GameActivity.this, R.string.connection_slow, Toast.LENGTH_SHORT)
+                        .show();
+            } else if (mLagging && smoothedMillis < LAG_WARNING_MS / 2) {
+                mLagging = false;
+            }
+        }
+
+        @Override
+        public void onConnectionLost() {
+            CONNECTIONS_LOST.increment();
+            mMovesInFlight[0] = false;
+            mMovesInFlight[1] = false;
+            if (mSessionGroup == null) {
+                return;
+            }
+            mSessionGroup.end();
+            mSessionGroup = null;
+            if (mReconnects++ < MAX_RECONNECTS) {
+                Log.w(TAG, "Receiver stopped answering, reconnecting");
+                setInfoText(R.string.reconnecting);
+                startSession(RECONNECT_TIME);
+            } else {
+                showErrorDialog(getResources().getString(R.string.connection_lost));
+            }
+        }
+    }
+
     /**
      * An extension of the GameMessageStream specifically for the TicTacToe game.
      */
@@ -251,27 +783,39 @@ public class GameActivity extends Activity {
             }
 
             mGameView.setAssignedPlayer(newPlayer);
-            mPlayerNameView.setText(
-                    String.format(getResources().getString(R.string.player_name), playerSymbol));
-            mInfoView.setText(String.format(
-                    getResources().getString(R.string.player_turn), GameMessageStream.PLAYER_X));
+            mTurn = PLAYER_X;
+            mMovesInFlight[0] = false;
+            mMovesInFlight[1] = false;
+            if (mOffline) {
+                mPlayerNameView.setText(R.string.pass_and_play);
+            } else {
+                mPlayerSymbol = playerSymbol;
+                mOpponentName = opponentName;
+                mPlayerNameView.setText(String.format(
+                        getResources().getString(R.string.player_name), playerSymbol));
+            }
+            mInfoUpdater.cancel();
+            mInfoView.setText(mTurnTextX);
         }
 
         /**
-         * Updates the game display upon a move.
+         * Updates the game display upon a move. Moves arriving within one display frame, as 
+         * happens when spectating or replaying, are applied together on the next frame.
          */
         @Override
         protected void onGameMove(String playerSymbol, int row, int column, boolean isGameOver) {
             State player = State.PLAYER_O;
-            String otherPlayerName = GameMessageStream.PLAYER_X;
+            String otherPlayerTurn = mTurnTextX;
             if (GameMessageStream.PLAYER_X.equals(playerSymbol)) {
                 player = State.PLAYER_X;
-                otherPlayerName = GameMessageStream.PLAYER_O;
+                otherPlayerTurn = mTurnTextO;
             }
 
-            mGameView.setCell(row, column, player);
-            mInfoView.setText(
-                    String.format(getResources().getString(R.string.player_turn), otherPlayerName));
+            // Also settles a move whose request timed out before this event arrived.
+            mMovesInFlight[player == State.PLAYER_X ? 0 : 1] = false;
+            mGameView.postCell(row, column, player);
+            postInfoText(otherPlayerTurn);
+            mTurn = isGameOver ? null : (player == State.PLAYER_X ? PLAYER_O : PLAYER_X);
         }
 
         /**
@@ -281,6 +825,8 @@ public class GameActivity extends Activity {
          */
         @Override
         protected void onGameEnd(String endState, int location) {
+            mTurn = null;
+            recordResult(endState);
             State winningPlayer;
             boolean wasGameAbandoned = false;
             if (END_STATE_X_WON.equals(endState)) {
@@ -326,26 +872,15 @@ public class GameActivity extends Activity {
          */
         @Override
         protected void onGameError(String errorMessage) {
+            GAME_ERRORS.increment();
             if (getResources().getString(R.string.full_game).equals(errorMessage)) {
                 mPlayerNameView.setText(R.string.full_game);
-                mInfoView.setText(R.string.observing);
+                setInfoText(R.string.observing);
                 mGameView.clearBoard();
                 mGameView.setAssignedPlayer(State.EMPTY);
                 mGameMessageStream.requestBoardLayout();
             }
-
-            new AlertDialog.Builder(GameActivity.this)
-                    .setTitle(R.string.error)
-                    .setMessage(errorMessage)
-                    .setCancelable(false)
-                    .setPositiveButton(R.string.ok, new DialogInterface.OnClickListener() {
-                        @Override
-                        public void onClick(DialogInterface dialog, int id) {
-                            dialog.cancel();
-                        }
-                    })
-                    .create()
-                    .show();
+            showErrorDialog(errorMessage);
         }
     }
 }
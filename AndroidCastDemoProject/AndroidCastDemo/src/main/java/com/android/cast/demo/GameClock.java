@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A chess-style pair of game clocks for X and O, which flags a player whose time runs out through
+ * a {@link TimerWheel}. All methods must be called on the executor passed to the constructor,
+ * which is also where {@link Listener#onTimeExpired(String)} is called.
+ */
+public class GameClock {
+
+    /**
+     * The time allowed per game and per move. Immutable.
+     */
+    public static final class TimeControl {
+        private final long mGameMillis;
+        private final long mIncrementMillis;
+        private final long mMoveMillis;
+
+        /**
+         * @param gameMillis the time each player starts with
+         * @param incrementMillis the time added to a player's clock after each of their moves
+         * @param moveMillis the most a single move may take, or 0 for no limit
+         */
+        public TimeControl(long gameMillis, long incrementMillis, long moveMillis) {
+            mGameMillis = gameMillis;
+            mIncrementMillis = incrementMillis;
+            mMoveMillis = moveMillis;
+        }
+
+        public long getGameMillis() {
+            return mGameMillis;
+        }
+
+        public long getIncrementMillis() {
+            return mIncrementMillis;
+        }
+
+        public long getMoveMillis() {
+            return mMoveMillis;
+        }
+    }
+
+    /**
+     * A class which is told when the player to move runs out of time.
+     */
+    public interface Listener {
+        void onTimeExpired(String player);
+    }
+
+    private final TimeControl mControl;
+    private final TimerWheel mWheel;
+    private final Executor mExecutor;
+    private final Listener mListener;
+
+    // Remaining time of X and O, as of mTurnStart for the player to move.
+    private final long[] mRemaining = new long[2];
+    private int mTurn = -1;
+    private long mTurnStart;
+    private TimerWheel.Timeout mTimeout;
+    // Identifies the latest timeout, whose task may already be queued when it is cancelled.
+    private int mGeneration;
+
+    public GameClock(TimeControl control, TimerWheel wheel, Executor executor,
+            Listener listener) {
+        mControl = control;
+        mWheel = wheel;
+        mExecutor = executor;
+        mListener = listener;
+    }
+
+    /**
+     * Resets both clocks and starts X's.
+     */
+    public void start() {
+        mRemaining[0] = mControl.mGameMillis;
+        mRemaining[1] = mControl.mGameMillis;
+        startTurn(0);
+    }
+
+    /**
+     * Stops the clock of the player to move, who just moved, and starts the opponent's.
+     *
+     * @return false if the mover had already run out of time, in which case both clocks stop
+     */
+    public boolean switchTurn() {
+        if (mTurn < 0) {
+            return false;
+        }
+        if (isExpired()) {
+            stop();
+            return false;
+        }
+        mRemaining[mTurn] = getRemainingMillis(mTurn) + mControl.mIncrementMillis;
+        startTurn(1 - mTurn);
+        return true;
+    }
+
+    /**
+     * Stops both clocks, keeping their remaining times.
+     */
+    public void stop() {
+        if (mTurn >= 0) {
+            mRemaining[mTurn] = getRemainingMillis(mTurn);
+            mTurn = -1;
+        }
+        cancelTimeout();
+    }
+
+    /**
+     * Returns the time left to player, GameMessageStream.PLAYER_X or PLAYER_O.
+     */
+    public long getRemainingMillis(String player) {
+        return getRemainingMillis(GameMessageStream.PLAYER_X.equals(player) ? 0 : 1);
+    }
+
+    private long getRemainingMillis(int player) {
+        if (player != mTurn) {
+            return mRemaining[player];
+        }
+        return Math.max(0, mRemaining[player] - (now() - mTurnStart));
+    }
+
+    /**
+     * Returns whether the player to move has used up their game time or the time for this move.
+     */
+    private boolean isExpired() {
+        long elapsed = now() - mTurnStart;
+        return elapsed >= mRemaining[mTurn]
+                || (mControl.mMoveMillis > 0 && elapsed >= mControl.mMoveMillis);
+    }
+
+    private void startTurn(int player) {
+        cancelTimeout();
+        mTurn = player;
+        mTurnStart = now();
+        scheduleTimeout();
+    }
+
+    private void scheduleTimeout() {
+        long elapsed = now() - mTurnStart;
+        long limit = mRemaining[mTurn] - elapsed;
+        if (mControl.mMoveMillis > 0) {
+            limit = Math.min(limit, mControl.mMoveMillis - elapsed);
+        }
+        final int generation = ++mGeneration;
+        mTimeout = mWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTimeout(generation);
+                    }
+                });
+            }
+        }, Math.max(0, limit));
+    }
+
+    private void onTimeout(int generation) {
+        // A move may have switched the clocks after the timeout fired.
+        if (generation != mGeneration || mTurn < 0) {
+            return;
+        }
+        mTimeout = null;
+        if (!isExpired()) {
+            scheduleTimeout();
+            return;
+        }
+        String player = (mTurn == 0) ? GameMessageStream.PLAYER_X : GameMessageStream.PLAYER_O;
+        stop();
+        mListener.onTimeExpired(player);
+    }
+
+    private void cancelTimeout() {
+        if (mTimeout != null) {
+            mTimeout.cancel();
+            mTimeout = null;
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A decoded and validated game event received from the receiver device. Events are produced off
+ * the UI thread by {@link GameMessageStream}.
+ *
+ * <p>Events are pooled to avoid an allocation per message, so they are mutable and are reused for
+ * later messages. An event is only valid until the callback it was passed to returns; a consumer
+ * which needs it for longer, or on another thread, must call {@link #retain()} before returning
+ * and {@link #release()} when it is done. An event is not modified while any reference to it is
+ * held, so a retained event can be read from any thread without further synchronization.
+ */
+public final class GameEvent {
+    public static final int TYPE_JOINED = 1;
+    public static final int TYPE_MOVED = 2;
+    public static final int TYPE_ENDGAME = 3;
+    public static final int TYPE_ERROR = 4;
+    public static final int TYPE_BOARD_LAYOUT = 5;
+
+    static final int TYPE_COUNT = 6;
+
+    private static final int MAX_POOL_SIZE = 32;
+    private static final Object sPoolLock = new Object();
+    private static GameEvent sPool;
+    private static int sPoolSize;
+
+    private final AtomicInteger mReferences = new AtomicInteger();
+    private int[][] mBoardLayout = new int[3][3];
+    private GameEvent mNext;
+
+    // Lets the stream hand this event to its callback executor without allocating a task.
+    private final Runnable mDispatchTask = new Runnable() {
+        @Override
+        public void run() {
+            GameMessageStream target = mTarget;
+            mTarget = null;
+            target.dispatch(GameEvent.this);
+        }
+    };
+    private GameMessageStream mTarget;
+
+    private int mType;
+    private String mPlayer;
+    private String mText;
+    private int mRow;
+    private int mColumn;
+    private boolean mGameOver;
+    private long mClockX;
+    private long mClockO;
+
+    private GameEvent() {
+    }
+
+    /**
+     * Returns an event from the pool, or a new one if the pool is empty, holding one reference.
+     */
+    private static GameEvent obtain(int type, String player, String text, int row, int column,
+            boolean gameOver) {
+        GameEvent event = null;
+        synchronized (sPoolLock) {
+            if (sPool != null) {
+                event = sPool;
+                sPool = event.mNext;
+                event.mNext = null;
+                --sPoolSize;
+            }
+        }
+        if (event == null) {
+            event = new GameEvent();
+        }
+        event.mReferences.set(1);
+        event.mType = type;
+        event.mPlayer = player;
+        event.mText = text;
+        event.mRow = row;
+        event.mColumn = column;
+        event.mGameOver = gameOver;
+        event.mClockX = -1;
+        event.mClockO = -1;
+        return event;
+    }
+
+    static GameEvent joined(String playerSymbol, String opponentName) {
+        return obtain(TYPE_JOINED, playerSymbol, opponentName, -1, -1, false);
+    }
+
+    static GameEvent moved(String playerSymbol, int row, int column, boolean isGameOver) {
+        return obtain(TYPE_MOVED, playerSymbol, null, row, column, isGameOver);
+    }
+
+    static GameEvent ended(String endState, int location) {
+        return obtain(TYPE_ENDGAME, null, endState, location, -1, true);
+    }
+
+    static GameEvent error(String errorMessage) {
+        return obtain(TYPE_ERROR, null, errorMessage, -1, -1, false);
+    }
+
+    /**
+     * Returns a board layout event with a size by size board, which the caller fills in through
+     * getBoardLayout() before publishing it.
+     */
+    static GameEvent boardLayout(int size) {
+        GameEvent event = obtain(TYPE_BOARD_LAYOUT, null, null, -1, -1, false);
+        if (event.mBoardLayout.length != size) {
+            event.mBoardLayout = new int[size][size];
+        }
+        return event;
+    }
+
+    /**
+     * Sets the remaining game time of each player, for events of timed games.
+     */
+    void setClocks(long xMillis, long oMillis) {
+        mClockX = xMillis;
+        mClockO = oMillis;
+    }
+
+    /**
+     * Adds a reference to this event, keeping it out of the pool until released.
+     */
+    public void retain() {
+        mReferences.incrementAndGet();
+    }
+
+    /**
+     * Drops a reference to this event, returning it to the pool once none are left.
+     */
+    public void release() {
+        if (mReferences.decrementAndGet() != 0) {
+            return;
+        }
+        mPlayer = null;
+        mText = null;
+        synchronized (sPoolLock) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                ++sPoolSize;
+            }
+        }
+    }
+
+    /**
+     * Returns a task which passes this event to target's callbacks.
+     */
+    Runnable dispatchTo(GameMessageStream target) {
+        mTarget = target;
+        return mDispatchTask;
+    }
+
+    /**
+     * Returns one of the TYPE_* constants.
+     */
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * Returns the symbol of the player who joined or moved, either X or O.
+     */
+    public String getPlayer() {
+        return mPlayer;
+    }
+
+    /**
+     * Returns the opponent's name for TYPE_JOINED events.
+     */
+    public String getOpponentName() {
+        return (mType == TYPE_JOINED) ? mText : null;
+    }
+
+    /**
+     * Returns one of the END_STATE_* values for TYPE_ENDGAME events.
+     */
+    public String getEndState() {
+        return (mType == TYPE_ENDGAME) ? mText : null;
+    }
+
+    /**
+     * Returns the error description for TYPE_ERROR events.
+     */
+    public String getErrorMessage() {
+        return (mType == TYPE_ERROR) ? mText : null;
+    }
+
+    public int getRow() {
+        return mRow;
+    }
+
+    public int getColumn() {
+        return mColumn;
+    }
+
+    /**
+     * Returns the WinningLocation value for TYPE_ENDGAME events, or -1.
+     */
+    public int getWinningLocation() {
+        return (mType == TYPE_ENDGAME) ? mRow : -1;
+    }
+
+    public boolean isGameOver() {
+        return mGameOver;
+    }
+
+    /**
+     * Returns the game time player, X or O, had left when the receiver sent a TYPE_JOINED or
+     * TYPE_MOVED event, or -1 if the game is not timed.
+     */
+    public long getRemainingMillis(String player) {
+        return GameMessageStream.PLAYER_X.equals(player) ? mClockX : mClockO;
+    }
+
+    /**
+     * Returns the board for TYPE_BOARD_LAYOUT events. The array is reused along with the event
+     * and must not be modified.
+     */
+    public int[][] getBoardLayout() {
+        return mBoardLayout;
+    }
+}
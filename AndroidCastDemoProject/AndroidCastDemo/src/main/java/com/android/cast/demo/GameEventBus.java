@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A registry of subscribers to the {@link GameEvent}s of a {@link GameMessageStream}. Any number
+ * of subscribers, such as loggers, AIs or analytics sinks, may subscribe to any subset of event
+ * types, and each chooses to be called inline on the publishing thread or on its own executor.
+ *
+ * <p>Subscriptions are kept in copy-on-write arrays, one per event type, so publishing takes no
+ * lock. Events are pooled, and each executor subscriber has a preallocated queue and drain task,
+ * so publishing allocates nothing as long as that queue keeps up.
+ */
+public class GameEventBus {
+    private static final String TAG = GameEventBus.class.getSimpleName();
+
+    /**
+     * A class which receives game events.
+     */
+    public interface Subscriber {
+        /**
+         * Called for each event of a subscribed type. The event is only valid until this method
+         * returns, unless it is retained.
+         */
+        void onEvent(GameEvent event);
+    }
+
+    private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+
+    private final Object mLock = new Object();
+    private volatile Subscription[][] mByType;
+
+    public GameEventBus() {
+        Subscription[][] byType = new Subscription[GameEvent.TYPE_COUNT][];
+        for (int i = 0; i < byType.length; ++i) {
+            byType[i] = NO_SUBSCRIPTIONS;
+        }
+        mByType = byType;
+    }
+
+    /**
+     * Subscribes to all event types.
+     *
+     * @param executor the executor to call the subscriber on, or null to call it inline
+     */
+    public Subscription subscribe(Subscriber subscriber, Executor executor) {
+        return subscribe(subscriber, executor, GameEvent.TYPE_JOINED, GameEvent.TYPE_MOVED,
+                GameEvent.TYPE_ENDGAME, GameEvent.TYPE_ERROR, GameEvent.TYPE_BOARD_LAYOUT);
+    }
+
+    /**
+     * Subscribes to the given GameEvent.TYPE_* event types.
+     *
+     * @param executor the executor to call the subscriber on, or null to call it inline
+     */
+    public Subscription subscribe(Subscriber subscriber, Executor executor, int... types) {
+        Subscription subscription = new Subscription(this, subscriber, executor, types);
+        synchronized (mLock) {
+            Subscription[][] byType = mByType.clone();
+            for (int type : types) {
+                Subscription[] old = byType[type];
+                Subscription[] updated = new Subscription[old.length + 1];
+                System.arraycopy(old, 0, updated, 0, old.length);
+                updated[old.length] = subscription;
+                byType[type] = updated;
+            }
+            mByType = byType;
+        }
+        return subscription;
+    }
+
+    private void remove(Subscription subscription) {
+        synchronized (mLock) {
+            Subscription[][] byType = mByType.clone();
+            for (int type : subscription.mTypes) {
+                Subscription[] old = byType[type];
+                int index = -1;
+                for (int i = 0; i < old.length; ++i) {
+                    if (old[i] == subscription) {
+                        index = i;
+                    }
+                }
+                if (index < 0) {
+                    continue;
+                }
+                Subscription[] updated = new Subscription[old.length - 1];
+                System.arraycopy(old, 0, updated, 0, index);
+                System.arraycopy(old, index + 1, updated, index, old.length - index - 1);
+                byType[type] = updated;
+            }
+            mByType = byType;
+        }
+    }
+
+    /**
+     * Returns true if anyone subscribes to the given event type.
+     */
+    public boolean hasSubscribers(int type) {
+        return mByType[type].length > 0;
+    }
+
+    /**
+     * Delivers event to every subscriber of its type. Must be called from a single thread at a
+     * time, in event order; the caller keeps its own reference to the event.
+     */
+    void publish(GameEvent event) {
+        Subscription[] subscriptions = mByType[event.getType()];
+        for (Subscription subscription : subscriptions) {
+            subscription.deliver(event);
+        }
+    }
+
+    /**
+     * A subscription to a GameEventBus, which may be cancelled.
+     */
+    public static final class Subscription {
+        private static final int QUEUE_CAPACITY = 64;
+
+        private final GameEventBus mBus;
+        private final Subscriber mSubscriber;
+        private final Executor mExecutor;
+        private final int[] mTypes;
+        private volatile boolean mCancelled;
+
+        // Single-producer, single-consumer ring for executor delivery, spilling into mOverflow.
+        private final GameEvent[] mQueue;
+        private final AtomicLong mHead = new AtomicLong();
+        private final AtomicLong mTail = new AtomicLong();
+        private final ConcurrentLinkedQueue<GameEvent> mOverflow;
+        private final AtomicBoolean mDrainScheduled;
+        private final Runnable mDrainTask;
+
+        private Subscription(GameEventBus bus, Subscriber subscriber, Executor executor,
+                int[] types) {
+            mBus = bus;
+            mSubscriber = subscriber;
+            mExecutor = executor;
+            mTypes = types.clone();
+            if (executor == null) {
+                mQueue = null;
+                mOverflow = null;
+                mDrainScheduled = null;
+                mDrainTask = null;
+            } else {
+                mQueue = new GameEvent[QUEUE_CAPACITY];
+                mOverflow = new ConcurrentLinkedQueue<GameEvent>();
+                mDrainScheduled = new AtomicBoolean();
+                mDrainTask = new Runnable() {
+                    @Override
+                    public void run() {
+                        drain();
+                    }
+                };
+            }
+        }
+
+        /**
+         * Stops delivery to the subscriber. Events already queued for an executor subscriber are
+         * dropped.
+         */
+        public void cancel() {
+            mCancelled = true;
+            mBus.remove(this);
+        }
+
+        private void deliver(GameEvent event) {
+            if (mCancelled) {
+                return;
+            }
+            if (mExecutor == null) {
+                notifySubscriber(event);
+                return;
+            }
+            event.retain();
+            long tail = mTail.get();
+            if (mOverflow.isEmpty() && tail - mHead.get() < QUEUE_CAPACITY) {
+                mQueue[(int) (tail % QUEUE_CAPACITY)] = event;
+                mTail.set(tail + 1);
+            } else {
+                mOverflow.add(event);
+            }
+            if (mDrainScheduled.compareAndSet(false, true)) {
+                mExecutor.execute(mDrainTask);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                GameEvent event = poll();
+                while (event != null) {
+                    if (!mCancelled) {
+                        notifySubscriber(event);
+                    }
+                    event.release();
+                    event = poll();
+                }
+                mDrainScheduled.set(false);
+                if (isEmpty() || !mDrainScheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+
+        private GameEvent poll() {
+            long head = mHead.get();
+            if (head < mTail.get()) {
+                int slot = (int) (head % QUEUE_CAPACITY);
+                GameEvent event = mQueue[slot];
+                mQueue[slot] = null;
+                mHead.set(head + 1);
+                return event;
+            }
+            return mOverflow.poll();
+        }
+
+        private boolean isEmpty() {
+            return mHead.get() == mTail.get() && mOverflow.isEmpty();
+        }
+
+        private void notifySubscriber(GameEvent event) {
+            try {
+                mSubscriber.onEvent(event);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Subscriber failed to handle event " + event.getType(), e);
+            }
+        }
+    }
+}
@@ -25,12 +25,39 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * An abstract class which encapsulates control and game logic for sending and receiving messages 
- * during a TicTacToe game.
+ * A class which encapsulates control and game logic for sending and receiving messages during a
+ * TicTacToe game. Received events are passed to the {@code onGame*} callbacks, which subclasses 
+ * may override, and then to every subscriber of the stream's {@link GameEventBus}.
+ *
+ * <p>Every command carries a correlation id. Commands sent through the asynchronous methods, such
+ * as {@link #requestBoardLayoutAsync(long)}, return a {@link ResponseFuture} which is completed by
+ * the response echoing that id instead of the corresponding {@code onGame*} callback, so that any
+ * number of requests can be in flight at once. Their default timeout follows the round trip time
+ * measured by {@link #startHeartbeat(long, HealthListener)}.
+ *
+ * <p>This class is thread-safe. Commands may be sent from any thread, and inbound messages may be
+ * delivered on any thread. Inbound messages are decoded and validated, in order, on a background
+ * decode executor, and the resulting {@link GameEvent}s are passed, in the same order, to the
+ * {@code onGame*} callbacks and inline event bus subscribers on a single callback executor. By
+ * default that is the main thread, which is therefore the single writer of any UI state the 
+ * callbacks touch. Events are pooled: one is recycled once those callbacks return and every
+ * subscriber which retained it has released it, so it must not be kept without
+ * {@link GameEvent#retain()}.
  */
-public abstract class GameMessageStream extends MessageStream {
+public class GameMessageStream extends MessageStream {
     private static final String TAG = GameMessageStream.class.getSimpleName();
 
     private static final String GAME_NAMESPACE = "com.google.chromecast.demo.tictactoe";
@@ -50,25 +77,124 @@ public abstract class GameMessageStream extends MessageStream {
     private static final String KEY_MOVED = "moved";
     private static final String KEY_ENDGAME = "endgame";
     private static final String KEY_ERROR = "error";
+    private static final String KEY_PONG = "pong";
 
     // Commands
     private static final String KEY_BOARD_LAYOUT_REQUEST = "board_layout_request";
     private static final String KEY_COMMAND = "command";
     private static final String KEY_JOIN = "join";
+    private static final String KEY_LEADERBOARD = "leaderboard";
     private static final String KEY_MOVE = "move";
     private static final String KEY_LEAVE = "leave";
+    private static final String KEY_PING = "ping";
 
     private static final String KEY_BOARD = "board";
+    private static final String KEY_BOARD_PACKED = "board_packed";
+    private static final String KEY_CLOCK_O = "clock_o";
+    private static final String KEY_CLOCK_X = "clock_x";
     private static final String KEY_COLUMN = "column";
     private static final String KEY_END_STATE = "end_state";
     private static final String KEY_GAME_OVER = "game_over";
     private static final String KEY_MESSAGE = "message";
     private static final String KEY_NAME = "name";
     private static final String KEY_OPPONENT = "opponent";
+    private static final String KEY_PACKED = "packed";
     private static final String KEY_PLAYER = "player";
+    private static final String KEY_PLAYERS = "players";
+    private static final String KEY_RANK = "rank";
+    private static final String KEY_RATING = "rating";
+    private static final String KEY_REQUEST_ID = "request_id";
     private static final String KEY_ROW = "row";
     private static final String KEY_WINNING_LOCATION = "winning_location";
 
+    private static final Metrics.Counter SENT_JOIN = Metrics.counter("stream.sent.join");
+    private static final Metrics.Counter SENT_MOVE = Metrics.counter("stream.sent.move");
+    private static final Metrics.Counter SENT_LEAVE = Metrics.counter("stream.sent.leave");
+    private static final Metrics.Counter SENT_LEADERBOARD =
+            Metrics.counter("stream.sent.leaderboard");
+    private static final Metrics.Counter SENT_BOARD_LAYOUT_REQUEST =
+            Metrics.counter("stream.sent.board_layout_request");
+    private static final Metrics.Counter SENT_BYTES = Metrics.counter("stream.sent.bytes");
+    private static final Metrics.Counter RECEIVED_JOINED =
+            Metrics.counter("stream.received.joined");
+    private static final Metrics.Counter RECEIVED_MOVED = Metrics.counter("stream.received.moved");
+    private static final Metrics.Counter RECEIVED_ENDGAME =
+            Metrics.counter("stream.received.endgame");
+    private static final Metrics.Counter RECEIVED_ERROR = Metrics.counter("stream.received.error");
+    private static final Metrics.Counter RECEIVED_BOARD_LAYOUT =
+            Metrics.counter("stream.received.board_layout_response");
+    private static final Metrics.Counter RECEIVED_UNKNOWN =
+            Metrics.counter("stream.received.unknown");
+    private static final Metrics.Counter RECEIVED_BYTES = Metrics.counter("stream.received.bytes");
+    private static final LatencyHistogram DECODE_TIME = Metrics.histogram("stream.decode_ns");
+    private static final Metrics.Counter PINGS_MISSED = Metrics.counter("stream.pings_missed");
+    private static final LatencyHistogram ROUND_TRIP_TIME = Metrics.histogram("stream.rtt_ns");
+    private static final LatencyHistogram PENDING_REQUESTS =
+            Metrics.histogram("stream.pending_requests");
+
+    // Consecutive unanswered pings after which the connection is reported lost.
+    private static final int MAX_MISSED_PINGS = 3;
+
+    // Cancelled timeouts after which the timeout queue is purged; see onTimeoutCancelled().
+    private static final int TIMEOUT_PURGE_INTERVAL = 1024;
+
+    // The most cells a board_layout_response may carry, as on a 19x19 board.
+    private static final int MAX_BOARD_CELLS = 19 * 19;
+
+    private static ScheduledThreadPoolExecutor sTimeoutExecutor;
+    private static final AtomicInteger sCancelledTimeouts = new AtomicInteger();
+    private static Executor sDecodeExecutor;
+
+    private final Executor mDecodeExecutor;
+    private final Executor mCallbackExecutor;
+    private final GameEventBus mEventBus = new GameEventBus();
+    // Board layouts are decoded into this buffer first; confined to the decode executor.
+    private final int[] mDecodeCells = new int[MAX_BOARD_CELLS];
+    private volatile Transport mTransport;
+    private volatile TrafficRecorder mTrafficRecorder;
+
+    /**
+     * A connection to a receiver other than a Cast channel, such as a {@link LocalReceiver}.
+     */
+    public interface Transport {
+        /**
+         * Sends a command to the receiver. Its responses are passed to the stream's 
+         * onMessageReceived().
+         */
+        void send(JSONObject payload) throws IOException;
+    }
+
+    // Ids are prefixed with a random token, as responses may be broadcast to other senders.
+    private final String mRequestIdPrefix = Integer.toHexString(new Random().nextInt()) + ":";
+    private final AtomicInteger mNextRequestId = new AtomicInteger();
+    private final ConcurrentHashMap<String, ResponseFuture<?>> mPendingRequests =
+            new ConcurrentHashMap<String, ResponseFuture<?>>();
+
+    private final RttEstimator mRttEstimator = new RttEstimator();
+    private final Object mHeartbeatLock = new Object();
+    // Guarded by mHeartbeatLock. At most one ping is outstanding at a time.
+    private ScheduledFuture<?> mHeartbeatTask;
+    private HealthListener mHealthListener;
+    private String mPingId;
+    private long mPingSentNanos;
+    private int mMissedPings;
+
+    /**
+     * A class which is told how healthy the connection to the receiver is, while a heartbeat is
+     * running. Its methods are called on the stream's callback executor.
+     */
+    public interface HealthListener {
+        /**
+         * Called with the updated estimate after every answered ping.
+         */
+        void onRoundTripTime(long smoothedMillis, long varianceMillis);
+
+        /**
+         * Called once, after several pings in a row went unanswered. The heartbeat is stopped.
+         */
+        void onConnectionLost();
+    }
+
     /**
      * An enum representing board rows, columns, and diagonals as numerical values.
      */
@@ -119,12 +245,27 @@ public abstract class GameMessageStream extends MessageStream {
         }
     }
 
+    /**
+     * Constructs a new GameMessageStream with GAME_NAMESPACE as the namespace used by 
+     * the superclass, which decodes on a shared background thread and calls back on the main
+     * thread.
+     */
+    public GameMessageStream() {
+        this(getDefaultDecodeExecutor(), MainThreadExecutor.getInstance());
+    }
+
     /**
      * Constructs a new GameMessageStream with GAME_NAMESPACE as the namespace used by 
      * the superclass.
+     * 
+     * @param decodeExecutor the executor messages are decoded on; it must run tasks in order
+     * @param callbackExecutor the executor the onGame* callbacks are called on; it must run tasks
+     *     in order
      */
-    protected GameMessageStream() {
+    public GameMessageStream(Executor decodeExecutor, Executor callbackExecutor) {
         super(GAME_NAMESPACE);
+        mDecodeExecutor = decodeExecutor;
+        mCallbackExecutor = callbackExecutor;
     }
 
     /**
@@ -133,7 +274,8 @@ public abstract class GameMessageStream extends MessageStream {
      * @param playerSymbol either X or O
      * @param opponentName the name of the player who just joined an existing game, or the opponent
      */
-    protected abstract void onGameJoined(String playerSymbol, String opponentName);
+    protected void onGameJoined(String playerSymbol, String opponentName) {
+    }
 
     /**
      * Performs some action, or updates the game display upon a move.
@@ -143,8 +285,9 @@ public abstract class GameMessageStream extends MessageStream {
      * @param column the column index of the move
      * @param isGameOver whether or not the game ended as a result of the move
      */
-    protected abstract void onGameMove(
-            String playerSymbol, int row, int column, boolean isGameOver);
+    protected void onGameMove(
+            String playerSymbol, int row, int column, boolean isGameOver) {
+    }
     
     /**
      * Performs some action upon game end, depending on game's end state and the position of the 
@@ -153,21 +296,26 @@ public abstract class GameMessageStream extends MessageStream {
      * @param endState likely to be END_STATE_X_WON, END_STATE_O_WON, or END_STATE_ABANDONED
      * @param location an int value corresponding to the enum WinningLocation's values
      */
-    protected abstract void onGameEnd(String endState, int location);
+    protected void onGameEnd(String endState, int location) {
+    }
 
     /**
      * Performs some action upon an int[][] board layout being sent.
      * 
-     * @param boardLayout a 2-D array of ints, likely to be 3x3
+     * @param boardLayout a 2-D array of ints, one row per board row. The array belongs to a pooled
+     *     {@link GameEvent} and is overwritten by later messages once this method returns, so it
+     *     must not be modified or kept; copy it to keep the layout.
      */
-    protected abstract void onGameBoardLayout(int[][] boardLayout);
+    protected void onGameBoardLayout(int[][] boardLayout) {
+    }
 
     /**
      * Performs some action upon a game error.
      * 
      * @param errorMessage the string description of the error
      */
-    protected abstract void onGameError(String errorMessage);
+    protected void onGameError(String errorMessage) {
+    }
 
     /**
      * Attempts to connect to an existing session of the game by sending a join command.
@@ -176,11 +324,13 @@ public abstract class GameMessageStream extends MessageStream {
      */
     public final void join(String name) {
         try {
-            Log.d(TAG, "join: " + name);
+            EventTrace.record(EventTrace.CATEGORY_SEND, EventTrace.EVENT_JOIN);
+            SENT_JOIN.increment();
             JSONObject payload = new JSONObject();
             payload.put(KEY_COMMAND, KEY_JOIN);
+            payload.put(KEY_REQUEST_ID, nextRequestId());
             payload.put(KEY_NAME, name);
-            sendMessage(payload);
+            send(payload);
         } catch (JSONException e) {
             Log.e(TAG, "Cannot create object to join a game", e);
         } catch (IOException e) {
@@ -194,13 +344,15 @@ public abstract class GameMessageStream extends MessageStream {
      * Attempts to make a move by sending a command to place a piece in the given row and column.
      */
     public final void move(final int row, final int column) {
-        Log.d(TAG, "move: row:" + row + " column:" + column);
+        EventTrace.record(EventTrace.CATEGORY_SEND, EventTrace.EVENT_MOVE, row, column);
+        SENT_MOVE.increment();
         try {
             JSONObject payload = new JSONObject();
             payload.put(KEY_COMMAND, KEY_MOVE);
+            payload.put(KEY_REQUEST_ID, nextRequestId());
             payload.put(KEY_ROW, row);
             payload.put(KEY_COLUMN, column);
-            sendMessage(payload);
+            send(payload);
         } catch (JSONException e) {
             Log.e(TAG, "Cannot create object to send a move", e);
         } catch (IOException e) {
@@ -215,10 +367,12 @@ public abstract class GameMessageStream extends MessageStream {
      */
     public final void leave() {
         try {
-            Log.d(TAG, "leave");
+            EventTrace.record(EventTrace.CATEGORY_SEND, EventTrace.EVENT_LEAVE);
+            SENT_LEAVE.increment();
             JSONObject payload = new JSONObject();
             payload.put(KEY_COMMAND, KEY_LEAVE);
-            sendMessage(payload);
+            payload.put(KEY_REQUEST_ID, nextRequestId());
+            send(payload);
         } catch (JSONException e) {
             Log.e(TAG, "Cannot create object to leave a game", e);
         } catch (IOException e) {
@@ -228,15 +382,47 @@ public abstract class GameMessageStream extends MessageStream {
         }
     }
 
+    /**
+     * Sends the top of the leaderboard, best first, for the receiver to show until the next game
+     * starts. Receivers ignore it while a game is in progress.
+     */
+    public final void sendLeaderboard(List<Leaderboard.Entry> top) {
+        try {
+            SENT_LEADERBOARD.increment();
+            JSONArray players = new JSONArray();
+            for (Leaderboard.Entry entry : top) {
+                JSONObject player = new JSONObject();
+                player.put(KEY_RANK, entry.getRank());
+                player.put(KEY_NAME, entry.getName());
+                player.put(KEY_RATING, entry.getRating());
+                players.put(player);
+            }
+            JSONObject payload = new JSONObject();
+            payload.put(KEY_COMMAND, KEY_LEADERBOARD);
+            payload.put(KEY_PLAYERS, players);
+            send(payload);
+        } catch (JSONException e) {
+            Log.e(TAG, "Cannot create object to send the leaderboard", e);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to send a leaderboard message", e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Message Stream is not attached", e);
+        }
+    }
+
     /**
      * Sends a command requesting the current layout of the board.
      */
     public final void requestBoardLayout() {
         try {
-            Log.d(TAG, "requestBoardLayout");
+            EventTrace.record(EventTrace.CATEGORY_SEND, EventTrace.EVENT_BOARD_LAYOUT_REQUEST);
+            SENT_BOARD_LAYOUT_REQUEST.increment();
             JSONObject payload = new JSONObject();
             payload.put(KEY_COMMAND, KEY_BOARD_LAYOUT_REQUEST);
-            sendMessage(payload);
+            // Receivers which predate the packed format ignore this and send an array.
+            payload.put(KEY_PACKED, true);
+            payload.put(KEY_REQUEST_ID, nextRequestId());
+            send(payload);
         } catch (JSONException e) {
             Log.e(TAG, "Cannot create object to request board layout", e);
         } catch (IOException e) {
@@ -247,8 +433,368 @@ public abstract class GameMessageStream extends MessageStream {
     }
 
     /**
-     * Processes all JSON messages received from the receiver device and performs the appropriate 
-     * action for the message. Recognizable messages are of the form:
+     * Like {@link #requestBoardLayoutAsync(long)}, timing out after
+     * {@link #getRequestTimeoutMillis()}.
+     */
+    public final ResponseFuture<int[][]> requestBoardLayoutAsync() {
+        return requestBoardLayoutAsync(getRequestTimeoutMillis());
+    }
+
+    /**
+     * Sends a command requesting the current layout of the board, without waiting for the 
+     * response. The response completes the returned future rather than calling 
+     * {@link #onGameBoardLayout(int[][])}.
+     * 
+     * @param timeoutMillis the time after which the future fails with a TimeoutException
+     */
+    public final ResponseFuture<int[][]> requestBoardLayoutAsync(long timeoutMillis) {
+        return sendBoardLayoutRequest(
+                new ResponseFuture<int[][]>(this, nextRequestId(), KEY_BOARD_LAYOUT_RESPONSE),
+                timeoutMillis);
+    }
+
+    /**
+     * Like {@link #requestBoardLayoutAsync(long)}, but decodes the board straight into cells, in
+     * row order, instead of allocating an int[][]. This suits large boards and frequent requests.
+     * The future completes with the number of cells decoded. It fails with an IOException if the
+     * board does not fit into cells. cells must not be read until the future completes.
+     *
+     * @param timeoutMillis the time after which the future fails with a TimeoutException
+     */
+    public final ResponseFuture<Integer> requestBoardLayoutAsync(int[] cells, long timeoutMillis) {
+        return sendBoardLayoutRequest(new BoardFuture(this, nextRequestId(), cells),
+                timeoutMillis);
+    }
+
+    private <T> ResponseFuture<T> sendBoardLayoutRequest(ResponseFuture<T> future,
+            long timeoutMillis) {
+        EventTrace.record(EventTrace.CATEGORY_SEND, EventTrace.EVENT_BOARD_LAYOUT_REQUEST);
+        SENT_BOARD_LAYOUT_REQUEST.increment();
+        try {
+            JSONObject payload = new JSONObject();
+            payload.put(KEY_COMMAND, KEY_BOARD_LAYOUT_REQUEST);
+            // Receivers which predate the packed format ignore this and send an array.
+            payload.put(KEY_PACKED, true);
+            sendRequest(payload, future, timeoutMillis);
+        } catch (JSONException e) {
+            Log.e(TAG, "Cannot create object to request board layout", e);
+            future.fail(e);
+        }
+        return future;
+    }
+
+    /**
+     * A board layout request which decodes its response into the caller's buffer.
+     */
+    private static final class BoardFuture extends ResponseFuture<Integer> {
+        final int[] mCells;
+
+        BoardFuture(GameMessageStream stream, String requestId, int[] cells) {
+            super(stream, requestId, KEY_BOARD_LAYOUT_RESPONSE);
+            mCells = cells;
+        }
+    }
+
+    /**
+     * Like {@link #moveAsync(int, int, long)}, timing out after
+     * {@link #getRequestTimeoutMillis()}.
+     */
+    public final ResponseFuture<Boolean> moveAsync(int row, int column) {
+        return moveAsync(row, column, getRequestTimeoutMillis());
+    }
+
+    /**
+     * Sends a command to place a piece in the given row and column, without waiting for the 
+     * response. The future completes with the game-over flag of the resulting move event, or fails
+     * with an IOException carrying the receiver's error message, in which case 
+     * {@link #onGameError(String)} is not called. {@link #onGameMove} is called as usual.
+     * 
+     * @param timeoutMillis the time after which the future fails with a TimeoutException
+     */
+    public final ResponseFuture<Boolean> moveAsync(int row, int column, long timeoutMillis) {
+        EventTrace.record(EventTrace.CATEGORY_SEND, EventTrace.EVENT_MOVE, row, column);
+        SENT_MOVE.increment();
+        ResponseFuture<Boolean> future =
+                new ResponseFuture<Boolean>(this, nextRequestId(), KEY_MOVED);
+        try {
+            JSONObject payload = new JSONObject();
+            payload.put(KEY_COMMAND, KEY_MOVE);
+            payload.put(KEY_ROW, row);
+            payload.put(KEY_COLUMN, column);
+            sendRequest(payload, future, timeoutMillis);
+        } catch (JSONException e) {
+            Log.e(TAG, "Cannot create object to send a move", e);
+            future.fail(e);
+        }
+        return future;
+    }
+
+    /**
+     * Registers future as pending under its correlation id, arms its timeout and sends payload.
+     */
+    private void sendRequest(JSONObject payload, final ResponseFuture<?> future,
+            long timeoutMillis) throws JSONException {
+        payload.put(KEY_REQUEST_ID, future.getRequestId());
+        mPendingRequests.put(future.getRequestId(), future);
+        Metrics.record(PENDING_REQUESTS, mPendingRequests.size());
+        future.setTimeout(getTimeoutExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    return;
+                }
+                mRttEstimator.backoff();
+                future.fail(new TimeoutException(
+                        "No response to request " + future.getRequestId()));
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS));
+        try {
+            send(payload);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to send request " + future.getRequestId(), e);
+            future.fail(e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Message Stream is not attached", e);
+            future.fail(e);
+        }
+    }
+
+    /**
+     * Returns the estimate of the round trip time to the receiver, which is only updated while a
+     * heartbeat is running.
+     */
+    public RttEstimator getRttEstimator() {
+        return mRttEstimator;
+    }
+
+    /**
+     * Returns the timeout the asynchronous requests use unless given one: a few smoothed round
+     * trip times, or a conservative default before the first ping is answered.
+     */
+    public long getRequestTimeoutMillis() {
+        return mRttEstimator.getTimeoutMillis();
+    }
+
+    /**
+     * Starts pinging the receiver every intervalMillis to measure the round trip time, replacing
+     * any heartbeat already running. A ping is missed if it is not answered within
+     * {@link #getRequestTimeoutMillis()}, and is then sent again straight away.
+     */
+    public void startHeartbeat(long intervalMillis, HealthListener listener) {
+        synchronized (mHeartbeatLock) {
+            stopHeartbeat();
+            mHealthListener = listener;
+            mHeartbeatTask = getTimeoutExecutor().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    sendPing();
+                }
+            }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the heartbeat if one is running.
+     */
+    public void stopHeartbeat() {
+        synchronized (mHeartbeatLock) {
+            if (mHeartbeatTask != null) {
+                mHeartbeatTask.cancel(false);
+                mHeartbeatTask = null;
+            }
+            mHealthListener = null;
+            mPingId = null;
+            mMissedPings = 0;
+        }
+    }
+
+    private void sendPing() {
+        final String requestId = nextRequestId();
+        synchronized (mHeartbeatLock) {
+            if (mHeartbeatTask == null || mPingId != null) {
+                return;
+            }
+            mPingId = requestId;
+            mPingSentNanos = System.nanoTime();
+        }
+        getTimeoutExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                onPingTimedOut(requestId);
+            }
+        }, mRttEstimator.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+        try {
+            JSONObject payload = new JSONObject();
+            payload.put(KEY_COMMAND, KEY_PING);
+            payload.put(KEY_REQUEST_ID, requestId);
+            send(payload);
+        } catch (JSONException e) {
+            Log.e(TAG, "Cannot create object to send a ping", e);
+        } catch (IOException e) {
+            // Counted as missed once it times out.
+            Log.w(TAG, "Unable to send ping", e);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Message Stream is not attached", e);
+        }
+    }
+
+    private void onPingTimedOut(String requestId) {
+        final HealthListener lostListener;
+        synchronized (mHeartbeatLock) {
+            if (!requestId.equals(mPingId)) {
+                return;
+            }
+            mPingId = null;
+            PINGS_MISSED.increment();
+            mRttEstimator.backoff();
+            if (++mMissedPings < MAX_MISSED_PINGS) {
+                lostListener = null;
+            } else {
+                lostListener = mHealthListener;
+                stopHeartbeat();
+            }
+        }
+        if (lostListener == null) {
+            sendPing();
+            return;
+        }
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                lostListener.onConnectionLost();
+            }
+        });
+    }
+
+    private void onPong(String requestId, long receivedNanos) {
+        final HealthListener listener;
+        synchronized (mHeartbeatLock) {
+            if (requestId == null || !requestId.equals(mPingId)) {
+                return;
+            }
+            mPingId = null;
+            mMissedPings = 0;
+            long rttNanos = receivedNanos - mPingSentNanos;
+            mRttEstimator.sample(rttNanos);
+            Metrics.record(ROUND_TRIP_TIME, rttNanos);
+            listener = mHealthListener;
+        }
+        if (listener != null) {
+            final long smoothed = mRttEstimator.getSmoothedMillis();
+            final long variance = mRttEstimator.getVarianceMillis();
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onRoundTripTime(smoothed, variance);
+                }
+            });
+        }
+    }
+
+    /**
+     * Connects this stream to a receiver through transport instead of the Cast channel it is
+     * attached to, or back to the Cast channel if transport is null.
+     */
+    public void setTransport(Transport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Starts recording every payload sent and received to recorder, or stops recording if
+     * recorder is null. The caller remains responsible for closing the recorder.
+     */
+    public void setTrafficRecorder(TrafficRecorder recorder) {
+        mTrafficRecorder = recorder;
+    }
+
+    /**
+     * Sends payload through the transport if one is set, otherwise through the Cast channel.
+     */
+    private void send(JSONObject payload) throws IOException {
+        if (Metrics.isEnabled()) {
+            // The protocol is ASCII JSON, so characters are bytes on the wire.
+            SENT_BYTES.add(payload.toString().length());
+        }
+        TrafficRecorder recorder = mTrafficRecorder;
+        if (recorder != null) {
+            recorder.record(TrafficRecorder.DIRECTION_OUTBOUND, payload);
+        }
+        Transport transport = mTransport;
+        if (transport != null) {
+            transport.send(payload);
+        } else {
+            sendMessage(payload);
+        }
+    }
+
+    /**
+     * Returns the number of asynchronous requests still waiting for a response.
+     */
+    public int getPendingRequestCount() {
+        return mPendingRequests.size();
+    }
+
+    void removePendingRequest(ResponseFuture<?> future) {
+        mPendingRequests.remove(future.getRequestId(), future);
+    }
+
+    private String nextRequestId() {
+        return mRequestIdPrefix + mNextRequestId.incrementAndGet();
+    }
+
+    /**
+     * Returns the pending request with the given correlation id if it expects the given event.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> ResponseFuture<T> findPendingRequest(String requestId, String event) {
+        if (requestId == null) {
+            return null;
+        }
+        ResponseFuture<?> future = mPendingRequests.get(requestId);
+        if (future == null
+                || (!event.equals(future.getResponseEvent()) && !KEY_ERROR.equals(event))) {
+            return null;
+        }
+        return (ResponseFuture<T>) future;
+    }
+
+    /**
+     * Called when a request's timeout is cancelled because the request completed. A cancelled
+     * task stays queued until its delay would have expired (removal on cancel needs API 21), so
+     * at a high request rate the queue would retain every request of the last timeout period.
+     * Purging every so often keeps it down to the requests actually pending.
+     */
+    static void onTimeoutCancelled() {
+        if (sCancelledTimeouts.incrementAndGet() % TIMEOUT_PURGE_INTERVAL == 0) {
+            getTimeoutExecutor().purge();
+        }
+    }
+
+    /**
+     * Returns the number of request timeouts cancelled so far, by all streams.
+     */
+    static int getCancelledTimeoutCount() {
+        return sCancelledTimeouts.get();
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getTimeoutExecutor() {
+        if (sTimeoutExecutor == null) {
+            sTimeoutExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "GameMessageStream-timeout");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sTimeoutExecutor;
+    }
+
+    /**
+     * Hands a JSON message received from the receiver device to the decode executor. This method
+     * may be called on any thread and returns without parsing the message. Recognizable messages 
+     * are of the form:
      * 
      * <ul>
      * <li> KEY_JOINED: a player joined the current game
@@ -256,77 +802,248 @@ public abstract class GameMessageStream extends MessageStream {
      * <li> KEY_ENDGAME: the game has ended in one of the END_STATE_* states
      * <li> KEY_ERROR: a game error has occurred
      * <li> KEY_BOARD_LAYOUT_RESPONSE: the board has been laid out in some new configuration
+     * <li> KEY_PONG: the answer to a heartbeat ping
      * </ul>
      * 
-     * <p>No other messages are recognized.
+     * <p>No other messages are recognized. Responses whose correlation id matches a pending
+     * asynchronous request complete that request's future.
      */
     @Override
-    public void onMessageReceived(JSONObject message) {
+    public void onMessageReceived(final JSONObject message) {
+        TrafficRecorder recorder = mTrafficRecorder;
+        if (recorder != null) {
+            recorder.record(TrafficRecorder.DIRECTION_INBOUND, message);
+        }
+        // Taken before queueing, so that a busy decode thread does not inflate round trip times.
+        final long receivedNanos = System.nanoTime();
+        mDecodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = Metrics.startTimer();
+                if (start != 0) {
+                    RECEIVED_BYTES.add(message.toString().length());
+                }
+                GameEvent event = decode(message, receivedNanos);
+                Metrics.recordSince(DECODE_TIME, start);
+                if (event != null) {
+                    mCallbackExecutor.execute(event.dispatchTo(GameMessageStream.this));
+                }
+            }
+        });
+    }
+
+    /**
+     * Parses and validates a message on the decode executor, completing the matching pending 
+     * request if there is one.
+     * 
+     * @return the event to pass to the onGame* callbacks, or null if there is none
+     */
+    private GameEvent decode(JSONObject message, long receivedNanos) {
         try {
-            Log.d(TAG, "onMessageReceived: " + message);
-            if (message.has(KEY_EVENT)) {
-                String event = message.getString(KEY_EVENT);
-                if (KEY_JOINED.equals(event)) {
-                    Log.d(TAG, "JOINED");
-                    try {
-                        String player = message.getString(KEY_PLAYER);
-                        String opponentName = message.getString(KEY_OPPONENT);
-                        onGameJoined(player, opponentName);
-                    } catch (JSONException e) {
-                        e.printStackTrace();
-                    }
-                } else if (KEY_MOVED.equals(event)) {
-                    Log.d(TAG, "MOVED");
-                    try {
-                        String player = message.getString(KEY_PLAYER);
-                        int row = message.getInt(KEY_ROW);
-                        int column = message.getInt(KEY_COLUMN);
-                        boolean isGameOver = message.getBoolean(KEY_GAME_OVER);
-                        onGameMove(player, row, column, isGameOver);
-                    } catch (JSONException e) {
-                        e.printStackTrace();
-                    }
-                } else if (KEY_ENDGAME.equals(event)) {
-                    Log.d(TAG, "ENDGAME");
-                    try {
-                        String endState = message.getString(KEY_END_STATE);
-                        int winningLocation = -1;
-                        if (END_STATE_ABANDONED.equals(endState) == false) {
-                            winningLocation = message.getInt(KEY_WINNING_LOCATION);
-                        }
-                        onGameEnd(endState, winningLocation);
-                    } catch (JSONException e) {
-                        e.printStackTrace();
-                    }
-                } else if (KEY_ERROR.equals(event)) {
-                    Log.d(TAG, "ERROR");
-                    try {
-                        String errorMessage = message.getString(KEY_MESSAGE);
-                        onGameError(errorMessage);
-                    } catch (JSONException e) {
-                        e.printStackTrace();
-                    }
-                } else if (KEY_BOARD_LAYOUT_RESPONSE.equals(event)) {
-                    Log.d(TAG, "Board Layout");
-                    int[][] boardLayout = new int[3][3];
+            if (!message.has(KEY_EVENT)) {
+                EventTrace.record(EventTrace.CATEGORY_RECEIVE, EventTrace.EVENT_UNKNOWN);
+                RECEIVED_UNKNOWN.increment();
+                Log.w(TAG, "Unknown message: " + message);
+                return null;
+            }
+            String event = message.getString(KEY_EVENT);
+            String requestId = message.optString(KEY_REQUEST_ID, null);
+            if (KEY_PONG.equals(event)) {
+                onPong(requestId, receivedNanos);
+                return null;
+            } else if (KEY_JOINED.equals(event)) {
+                EventTrace.record(EventTrace.CATEGORY_RECEIVE, EventTrace.EVENT_JOINED);
+                RECEIVED_JOINED.increment();
+                String player = message.getString(KEY_PLAYER);
+                String opponentName = message.getString(KEY_OPPONENT);
+                GameEvent joined = GameEvent.joined(player, opponentName);
+                joined.setClocks(message.optLong(KEY_CLOCK_X, -1),
+                        message.optLong(KEY_CLOCK_O, -1));
+                return joined;
+            } else if (KEY_MOVED.equals(event)) {
+                String player = message.getString(KEY_PLAYER);
+                int row = message.getInt(KEY_ROW);
+                int column = message.getInt(KEY_COLUMN);
+                EventTrace.record(EventTrace.CATEGORY_RECEIVE, EventTrace.EVENT_MOVED,
+                        row, column);
+                RECEIVED_MOVED.increment();
+                boolean isGameOver = message.getBoolean(KEY_GAME_OVER);
+                if (!isValidCell(row, column)) {
+                    Log.w(TAG, "Ignoring move outside the board: " + row + ", " + column);
+                    failPendingRequest(requestId,
+                            new IOException("Move outside the board: " + row + ", " + column));
+                    return null;
+                }
+                ResponseFuture<Boolean> future = findPendingRequest(requestId, event);
+                if (future != null) {
+                    future.complete(isGameOver);
+                }
+                GameEvent moved = GameEvent.moved(player, row, column, isGameOver);
+                moved.setClocks(message.optLong(KEY_CLOCK_X, -1),
+                        message.optLong(KEY_CLOCK_O, -1));
+                return moved;
+            } else if (KEY_ENDGAME.equals(event)) {
+                EventTrace.record(EventTrace.CATEGORY_RECEIVE, EventTrace.EVENT_ENDGAME);
+                RECEIVED_ENDGAME.increment();
+                String endState = message.getString(KEY_END_STATE);
+                int winningLocation = -1;
+                if (END_STATE_ABANDONED.equals(endState) == false) {
+                    winningLocation = message.getInt(KEY_WINNING_LOCATION);
+                }
+                return GameEvent.ended(endState, winningLocation);
+            } else if (KEY_ERROR.equals(event)) {
+                EventTrace.record(EventTrace.CATEGORY_RECEIVE, EventTrace.EVENT_ERROR);
+                RECEIVED_ERROR.increment();
+                String errorMessage = message.getString(KEY_MESSAGE);
+                ResponseFuture<?> future = findPendingRequest(requestId, event);
+                if (future != null) {
+                    future.fail(new IOException(errorMessage));
+                    return null;
+                }
+                return GameEvent.error(errorMessage);
+            } else if (KEY_BOARD_LAYOUT_RESPONSE.equals(event)) {
+                EventTrace.record(EventTrace.CATEGORY_RECEIVE,
+                        EventTrace.EVENT_BOARD_LAYOUT_RESPONSE);
+                RECEIVED_BOARD_LAYOUT.increment();
+                ResponseFuture<?> future = findPendingRequest(requestId, event);
+                if (future instanceof BoardFuture) {
+                    BoardFuture boardFuture = (BoardFuture) future;
                     try {
-                        JSONArray boardJSONArray = message.getJSONArray(KEY_BOARD);
-                        for (int i = 0; i < 3; ++i) {
-                            for (int j = 0; j < 3; ++j) {
-                                boardLayout[i][j] = boardJSONArray.getInt(i * 3 + j);
-                            }
-                        }
-                        onGameBoardLayout(boardLayout);
-                    } catch (JSONException e) {
-                        e.printStackTrace();
+                        boardFuture.complete(decodeBoard(message, boardFuture.mCells));
+                    } catch (IllegalArgumentException e) {
+                        boardFuture.fail(new IOException("Malformed board", e));
                     }
+                    return null;
                 }
-            } else {
-                Log.w(TAG, "Unknown message: " + message);
+                int count;
+                try {
+                    count = decodeBoard(message, mDecodeCells);
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Malformed board: " + message, e);
+                    failPendingRequest(requestId, new IOException("Malformed board", e));
+                    return null;
+                }
+                int size = (int) Math.sqrt(count);
+                if (size * size != count) {
+                    Log.w(TAG, "Board of " + count + " cells is not square");
+                    failPendingRequest(requestId,
+                            new IOException("Board of " + count + " cells is not square"));
+                    return null;
+                }
+                // The future's result escapes to the caller, so it cannot use a pooled board.
+                GameEvent result = (future == null) ? GameEvent.boardLayout(size) : null;
+                int[][] boardLayout =
+                        (result == null) ? new int[size][size] : result.getBoardLayout();
+                for (int i = 0; i < count; ++i) {
+                    boardLayout[i / size][i % size] = mDecodeCells[i];
+                }
+                if (future != null) {
+                    @SuppressWarnings("unchecked")
+                    ResponseFuture<int[][]> layoutFuture = (ResponseFuture<int[][]>) future;
+                    layoutFuture.complete(boardLayout);
+                }
+                return result;
             }
         } catch (JSONException e) {
             Log.w(TAG, "Message doesn't contain an expected key.", e);
+            failPendingRequest(message.optString(KEY_REQUEST_ID, null),
+                    new IOException("Malformed response", e));
+        }
+        return null;
+    }
+
+    /**
+     * Fails the pending request with the given correlation id, if any, whose response could not
+     * be used, so that it does not wait for its timeout.
+     */
+    private void failPendingRequest(String requestId, Exception failure) {
+        ResponseFuture<?> future = (requestId != null) ? mPendingRequests.get(requestId) : null;
+        if (future != null) {
+            future.fail(failure);
+        }
+    }
+
+    /**
+     * Decodes the board of a board_layout_response, packed or as an array, into cells in row
+     * order.
+     *
+     * @return the number of cells
+     * @throws IllegalArgumentException if the board is malformed or does not fit into cells
+     */
+    private static int decodeBoard(JSONObject message, int[] cells) throws JSONException {
+        String packed = message.optString(KEY_BOARD_PACKED, null);
+        if (packed != null) {
+            return PackedBoard.decode(packed, cells);
+        }
+        JSONArray board = message.getJSONArray(KEY_BOARD);
+        int count = board.length();
+        if (count > cells.length) {
+            throw new IllegalArgumentException("Board of " + count + " cells does not fit");
         }
+        for (int i = 0; i < count; ++i) {
+            cells[i] = board.getInt(i);
+        }
+        return count;
+    }
+
+    private static boolean isValidCell(int row, int column) {
+        return row >= 0 && row < 3 && column >= 0 && column < 3;
     }
 
+    /**
+     * Returns the bus through which this stream publishes every event it receives.
+     */
+    public GameEventBus getEventBus() {
+        return mEventBus;
+    }
+
+    /**
+     * Returns the executor the {@code onGame*} callbacks and inline subscribers are called on.
+     */
+    public Executor getCallbackExecutor() {
+        return mCallbackExecutor;
+    }
+
+    /**
+     * Passes a decoded event to the matching onGame* callback and then to the event bus, on the
+     * callback executor, and releases it.
+     */
+    void dispatch(GameEvent event) {
+        switch (event.getType()) {
+            case GameEvent.TYPE_JOINED:
+                onGameJoined(event.getPlayer(), event.getOpponentName());
+                break;
+            case GameEvent.TYPE_MOVED:
+                onGameMove(event.getPlayer(), event.getRow(), event.getColumn(),
+                        event.isGameOver());
+                break;
+            case GameEvent.TYPE_ENDGAME:
+                onGameEnd(event.getEndState(), event.getWinningLocation());
+                break;
+            case GameEvent.TYPE_ERROR:
+                onGameError(event.getErrorMessage());
+                break;
+            case GameEvent.TYPE_BOARD_LAYOUT:
+                onGameBoardLayout(event.getBoardLayout());
+                break;
+            default:
+                break;
+        }
+        mEventBus.publish(event);
+        event.release();
+    }
+
+    private static synchronized Executor getDefaultDecodeExecutor() {
+        if (sDecodeExecutor == null) {
+            sDecodeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "GameMessageStream-decode");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sDecodeExecutor;
+    }
 }
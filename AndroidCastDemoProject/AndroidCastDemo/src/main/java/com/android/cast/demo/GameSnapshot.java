@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A compact snapshot of the game shown by a {@link GameView}, kept in a small file so that the
+ * board can be drawn right away after the process was killed, before the receiver is asked for
+ * it.
+ *
+ * <p>A snapshot is an int of 24 bits: two bits for each of the nine cells, two bits for the
+ * assigned player and four for the winning line. It is stored as four bytes, a version byte
+ * followed by the snapshot. Saving only records the latest snapshot and lets a background thread
+ * write it, so saving on every state change costs no disk access on the calling thread.
+ */
+public class GameSnapshot {
+    private static final String TAG = GameSnapshot.class.getSimpleName();
+
+    /**
+     * The value returned by load() when there is no valid snapshot.
+     */
+    public static final int NONE = -1;
+
+    private static final int VERSION = 1;
+    private static final int SIZE = 4;
+
+    private static final int CELL_BITS = 2;
+    private static final int CELLS = 9;
+    private static final int PLAYER_SHIFT = CELLS * CELL_BITS;
+    private static final int WIN_SHIFT = PLAYER_SHIFT + 2;
+    private static final int MASK = (1 << (WIN_SHIFT + 4)) - 1;
+
+    private final File mFile;
+    private final AtomicBoolean mWriteScheduled = new AtomicBoolean();
+    private volatile int mLatest = NONE;
+
+    private final Runnable mWriteTask = new Runnable() {
+        @Override
+        public void run() {
+            mWriteScheduled.set(false);
+            write(mLatest);
+        }
+    };
+
+    public GameSnapshot(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Packs a game state into a snapshot.
+     *
+     * @param cells the State value of each cell, in row-major order
+     * @param assignedPlayer the State value of the assigned player, including UNKNOWN
+     * @param winningLocation a GameMessageStream.WinningLocation value, or -1 for none
+     */
+    public static int pack(int[] cells, int assignedPlayer, int winningLocation) {
+        int snapshot = 0;
+        for (int i = 0; i < CELLS; ++i) {
+            snapshot |= (cells[i] & 3) << (i * CELL_BITS);
+        }
+        snapshot |= ((assignedPlayer + 1) & 3) << PLAYER_SHIFT;
+        snapshot |= ((winningLocation + 1) & 0xF) << WIN_SHIFT;
+        return snapshot;
+    }
+
+    public static int getCell(int snapshot, int cell) {
+        return (snapshot >>> (cell * CELL_BITS)) & 3;
+    }
+
+    /**
+     * Returns the State value of the assigned player.
+     */
+    public static int getAssignedPlayer(int snapshot) {
+        return ((snapshot >>> PLAYER_SHIFT) & 3) - 1;
+    }
+
+    /**
+     * Returns the WinningLocation value of the winning line, or -1 for none.
+     */
+    public static int getWinningLocation(int snapshot) {
+        return ((snapshot >>> WIN_SHIFT) & 0xF) - 1;
+    }
+
+    /**
+     * Returns true if the snapshot has no pieces on the board.
+     */
+    public static boolean isBoardEmpty(int snapshot) {
+        return (snapshot & ((1 << PLAYER_SHIFT) - 1)) == 0;
+    }
+
+    /**
+     * Records snapshot as the latest state and writes it in the background.
+     */
+    public void save(int snapshot) {
+        mLatest = snapshot;
+        if (mWriteScheduled.compareAndSet(false, true)) {
+            TicTacToeApplication.getBackgroundExecutor().execute(mWriteTask);
+        }
+    }
+
+    /**
+     * Reads the saved snapshot synchronously, returning NONE if there is none or it is not valid.
+     * Reading four bytes is fast enough to be done while an activity is created.
+     */
+    public int load() {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(mFile);
+            byte[] buffer = new byte[SIZE];
+            int read = 0;
+            while (read < SIZE) {
+                int count = in.read(buffer, read, SIZE - read);
+                if (count < 0) {
+                    return NONE;
+                }
+                read += count;
+            }
+            if (buffer[0] != VERSION) {
+                return NONE;
+            }
+            int snapshot = ((buffer[1] & 0xFF) << 16) | ((buffer[2] & 0xFF) << 8)
+                    | (buffer[3] & 0xFF);
+            return isValid(snapshot) ? snapshot : NONE;
+        } catch (FileNotFoundException e) {
+            return NONE;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read the game snapshot", e);
+            return NONE;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static boolean isValid(int snapshot) {
+        if ((snapshot & ~MASK) != 0 || getWinningLocation(snapshot) > 7) {
+            return false;
+        }
+        for (int i = 0; i < CELLS; ++i) {
+            if (getCell(snapshot, i) > GameView.State.PLAYER_O.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void write(int snapshot) {
+        byte[] buffer = {
+            VERSION, (byte) (snapshot >>> 16), (byte) (snapshot >>> 8), (byte) snapshot
+        };
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(mFile);
+            out.write(buffer);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write the game snapshot", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing was lost; the snapshot is either complete or rejected on load.
+            }
+        }
+    }
+}
@@ -74,7 +74,22 @@ public class GameView extends View {
         abstract void onCellSelected(int row, int column);
     }
 
+    /**
+     * A class which is told whenever the board, the assigned player or the winning line changes.
+     */
+    public interface IStateListener {
+        void onStateChanged(GameView view);
+    }
+
     private static final int MARGIN = 4;
+    private static final int NO_PENDING_VALUE = Integer.MIN_VALUE;
+
+    private static final LatencyHistogram DRAW_TIME = Metrics.histogram("view.draw_ns");
+
+    private static final Object sBitmapLock = new Object();
+    private static Bitmap sBmpPlayerX;
+    private static Bitmap sBmpPlayerO;
+    private static boolean sBitmapsLoaded;
 
     private final Rect mSrcRect = new Rect();
     private final Rect mDstRect = new Rect();
@@ -87,12 +102,21 @@ public class GameView extends View {
     private Paint mBmpPaint;
     private Bitmap mBmpPlayerX;
     private Bitmap mBmpPlayerO;
+    private boolean mFirstFrameDrawn;
+    // The cell resolved when the current touch went down, or -1.
+    private int mDownCell = -1;
+    private FrameStats mFrameStats;
     private ICellListener mCellListener;
+    private IStateListener mStateListener;
 
     /**
      * Contains one of {@link com.android.cast.demo.GameView.State#EMPTY}, {@link com.android.cast.demo.GameView.State#PLAYER_X} or {@link com.android.cast.demo.GameView.State#PLAYER_O}.
      */
     private final State[][] mBoard = new State[3][3];
+    private final PositionKey mPositionKey = new PositionKey(3);
+    private final int[] mPendingCells = new int[9];
+    private final int[] mSnapshotCells = new int[9];
+    private final FrameCoalescer mPendingApplier;
     private State mAssignedPlayer = State.UNKNOWN;
 
     private int mWinCol;
@@ -109,11 +133,18 @@ public class GameView extends View {
         super(context, attrs);
         requestFocus();
 
-        mBmpPlayerX = getResBitmap(R.drawable.lib_cross);
-        mBmpPlayerO = getResBitmap(R.drawable.lib_circle);
+        mPendingApplier = new FrameCoalescer(this, new Runnable() {
+            @Override
+            public void run() {
+                applyPendingCells();
+            }
+        });
 
-        if (mBmpPlayerX != null) {
-            mSrcRect.set(0, 0, mBmpPlayerX.getWidth() - 1, mBmpPlayerX.getHeight() - 1);
+        if (isInEditMode()) {
+            setPieceBitmaps(getResBitmap(getResources(), R.drawable.lib_cross, true),
+                    getResBitmap(getResources(), R.drawable.lib_circle, true));
+        } else {
+            loadPieceBitmaps();
         }
 
         mBmpPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
@@ -135,20 +166,83 @@ public class GameView extends View {
      * Sets the cell at the given row and column to the given State value.
      */
     public void setCell(int row, int column, State value) {
+        mPendingCells[row * 3 + column] = NO_PENDING_VALUE;
         mBoard[row][column] = value;
-        invalidate();
+        mPositionKey.set(row, column, value);
+        invalidateFor(FrameStats.TRIGGER_SET_CELL);
+        notifyStateChanged();
+    }
+
+    /**
+     * Queues the cell at the given row and column to be set to the given State value on the next
+     * display frame. Any number of cells queued before that frame are applied together, with a 
+     * single redraw.
+     */
+    public void postCell(int row, int column, State value) {
+        mPendingCells[row * 3 + column] = value.getValue();
+        mPendingApplier.schedule();
+    }
+
+    /**
+     * Applies the cells queued by postCell() and redraws the board once.
+     */
+    private void applyPendingCells() {
+        for (int i = 0; i < mPendingCells.length; ++i) {
+            int value = mPendingCells[i];
+            if (value != NO_PENDING_VALUE) {
+                mPendingCells[i] = NO_PENDING_VALUE;
+                mBoard[i / 3][i % 3] = State.fromInt(value);
+                mPositionKey.set(i / 3, i % 3, value);
+            }
+        }
+        invalidateFor(FrameStats.TRIGGER_PENDING_CELLS);
+        notifyStateChanged();
+    }
+
+    private void discardPendingCells() {
+        mPendingApplier.cancel();
+        for (int i = 0; i < mPendingCells.length; ++i) {
+            mPendingCells[i] = NO_PENDING_VALUE;
+        }
     }
 
     /**
      * Updates the current layout of the board with the values stored in boardLayout.
      */
     public void updateBoard(int[][] boardLayout) {
+        if (boardLayout.length != mBoard.length) {
+            // A board of another game variant; this view only draws its own size.
+            return;
+        }
+        discardPendingCells();
         for (int i = 0; i < boardLayout.length; ++i) {
             for (int j = 0; j < boardLayout[i].length; ++j) {
                 mBoard[i][j] = State.fromInt(boardLayout[i][j]);
             }
         }
-        invalidate();
+        mPositionKey.setBoard(boardLayout);
+        invalidateFor(FrameStats.TRIGGER_UPDATE_BOARD);
+        notifyStateChanged();
+    }
+
+    /**
+     * Updates the current layout of the board with the cells of a position from a BoardHistory.
+     */
+    public void updateBoard(BoardHistory.Position position) {
+        if (position.getSize() != mBoard.length) {
+            // A history of another game variant; this view only draws its own size.
+            return;
+        }
+        discardPendingCells();
+        for (int i = 0; i < mBoard.length; ++i) {
+            for (int j = 0; j < mBoard[i].length; ++j) {
+                int value = position.get(i, j);
+                mBoard[i][j] = State.fromInt(value);
+                mPositionKey.set(i, j, value);
+            }
+        }
+        invalidateFor(FrameStats.TRIGGER_UPDATE_BOARD);
+        notifyStateChanged();
     }
 
     /**
@@ -158,6 +252,62 @@ public class GameView extends View {
         mCellListener = cellListener;
     }
 
+    public void setStateListener(IStateListener stateListener) {
+        mStateListener = stateListener;
+    }
+
+    private void notifyStateChanged() {
+        if (mStateListener != null) {
+            mStateListener.onStateChanged(this);
+        }
+    }
+
+    /**
+     * Returns the board, assigned player and winning line packed into a {@link GameSnapshot}.
+     * Cells queued by postCell() are not included until they are applied.
+     */
+    public int getSnapshot() {
+        int[] cells = mSnapshotCells;
+        for (int i = 0; i < cells.length; ++i) {
+            cells[i] = mBoard[i / 3][i % 3].getValue();
+        }
+        int winningLocation = -1;
+        if (mWinRow >= 0) {
+            winningLocation = mWinRow;
+        } else if (mWinCol >= 0) {
+            winningLocation = 3 + mWinCol;
+        } else if (mWinDiag >= 0) {
+            winningLocation = 6 + mWinDiag;
+        }
+        return GameSnapshot.pack(cells, mAssignedPlayer.getValue(), winningLocation);
+    }
+
+    /**
+     * Replaces the board, assigned player and winning line with those of a
+     * {@link GameSnapshot}, without notifying the state listener.
+     */
+    public void restoreSnapshot(int snapshot) {
+        discardPendingCells();
+        for (int i = 0; i < 9; ++i) {
+            int value = GameSnapshot.getCell(snapshot, i);
+            mBoard[i / 3][i % 3] = State.fromInt(value);
+            mPositionKey.set(i / 3, i % 3, value);
+        }
+        mAssignedPlayer = State.fromInt(GameSnapshot.getAssignedPlayer(snapshot));
+        int location = GameSnapshot.getWinningLocation(snapshot);
+        mWinRow = (location >= 0 && location < 3) ? location : -1;
+        mWinCol = (location >= 3 && location < 6) ? location - 3 : -1;
+        mWinDiag = (location >= 6) ? location - 6 : -1;
+        invalidateFor(FrameStats.TRIGGER_RESTORE);
+    }
+
+    /**
+     * Returns the incrementally maintained key of the position currently on the board.
+     */
+    public PositionKey getPositionKey() {
+        return mPositionKey;
+    }
+
     public State getAssignedPlayer() {
         return mAssignedPlayer;
     }
@@ -177,7 +327,8 @@ public class GameView extends View {
         mWinRow = row;
         mWinCol = column;
         mWinDiag = diagonal;
-        invalidate();
+        invalidateFor(FrameStats.TRIGGER_SET_FINISHED);
+        notifyStateChanged();
     }
 
     /**
@@ -186,6 +337,8 @@ public class GameView extends View {
      */
     @Override
     protected void onDraw(Canvas canvas) {
+        FrameStats frameStats = mFrameStats;
+        long start = (frameStats != null) ? System.nanoTime() : Metrics.startTimer();
         super.onDraw(canvas);
 
         int sxy = mSxy;
@@ -226,6 +379,44 @@ public class GameView extends View {
             canvas.drawLine(x7 + MARGIN, y7 + s3 - 1 - MARGIN, x7 + s3 - 1 - MARGIN, y7 + MARGIN,
                     mWinPaint);
         }
+
+        if (!mFirstFrameDrawn) {
+            mFirstFrameDrawn = true;
+            StartupTrace.mark(StartupTrace.PHASE_GAME_FIRST_FRAME);
+        }
+        Metrics.recordSince(DRAW_TIME, start);
+        if (frameStats != null) {
+            frameStats.onDraw(start);
+        }
+    }
+
+    /**
+     * Invalidates the view, attributing the next frame to trigger, one of the
+     * FrameStats.TRIGGER_* constants.
+     */
+    private void invalidateFor(int trigger) {
+        if (mFrameStats != null) {
+            mFrameStats.onInvalidate(trigger);
+        }
+        invalidate();
+    }
+
+    /**
+     * Turns frame timing on or off. While off, which is the default, drawing is not timed at all.
+     */
+    public void setFrameStatsEnabled(boolean enabled) {
+        if (enabled && mFrameStats == null) {
+            mFrameStats = new FrameStats();
+        } else if (!enabled) {
+            mFrameStats = null;
+        }
+    }
+
+    /**
+     * Returns the frame timing of this view, or null if it is disabled.
+     */
+    public FrameStats getFrameStats() {
+        return mFrameStats;
     }
 
     /**
@@ -242,6 +433,9 @@ public class GameView extends View {
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
+        if (mFrameStats != null) {
+            mFrameStats.onInvalidate(FrameStats.TRIGGER_RESIZE);
+        }
 
         int sx = (w - 2 * MARGIN) / 3;
         int sy = (h - 2 * MARGIN) / 3;
@@ -263,30 +457,61 @@ public class GameView extends View {
         int action = event.getAction();
 
         if (action == MotionEvent.ACTION_DOWN) {
+            mDownCell = selectableCellAt(event.getX(), event.getY());
             return true;
 
         } else if (action == MotionEvent.ACTION_UP) {
-            int x = (int) event.getX();
-            int y = (int) event.getY();
-
-            int sxy = mSxy;
-            x = (x - MARGIN) / sxy;
-            y = (y - MARGIN) / sxy;
-
-            if ((x >= 0) && (x < 3) && (y >= 0) && (y < 3) && (mBoard[y][x] == State.EMPTY)) {
-                if (mCellListener != null) {
-                    mCellListener.onCellSelected(y, x);
-                }
+            int cell = mDownCell;
+            mDownCell = -1;
+            // The cell was resolved on ACTION_DOWN; the tap only counts if it ends on that cell.
+            if (cell >= 0 && cellAt(event.getX(), event.getY()) == cell && isSelectable(cell)
+                    && mCellListener != null) {
+                mCellListener.onCellSelected(cell / 3, cell % 3);
             }
             return true;
+
+        } else if (action == MotionEvent.ACTION_CANCEL) {
+            mDownCell = -1;
+            return true;
         }
         return false;
     }
 
+    /**
+     * Returns the cell at the given view coordinates as {@code row * 3 + column}, or -1 if they
+     * are outside the board.
+     */
+    private int cellAt(float x, float y) {
+        int sxy = mSxy;
+        if (sxy <= 0) {
+            return -1;
+        }
+        int column = ((int) x - MARGIN) / sxy;
+        int row = ((int) y - MARGIN) / sxy;
+        if (x < MARGIN || y < MARGIN || column >= 3 || row >= 3) {
+            return -1;
+        }
+        return row * 3 + column;
+    }
+
+    private int selectableCellAt(float x, float y) {
+        int cell = cellAt(x, y);
+        return (cell >= 0 && isSelectable(cell)) ? cell : -1;
+    }
+
+    /**
+     * Returns true if the cell is empty and no move into it is waiting for the next frame.
+     */
+    private boolean isSelectable(int cell) {
+        return mBoard[cell / 3][cell % 3] == State.EMPTY
+                && mPendingCells[cell] == NO_PENDING_VALUE;
+    }
+
     /**
      * Clears the board of all moves made and redraws the board.
      */
     public void clearBoard() {
+        discardPendingCells();
         mWinCol = -1;
         mWinRow = -1;
         mWinDiag = -1;
@@ -295,20 +520,75 @@ public class GameView extends View {
                 mBoard[i][j] = State.EMPTY;
             }
         }
-        invalidate();
+        mPositionKey.clear();
+        invalidateFor(FrameStats.TRIGGER_CLEAR_BOARD);
+        notifyStateChanged();
+    }
+
+    /**
+     * Decodes the piece bitmaps shared by all GameViews, unless they are already decoded. Called
+     * on a background thread during startup, so that inflating a GameView does not decode them on
+     * the main thread.
+     */
+    static void preloadPieceBitmaps(Resources res) {
+        synchronized (sBitmapLock) {
+            if (sBitmapsLoaded) {
+                return;
+            }
+            sBmpPlayerX = getResBitmap(res, R.drawable.lib_cross, false);
+            sBmpPlayerO = getResBitmap(res, R.drawable.lib_circle, false);
+            sBitmapsLoaded = true;
+        }
+        StartupTrace.mark(StartupTrace.PHASE_PIECE_BITMAPS_READY);
+    }
+
+    /**
+     * Uses the shared piece bitmaps if they are decoded, and otherwise decodes them in the
+     * background and redraws once they are ready. Pieces are not drawn until then.
+     */
+    private void loadPieceBitmaps() {
+        synchronized (sBitmapLock) {
+            if (sBitmapsLoaded) {
+                setPieceBitmaps(sBmpPlayerX, sBmpPlayerO);
+                return;
+            }
+        }
+        final Resources res = getResources();
+        TicTacToeApplication.getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                preloadPieceBitmaps(res);
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (sBitmapLock) {
+                            setPieceBitmaps(sBmpPlayerX, sBmpPlayerO);
+                        }
+                        invalidateFor(FrameStats.TRIGGER_BITMAPS);
+                    }
+                });
+            }
+        });
+    }
+
+    private void setPieceBitmaps(Bitmap playerX, Bitmap playerO) {
+        mBmpPlayerX = playerX;
+        mBmpPlayerO = playerO;
+        if (mBmpPlayerX != null) {
+            mSrcRect.set(0, 0, mBmpPlayerX.getWidth() - 1, mBmpPlayerX.getHeight() - 1);
+        }
     }
 
     /**
      * Converts a bitmap resource ID to a valid Bitmap object.
      */
-    private Bitmap getResBitmap(int bmpResId) {
+    private static Bitmap getResBitmap(Resources res, int bmpResId, boolean isInEditMode) {
         Options opts = new Options();
         opts.inDither = false;
 
-        Resources res = getResources();
         Bitmap bmp = BitmapFactory.decodeResource(res, bmpResId, opts);
 
-        if (bmp == null && isInEditMode()) {
+        if (bmp == null && isInEditMode) {
             Drawable d = res.getDrawable(bmpResId);
             int w = d.getIntrinsicWidth();
             int h = d.getIntrinsicHeight();
@@ -0,0 +1,475 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Elo ratings of every player, kept in rating order so that the top of the leaderboard and the
+ * rank of any player are available at once between matches.
+ *
+ * <p>Players are held in an order-statistic skip list: each link records how many players it
+ * skips, so results, rank queries and inserts are O(log n) and the top k players are read in
+ * O(k). The leaderboard is saved as a compact snapshot in rank order, which loads by appending to
+ * the list without a single comparison. All methods are thread-safe.
+ */
+public class Leaderboard {
+    private static final int MAGIC = 0x54544c42;
+    private static final int VERSION = 1;
+
+    public static final int INITIAL_RATING = 1200;
+    // Players settle in quickly over their first games, then move more slowly.
+    private static final int PROVISIONAL_GAMES = 30;
+    private static final int PROVISIONAL_K = 40;
+    private static final int K = 20;
+
+    private static final int MAX_LEVEL = 24;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * A player's standing, as of the query which returned it.
+     */
+    public static final class Entry {
+        private final String mName;
+        private final int mRating;
+        private final int mGames;
+        private final int mRank;
+
+        private Entry(Node node, int rank) {
+            mName = node.mName;
+            mRating = node.mRating;
+            mGames = node.mGames;
+            mRank = rank;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getRating() {
+            return mRating;
+        }
+
+        public int getGames() {
+            return mGames;
+        }
+
+        /**
+         * Returns the position on the leaderboard, counting from 1.
+         */
+        public int getRank() {
+            return mRank;
+        }
+
+        @Override
+        public String toString() {
+            return mRank + ". " + mName + " " + mRating;
+        }
+    }
+
+    private static final class Node {
+        final String mName;
+        // Orders players of equal rating without touching their names.
+        final int mId;
+        int mRating;
+        int mGames;
+        final Node[] mNext;
+        // The number of players each link moves forward by, counting its target.
+        final int[] mSpan;
+
+        Node(String name, int id, int rating, int games, int level) {
+            mName = name;
+            mId = id;
+            mRating = rating;
+            mGames = games;
+            mNext = new Node[level];
+            mSpan = new int[level];
+        }
+
+        /**
+         * Returns whether this node ranks ahead of a player with the given rating and id.
+         */
+        boolean isAhead(int rating, int id) {
+            return mRating > rating || (mRating == rating && mId < id);
+        }
+    }
+
+    private final HashMap<String, Node> mPlayers;
+    private final Node mHead = new Node(null, 0, 0, 0, MAX_LEVEL);
+    private int mLevel = 1;
+    private int mSize;
+    private int mRandom = 0x2545F491;
+
+    // Scratch space for searches, guarded by this.
+    private final Node[] mUpdate = new Node[MAX_LEVEL];
+    private final int[] mRank = new int[MAX_LEVEL];
+
+    public Leaderboard() {
+        this(16);
+    }
+
+    private Leaderboard(int capacity) {
+        mPlayers = new HashMap<String, Node>(capacity * 4 / 3 + 1);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the player's rating, or INITIAL_RATING for a player with no games.
+     */
+    public synchronized int getRating(String name) {
+        Node node = mPlayers.get(name);
+        return (node != null) ? node.mRating : INITIAL_RATING;
+    }
+
+    /**
+     * Returns the player's standing, or null for a player with no games.
+     */
+    public synchronized Entry getEntry(String name) {
+        Node node = mPlayers.get(name);
+        return (node != null) ? new Entry(node, rankOf(node)) : null;
+    }
+
+    /**
+     * Returns the k best players, best first.
+     */
+    public synchronized List<Entry> getTop(int k) {
+        List<Entry> top = new ArrayList<Entry>(Math.min(k, mSize));
+        Node node = mHead.mNext[0];
+        for (int rank = 1; rank <= k && node != null; ++rank) {
+            top.add(new Entry(node, rank));
+            node = node.mNext[0];
+        }
+        return top;
+    }
+
+    /**
+     * Updates the ratings of two players after a game between them. A game of a player against
+     * themselves is not rated.
+     *
+     * @param draw whether the game was drawn, in which case winner and loser are interchangeable
+     */
+    public synchronized void recordResult(String winner, String loser, boolean draw) {
+        if (winner.equals(loser)) {
+            return;
+        }
+        Node a = getOrAdd(winner);
+        Node b = getOrAdd(loser);
+        double expected = 1 / (1 + Math.pow(10, (b.mRating - a.mRating) / 400.0));
+        double score = draw ? 0.5 : 1;
+        int ratingA = a.mRating + (int) Math.round(kFactor(a) * (score - expected));
+        int ratingB = b.mRating + (int) Math.round(kFactor(b) * (expected - score));
+        move(a, ratingA);
+        move(b, ratingB);
+        ++a.mGames;
+        ++b.mGames;
+    }
+
+    private static int kFactor(Node node) {
+        return (node.mGames < PROVISIONAL_GAMES) ? PROVISIONAL_K : K;
+    }
+
+    private Node getOrAdd(String name) {
+        Node node = mPlayers.get(name);
+        if (node == null) {
+            node = new Node(name, mPlayers.size(), INITIAL_RATING, 0, randomLevel());
+            search(INITIAL_RATING, node.mId);
+            link(node);
+            mPlayers.put(name, node);
+        }
+        return node;
+    }
+
+    private void move(Node node, int rating) {
+        if (rating == node.mRating) {
+            return;
+        }
+        search(node.mRating, node.mId);
+        unlink(node);
+        node.mRating = rating;
+        search(rating, node.mId);
+        link(node);
+    }
+
+    /**
+     * Fills mUpdate with the last node ahead of the given key at each level, and mRank with the
+     * rank of each of those nodes.
+     */
+    private void search(int rating, int id) {
+        Node node = mHead;
+        for (int i = mLevel - 1; i >= 0; --i) {
+            mRank[i] = (i == mLevel - 1) ? 0 : mRank[i + 1];
+            while (node.mNext[i] != null && node.mNext[i].isAhead(rating, id)) {
+                mRank[i] += node.mSpan[i];
+                node = node.mNext[i];
+            }
+            mUpdate[i] = node;
+        }
+    }
+
+    /**
+     * Links node in after the nodes found by the last search or append position.
+     */
+    private void link(Node node) {
+        int level = node.mNext.length;
+        for (int i = mLevel; i < level; ++i) {
+            mRank[i] = 0;
+            mUpdate[i] = mHead;
+            mHead.mSpan[i] = mSize;
+        }
+        mLevel = Math.max(mLevel, level);
+        for (int i = 0; i < level; ++i) {
+            Node previous = mUpdate[i];
+            node.mNext[i] = previous.mNext[i];
+            previous.mNext[i] = node;
+            node.mSpan[i] = previous.mSpan[i] - (mRank[0] - mRank[i]);
+            previous.mSpan[i] = mRank[0] - mRank[i] + 1;
+        }
+        for (int i = level; i < mLevel; ++i) {
+            ++mUpdate[i].mSpan[i];
+        }
+        ++mSize;
+    }
+
+    /**
+     * Unlinks node, which the last search must have found.
+     */
+    private void unlink(Node node) {
+        for (int i = 0; i < mLevel; ++i) {
+            Node previous = mUpdate[i];
+            if (previous.mNext[i] == node) {
+                previous.mSpan[i] += node.mSpan[i] - 1;
+                previous.mNext[i] = node.mNext[i];
+            } else {
+                --previous.mSpan[i];
+            }
+        }
+        while (mLevel > 1 && mHead.mNext[mLevel - 1] == null) {
+            --mLevel;
+        }
+        --mSize;
+    }
+
+    private int rankOf(Node target) {
+        Node node = mHead;
+        int rank = 0;
+        for (int i = mLevel - 1; i >= 0; --i) {
+            while (node.mNext[i] != null && (node.mNext[i] == target
+                    || node.mNext[i].isAhead(target.mRating, target.mId))) {
+                rank += node.mSpan[i];
+                node = node.mNext[i];
+            }
+            if (node == target) {
+                return rank;
+            }
+        }
+        return rank;
+    }
+
+    private int randomLevel() {
+        int level = 1;
+        // Xorshift; each level is kept with probability 1/4.
+        int x = mRandom;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        mRandom = x;
+        while ((x & 3) == 0 && level < MAX_LEVEL) {
+            ++level;
+            x >>>= 2;
+        }
+        return level;
+    }
+
+    /**
+     * Writes the leaderboard to file, in rank order. The file is replaced atomically.
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            synchronized (this) {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                writeVarint(out, mSize);
+                int previous = 0;
+                for (Node node = mHead.mNext[0]; node != null; node = node.mNext[0]) {
+                    // Ratings only go down, so all but the first are small positive deltas.
+                    writeVarint(out, (node == mHead.mNext[0])
+                            ? (node.mRating << 1) ^ (node.mRating >> 31)
+                            : previous - node.mRating);
+                    previous = node.mRating;
+                    writeVarint(out, node.mGames);
+                    byte[] name = node.mName.getBytes(UTF_8);
+                    writeVarint(out, name.length);
+                    out.write(name);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    /**
+     * Reads a leaderboard saved by save(), or returns an empty one if file does not exist. The
+     * file is read in one go and parsed in memory.
+     */
+    public static Leaderboard load(File file) throws IOException {
+        byte[] bytes;
+        FileInputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            return new Leaderboard();
+        }
+        try {
+            bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+
+        Reader reader = new Reader(bytes);
+        if (reader.readInt() != MAGIC || reader.readByte() != VERSION) {
+            throw new IOException(file + " is not a leaderboard");
+        }
+        int size = reader.readVarint();
+        // Each player takes at least a byte for each of the rating, games and name length.
+        if (size < 0 || size > reader.remaining() / 3) {
+            throw new IOException(file + " claims " + size + " players");
+        }
+        Leaderboard leaderboard = new Leaderboard(size);
+        for (int i = 0; i < MAX_LEVEL; ++i) {
+            leaderboard.mUpdate[i] = leaderboard.mHead;
+            leaderboard.mRank[i] = 0;
+        }
+        int rating = 0;
+        for (int i = 0; i < size; ++i) {
+            int value = reader.readVarint();
+            if (i == 0) {
+                rating = (value >>> 1) ^ -(value & 1);
+            } else if (value >= 0) {
+                rating -= value;
+            } else {
+                throw new IOException(file + " is not in rank order");
+            }
+            int games = reader.readVarint();
+            if (games < 0) {
+                throw new IOException(file + " has a negative game count");
+            }
+            // Ids follow rank order, which keeps players of equal rating in their order.
+            leaderboard.append(
+                    new Node(reader.readString(), i, rating, games, leaderboard.randomLevel()));
+        }
+        return leaderboard;
+    }
+
+    /**
+     * Links node after every other node. mUpdate and mRank hold the last node of each level and
+     * its rank.
+     */
+    private void append(Node node) {
+        link(node);
+        mPlayers.put(node.mName, node);
+        for (int i = 0; i < node.mNext.length; ++i) {
+            mUpdate[i] = node;
+            mRank[i] = mSize;
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Reads the fields of a snapshot from its bytes.
+     */
+    private static final class Reader {
+        private final byte[] mBytes;
+        private int mPosition;
+
+        Reader(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        int remaining() {
+            return mBytes.length - mPosition;
+        }
+
+        int readByte() throws IOException {
+            if (mPosition >= mBytes.length) {
+                throw new EOFException();
+            }
+            return mBytes[mPosition++] & 0xFF;
+        }
+
+        int readInt() throws IOException {
+            return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        String readString() throws IOException {
+            int length = readVarint();
+            if (length < 0 || length > mBytes.length - mPosition) {
+                throw new EOFException();
+            }
+            String string = new String(mBytes, mPosition, length, UTF_8);
+            mPosition += length;
+            return string;
+        }
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * A stand-in for the TicTacToe receiver application which runs in the sender's process. It
+ * implements the same protocol and rules as {@code receiver/tictactoe.js}, including its error
+ * messages, so that {@link GameMessageStream}s can be exercised without a Cast device.
+ *
+ * <p>Streams are connected through {@link #connect(GameMessageStream)}, which gives each one its
+ * own {@link Channel}. All game state is confined to the executor passed to the constructor, so
+ * any number of receivers can share a thread pool through {@link SerialExecutor}s.
+ */
+public class LocalReceiver {
+    private static final String TAG = LocalReceiver.class.getSimpleName();
+
+    private static final int EMPTY = 0;
+    private static final int CROSS = 1;
+    private static final int NAUGHT = 2;
+
+    // Winning lines as cell indexes, in the order of GameMessageStream.WinningLocation values.
+    private static final int[][] LINES = {
+        {0, 1, 2}, {3, 4, 5}, {6, 7, 8},
+        {0, 3, 6}, {1, 4, 7}, {2, 5, 8},
+        {0, 4, 8}, {2, 4, 6},
+    };
+
+    private final Executor mExecutor;
+    private final Random mRandom;
+    private final List<Channel> mChannels = new ArrayList<Channel>();
+    private final int[] mBoard = new int[9];
+    private GameClock mClock;
+
+    private Player mPlayer1;
+    private Player mPlayer2;
+    private String mCurrentPlayer;
+    // Null until a game ends, as the receiver's -1.
+    private String mGameResult;
+    private int mWinningLocation = -1;
+
+    private static final class Player {
+        final String mName;
+        final Channel mChannel;
+        String mSymbol;
+
+        Player(String name, Channel channel) {
+            mName = name;
+            mChannel = channel;
+        }
+    }
+
+    /**
+     * A connection between one stream and this receiver, through which the stream sends its
+     * commands.
+     */
+    public final class Channel implements GameMessageStream.Transport {
+        private final GameMessageStream mStream;
+        private volatile boolean mClosed;
+
+        private Channel(GameMessageStream stream) {
+            mStream = stream;
+        }
+
+        @Override
+        public void send(final JSONObject payload) throws IOException {
+            if (mClosed) {
+                throw new IOException("Channel is closed");
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onMessage(Channel.this, payload);
+                }
+            });
+        }
+
+        /**
+         * Disconnects the stream. A player who disconnects also leaves the game, so that a
+         * client which goes away does not hold its seat.
+         */
+        public void close() {
+            mClosed = true;
+            mStream.setTransport(null);
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onLeave(Channel.this);
+                    mChannels.remove(Channel.this);
+                }
+            });
+        }
+
+        private void deliver(JSONObject message) {
+            if (!mClosed) {
+                mStream.onMessageReceived(message);
+            }
+        }
+    }
+
+    /**
+     * @param executor the executor the receiver's state is confined to; it must run tasks in order
+     * @param random the source of the first player assignment
+     */
+    public LocalReceiver(Executor executor, Random random) {
+        mExecutor = executor;
+        mRandom = random;
+    }
+
+    /**
+     * Plays every following game under control, with clocks on wheel. The remaining times are
+     * sent as clock_x and clock_o in milliseconds with every joined and moved event, and a player
+     * who runs out of time forfeits, ending the game as abandoned.
+     */
+    public void setTimeControl(final GameClock.TimeControl control, final TimerWheel wheel) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mClock = new GameClock(control, wheel, mExecutor, new GameClock.Listener() {
+                    @Override
+                    public void onTimeExpired(String player) {
+                        LocalReceiver.this.onTimeExpired(player);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Connects stream to this receiver, replacing any transport the stream had.
+     */
+    public Channel connect(GameMessageStream stream) {
+        final Channel channel = new Channel(stream);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mChannels.add(channel);
+            }
+        });
+        stream.setTransport(channel);
+        return channel;
+    }
+
+    private void onMessage(Channel channel, JSONObject message) {
+        if (channel.mClosed) {
+            return;
+        }
+        String command = message.optString("command", null);
+        String requestId = message.optString("request_id", null);
+        try {
+            if ("join".equals(command)) {
+                onJoin(channel, message.optString("name", null));
+            } else if ("leave".equals(command)) {
+                onLeave(channel);
+            } else if ("move".equals(command)) {
+                onMove(channel, message.getInt("row"), message.getInt("column"), requestId);
+            } else if ("board_layout_request".equals(command)) {
+                onBoardLayoutRequest(channel, requestId, message.optBoolean("packed", false));
+            } else if ("ping".equals(command)) {
+                onPing(channel, requestId);
+            } else if ("mirror".equals(command) || "leaderboard".equals(command)) {
+                // Only a receiver with a display has anything to mirror or show.
+            } else {
+                Log.e(TAG, "Invalid message command: " + command);
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Malformed command: " + message, e);
+        }
+    }
+
+    private void onJoin(Channel channel, String name) throws JSONException {
+        Player existing = playerOn(channel);
+        if (existing != null) {
+            sendError(channel, "You are already " + existing.mSymbol
+                    + " You aren't allowed to play against yourself.", null);
+            return;
+        }
+        if (mPlayer1 == null) {
+            mPlayer1 = new Player(name, channel);
+        } else if (mPlayer2 == null) {
+            mPlayer2 = new Player(name, channel);
+        } else {
+            sendError(channel, "Game is full.", null);
+            return;
+        }
+        if (mPlayer1 != null && mPlayer2 != null) {
+            for (int i = 0; i < mBoard.length; ++i) {
+                mBoard[i] = EMPTY;
+            }
+            mGameResult = null;
+            mWinningLocation = -1;
+            startGame();
+        }
+    }
+
+    private void startGame() throws JSONException {
+        boolean player1First = mRandom.nextBoolean();
+        mPlayer1.mSymbol = player1First ? GameMessageStream.PLAYER_X : GameMessageStream.PLAYER_O;
+        mPlayer2.mSymbol = player1First ? GameMessageStream.PLAYER_O : GameMessageStream.PLAYER_X;
+        mCurrentPlayer = GameMessageStream.PLAYER_X;
+        if (mClock != null) {
+            mClock.start();
+        }
+        sendJoined(mPlayer1, mPlayer2);
+        sendJoined(mPlayer2, mPlayer1);
+    }
+
+    private void sendJoined(Player player, Player opponent) throws JSONException {
+        JSONObject message = new JSONObject();
+        message.put("event", "joined");
+        message.put("player", player.mSymbol);
+        message.put("opponent", opponent.mName);
+        putClocks(message);
+        player.mChannel.deliver(message);
+    }
+
+    private void putClocks(JSONObject message) throws JSONException {
+        if (mClock != null) {
+            message.put("clock_x", mClock.getRemainingMillis(GameMessageStream.PLAYER_X));
+            message.put("clock_o", mClock.getRemainingMillis(GameMessageStream.PLAYER_O));
+        }
+    }
+
+    private void onTimeExpired(String player) {
+        if (mPlayer1 == null || mPlayer2 == null || mGameResult != null) {
+            return;
+        }
+        Log.i(TAG, player + " ran out of time");
+        mGameResult = GameMessageStream.END_STATE_ABANDONED;
+        try {
+            broadcastEndGame(-1);
+        } catch (JSONException e) {
+            Log.e(TAG, "Cannot create the endgame message", e);
+        }
+    }
+
+    private void onLeave(Channel channel) {
+        if (mPlayer1 != null && mPlayer1.mChannel == channel) {
+            mPlayer1 = null;
+        } else if (mPlayer2 != null && mPlayer2.mChannel == channel) {
+            mPlayer2 = null;
+        } else {
+            return;
+        }
+        if (mGameResult == null) {
+            mGameResult = GameMessageStream.END_STATE_ABANDONED;
+            try {
+                broadcastEndGame(-1);
+            } catch (JSONException e) {
+                Log.e(TAG, "Cannot create the endgame message", e);
+            }
+        }
+    }
+
+    private void onMove(Channel channel, int row, int column, String requestId)
+            throws JSONException {
+        if (mPlayer1 == null || mPlayer2 == null) {
+            // The receiver drops moves made outside a game without answering.
+            Log.w(TAG, "Ignoring a move while one of the players is not there");
+            return;
+        }
+        Player player = playerOn(channel);
+        if (player == null) {
+            sendError(channel, "You are not playing the game", requestId);
+            return;
+        }
+        if (!player.mSymbol.equals(mCurrentPlayer)) {
+            sendError(channel, "It's not your turn.", requestId);
+            return;
+        }
+        int cell = row * 3 + column;
+        if (row < 0 || row >= 3 || column < 0 || column >= 3 || mBoard[cell] != EMPTY) {
+            sendError(channel, "Your last move was invalid", requestId);
+            return;
+        }
+        if (mClock != null && !mClock.switchTurn()) {
+            // The timeout is already on its way, but the move must not count. The mover is told
+            // so, rather than left waiting for their request to time out.
+            sendError(channel, "You ran out of time.", requestId);
+            onTimeExpired(mCurrentPlayer);
+            return;
+        }
+        mBoard[cell] = GameMessageStream.PLAYER_X.equals(mCurrentPlayer) ? CROSS : NAUGHT;
+
+        boolean isGameOver = checkGameOver();
+        JSONObject message = new JSONObject();
+        message.put("event", "moved");
+        message.put("player", mCurrentPlayer);
+        message.put("row", row);
+        message.put("column", column);
+        message.put("game_over", isGameOver);
+        putClocks(message);
+        if (requestId != null) {
+            message.put("request_id", requestId);
+        }
+        broadcast(message);
+        if (isGameOver) {
+            broadcastEndGame(mWinningLocation);
+        }
+        mCurrentPlayer = GameMessageStream.PLAYER_X.equals(mCurrentPlayer)
+                ? GameMessageStream.PLAYER_O : GameMessageStream.PLAYER_X;
+    }
+
+    /**
+     * Sets the game result and winning location if the board is won or full, as board.js does.
+     */
+    private boolean checkGameOver() {
+        for (int line = 0; line < LINES.length; ++line) {
+            int first = mBoard[LINES[line][0]];
+            if (first != EMPTY && mBoard[LINES[line][1]] == first
+                    && mBoard[LINES[line][2]] == first) {
+                mGameResult = (first == CROSS)
+                        ? GameMessageStream.END_STATE_X_WON : GameMessageStream.END_STATE_O_WON;
+                mWinningLocation = line;
+                return true;
+            }
+        }
+        for (int value : mBoard) {
+            if (value == EMPTY) {
+                return false;
+            }
+        }
+        mGameResult = GameMessageStream.END_STATE_DRAW;
+        return true;
+    }
+
+    private void onBoardLayoutRequest(Channel channel, String requestId, boolean packed)
+            throws JSONException {
+        JSONObject message = new JSONObject();
+        message.put("event", "board_layout_response");
+        if (packed) {
+            message.put("board_packed", PackedBoard.encode(mBoard, mBoard.length));
+        } else {
+            JSONArray board = new JSONArray();
+            for (int value : mBoard) {
+                board.put(value);
+            }
+            message.put("board", board);
+        }
+        if (requestId != null) {
+            message.put("request_id", requestId);
+        }
+        channel.deliver(message);
+    }
+
+    private static void onPing(Channel channel, String requestId) throws JSONException {
+        JSONObject message = new JSONObject();
+        message.put("event", "pong");
+        message.put("request_id", requestId);
+        channel.deliver(message);
+    }
+
+    private void broadcastEndGame(int winningLocation) throws JSONException {
+        if (mClock != null) {
+            mClock.stop();
+        }
+        mPlayer1 = null;
+        mPlayer2 = null;
+        JSONObject message = new JSONObject();
+        message.put("event", "endgame");
+        message.put("end_state", mGameResult);
+        if (!GameMessageStream.END_STATE_ABANDONED.equals(mGameResult)) {
+            message.put("winning_location", winningLocation);
+        }
+        broadcast(message);
+    }
+
+    private static void sendError(Channel channel, String errorMessage, String requestId)
+            throws JSONException {
+        JSONObject message = new JSONObject();
+        message.put("event", "error");
+        message.put("message", errorMessage);
+        if (requestId != null) {
+            message.put("request_id", requestId);
+        }
+        channel.deliver(message);
+    }
+
+    /**
+     * Sends message to every connected stream. Streams only read messages, so they share one.
+     */
+    private void broadcast(JSONObject message) {
+        for (int i = 0; i < mChannels.size(); ++i) {
+            mChannels.get(i).deliver(message);
+        }
+    }
+
+    private Player playerOn(Channel channel) {
+        if (mPlayer1 != null && mPlayer1.mChannel == channel) {
+            return mPlayer1;
+        } else if (mPlayer2 != null && mPlayer2.mChannel == channel) {
+            return mPlayer2;
+        }
+        return null;
+    }
+}
@@ -25,15 +25,23 @@ import android.content.res.Configuration;
 import android.os.Bundle;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.widget.EditText;
 import android.widget.TextView;
 
 import com.google.cast.CastDevice;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 /**
  * An activity which builds the start screen for the TicTacToe game.
  */
 public class MainActivity extends Activity {
+    // Each player's time in an offline game with clocks.
+    private static final long OFFLINE_CLOCK_MILLIS = 3 * 60 * 1000;
+
     private TextView mConnectedTextView;
+    private EditText mPlayerNameEdit;
     private DeviceSelectionDialog mDialog;
 
     @Override
@@ -42,8 +50,41 @@ public class MainActivity extends Activity {
         setContentView(R.layout.main);
         mConnectedTextView = (TextView) findViewById(R.id.connected_device);
         setConnectedDeviceTextView(getResources().getString(R.string.no_device));
+        mPlayerNameEdit = (EditText) findViewById(R.id.player_name_edit);
+        TicTacToeApplication.getInstance().runWhenPlayerNameLoaded(new Runnable() {
+            @Override
+            public void run() {
+                // Whatever the player has typed in the meantime wins.
+                if (mPlayerNameEdit.getText().length() == 0) {
+                    mPlayerNameEdit.setText(TicTacToeApplication.getInstance().getPlayerName());
+                }
+            }
+        });
         setupButtons();
         mDialog = null;
+        StartupTrace.mark(StartupTrace.PHASE_MAIN_ACTIVITY_CREATED);
+        // Runs after the first traversal, once the start screen has been drawn.
+        getWindow().getDecorView().post(new Runnable() {
+            @Override
+            public void run() {
+                StartupTrace.mark(StartupTrace.PHASE_MAIN_FIRST_FRAME);
+            }
+        });
+    }
+
+    /**
+     * Adds the startup timings, metrics and discovery scan duty cycle to the activity's state in
+     * {@code dumpsys activity}.
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        StartupTrace.dump(writer);
+        Metrics.dump(writer);
+        ScanScheduler scanScheduler = TicTacToeApplication.getInstance().peekScanScheduler();
+        if (scanScheduler != null) {
+            scanScheduler.dump(writer);
+        }
     }
 
     /** 
@@ -84,16 +125,51 @@ public class MainActivity extends Activity {
                 selectDevice();
             }
         });
+
+        findViewById(R.id.offline).setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                startOfflineGame(0);
+            }
+        });
+
+        findViewById(R.id.offline_timed).setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                startOfflineGame(OFFLINE_CLOCK_MILLIS);
+            }
+        });
     }
 
     /** 
      * Starts the GameActivity that handles the TicTacToe game. startWithPlayer1 is not used. 
      */
     private void startGame(boolean startWithPlayer1) {
+        savePlayerName();
         Intent i = new Intent(this, GameActivity.class);
         startActivity(i);
     }
 
+    /**
+     * Starts the GameActivity in pass-and-play mode, which needs no Cast device.
+     *
+     * @param clockMillis each player's game time, or 0 for an untimed game
+     */
+    private void startOfflineGame(long clockMillis) {
+        savePlayerName();
+        Intent i = new Intent(this, GameActivity.class);
+        i.putExtra(GameActivity.EXTRA_OFFLINE, true);
+        i.putExtra(GameActivity.EXTRA_CLOCK_MILLIS, clockMillis);
+        startActivity(i);
+    }
+
+    /**
+     * Keeps the name typed in for this and later games.
+     */
+    private void savePlayerName() {
+        TicTacToeApplication.getInstance().setPlayerName(mPlayerNameEdit.getText().toString());
+    }
+
     /** 
      * Creates a new DeviceSelectionDialog with an attached listener, which listens for device 
      * selection, sets the device in the top-level Application, and enables the game start button. 
@@ -109,6 +185,8 @@ public class MainActivity extends Activity {
                 if (device != null) {
                     setConnectedDeviceTextView(dialog.selectedDevice().getFriendlyName());
                     TicTacToeApplication.getInstance().setDevice(device);
+                    TicTacToeApplication.getInstance().setMirrorDevices(
+                            dialog.selectedMirrorDevices());
                     findViewById(R.id.start).setEnabled(true);
                 } else {
                     setConnectedDeviceTextView(
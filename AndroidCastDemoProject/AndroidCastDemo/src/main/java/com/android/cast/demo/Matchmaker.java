@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pairs players who ask to join a game and seats each pair at a new table, in place of a receiver
+ * which seats the first two players and turns everyone else away.
+ *
+ * <p>Players queue by skill bracket. Players in the same bracket are paired first come, first
+ * served; a player who has waited longer than the target wait is also paired with players from
+ * neighbouring brackets, one more bracket either side for each further target wait. Joins may come
+ * from any thread and only append to a non-blocking queue of their bracket; pairing runs on one
+ * executor, which is woken at most once per batch of joins and by a {@link TimerWheel} when a
+ * waiting player is due to widen their search.
+ */
+public class Matchmaker {
+
+    /**
+     * A class which creates a table for each pair of players.
+     */
+    public interface TableFactory {
+        LocalReceiver newTable();
+    }
+
+    /**
+     * A class which is told about every pair seated at a table, on the matchmaker's executor.
+     */
+    public interface Listener {
+        void onMatched(Ticket player1, Ticket player2, LocalReceiver table);
+    }
+
+    private static final int STATE_WAITING = 0;
+    // Claimed for a table while the opponent is being claimed; cancel() waits this out.
+    private static final int STATE_SEATING = 1;
+    private static final int STATE_MATCHED = 2;
+    private static final int STATE_CANCELLED = 3;
+
+    /**
+     * A player's place in the queue.
+     */
+    public static final class Ticket {
+        private final GameMessageStream mStream;
+        private final String mName;
+        private final int mBracket;
+        private final long mJoinNanos = System.nanoTime();
+        private final AtomicInteger mState = new AtomicInteger(STATE_WAITING);
+        private volatile LocalReceiver.Channel mChannel;
+
+        private Ticket(GameMessageStream stream, String name, int bracket) {
+            mStream = stream;
+            mName = name;
+            mBracket = bracket;
+        }
+
+        public GameMessageStream getStream() {
+            return mStream;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getBracket() {
+            return mBracket;
+        }
+
+        /**
+         * Returns the player's channel to their table once they are matched, or null.
+         */
+        public LocalReceiver.Channel getChannel() {
+            return mChannel;
+        }
+
+        /**
+         * Leaves the queue. If the player is being seated at that moment, waits until they either
+         * are, or go back to waiting because their opponent left.
+         *
+         * @return false if the player was already matched or had already left
+         */
+        public boolean cancel() {
+            while (true) {
+                int state = mState.get();
+                if (state == STATE_WAITING) {
+                    if (mState.compareAndSet(STATE_WAITING, STATE_CANCELLED)) {
+                        return true;
+                    }
+                } else if (state == STATE_SEATING) {
+                    Thread.yield();
+                } else {
+                    return false;
+                }
+            }
+        }
+    }
+
+    private final Executor mExecutor;
+    private final TimerWheel mWheel;
+    private final TableFactory mTableFactory;
+    private final Listener mListener;
+    private final long mTargetWaitNanos;
+    private final LatencyHistogram mWaitTimes = new LatencyHistogram();
+
+    private final ConcurrentLinkedQueue<Ticket>[] mJoins;
+    private final AtomicBoolean mMatchPending = new AtomicBoolean();
+    private final Runnable mMatchTask = new Runnable() {
+        @Override
+        public void run() {
+            mMatchPending.set(false);
+            match();
+        }
+    };
+
+    // Confined to the executor.
+    private final ArrayDeque<Ticket>[] mWaiting;
+    private TimerWheel.Timeout mWidenTimeout;
+    private long mWidenNanos;
+
+    /**
+     * @param brackets the number of skill brackets, numbered from 0
+     * @param targetWaitMillis the wait after which a player's search widens by a bracket
+     * @param executor the executor pairing is confined to; it must run tasks in order
+     * @param wheel the wheel which wakes the executor when a search is due to widen
+     */
+    @SuppressWarnings("unchecked")
+    public Matchmaker(int brackets, long targetWaitMillis, Executor executor, TimerWheel wheel,
+            TableFactory tableFactory, Listener listener) {
+        mExecutor = executor;
+        mWheel = wheel;
+        mTableFactory = tableFactory;
+        mListener = listener;
+        mTargetWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, targetWaitMillis));
+        mJoins = new ConcurrentLinkedQueue[brackets];
+        mWaiting = new ArrayDeque[brackets];
+        for (int i = 0; i < brackets; ++i) {
+            mJoins[i] = new ConcurrentLinkedQueue<Ticket>();
+            mWaiting[i] = new ArrayDeque<Ticket>();
+        }
+    }
+
+    /**
+     * Queues a player whose stream is to be connected to a table and joined under name once they
+     * are matched. May be called on any thread.
+     */
+    public Ticket join(GameMessageStream stream, String name, int bracket) {
+        if (bracket < 0 || bracket >= mJoins.length) {
+            throw new IllegalArgumentException("No bracket " + bracket);
+        }
+        Ticket ticket = new Ticket(stream, name, bracket);
+        mJoins[bracket].add(ticket);
+        if (mMatchPending.compareAndSet(false, true)) {
+            mExecutor.execute(mMatchTask);
+        }
+        return ticket;
+    }
+
+    /**
+     * Returns the histogram of times from joining until being matched, in nanoseconds.
+     */
+    public LatencyHistogram getWaitTimes() {
+        return mWaitTimes;
+    }
+
+    /**
+     * Writes the wait time percentiles to writer.
+     */
+    public void dump(PrintWriter writer) {
+        writer.println("Matchmaker:");
+        writer.println(String.format(
+                "  %d matched, wait ms: p50 %.1f, p90 %.1f, p99 %.1f, max %.1f",
+                mWaitTimes.getCount(), mWaitTimes.getPercentile(50) / 1e6,
+                mWaitTimes.getPercentile(90) / 1e6, mWaitTimes.getPercentile(99) / 1e6,
+                mWaitTimes.getPercentile(100) / 1e6));
+    }
+
+    private void match() {
+        long now = System.nanoTime();
+        for (int bracket = 0; bracket < mJoins.length; ++bracket) {
+            ArrayDeque<Ticket> waiting = mWaiting[bracket];
+            Ticket ticket;
+            while ((ticket = mJoins[bracket].poll()) != null) {
+                waiting.add(ticket);
+            }
+            while (true) {
+                Ticket first = pollWaiting(bracket);
+                if (first == null) {
+                    break;
+                }
+                Ticket second = pollWaiting(bracket);
+                if (second == null) {
+                    waiting.addFirst(first);
+                    break;
+                }
+                seat(first, second, now);
+            }
+        }
+
+        // Every bracket now holds at most one player; pair the longest waiting across brackets.
+        long nextWiden = Long.MAX_VALUE;
+        for (int bracket = 0; bracket < mWaiting.length; ++bracket) {
+            Ticket ticket = peekWaiting(bracket);
+            if (ticket == null) {
+                continue;
+            }
+            long waited = now - ticket.mJoinNanos;
+            int width = (int) Math.min(mWaiting.length, waited / mTargetWaitNanos);
+            Ticket opponent = null;
+            for (int distance = 1; distance <= width && opponent == null; ++distance) {
+                opponent = oldest(peekWaiting(bracket - distance), peekWaiting(bracket + distance));
+            }
+            if (opponent != null) {
+                mWaiting[bracket].poll();
+                mWaiting[opponent.mBracket].poll();
+                seat(ticket, opponent, now);
+            } else if (width < mWaiting.length) {
+                nextWiden = Math.min(nextWiden, ticket.mJoinNanos + (width + 1) * mTargetWaitNanos);
+            }
+        }
+        scheduleWiden(nextWiden, now);
+    }
+
+    /**
+     * Returns the next waiting player of bracket, dropping players who left the queue.
+     */
+    private Ticket peekWaiting(int bracket) {
+        if (bracket < 0 || bracket >= mWaiting.length) {
+            return null;
+        }
+        ArrayDeque<Ticket> waiting = mWaiting[bracket];
+        Ticket ticket;
+        while ((ticket = waiting.peek()) != null && ticket.mState.get() != STATE_WAITING) {
+            waiting.poll();
+        }
+        return ticket;
+    }
+
+    private Ticket pollWaiting(int bracket) {
+        Ticket ticket = peekWaiting(bracket);
+        if (ticket != null) {
+            mWaiting[bracket].poll();
+        }
+        return ticket;
+    }
+
+    private static Ticket oldest(Ticket a, Ticket b) {
+        if (a == null) {
+            return b;
+        } else if (b == null) {
+            return a;
+        }
+        return (a.mJoinNanos - b.mJoinNanos <= 0) ? a : b;
+    }
+
+    /**
+     * Seats two players at a new table, unless one of them left the queue in the meantime, in
+     * which case the other goes back to the front of their bracket. Neither player is committed
+     * until both are claimed, so that a cancel() which returns false always means a table.
+     */
+    private void seat(Ticket first, Ticket second, long now) {
+        if (!first.mState.compareAndSet(STATE_WAITING, STATE_SEATING)) {
+            mWaiting[second.mBracket].addFirst(second);
+            return;
+        }
+        if (!second.mState.compareAndSet(STATE_WAITING, STATE_SEATING)) {
+            first.mState.set(STATE_WAITING);
+            mWaiting[first.mBracket].addFirst(first);
+            return;
+        }
+        LocalReceiver table = mTableFactory.newTable();
+        first.mChannel = table.connect(first.mStream);
+        second.mChannel = table.connect(second.mStream);
+        // Published after the channels, so that a cancel() which returns false finds them.
+        first.mState.set(STATE_MATCHED);
+        second.mState.set(STATE_MATCHED);
+        mWaitTimes.record(now - first.mJoinNanos);
+        mWaitTimes.record(now - second.mJoinNanos);
+        first.mStream.join(first.mName);
+        second.mStream.join(second.mName);
+        mListener.onMatched(first, second, table);
+    }
+
+    private void scheduleWiden(long widenNanos, long now) {
+        // A timeout for the same time which has not fired yet still stands.
+        if (widenNanos == mWidenNanos && mWidenTimeout != null && widenNanos - now > 0) {
+            return;
+        }
+        if (mWidenTimeout != null) {
+            mWidenTimeout.cancel();
+            mWidenTimeout = null;
+        }
+        mWidenNanos = widenNanos;
+        if (widenNanos == Long.MAX_VALUE) {
+            return;
+        }
+        mWidenTimeout = mWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (mMatchPending.compareAndSet(false, true)) {
+                    mExecutor.execute(mMatchTask);
+                }
+            }
+        }, TimeUnit.NANOSECONDS.toMillis(widenNanos - now) + 1);
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A process-wide registry of named counters and histograms describing what the app is doing:
+ * messages and bytes sent and received, decode and draw times, session start times and errors.
+ *
+ * <p>Metrics are looked up once, typically into static fields, and updated without locking:
+ * counters are striped across cache lines so that threads do not contend, and histograms are
+ * {@link LatencyHistogram}s with fixed buckets. While sampling is disabled, which is the default,
+ * every update is a single volatile read. The registry can be dumped as JSON on demand and
+ * written periodically to a compact binary file.
+ */
+public final class Metrics {
+    private static final String TAG = Metrics.class.getSimpleName();
+
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int TYPE_COUNTER = 1;
+    private static final int TYPE_HISTOGRAM = 2;
+
+    private static final ConcurrentHashMap<String, Counter> sCounters =
+            new ConcurrentHashMap<String, Counter>();
+    private static final ConcurrentHashMap<String, LatencyHistogram> sHistograms =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+    private static volatile boolean sEnabled;
+    private static ScheduledExecutorService sSnapshotExecutor;
+    private static ScheduledFuture<?> sSnapshotTask;
+
+    private Metrics() {
+    }
+
+    /**
+     * A monotonic counter which many threads can increment without contention.
+     */
+    public static final class Counter {
+        private static final int STRIPES = 8;
+        // Each stripe sits alone on a 64 byte cache line.
+        private static final int PADDING = 8;
+
+        private final AtomicLongArray mStripes = new AtomicLongArray(STRIPES * PADDING);
+
+        private Counter() {
+        }
+
+        public void increment() {
+            add(1);
+        }
+
+        public void add(long delta) {
+            if (sEnabled) {
+                int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+                mStripes.addAndGet(stripe * PADDING, delta);
+            }
+        }
+
+        public long get() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; ++i) {
+                sum += mStripes.get(i * PADDING);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Turns sampling on or off. Metrics keep their values while sampling is off.
+     */
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Returns the counter with the given name, creating it on first use.
+     */
+    public static Counter counter(String name) {
+        Counter counter = sCounters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = sCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it on first use. Values are recorded
+     * with {@link #record(LatencyHistogram, long)} or {@link #recordSince(LatencyHistogram, long)}
+     * so that they are dropped while sampling is off.
+     */
+    public static LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = sHistograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = sHistograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    public static void record(LatencyHistogram histogram, long value) {
+        if (sEnabled) {
+            histogram.record(value);
+        }
+    }
+
+    /**
+     * Returns the start time for a duration to be passed to recordSince(), or 0 if sampling is
+     * off, in which case the clock is not read.
+     */
+    public static long startTimer() {
+        return sEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the nanoseconds since startNanos, unless startNanos is 0.
+     */
+    public static void recordSince(LatencyHistogram histogram, long startNanos) {
+        if (startNanos != 0 && sEnabled) {
+            histogram.record(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Returns every metric as JSON: counters by name, and histograms by name with their count and
+     * percentiles.
+     */
+    public static JSONObject toJson() throws JSONException {
+        JSONObject counters = new JSONObject();
+        for (Map.Entry<String, Counter> entry
+                : new TreeMap<String, Counter>(sCounters).entrySet()) {
+            counters.put(entry.getKey(), entry.getValue().get());
+        }
+        JSONObject histograms = new JSONObject();
+        for (Map.Entry<String, LatencyHistogram> entry
+                : new TreeMap<String, LatencyHistogram>(sHistograms).entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            JSONObject summary = new JSONObject();
+            summary.put("count", histogram.getCount());
+            JSONArray percentiles = new JSONArray();
+            percentiles.put(histogram.getPercentile(50));
+            percentiles.put(histogram.getPercentile(90));
+            percentiles.put(histogram.getPercentile(99));
+            percentiles.put(histogram.getPercentile(100));
+            summary.put("p50_p90_p99_max", percentiles);
+            histograms.put(entry.getKey(), summary);
+        }
+        JSONObject json = new JSONObject();
+        json.put("enabled", sEnabled);
+        json.put("counters", counters);
+        json.put("histograms", histograms);
+        return json;
+    }
+
+    /**
+     * Writes every metric as JSON, for {@code dumpsys activity}.
+     */
+    public static void dump(PrintWriter writer) {
+        try {
+            writer.println("Metrics: " + toJson().toString(2));
+        } catch (JSONException e) {
+            writer.println("Metrics: unavailable (" + e.getMessage() + ")");
+        }
+    }
+
+    /**
+     * Writes a snapshot of every metric to file every periodMillis, replacing any previous
+     * schedule. Nothing is written while sampling is off.
+     */
+    public static synchronized void startSnapshots(final File file, long periodMillis) {
+        stopSnapshots();
+        if (sSnapshotExecutor == null) {
+            sSnapshotExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Metrics-snapshot");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        sSnapshotTask = sSnapshotExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                if (sEnabled) {
+                    writeSnapshot(file);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized void stopSnapshots() {
+        if (sSnapshotTask != null) {
+            sSnapshotTask.cancel(false);
+            sSnapshotTask = null;
+        }
+    }
+
+    /**
+     * Writes every metric to file in a compact binary form: a version byte and the wall clock
+     * time, then for each counter its name and value, and for each histogram its name and the
+     * index and count of each non-empty bucket. Numbers are written as unsigned varints.
+     */
+    public static void writeSnapshot(File file) {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeByte(SNAPSHOT_VERSION);
+            writeVarint(out, System.currentTimeMillis());
+            for (Map.Entry<String, Counter> entry : sCounters.entrySet()) {
+                out.writeByte(TYPE_COUNTER);
+                out.writeUTF(entry.getKey());
+                writeVarint(out, entry.getValue().get());
+            }
+            for (Map.Entry<String, LatencyHistogram> entry : sHistograms.entrySet()) {
+                LatencyHistogram histogram = entry.getValue();
+                out.writeByte(TYPE_HISTOGRAM);
+                out.writeUTF(entry.getKey());
+                for (int i = 0; i < LatencyHistogram.getBucketCount(); ++i) {
+                    long count = histogram.getBucket(i);
+                    if (count != 0) {
+                        writeVarint(out, i + 1);
+                        writeVarint(out, count);
+                    }
+                }
+                writeVarint(out, 0);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                Log.w(TAG, "Unable to replace " + file);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write a metrics snapshot", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // The temporary file is overwritten by the next snapshot.
+                }
+            }
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
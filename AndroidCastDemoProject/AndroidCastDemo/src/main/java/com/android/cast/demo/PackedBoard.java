@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+/**
+ * Encodes boards in the packed snapshot format of {@code board_layout_response}: two bits per
+ * cell, with runs of empty cells optionally run-length coded, as a base64 string.
+ *
+ * <p>The decoded bytes are a format byte, the number of cells as an unsigned varint, and the
+ * cells, four to a byte with the first cell in the lowest bits. In the run-length coded format a
+ * zero byte, which is four empty cells, is followed by the number of zero bytes in its run.
+ * Cells beyond the count in the last byte are zero. Decoding reads the base64 characters directly
+ * into the caller's buffer, without allocating.
+ */
+public final class PackedBoard {
+    private static final int FORMAT_RAW = 0x10;
+    private static final int FORMAT_RLE = 0x11;
+
+    private static final int MAX_RUN = 255;
+
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < VALUES.length; ++i) {
+            VALUES[i] = -1;
+        }
+        for (int i = 0; i < ALPHABET.length; ++i) {
+            VALUES[ALPHABET[i]] = (byte) i;
+        }
+    }
+
+    private PackedBoard() {
+    }
+
+    /**
+     * Encodes the first count cells, each 0, 1 or 2, choosing the shorter of the two formats.
+     */
+    public static String encode(int[] cells, int count) {
+        int packedLength = (count + 3) / 4;
+        byte[] packed = new byte[packedLength];
+        for (int i = 0; i < count; ++i) {
+            int cell = cells[i];
+            if ((cell & ~3) != 0 || cell == 3) {
+                throw new IllegalArgumentException("Invalid cell " + i + ": " + cell);
+            }
+            packed[i >> 2] |= cell << ((i & 3) * 2);
+        }
+
+        byte[] out = new byte[1 + 5 + packedLength * 2];
+        int length = 1 + writeVarint(out, 1, count);
+        int headerLength = length;
+        int rleLength = 0;
+        for (int i = 0; i < packedLength; ) {
+            if (packed[i] != 0) {
+                ++rleLength;
+                ++i;
+                continue;
+            }
+            int run = 1;
+            while (i + run < packedLength && packed[i + run] == 0 && run < MAX_RUN) {
+                ++run;
+            }
+            rleLength += 2;
+            i += run;
+        }
+
+        if (rleLength < packedLength) {
+            out[0] = (byte) FORMAT_RLE;
+            for (int i = 0; i < packedLength; ) {
+                if (packed[i] != 0) {
+                    out[length++] = packed[i++];
+                    continue;
+                }
+                int run = 1;
+                while (i + run < packedLength && packed[i + run] == 0 && run < MAX_RUN) {
+                    ++run;
+                }
+                out[length++] = 0;
+                out[length++] = (byte) run;
+                i += run;
+            }
+        } else {
+            out[0] = (byte) FORMAT_RAW;
+            System.arraycopy(packed, 0, out, headerLength, packedLength);
+            length += packedLength;
+        }
+        return toBase64(out, length);
+    }
+
+    private static int writeVarint(byte[] out, int offset, int value) {
+        int start = offset;
+        while ((value & ~0x7F) != 0) {
+            out[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[offset++] = (byte) value;
+        return offset - start;
+    }
+
+    private static String toBase64(byte[] bytes, int length) {
+        StringBuilder builder = new StringBuilder((length + 2) / 3 * 4);
+        for (int i = 0; i < length; i += 3) {
+            int b0 = bytes[i] & 0xFF;
+            int b1 = (i + 1 < length) ? bytes[i + 1] & 0xFF : 0;
+            int b2 = (i + 2 < length) ? bytes[i + 2] & 0xFF : 0;
+            builder.append(ALPHABET[b0 >> 2]);
+            builder.append(ALPHABET[((b0 & 3) << 4) | (b1 >> 4)]);
+            builder.append((i + 1 < length) ? ALPHABET[((b1 & 0xF) << 2) | (b2 >> 6)] : '=');
+            builder.append((i + 2 < length) ? ALPHABET[b2 & 0x3F] : '=');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Decodes a packed board into cells, which must hold at least as many cells as the board.
+     *
+     * @return the number of cells decoded
+     * @throws IllegalArgumentException if packed is malformed or does not fit into cells
+     */
+    public static int decode(CharSequence packed, int[] cells) {
+        Reader reader = new Reader(packed);
+        int count = readHeader(reader, cells.length);
+        boolean rle = reader.mFormat == FORMAT_RLE;
+        int i = 0;
+        while (i < count) {
+            int b = reader.readByte();
+            if (rle && b == 0) {
+                int end = Math.min(count, i + reader.readRun() * 4);
+                while (i < end) {
+                    cells[i++] = 0;
+                }
+                continue;
+            }
+            for (int shift = 0; shift < 8 && i < count; shift += 2) {
+                cells[i++] = checkCell((b >> shift) & 3);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Decodes a packed board into the rows of board, which must have exactly as many cells.
+     *
+     * @throws IllegalArgumentException if packed is malformed or is a board of another size
+     */
+    public static void decode(CharSequence packed, int[][] board) {
+        int columns = board[0].length;
+        int size = board.length * columns;
+        Reader reader = new Reader(packed);
+        if (readHeader(reader, size) != size) {
+            throw new IllegalArgumentException("Packed board is not " + size + " cells");
+        }
+        boolean rle = reader.mFormat == FORMAT_RLE;
+        int i = 0;
+        while (i < size) {
+            int b = reader.readByte();
+            if (rle && b == 0) {
+                int end = Math.min(size, i + reader.readRun() * 4);
+                for (; i < end; ++i) {
+                    board[i / columns][i % columns] = 0;
+                }
+                continue;
+            }
+            for (int shift = 0; shift < 8 && i < size; shift += 2, ++i) {
+                board[i / columns][i % columns] = checkCell((b >> shift) & 3);
+            }
+        }
+    }
+
+    private static int readHeader(Reader reader, int capacity) {
+        int format = reader.readByte();
+        if (format != FORMAT_RAW && format != FORMAT_RLE) {
+            throw new IllegalArgumentException("Unknown packed board format " + format);
+        }
+        reader.mFormat = format;
+        int count = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 28) {
+                throw new IllegalArgumentException("Malformed cell count");
+            }
+            int b = reader.readByte();
+            count |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (count < 0 || count > capacity) {
+            throw new IllegalArgumentException("Packed board of " + count + " cells does not fit");
+        }
+        return count;
+    }
+
+    private static int checkCell(int cell) {
+        if (cell == 3) {
+            throw new IllegalArgumentException("Invalid packed cell");
+        }
+        return cell;
+    }
+
+    /**
+     * Reads bytes from base64 characters.
+     */
+    private static final class Reader {
+        private final CharSequence mChars;
+        private int mPosition;
+        private int mBits;
+        private int mBitCount;
+        private int mFormat;
+
+        Reader(CharSequence chars) {
+            mChars = chars;
+        }
+
+        int readByte() {
+            while (mBitCount < 8) {
+                if (mPosition >= mChars.length()) {
+                    throw new IllegalArgumentException("Truncated packed board");
+                }
+                char c = mChars.charAt(mPosition++);
+                if (c == '=') {
+                    throw new IllegalArgumentException("Truncated packed board");
+                }
+                int value = (c < VALUES.length) ? VALUES[c] : -1;
+                if (value < 0) {
+                    throw new IllegalArgumentException("Invalid base64 character '" + c + "'");
+                }
+                mBits = (mBits << 6) | value;
+                mBitCount += 6;
+            }
+            mBitCount -= 8;
+            return (mBits >> mBitCount) & 0xFF;
+        }
+
+        int readRun() {
+            int run = readByte();
+            if (run == 0) {
+                throw new IllegalArgumentException("Empty run in packed board");
+            }
+            return run;
+        }
+    }
+}
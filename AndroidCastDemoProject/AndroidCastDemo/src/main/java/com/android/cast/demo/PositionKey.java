@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import com.android.cast.demo.GameView.State;
+
+/**
+ * A Zobrist hash of a square board which also tracks the hashes of the board's seven other
+ * rotations and reflections. All eight hashes are updated incrementally on every move, so the
+ * canonical key of a position, the same for every symmetric variant of it, is available without
+ * rescanning the board. None of the methods of this class allocate.
+ *
+ * <p>Transforms are numbered 0 to 7 and map a cell (row, column) of the board to the cell it
+ * occupies in the transformed board. The canonical key is the smallest of the eight hashes and
+ * {@link #canonicalTransform()} returns the transform that produced it, so that moves can be
+ * mapped into and out of canonical space with {@link #toCanonical} and {@link #fromCanonical}.
+ */
+public class PositionKey {
+    public static final int TRANSFORM_IDENTITY = 0;
+    public static final int TRANSFORM_ROTATE_90 = 1;
+    public static final int TRANSFORM_ROTATE_180 = 2;
+    public static final int TRANSFORM_ROTATE_270 = 3;
+    public static final int TRANSFORM_MIRROR_COLUMNS = 4;
+    public static final int TRANSFORM_TRANSPOSE = 5;
+    public static final int TRANSFORM_MIRROR_ROWS = 6;
+    public static final int TRANSFORM_ANTI_TRANSPOSE = 7;
+
+    private static final int TRANSFORM_COUNT = 8;
+
+    // Fixed so that keys are stable across processes and can be persisted.
+    private static final long ZOBRIST_SEED = 0x5DEECE66DL;
+
+    private final int mSize;
+    private final long[] mZobrist;
+    private final int[] mCells;
+    private final long[] mHashes = new long[TRANSFORM_COUNT];
+
+    /**
+     * Creates a key for an empty board with the given number of rows and columns.
+     */
+    public PositionKey(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Invalid board size: " + size);
+        }
+        mSize = size;
+        mCells = new int[size * size];
+        // Two random values per cell, one for each player; an empty cell contributes nothing.
+        mZobrist = new long[size * size * 2];
+        long seed = ZOBRIST_SEED;
+        for (int i = 0; i < mZobrist.length; ++i) {
+            seed += 0x9E3779B97F4A7C15L;
+            mZobrist[i] = mix(seed);
+        }
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Sets the cell at the given row and column to the given State value, updating all eight
+     * hashes in constant time.
+     */
+    public void set(int row, int column, State value) {
+        set(row, column, value.getValue());
+    }
+
+    /**
+     * Sets the cell at the given row and column to the given State int value. Values other than
+     * those of PLAYER_X and PLAYER_O are treated as empty.
+     */
+    public void set(int row, int column, int value) {
+        if (value != State.PLAYER_X.getValue() && value != State.PLAYER_O.getValue()) {
+            value = State.EMPTY.getValue();
+        }
+        int index = row * mSize + column;
+        int old = mCells[index];
+        if (old == value) {
+            return;
+        }
+        mCells[index] = value;
+        for (int t = 0; t < TRANSFORM_COUNT; ++t) {
+            int cell = toCanonical(t, row, column);
+            if (old != 0) {
+                mHashes[t] ^= mZobrist[cell * 2 + old - 1];
+            }
+            if (value != 0) {
+                mHashes[t] ^= mZobrist[cell * 2 + value - 1];
+            }
+        }
+    }
+
+    /**
+     * Replaces the whole position with the values stored in boardLayout.
+     */
+    public void setBoard(int[][] boardLayout) {
+        for (int i = 0; i < boardLayout.length; ++i) {
+            for (int j = 0; j < boardLayout[i].length; ++j) {
+                set(i, j, boardLayout[i][j]);
+            }
+        }
+    }
+
+    /**
+     * Resets the key to that of an empty board.
+     */
+    public void clear() {
+        for (int i = 0; i < mCells.length; ++i) {
+            mCells[i] = 0;
+        }
+        for (int t = 0; t < TRANSFORM_COUNT; ++t) {
+            mHashes[t] = 0;
+        }
+    }
+
+    /**
+     * Returns the hash of the position as it is, without symmetry reduction.
+     */
+    public long hash() {
+        return mHashes[TRANSFORM_IDENTITY];
+    }
+
+    /**
+     * Returns the hash of the position after applying the given transform.
+     */
+    public long hash(int transform) {
+        return mHashes[transform];
+    }
+
+    /**
+     * Returns the key shared by this position and all of its rotations and reflections.
+     */
+    public long canonicalKey() {
+        return mHashes[canonicalTransform()];
+    }
+
+    /**
+     * Returns the transform which maps this position onto its canonical form. Ties between
+     * symmetric transforms are broken in favor of the lowest transform number.
+     */
+    public int canonicalTransform() {
+        int best = 0;
+        for (int t = 1; t < TRANSFORM_COUNT; ++t) {
+            if (mHashes[t] < mHashes[best]) {
+                best = t;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Maps a cell of this board to the cell it occupies after applying the given transform.
+     *
+     * @return the transformed cell, packed as {@code row * getSize() + column}
+     */
+    public int toCanonical(int transform, int row, int column) {
+        int n = mSize - 1;
+        switch (transform) {
+            case TRANSFORM_ROTATE_90:
+                return column * mSize + (n - row);
+            case TRANSFORM_ROTATE_180:
+                return (n - row) * mSize + (n - column);
+            case TRANSFORM_ROTATE_270:
+                return (n - column) * mSize + row;
+            case TRANSFORM_MIRROR_COLUMNS:
+                return row * mSize + (n - column);
+            case TRANSFORM_TRANSPOSE:
+                return column * mSize + row;
+            case TRANSFORM_MIRROR_ROWS:
+                return (n - row) * mSize + column;
+            case TRANSFORM_ANTI_TRANSPOSE:
+                return (n - column) * mSize + (n - row);
+            default:
+                return row * mSize + column;
+        }
+    }
+
+    /**
+     * Maps a cell of the transformed board back to the cell of this board it came from. This is
+     * the inverse of {@link #toCanonical}.
+     *
+     * @return the original cell, packed as {@code row * getSize() + column}
+     */
+    public int fromCanonical(int transform, int row, int column) {
+        // Every transform is its own inverse, except for the two quarter turns.
+        if (transform == TRANSFORM_ROTATE_90) {
+            transform = TRANSFORM_ROTATE_270;
+        } else if (transform == TRANSFORM_ROTATE_270) {
+            transform = TRANSFORM_ROTATE_90;
+        }
+        return toCanonical(transform, row, column);
+    }
+
+    /**
+     * SplitMix64 finalizer, used to derive well-distributed Zobrist values from a counter.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of a command sent through a {@link GameMessageStream}, matched to its
+ * response by a correlation id. A future is completed on the thread which delivered the response,
+ * or on the stream's timeout thread, never on the UI thread; callbacks run on the executor they
+ * were registered with.
+ *
+ * @param <T> the type of the decoded response
+ */
+public class ResponseFuture<T> implements Future<T> {
+    /**
+     * A class which receives the outcome of a request.
+     */
+    public interface Callback<T> {
+        /**
+         * Called with the decoded response to the request.
+         */
+        void onSuccess(T result);
+
+        /**
+         * Called if the request could not be sent, was rejected by the receiver, timed out, or
+         * was cancelled.
+         */
+        void onFailure(Exception e);
+    }
+
+    private final String mRequestId;
+    private final String mResponseEvent;
+    private final GameMessageStream mStream;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    private List<Runnable> mCallbacks = new ArrayList<Runnable>();
+    private ScheduledFuture<?> mTimeout;
+    private T mResult;
+    private Exception mFailure;
+
+    ResponseFuture(GameMessageStream stream, String requestId, String responseEvent) {
+        mStream = stream;
+        mRequestId = requestId;
+        mResponseEvent = responseEvent;
+    }
+
+    /**
+     * Returns the correlation id sent with the request.
+     */
+    public String getRequestId() {
+        return mRequestId;
+    }
+
+    /**
+     * Returns the event type expected in response to the request.
+     */
+    String getResponseEvent() {
+        return mResponseEvent;
+    }
+
+    synchronized void setTimeout(ScheduledFuture<?> timeout) {
+        if (mCallbacks == null) {
+            // The response beat the timeout being armed.
+            timeout.cancel(false);
+            GameMessageStream.onTimeoutCancelled();
+        } else {
+            mTimeout = timeout;
+        }
+    }
+
+    /**
+     * Registers a callback to be run on executor once the request completes, or immediately if it
+     * already has.
+     */
+    public void addCallback(final Callback<? super T> callback, final Executor executor) {
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mFailure == null) {
+                            callback.onSuccess(mResult);
+                        } else {
+                            callback.onFailure(mFailure);
+                        }
+                    }
+                });
+            }
+        };
+        synchronized (this) {
+            if (mCallbacks != null) {
+                mCallbacks.add(runnable);
+                return;
+            }
+        }
+        runnable.run();
+    }
+
+    boolean complete(T result) {
+        return finish(result, null);
+    }
+
+    boolean fail(Exception failure) {
+        return finish(null, failure);
+    }
+
+    private boolean finish(T result, Exception failure) {
+        List<Runnable> callbacks;
+        synchronized (this) {
+            if (mCallbacks == null) {
+                return false;
+            }
+            mResult = result;
+            mFailure = failure;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+            if (mTimeout != null) {
+                mTimeout.cancel(false);
+                mTimeout = null;
+                GameMessageStream.onTimeoutCancelled();
+            }
+        }
+        mStream.removePendingRequest(this);
+        mDone.countDown();
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+        return true;
+    }
+
+    /**
+     * Stops waiting for the response. A response arriving later is dropped.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return fail(new CancellationException("Request " + mRequestId + " was cancelled"));
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mFailure instanceof CancellationException;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mCallbacks == null;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return getResult();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException("No response to request " + mRequestId);
+        }
+        return getResult();
+    }
+
+    private synchronized T getResult() throws ExecutionException {
+        if (mFailure instanceof CancellationException) {
+            throw (CancellationException) mFailure;
+        } else if (mFailure != null) {
+            throw new ExecutionException(mFailure);
+        }
+        return mResult;
+    }
+}
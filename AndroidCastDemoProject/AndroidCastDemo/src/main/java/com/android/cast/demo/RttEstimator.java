@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+/**
+ * A smoothed round trip time and its mean deviation, kept the way TCP keeps SRTT and RTTVAR
+ * (RFC 6298), from which retransmission-style timeouts are derived.
+ *
+ * <p>Each sample moves the smoothed time by 1/8 of its error and the deviation by 1/4 of the
+ * change in error, using shifts on nanoseconds. The timeout is the smoothed time plus four
+ * deviations, clamped to [{@link #MIN_TIMEOUT_MS}, {@link #MAX_TIMEOUT_MS}], and doubles on
+ * every {@link #backoff()} until the next sample. This class is thread-safe.
+ */
+public class RttEstimator {
+    static final long INITIAL_TIMEOUT_MS = 1000;
+    static final long MIN_TIMEOUT_MS = 500;
+    static final long MAX_TIMEOUT_MS = 60000;
+
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    private long mSmoothedNanos;
+    private long mVarianceNanos;
+    private long mTimeoutMillis = INITIAL_TIMEOUT_MS;
+    private int mSamples;
+
+    /**
+     * Adds a measured round trip time.
+     */
+    public synchronized void sample(long rttNanos) {
+        if (mSamples == 0) {
+            mSmoothedNanos = rttNanos;
+            mVarianceNanos = rttNanos / 2;
+        } else {
+            long error = rttNanos - mSmoothedNanos;
+            mVarianceNanos += (Math.abs(error) - mVarianceNanos) >> 2;
+            mSmoothedNanos += error >> 3;
+        }
+        ++mSamples;
+        long timeout = (mSmoothedNanos + 4 * mVarianceNanos) / NANOS_PER_MILLI;
+        mTimeoutMillis = Math.max(MIN_TIMEOUT_MS, Math.min(timeout, MAX_TIMEOUT_MS));
+    }
+
+    /**
+     * Doubles the timeout after something timed out, as the path may have got slower than the
+     * samples so far say.
+     */
+    public synchronized void backoff() {
+        mTimeoutMillis = Math.min(mTimeoutMillis * 2, MAX_TIMEOUT_MS);
+    }
+
+    /**
+     * Returns how long to wait for a response before giving up on it.
+     */
+    public synchronized long getTimeoutMillis() {
+        return mTimeoutMillis;
+    }
+
+    /**
+     * Returns the smoothed round trip time, or -1 before the first sample.
+     */
+    public synchronized long getSmoothedMillis() {
+        return mSamples == 0 ? -1 : mSmoothedNanos / NANOS_PER_MILLI;
+    }
+
+    /**
+     * Returns the mean deviation of the round trip time, or -1 before the first sample.
+     */
+    public synchronized long getVarianceMillis() {
+        return mSamples == 0 ? -1 : mVarianceNanos / NANOS_PER_MILLI;
+    }
+
+    public synchronized int getSampleCount() {
+        return mSamples;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "srtt=" + getSmoothedMillis() + "ms rttvar=" + getVarianceMillis() + "ms timeout="
+                + mTimeoutMillis + "ms samples=" + mSamples;
+    }
+}
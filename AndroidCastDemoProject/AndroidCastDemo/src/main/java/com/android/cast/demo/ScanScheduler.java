@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.google.cast.CastContext;
+import com.google.cast.CastDevice;
+import com.google.cast.DeviceManager;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs a single discovery scan on behalf of every part of the app which wants to see devices,
+ * scanning hard only while the results are still changing.
+ *
+ * <p>A consumer joining starts a burst: the scan runs continuously until no device has come or
+ * gone for {@link #STABLE_MS}, bounded by {@link #BURST_MIN_MS} and {@link #BURST_MAX_MS}. After
+ * that the scan is duty cycled, running for {@link #LOW_ON_MS} and then pausing for a period
+ * which doubles up to {@link #LOW_OFF_MAX_MS}; any change seen while duty cycled starts a new
+ * burst. A scan suspended by a network error is retried with jittered exponential backoff.
+ *
+ * <p>Devices seen so far are replayed to a consumer when it joins, and the scan stops once the
+ * last consumer leaves. Must only be used from the main thread.
+ */
+public class ScanScheduler {
+    private static final String TAG = ScanScheduler.class.getSimpleName();
+
+    static final long BURST_MIN_MS = 4000;
+    static final long BURST_MAX_MS = 15000;
+    static final long STABLE_MS = 3000;
+    static final long LOW_ON_MS = 2000;
+    static final long LOW_OFF_MIN_MS = 10000;
+    static final long LOW_OFF_MAX_MS = 60000;
+    static final long RETRY_MIN_MS = 1000;
+    static final long RETRY_MAX_MS = 60000;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_BURST = 1;
+    private static final int STATE_LOW_ON = 2;
+    private static final int STATE_LOW_OFF = 3;
+    private static final int STATE_BACKOFF = 4;
+
+    private static final Metrics.Counter SCAN_STARTS = Metrics.counter("discovery.scan_starts");
+    private static final Metrics.Counter SCAN_RETRIES = Metrics.counter("discovery.scan_retries");
+    private static final Metrics.Counter HELD_MS = Metrics.counter("discovery.scan_held_ms");
+    private static final Metrics.Counter ACTIVE_MS = Metrics.counter("discovery.scan_active_ms");
+
+    /**
+     * The discovery scan a schedule drives, and the clock and timer it runs on. Replaced in tests.
+     */
+    interface Host {
+        void startScan();
+
+        void stopScan();
+
+        /**
+         * Returns the elapsed realtime in milliseconds.
+         */
+        long now();
+
+        /**
+         * Returns the CPU time used by the process in milliseconds.
+         */
+        long cpuTime();
+
+        /**
+         * Runs task on the main thread after delayMillis, replacing any earlier posting of it.
+         */
+        void schedule(Runnable task, long delayMillis);
+
+        void cancel(Runnable task);
+    }
+
+    private final Host mHost;
+    private final Random mRandom = new Random();
+    private final List<DeviceManager.Listener> mConsumers =
+            new ArrayList<DeviceManager.Listener>();
+    private final LinkedHashMap<String, CastDevice> mDevices =
+            new LinkedHashMap<String, CastDevice>();
+
+    private int mState = STATE_IDLE;
+    private boolean mScanning;
+    private long mBurstStart;
+    private long mLastChange;
+    private long mLowOffMillis;
+    private int mFailures;
+
+    // Accounting, in elapsed realtime and process CPU milliseconds.
+    private long mHeldSince;
+    private long mActiveSince;
+    // Where the current scanning or paused stretch started.
+    private long mCpuSince;
+    private long mHeldMillis;
+    private long mActiveMillis;
+    private long mActiveCpuMillis;
+    private long mIdleCpuMillis;
+
+    private final Runnable mPhaseTask = new Runnable() {
+        @Override
+        public void run() {
+            onPhaseDue();
+        }
+    };
+
+    public ScanScheduler(CastContext castContext) {
+        final DeviceManager deviceManager = new DeviceManager(castContext);
+        final Handler handler = new Handler();
+        mHost = new Host() {
+            @Override
+            public void startScan() {
+                deviceManager.startScan();
+            }
+
+            @Override
+            public void stopScan() {
+                deviceManager.stopScan();
+            }
+
+            @Override
+            public long now() {
+                return SystemClock.elapsedRealtime();
+            }
+
+            @Override
+            public long cpuTime() {
+                return Process.getElapsedCpuTime();
+            }
+
+            @Override
+            public void schedule(Runnable task, long delayMillis) {
+                handler.removeCallbacks(task);
+                handler.postDelayed(task, delayMillis);
+            }
+
+            @Override
+            public void cancel(Runnable task) {
+                handler.removeCallbacks(task);
+            }
+        };
+        deviceManager.addListener(new DeviceManager.Listener() {
+            @Override
+            public void onScanStateChanged(int state) {
+                ScanScheduler.this.onScanStateChanged(state);
+            }
+
+            @Override
+            public void onDeviceOnline(CastDevice device) {
+                ScanScheduler.this.onDeviceOnline(device.getDeviceId(), device);
+            }
+
+            @Override
+            public void onDeviceOffline(CastDevice device) {
+                ScanScheduler.this.onDeviceOffline(device.getDeviceId(), device);
+            }
+        });
+    }
+
+    /**
+     * Creates a schedule on host, whose scan events are passed in through the on* methods.
+     */
+    ScanScheduler(Host host) {
+        mHost = host;
+    }
+
+    /**
+     * Adds a consumer, which is told about every device seen so far and then about every change,
+     * and starts a burst of scanning.
+     */
+    public void addConsumer(DeviceManager.Listener consumer) {
+        if (mConsumers.contains(consumer)) {
+            return;
+        }
+        mConsumers.add(consumer);
+        for (CastDevice device : mDevices.values()) {
+            consumer.onDeviceOnline(device);
+        }
+        if (mConsumers.size() == 1) {
+            mHeldSince = mHost.now();
+            mCpuSince = mHost.cpuTime();
+        }
+        // A consumer which just joined wants fresh results, unless a retry is already pending.
+        if (mState != STATE_BACKOFF) {
+            startBurst();
+        }
+    }
+
+    /**
+     * Removes a consumer, and stops scanning if it was the last one.
+     */
+    public void removeConsumer(DeviceManager.Listener consumer) {
+        if (!mConsumers.remove(consumer) || !mConsumers.isEmpty()) {
+            return;
+        }
+        mHost.cancel(mPhaseTask);
+        if (!mScanning) {
+            mIdleCpuMillis += mHost.cpuTime() - mCpuSince;
+        }
+        setScanning(false);
+        long held = mHost.now() - mHeldSince;
+        mHeldMillis += held;
+        HELD_MS.add(held);
+        mState = STATE_IDLE;
+        mFailures = 0;
+        // Nobody is watching, so whatever was seen is about to go stale.
+        mDevices.clear();
+    }
+
+    private void startBurst() {
+        long now = mHost.now();
+        mState = STATE_BURST;
+        mBurstStart = now;
+        mLastChange = now;
+        mLowOffMillis = LOW_OFF_MIN_MS;
+        setScanning(true);
+        schedulePhase(BURST_MIN_MS);
+    }
+
+    private void onPhaseDue() {
+        long now = mHost.now();
+        switch (mState) {
+            case STATE_BURST:
+                long stableAt = Math.max(mBurstStart + BURST_MIN_MS, mLastChange + STABLE_MS);
+                long endAt = Math.min(stableAt, mBurstStart + BURST_MAX_MS);
+                if (now < endAt) {
+                    schedulePhase(endAt - now);
+                    return;
+                }
+                mFailures = 0;
+                mState = STATE_LOW_OFF;
+                setScanning(false);
+                schedulePhase(mLowOffMillis);
+                break;
+            case STATE_LOW_ON:
+                mState = STATE_LOW_OFF;
+                setScanning(false);
+                mLowOffMillis = Math.min(mLowOffMillis * 2, LOW_OFF_MAX_MS);
+                schedulePhase(mLowOffMillis);
+                break;
+            case STATE_LOW_OFF:
+                mState = STATE_LOW_ON;
+                setScanning(true);
+                schedulePhase(LOW_ON_MS);
+                break;
+            case STATE_BACKOFF:
+                SCAN_RETRIES.increment();
+                startBurst();
+                break;
+            default:
+                break;
+        }
+    }
+
+    void onScanStateChanged(int state) {
+        if (state == DeviceManager.SCAN_SUSPENDED_NETWORK_ERROR && mState != STATE_IDLE) {
+            setScanning(false);
+            long delay = Math.min(RETRY_MIN_MS << Math.min(mFailures, 16), RETRY_MAX_MS);
+            // Up to half the delay again, so that clients which failed together do not retry
+            // together.
+            delay += (long) (mRandom.nextFloat() * delay / 2);
+            ++mFailures;
+            mState = STATE_BACKOFF;
+            schedulePhase(delay);
+        }
+        // Copied, since a consumer may remove itself from the callback.
+        for (DeviceManager.Listener consumer : snapshotConsumers()) {
+            consumer.onScanStateChanged(state);
+        }
+    }
+
+    void onDeviceOnline(String deviceId, CastDevice device) {
+        boolean isNew = !mDevices.containsKey(deviceId);
+        mDevices.put(deviceId, device);
+        if (isNew) {
+            onChange();
+        }
+        for (DeviceManager.Listener consumer : snapshotConsumers()) {
+            consumer.onDeviceOnline(device);
+        }
+    }
+
+    void onDeviceOffline(String deviceId, CastDevice device) {
+        if (mDevices.containsKey(deviceId)) {
+            mDevices.remove(deviceId);
+            onChange();
+        }
+        for (DeviceManager.Listener consumer : snapshotConsumers()) {
+            consumer.onDeviceOffline(device);
+        }
+    }
+
+    private void onChange() {
+        mLastChange = mHost.now();
+        if (mState == STATE_LOW_ON) {
+            startBurst();
+        }
+    }
+
+    private List<DeviceManager.Listener> snapshotConsumers() {
+        return new ArrayList<DeviceManager.Listener>(mConsumers);
+    }
+
+    private void schedulePhase(long delayMillis) {
+        mHost.schedule(mPhaseTask, delayMillis);
+    }
+
+    private void setScanning(boolean scanning) {
+        if (scanning == mScanning) {
+            return;
+        }
+        mScanning = scanning;
+        long now = mHost.now();
+        long cpu = mHost.cpuTime();
+        if (scanning) {
+            mIdleCpuMillis += cpu - mCpuSince;
+            mActiveSince = now;
+            mCpuSince = cpu;
+            SCAN_STARTS.increment();
+            mHost.startScan();
+        } else {
+            mHost.stopScan();
+            long active = now - mActiveSince;
+            mActiveMillis += active;
+            mActiveCpuMillis += cpu - mCpuSince;
+            mCpuSince = cpu;
+            ACTIVE_MS.add(active);
+        }
+    }
+
+    boolean isScanning() {
+        return mScanning;
+    }
+
+    /**
+     * Returns how long any consumer has wanted the scan, in total.
+     */
+    long getHeldMillis() {
+        return mHeldMillis + (mConsumers.isEmpty() ? 0 : mHost.now() - mHeldSince);
+    }
+
+    /**
+     * Returns how long the scan has actually run, in total.
+     */
+    long getScanningMillis() {
+        return mActiveMillis + (mScanning ? mHost.now() - mActiveSince : 0);
+    }
+
+    /**
+     * Returns the process CPU time spent while the scan ran.
+     */
+    long getScanningCpuMillis() {
+        return mActiveCpuMillis + (mScanning ? mHost.cpuTime() - mCpuSince : 0);
+    }
+
+    /**
+     * Returns the process CPU time spent while the scan was wanted but paused.
+     */
+    long getPausedCpuMillis() {
+        return mIdleCpuMillis
+                + (!mScanning && !mConsumers.isEmpty() ? mHost.cpuTime() - mCpuSince : 0);
+    }
+
+    /**
+     * Writes how long the scan was wanted, how long it actually ran, and the process CPU time
+     * spent while it ran and while it was paused, for {@code dumpsys activity}.
+     */
+    public void dump(PrintWriter writer) {
+        long held = getHeldMillis();
+        long active = getScanningMillis();
+        long activeCpu = getScanningCpuMillis();
+        long idleCpu = getPausedCpuMillis();
+        long paused = held - active;
+        writer.println(TAG + ": consumers=" + mConsumers.size() + " state=" + mState
+                + " devices=" + mDevices.size() + " failures=" + mFailures);
+        writer.println(TAG + ": held=" + held + "ms scanning=" + active + "ms ("
+                + (held > 0 ? active * 100 / held : 0) + "%) radio saved=" + paused + "ms");
+        writer.println(TAG + ": cpu while scanning=" + activeCpu + "ms while paused=" + idleCpu
+                + "ms");
+        if (active > 0 && paused > 0) {
+            // What the paused time would have cost at the scanning rate, less what it did cost.
+            long saved = activeCpu * paused / active - idleCpu;
+            writer.println(TAG + ": cpu saved~=" + saved + "ms");
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * An Executor which runs its tasks one at a time, in submission order, on a shared underlying
+ * executor. Many serial executors can share one thread pool, giving each simulated client or
+ * receiver its own ordered event loop without a thread of its own.
+ */
+public class SerialExecutor implements Executor {
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+    private final Executor mExecutor;
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+    private boolean mActive;
+
+    public SerialExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        synchronized (this) {
+            mTasks.add(task);
+            if (mActive) {
+                return;
+            }
+            mActive = true;
+        }
+        mExecutor.execute(mDrainTask);
+    }
+
+    private void drain() {
+        while (true) {
+            Runnable task;
+            synchronized (this) {
+                task = mTasks.poll();
+                if (task == null) {
+                    mActive = false;
+                    return;
+                }
+            }
+            task.run();
+        }
+    }
+}
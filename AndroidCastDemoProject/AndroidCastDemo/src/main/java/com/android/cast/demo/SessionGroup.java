@@ -0,0 +1,493 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.google.cast.ApplicationChannel;
+import com.google.cast.ApplicationMetadata;
+import com.google.cast.ApplicationSession;
+import com.google.cast.CastContext;
+import com.google.cast.CastDevice;
+import com.google.cast.SessionError;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A group of sessions showing one game on several Cast devices. The primary device runs the game
+ * and is the authority for its state; every other device is a mirror which only displays it.
+ *
+ * <p>All sessions are started at once. Each event the primary device sends is encoded once into a
+ * mirror command and handed to every mirror on its own sender thread, so a slow or dead mirror
+ * can neither delay the others nor the game. A mirror whose backlog grows past a limit, or whose
+ * session fails, is dropped from the group and its session is restarted after an exponential
+ * backoff. Must be used from the main thread.
+ */
+public class SessionGroup {
+    private static final String TAG = SessionGroup.class.getSimpleName();
+
+    private static final String KEY_COMMAND = "command";
+    private static final String KEY_MIRROR = "mirror";
+    private static final String KEY_EVENT = "event";
+    private static final String KEY_PLAYER = "player";
+    private static final String KEY_ROW = "row";
+    private static final String KEY_COLUMN = "column";
+    private static final String KEY_END_STATE = "end_state";
+    private static final String KEY_WINNING_LOCATION = "winning_location";
+    private static final String KEY_BOARD = "board";
+
+    private static final int MAX_BACKLOG = 16;
+    private static final long RETRY_MIN_DELAY_MS = 2000;
+    private static final long RETRY_MAX_DELAY_MS = 60000;
+
+    private static final LatencyHistogram MIRROR_BACKLOG = Metrics.histogram("mirror.backlog");
+
+    /**
+     * A class which listens to the session of the primary device.
+     */
+    public interface Listener {
+        /**
+         * Called when the primary session has started and its channel is available.
+         */
+        void onSessionStarted(ApplicationChannel channel);
+
+        void onSessionStartFailed(SessionError error);
+
+        void onSessionEnded(SessionError error);
+    }
+
+    private final CastContext mCastContext;
+    private final CastDevice mPrimaryDevice;
+    private final List<Mirror> mMirrors = new ArrayList<Mirror>();
+    private final int[] mBoard = new int[9];
+    private final Handler mHandler = new Handler();
+
+    private String mApplicationName;
+    private ApplicationSession mPrimarySession;
+    private GameEventBus.Subscription mSubscription;
+    private boolean mEnded;
+
+    /**
+     * Creates a group showing the game run by primaryDevice on every device in mirrorDevices.
+     */
+    public SessionGroup(CastContext castContext, CastDevice primaryDevice,
+            List<CastDevice> mirrorDevices) {
+        mCastContext = castContext;
+        mPrimaryDevice = primaryDevice;
+        for (CastDevice device : mirrorDevices) {
+            if (!device.equals(primaryDevice)) {
+                mMirrors.add(new Mirror(device));
+            }
+        }
+    }
+
+    /**
+     * Starts the sessions on all devices. Events received by gameStream, once it is attached to
+     * the primary session, are mirrored to the other devices.
+     *
+     * @throws IOException if the primary session could not be started, in which case the whole
+     *     group is ended
+     */
+    public void start(String applicationName, GameMessageStream gameStream,
+            final Listener listener) throws IOException {
+        mApplicationName = applicationName;
+        mSubscription = gameStream.getEventBus().subscribe(new GameEventBus.Subscriber() {
+            @Override
+            public void onEvent(GameEvent event) {
+                mirror(event);
+            }
+        }, null);
+
+        mPrimarySession = new ApplicationSession(mCastContext, mPrimaryDevice);
+        mPrimarySession.setListener(new ApplicationSession.Listener() {
+            @Override
+            public void onSessionStarted(ApplicationMetadata appMetadata) {
+                ApplicationChannel channel = mPrimarySession.getChannel();
+                if (channel == null) {
+                    Log.w(TAG, "onStarted: channel is null");
+                    return;
+                }
+                listener.onSessionStarted(channel);
+            }
+
+            @Override
+            public void onSessionStartFailed(SessionError error) {
+                listener.onSessionStartFailed(error);
+            }
+
+            @Override
+            public void onSessionEnded(SessionError error) {
+                listener.onSessionEnded(error);
+            }
+        });
+        boolean started = false;
+        try {
+            for (Mirror mirror : mMirrors) {
+                mirror.start();
+            }
+            mPrimarySession.startSession(applicationName);
+            started = true;
+        } finally {
+            if (!started) {
+                end();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the primary session has a channel a stream can be attached to.
+     */
+    public boolean hasPrimaryChannel() {
+        return mPrimarySession != null && mPrimarySession.hasChannel();
+    }
+
+    /**
+     * Ends all sessions of the group.
+     */
+    public void end() {
+        mEnded = true;
+        if (mSubscription != null) {
+            mSubscription.cancel();
+            mSubscription = null;
+        }
+        for (Mirror mirror : mMirrors) {
+            mirror.end();
+        }
+        if (mPrimarySession != null) {
+            endSession(mPrimarySession);
+            mPrimarySession = null;
+        }
+    }
+
+    /**
+     * Returns the mirrors of this group, including those which were dropped.
+     */
+    public List<Mirror> getMirrors() {
+        return Collections.unmodifiableList(mMirrors);
+    }
+
+    /**
+     * Encodes an event of the primary device once and queues it for every mirror.
+     */
+    private void mirror(GameEvent event) {
+        try {
+            JSONObject payload = new JSONObject();
+            payload.put(KEY_COMMAND, KEY_MIRROR);
+            switch (event.getType()) {
+                case GameEvent.TYPE_JOINED:
+                    for (int i = 0; i < mBoard.length; ++i) {
+                        mBoard[i] = 0;
+                    }
+                    payload.put(KEY_EVENT, "joined");
+                    break;
+                case GameEvent.TYPE_MOVED:
+                    mBoard[event.getRow() * 3 + event.getColumn()] =
+                            GameMessageStream.PLAYER_X.equals(event.getPlayer())
+                                    ? GameView.State.PLAYER_X.getValue()
+                                    : GameView.State.PLAYER_O.getValue();
+                    payload.put(KEY_EVENT, "moved");
+                    payload.put(KEY_PLAYER, event.getPlayer());
+                    payload.put(KEY_ROW, event.getRow());
+                    payload.put(KEY_COLUMN, event.getColumn());
+                    break;
+                case GameEvent.TYPE_ENDGAME:
+                    payload.put(KEY_EVENT, "endgame");
+                    payload.put(KEY_END_STATE, event.getEndState());
+                    payload.put(KEY_WINNING_LOCATION, event.getWinningLocation());
+                    break;
+                case GameEvent.TYPE_BOARD_LAYOUT:
+                    int[][] boardLayout = event.getBoardLayout();
+                    if (boardLayout.length != 3) {
+                        return;
+                    }
+                    for (int i = 0; i < 3; ++i) {
+                        for (int j = 0; j < 3; ++j) {
+                            mBoard[i * 3 + j] = boardLayout[i][j];
+                        }
+                    }
+                    payload = encodeBoard();
+                    break;
+                default:
+                    return;
+            }
+            for (Mirror mirror : mMirrors) {
+                mirror.send(payload);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Cannot create object to mirror an event", e);
+        }
+    }
+
+    private JSONObject encodeBoard() throws JSONException {
+        JSONArray board = new JSONArray();
+        for (int value : mBoard) {
+            board.put(value);
+        }
+        JSONObject payload = new JSONObject();
+        payload.put(KEY_COMMAND, KEY_MIRROR);
+        payload.put(KEY_EVENT, "board_layout_response");
+        payload.put(KEY_BOARD, board);
+        return payload;
+    }
+
+    private static void endSession(ApplicationSession session) {
+        try {
+            if (session.hasStarted()) {
+                session.endSession();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to end the session.", e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Unable to end session.", e);
+        }
+    }
+
+    /**
+     * A mirror device of the group, with its own sender thread and send latency statistics.
+     */
+    public final class Mirror {
+        private final CastDevice mDevice;
+        private final MirrorStream mStream = new MirrorStream();
+        private final AtomicInteger mBacklog = new AtomicInteger();
+        private final ExecutorService mSender;
+        private ApplicationSession mSession;
+        private long mRetryDelayMillis = RETRY_MIN_DELAY_MS;
+        // Incremented on each restart, so sends queued for an earlier session are skipped.
+        private volatile int mGeneration;
+        private volatile boolean mReady;
+        private volatile boolean mDropped;
+
+        private final Runnable mDroppedTask = new Runnable() {
+            @Override
+            public void run() {
+                scheduleRetry();
+            }
+        };
+
+        private final Runnable mRetryTask = new Runnable() {
+            @Override
+            public void run() {
+                retry();
+            }
+        };
+        private volatile long mLastLatencyNanos;
+        private volatile long mAverageLatencyNanos;
+        private volatile long mMaxLatencyNanos;
+
+        private Mirror(CastDevice device) {
+            mDevice = device;
+            mSender = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SessionGroup-" + mDevice.getFriendlyName());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        public CastDevice getDevice() {
+            return mDevice;
+        }
+
+        /**
+         * Returns true if the mirror is currently dropped for falling too far behind or failing,
+         * and is waiting to be restarted.
+         */
+        public boolean isDropped() {
+            return mDropped;
+        }
+
+        /**
+         * Returns the time the last send took, from being queued to being handed to the device.
+         */
+        public long getLastLatencyMillis() {
+            return mLastLatencyNanos / 1000000;
+        }
+
+        /**
+         * Returns the exponentially weighted moving average of the send latency.
+         */
+        public long getAverageLatencyMillis() {
+            return mAverageLatencyNanos / 1000000;
+        }
+
+        public long getMaxLatencyMillis() {
+            return mMaxLatencyNanos / 1000000;
+        }
+
+        private void start() {
+            final ApplicationSession session = new ApplicationSession(mCastContext, mDevice);
+            mSession = session;
+            session.setListener(new ApplicationSession.Listener() {
+                @Override
+                public void onSessionStarted(ApplicationMetadata appMetadata) {
+                    if (session != mSession) {
+                        return;
+                    }
+                    ApplicationChannel channel = session.getChannel();
+                    if (channel == null) {
+                        drop("no channel");
+                        return;
+                    }
+                    channel.attachMessageStream(mStream);
+                    mReady = true;
+                    mRetryDelayMillis = RETRY_MIN_DELAY_MS;
+                    // Catch up with whatever happened before this mirror came up.
+                    try {
+                        send(encodeBoard());
+                    } catch (JSONException e) {
+                        Log.e(TAG, "Cannot create object to mirror the board", e);
+                    }
+                }
+
+                @Override
+                public void onSessionStartFailed(SessionError error) {
+                    if (session == mSession) {
+                        drop("start session failed: " + error);
+                    }
+                }
+
+                @Override
+                public void onSessionEnded(SessionError error) {
+                    if (session == mSession) {
+                        drop("session ended: " + ((error == null) ? "OK" : error.toString()));
+                    }
+                }
+            });
+            try {
+                session.startSession(mApplicationName);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to open a mirror session", e);
+                drop("failed to open");
+            }
+        }
+
+        private void send(final JSONObject payload) {
+            if (!mReady || mDropped) {
+                return;
+            }
+            int backlog = mBacklog.incrementAndGet();
+            Metrics.record(MIRROR_BACKLOG, backlog);
+            if (backlog > MAX_BACKLOG) {
+                drop("backlog exceeded");
+                return;
+            }
+            final long queuedAt = System.nanoTime();
+            final int generation = mGeneration;
+            mSender.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!mDropped && generation == mGeneration) {
+                            mStream.forward(payload);
+                            recordLatency(System.nanoTime() - queuedAt);
+                        }
+                    } catch (IOException e) {
+                        Log.e(TAG, "Unable to mirror to " + mDevice.getFriendlyName(), e);
+                        drop("send failed");
+                    } catch (IllegalStateException e) {
+                        Log.e(TAG, "Mirror stream is not attached", e);
+                        drop("not attached");
+                    } finally {
+                        mBacklog.decrementAndGet();
+                    }
+                }
+            });
+        }
+
+        private void recordLatency(long nanos) {
+            mLastLatencyNanos = nanos;
+            long average = mAverageLatencyNanos;
+            mAverageLatencyNanos = (average == 0) ? nanos : average + (nanos - average) / 8;
+            if (nanos > mMaxLatencyNanos) {
+                mMaxLatencyNanos = nanos;
+            }
+        }
+
+        /**
+         * Stops mirroring to this device and schedules a restart. May be called on any thread.
+         */
+        private void drop(String reason) {
+            if (!mDropped) {
+                Log.w(TAG, "Dropping mirror " + mDevice.getFriendlyName() + ": " + reason);
+                mDropped = true;
+                mHandler.post(mDroppedTask);
+            }
+        }
+
+        private void scheduleRetry() {
+            if (mEnded) {
+                return;
+            }
+            mReady = false;
+            if (mSession != null) {
+                ApplicationSession session = mSession;
+                mSession = null;
+                endSession(session);
+            }
+            mHandler.postDelayed(mRetryTask, mRetryDelayMillis);
+            mRetryDelayMillis = Math.min(mRetryDelayMillis * 2, RETRY_MAX_DELAY_MS);
+        }
+
+        private void retry() {
+            if (mEnded) {
+                return;
+            }
+            Log.i(TAG, "Restarting mirror " + mDevice.getFriendlyName());
+            mGeneration++;
+            mDropped = false;
+            start();
+        }
+
+        private void end() {
+            mDropped = true;
+            mHandler.removeCallbacks(mDroppedTask);
+            mHandler.removeCallbacks(mRetryTask);
+            mSender.shutdown();
+            if (mSession != null) {
+                endSession(mSession);
+                mSession = null;
+            }
+        }
+    }
+
+    /**
+     * A stream on the game namespace which only sends; events from mirrors are ignored.
+     */
+    private static class MirrorStream extends GameMessageStream {
+        void forward(JSONObject payload) throws IOException {
+            sendMessage(payload);
+        }
+
+        @Override
+        public void onMessageReceived(JSONObject message) {
+        }
+    }
+}
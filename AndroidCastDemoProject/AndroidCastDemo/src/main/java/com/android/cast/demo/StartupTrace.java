@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/**
+ * Timing markers for the phases of a cold start, measured from the time the application class
+ * was loaded, which is shortly after the process started. Each phase is recorded once per
+ * process, logged as it happens and kept for {@link #dump(PrintWriter)}.
+ */
+public final class StartupTrace {
+    private static final String TAG = StartupTrace.class.getSimpleName();
+
+    public static final int PHASE_APPLICATION_CREATED = 0;
+    public static final int PHASE_MAIN_ACTIVITY_CREATED = 1;
+    public static final int PHASE_MAIN_FIRST_FRAME = 2;
+    public static final int PHASE_CAST_CONTEXT_READY = 3;
+    public static final int PHASE_PIECE_BITMAPS_READY = 4;
+    public static final int PHASE_GAME_FIRST_FRAME = 5;
+
+    private static final String[] PHASE_NAMES = {
+        "application_created", "main_activity_created", "main_first_frame", "cast_context_ready",
+        "piece_bitmaps_ready", "game_first_frame"
+    };
+
+    private static final long NOT_REACHED = -1;
+
+    private static final long[] sPhaseTimes = new long[PHASE_NAMES.length];
+    private static long sStartNanos;
+
+    static {
+        for (int i = 0; i < sPhaseTimes.length; ++i) {
+            sPhaseTimes[i] = NOT_REACHED;
+        }
+    }
+
+    private StartupTrace() {
+    }
+
+    /**
+     * Sets the time all phases are measured from. Called once, when the application class is
+     * loaded.
+     */
+    static synchronized void start() {
+        if (sStartNanos == 0) {
+            sStartNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Records that phase was reached now, unless it was reached before. May be called on any
+     * thread.
+     */
+    public static void mark(int phase) {
+        long elapsed;
+        synchronized (StartupTrace.class) {
+            if (sPhaseTimes[phase] != NOT_REACHED || sStartNanos == 0) {
+                return;
+            }
+            elapsed = System.nanoTime() - sStartNanos;
+            sPhaseTimes[phase] = elapsed;
+        }
+        Log.i(TAG, PHASE_NAMES[phase] + ": " + (elapsed / 1000000) + "ms");
+    }
+
+    /**
+     * Returns the milliseconds from process start to phase, or -1 if it was not reached.
+     */
+    public static synchronized long getPhaseMillis(int phase) {
+        long time = sPhaseTimes[phase];
+        return (time == NOT_REACHED) ? -1 : time / 1000000;
+    }
+
+    /**
+     * Writes the time of each phase reached, in milliseconds from process start.
+     */
+    public static synchronized void dump(PrintWriter writer) {
+        writer.println("StartupTrace:");
+        for (int i = 0; i < PHASE_NAMES.length; ++i) {
+            if (sPhaseTimes[i] != NOT_REACHED) {
+                writer.println(String.format("  %-22s %8.1fms", PHASE_NAMES[i],
+                        sPhaseTimes[i] / 1e6));
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+
+/**
+ * A tournament table which plays matches between two bots through the game protocol. Each seat
+ * is a {@link GameMessageStream} attached to its own channel of the same receiver; the table
+ * joins both seats, answers each {@code moved} event with the next bot's move and reports the
+ * winner on {@code endgame}. An error on a seat forfeits the match for that seat's player.
+ *
+ * <p>The table keeps no thread of its own. Both seat streams must deliver their events on the 
+ * same ordered callback executor, to which the table's state is confined; {@link #play} hands the
+ * match over to that executor, so it may be called from any thread.
+ */
+public class StreamTable implements Tournament.Table {
+    private static final String TAG = StreamTable.class.getSimpleName();
+
+    private final String mName;
+    private final Executor mExecutor;
+    private final GameMessageStream[] mSeats;
+    private final Bot[] mBots;
+    private final String[] mSymbols = new String[2];
+    private final int[] mBoard = new int[9];
+
+    private Tournament.Match mMatch;
+    private Tournament.ResultCallback mCallback;
+    private int mJoinedSeats;
+
+    /**
+     * @throws IllegalArgumentException if the seats do not share a callback executor
+     */
+    public StreamTable(String name, GameMessageStream seat1, Bot bot1, GameMessageStream seat2,
+            Bot bot2) {
+        if (seat1.getCallbackExecutor() != seat2.getCallbackExecutor()) {
+            throw new IllegalArgumentException("Seats must share a callback executor");
+        }
+        mName = name;
+        mExecutor = seat1.getCallbackExecutor();
+        mSeats = new GameMessageStream[] {seat1, seat2};
+        mBots = new Bot[] {bot1, bot2};
+        for (int i = 0; i < mSeats.length; ++i) {
+            final int seat = i;
+            mSeats[i].getEventBus().subscribe(new GameEventBus.Subscriber() {
+                @Override
+                public void onEvent(GameEvent event) {
+                    onSeatEvent(seat, event);
+                }
+            }, null);
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public void play(final Tournament.Match match, final Tournament.ResultCallback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                start(match, callback);
+            }
+        });
+    }
+
+    private void start(Tournament.Match match, Tournament.ResultCallback callback) {
+        mMatch = match;
+        mCallback = callback;
+        mJoinedSeats = 0;
+        mSymbols[0] = null;
+        mSymbols[1] = null;
+        for (int i = 0; i < mBoard.length; ++i) {
+            mBoard[i] = GameView.State.EMPTY.getValue();
+        }
+        mSeats[0].join(match.getPlayer1());
+        mSeats[1].join(match.getPlayer2());
+    }
+
+    private void onSeatEvent(int seat, GameEvent event) {
+        if (mMatch == null) {
+            return;
+        }
+        switch (event.getType()) {
+            case GameEvent.TYPE_JOINED:
+                mSymbols[seat] = event.getPlayer();
+                if (++mJoinedSeats == mSeats.length) {
+                    playNext(GameMessageStream.PLAYER_X);
+                }
+                break;
+            case GameEvent.TYPE_MOVED:
+                // Moves and results are broadcast to both seats; only the first one tracks them.
+                // Until both seats have joined they may still be from the previous match.
+                if (seat == 0 && mJoinedSeats == mSeats.length) {
+                    boolean isX = GameMessageStream.PLAYER_X.equals(event.getPlayer());
+                    mBoard[event.getRow() * 3 + event.getColumn()] = isX
+                            ? GameView.State.PLAYER_X.getValue()
+                            : GameView.State.PLAYER_O.getValue();
+                    if (!event.isGameOver()) {
+                        playNext(isX ? GameMessageStream.PLAYER_O : GameMessageStream.PLAYER_X);
+                    }
+                }
+                break;
+            case GameEvent.TYPE_ENDGAME:
+                if (seat == 0 && mJoinedSeats == mSeats.length) {
+                    String endState = event.getEndState();
+                    String winner = null;
+                    if (GameMessageStream.END_STATE_X_WON.equals(endState)) {
+                        winner = playerWithSymbol(GameMessageStream.PLAYER_X);
+                    } else if (GameMessageStream.END_STATE_O_WON.equals(endState)) {
+                        winner = playerWithSymbol(GameMessageStream.PLAYER_O);
+                    }
+                    finish(winner);
+                }
+                break;
+            case GameEvent.TYPE_ERROR:
+                Log.w(TAG, mName + ": " + event.getErrorMessage());
+                forfeit(seat, event.getErrorMessage());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void playNext(String symbol) {
+        for (int seat = 0; seat < mSeats.length; ++seat) {
+            if (symbol.equals(mSymbols[seat])) {
+                int self = GameMessageStream.PLAYER_X.equals(symbol)
+                        ? GameView.State.PLAYER_X.getValue() : GameView.State.PLAYER_O.getValue();
+                int cell = mBots[seat].chooseMove(mBoard, self);
+                if (cell >= 0) {
+                    mSeats[seat].move(cell / 3, cell % 3);
+                }
+                return;
+            }
+        }
+    }
+
+    private String playerWithSymbol(String symbol) {
+        if (symbol.equals(mSymbols[0])) {
+            return mMatch.getPlayer1();
+        } else if (symbol.equals(mSymbols[1])) {
+            return mMatch.getPlayer2();
+        }
+        return null;
+    }
+
+    private void finish(String winner) {
+        Tournament.Match match = mMatch;
+        Tournament.ResultCallback callback = mCallback;
+        release();
+        callback.onMatchResult(match, winner);
+    }
+
+    private void forfeit(int seat, String reason) {
+        Tournament.Match match = mMatch;
+        Tournament.ResultCallback callback = mCallback;
+        release();
+        callback.onMatchForfeited(match, (seat == 0) ? match.getPlayer1() : match.getPlayer2(),
+                reason);
+    }
+
+    private void release() {
+        mMatch = null;
+        mCallback = null;
+        // Free the receiver's seats for the next match. A seat which never joined, or whose game
+        // already ended, is ignored by the receiver; one still in a game abandons it, and the
+        // resulting endgame is ignored as it arrives before the next match's joins.
+        mSeats[0].leave();
+        mSeats[1].leave();
+    }
+}
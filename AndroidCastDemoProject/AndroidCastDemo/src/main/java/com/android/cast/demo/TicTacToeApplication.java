@@ -17,37 +17,122 @@
 package com.android.cast.demo;
 
 import android.app.Application;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.Process;
+import android.util.Log;
 
 import com.google.cast.CastContext;
 import com.google.cast.CastDevice;
 import com.google.cast.Logger;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 /**
  * An application that provides getter and setter methods for passing Cast-related objects between 
  * multiple activities, as well as a way to access its currently running instance.
+ *
+ * <p>Nothing is initialized on the main thread before the first activity draws. The CastContext
+ * is created once the main thread first goes idle, or earlier if it is asked for, and the game
+ * piece bitmaps are decoded on a background thread. Each phase is timed by {@link StartupTrace}.
  */
 public class TicTacToeApplication extends Application {
     private static final String TAG = TicTacToeApplication.class.getSimpleName();
 
+    static {
+        StartupTrace.start();
+    }
+
     private static Logger sLog = new Logger(TAG);
+    private static final long METRICS_SNAPSHOT_PERIOD_MS = 60 * 1000;
+    private static final String LEADERBOARD_FILE = "leaderboard.snapshot";
+    private static final String PREFERENCES = "player";
+    private static final String KEY_PLAYER_NAME = "name";
+
     private static TicTacToeApplication singleton;
-    private CastContext mCastContext;
+    private static Executor sBackgroundExecutor;
+
+    private final CountDownLatch mCastContextReady = new CountDownLatch(1);
+    private final List<Runnable> mCastContextWaiters = new ArrayList<Runnable>();
+    private volatile CastContext mCastContext;
+    private boolean mCastContextInitialized;
     private CastDevice mDevice;
+    private List<CastDevice> mMirrorDevices = Collections.emptyList();
+    private volatile Leaderboard mLeaderboard;
+    private volatile String mPlayerName;
+    private ScanScheduler mScanScheduler;
 
     /**
-     * Initializes the CastContext associated with this application's context, upon application
-     * creation.
+     * Defers creation of the CastContext until the main thread is idle, and starts decoding the
+     * game's bitmaps in the background.
      */
     @Override
     public final void onCreate() {
         super.onCreate();
         singleton = this;
 
+        // The CastContext delivers its callbacks on the thread that creates it, so it is created
+        // on the main thread, but only after the first frame has been drawn.
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                initCastContext();
+                return false;
+            }
+        });
+        getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                GameView.preloadPieceBitmaps(getResources());
+            }
+        });
+        getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                loadLeaderboard();
+                loadPlayerName();
+            }
+        });
+        // Metrics are sampled in debuggable builds only.
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            Metrics.setEnabled(true);
+            Metrics.startSnapshots(
+                    new File(getFilesDir(), "metrics.snapshot"), METRICS_SNAPSHOT_PERIOD_MS);
+        }
+        StartupTrace.mark(StartupTrace.PHASE_APPLICATION_CREATED);
+    }
+
+    /**
+     * Creates the CastContext unless that was already done, and runs everything which waited for
+     * it. Must be called on the main thread.
+     */
+    private void initCastContext() {
+        if (mCastContextInitialized) {
+            return;
+        }
+        mCastContextInitialized = true;
         try {
             mCastContext = new CastContext(getApplicationContext());
         } catch (IllegalArgumentException e) {
             sLog.e(e, "Unable to create CastContext");
         }
+        mCastContextReady.countDown();
+        StartupTrace.mark(StartupTrace.PHASE_CAST_CONTEXT_READY);
+        for (Runnable waiter : mCastContextWaiters) {
+            waiter.run();
+        }
+        mCastContextWaiters.clear();
     }
 
     /**
@@ -58,12 +143,174 @@ public class TicTacToeApplication extends Application {
     }
 
     /**
-     * Returns the CastContext associated with this application's context.
+     * Returns the CastContext associated with this application's context. On the main thread, the
+     * CastContext is created now if it was not yet; on any other thread, this method blocks until
+     * it has been created.
      */
     public CastContext getCastContext() {
+        if (MainThreadExecutor.isMainThread()) {
+            initCastContext();
+        } else {
+            try {
+                mCastContextReady.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         return mCastContext;
     }
 
+    /**
+     * Runs task on the main thread once the CastContext has been created, without creating it
+     * early. Must be called on the main thread.
+     */
+    public void runWhenCastContextReady(Runnable task) {
+        if (mCastContextInitialized) {
+            task.run();
+        } else {
+            mCastContextWaiters.add(task);
+        }
+    }
+
+    /**
+     * Returns the discovery scan shared by everything which lists devices, creating it if needed.
+     * Must be called on the main thread.
+     */
+    public ScanScheduler getScanScheduler() {
+        if (mScanScheduler == null) {
+            mScanScheduler = new ScanScheduler(getCastContext());
+        }
+        return mScanScheduler;
+    }
+
+    /**
+     * Returns the discovery scan if anything has used it yet, or null.
+     */
+    ScanScheduler peekScanScheduler() {
+        return mScanScheduler;
+    }
+
+    /**
+     * Returns a low priority background thread for initialization work which must not hold up
+     * the main thread.
+     */
+    public static synchronized Executor getBackgroundExecutor() {
+        if (sBackgroundExecutor == null) {
+            sBackgroundExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "TicTacToe-init");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sBackgroundExecutor;
+    }
+
+    private void loadLeaderboard() {
+        File file = new File(getFilesDir(), LEADERBOARD_FILE);
+        try {
+            mLeaderboard = Leaderboard.load(file);
+        } catch (Exception e) {
+            // A corrupt snapshot must not leave the leaderboard null for good.
+            Log.w(TAG, "Discarding unreadable leaderboard", e);
+            mLeaderboard = new Leaderboard();
+        }
+    }
+
+    /**
+     * Returns the leaderboard, or null while it is still being loaded.
+     */
+    public Leaderboard getLeaderboard() {
+        return mLeaderboard;
+    }
+
+    /**
+     * Updates the ratings of two players after a game and saves the leaderboard, in the
+     * background.
+     *
+     * @param draw whether the game was drawn, in which case winner and loser are interchangeable
+     * @param onRecorded run on the main thread once the ratings are updated, or null
+     */
+    public void recordGameResult(final String winner, final String loser, final boolean draw,
+            final Runnable onRecorded) {
+        // Runs after the load, which was queued first on the same thread.
+        getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                mLeaderboard.recordResult(winner, loser, draw);
+                if (onRecorded != null) {
+                    MainThreadExecutor.getInstance().execute(onRecorded);
+                }
+                try {
+                    mLeaderboard.save(new File(getFilesDir(), LEADERBOARD_FILE));
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to save the leaderboard", e);
+                }
+            }
+        });
+    }
+
+    private void loadPlayerName() {
+        SharedPreferences preferences = getSharedPreferences(PREFERENCES, MODE_PRIVATE);
+        String name = preferences.getString(KEY_PLAYER_NAME, null);
+        if (name == null) {
+            name = String.format(getString(R.string.default_player_name),
+                    1000 + new Random().nextInt(9000));
+            preferences.edit().putString(KEY_PLAYER_NAME, name).commit();
+        }
+        mPlayerName = name;
+    }
+
+    /**
+     * Returns the name this device's player joins games and is rated under, or null while it is
+     * still being loaded. Until the player picks one, it is a random name kept for this
+     * installation, so that players who never set a name still have leaderboard entries of their
+     * own.
+     */
+    public String getPlayerName() {
+        return mPlayerName;
+    }
+
+    /**
+     * Runs task on the main thread once the player name has been loaded, and any name set before
+     * this call has been stored.
+     */
+    public void runWhenPlayerNameLoaded(final Runnable task) {
+        // Runs after the load and earlier setPlayerName() calls, queued on the same thread.
+        getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                MainThreadExecutor.getInstance().execute(task);
+            }
+        });
+    }
+
+    /**
+     * Sets the name returned by getPlayerName(), in the background. Blank names are ignored.
+     */
+    public void setPlayerName(String name) {
+        final String trimmed = name.trim();
+        if (trimmed.length() == 0) {
+            return;
+        }
+        getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                getSharedPreferences(PREFERENCES, MODE_PRIVATE).edit()
+                        .putString(KEY_PLAYER_NAME, trimmed).commit();
+                mPlayerName = trimmed;
+            }
+        });
+    }
+
     /**
      * Returns the currently selected device, or null if no device is selected.
      */
@@ -77,4 +324,18 @@ public class TicTacToeApplication extends Application {
     public void setDevice(CastDevice device) {
         mDevice = device;
     }
+
+    /**
+     * Returns the devices which mirror the game shown on the selected device, possibly none.
+     */
+    public List<CastDevice> getMirrorDevices() {
+        return mMirrorDevices;
+    }
+
+    /**
+     * Sets the devices which mirror the game shown on the selected device.
+     */
+    public void setMirrorDevices(List<CastDevice> devices) {
+        mMirrorDevices = Collections.unmodifiableList(new ArrayList<CastDevice>(devices));
+    }
 }
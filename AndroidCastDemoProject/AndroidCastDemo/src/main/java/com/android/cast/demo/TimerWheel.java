@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hierarchical timer wheel which runs any number of timeouts on one thread, for deadlines such
+ * as game clocks where a scheduled executor task per timeout would not scale.
+ *
+ * <p>Time advances in ticks. Timeouts due within 64 ticks sit in the slot of their tick on the
+ * first wheel; later ones sit on one of the coarser wheels, each 64 times slower than the one
+ * below, and cascade down as their time approaches. Scheduling and cancelling are O(1) and may be
+ * called on any thread: they are queued and applied by the wheel's thread, which sleeps while no
+ * timeouts are pending. Timeouts run on the wheel's thread no earlier than their deadline, rounded
+ * up to a tick, and must hand any real work to another executor.
+ */
+public class TimerWheel {
+    private static final String TAG = TimerWheel.class.getSimpleName();
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_CANCELLED = 1;
+    private static final int STATE_EXPIRED = 2;
+
+    private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "mState");
+
+    /**
+     * A scheduled task, which may be cancelled until it runs.
+     */
+    public static final class Timeout {
+        private final TimerWheel mWheel;
+        private final Runnable mTask;
+        private final long mDeadline;
+        // Package-private for STATE, which cannot reach a private field.
+        volatile int mState;
+        // Links within a slot, owned by the wheel's thread.
+        private Timeout mPrevious;
+        private Timeout mNext;
+        private Timeout[] mSlots;
+        private int mSlot = -1;
+
+        private Timeout(TimerWheel wheel, Runnable task, long deadline) {
+            mWheel = wheel;
+            mTask = task;
+            mDeadline = deadline;
+        }
+
+        /**
+         * Prevents the task from running if it has not started yet.
+         *
+         * @return whether the task was cancelled, rather than having already run or been cancelled
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, STATE_PENDING, STATE_CANCELLED)) {
+                return false;
+            }
+            mWheel.mCancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return mState == STATE_CANCELLED;
+        }
+    }
+
+    private final long mTickNanos;
+    private final long mStartNanos = System.nanoTime();
+    private final Timeout[][] mWheels = new Timeout[LEVELS][SLOTS];
+    private final ConcurrentLinkedQueue<Timeout> mScheduled = new ConcurrentLinkedQueue<Timeout>();
+    private final ConcurrentLinkedQueue<Timeout> mCancelled = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicBoolean mIdle = new AtomicBoolean();
+    private final Thread mThread;
+    private volatile boolean mStopped;
+
+    // Owned by the wheel's thread.
+    private long mCurrentTick;
+    private int mCount;
+
+    /**
+     * Creates a wheel and starts its thread.
+     *
+     * @param tickMillis the resolution of deadlines
+     */
+    public TimerWheel(String name, long tickMillis) {
+        mTickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Runs task on the wheel's thread once delayMillis have passed. May be called on any thread.
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        long elapsed = System.nanoTime() - mStartNanos
+                + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        Timeout timeout = new Timeout(this, task, (elapsed + mTickNanos - 1) / mTickNanos);
+        mScheduled.add(timeout);
+        if (mIdle.compareAndSet(true, false)) {
+            LockSupport.unpark(mThread);
+        }
+        return timeout;
+    }
+
+    /**
+     * Stops the wheel's thread. Pending timeouts never run.
+     */
+    public void stop() {
+        mStopped = true;
+        LockSupport.unpark(mThread);
+    }
+
+    private void loop() {
+        while (!mStopped) {
+            long now = (System.nanoTime() - mStartNanos) / mTickNanos;
+            if (mCount == 0 && mCurrentTick < now) {
+                // Nothing is on the wheels, so the ticks spent idle need not be walked, and new
+                // timeouts must be placed relative to now rather than to when the wheel emptied.
+                mCurrentTick = now;
+            }
+            applyQueued();
+            while (mCurrentTick < now) {
+                ++mCurrentTick;
+                cascade();
+                expire();
+            }
+            if (mCount == 0) {
+                mIdle.set(true);
+                // A timeout scheduled before the flag was set would not unpark this thread.
+                if (mScheduled.isEmpty() && mCancelled.isEmpty() && !mStopped) {
+                    LockSupport.park(this);
+                }
+                mIdle.set(false);
+            } else {
+                long next = mStartNanos + (mCurrentTick + 1) * mTickNanos;
+                LockSupport.parkNanos(this, next - System.nanoTime());
+            }
+        }
+    }
+
+    private void applyQueued() {
+        Timeout timeout;
+        while ((timeout = mCancelled.poll()) != null) {
+            unlink(timeout);
+        }
+        while ((timeout = mScheduled.poll()) != null) {
+            if (timeout.mState == STATE_PENDING) {
+                insert(timeout);
+            }
+        }
+    }
+
+    /**
+     * Links timeout into the slot of the finest wheel whose range covers its deadline.
+     */
+    private void insert(Timeout timeout) {
+        long deadline = Math.max(timeout.mDeadline, mCurrentTick + 1);
+        long delta = deadline - mCurrentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            ++level;
+        }
+        int slot;
+        if (delta >= 1L << (SLOT_BITS * LEVELS)) {
+            // Beyond the range of the wheels: park it in the last slot to come round, from where
+            // it is inserted again.
+            slot = (int) ((mCurrentTick >> (SLOT_BITS * level)) + SLOT_MASK) & SLOT_MASK;
+        } else {
+            slot = (int) (deadline >> (SLOT_BITS * level)) & SLOT_MASK;
+        }
+        Timeout[] slots = mWheels[level];
+        timeout.mSlots = slots;
+        timeout.mSlot = slot;
+        timeout.mPrevious = null;
+        timeout.mNext = slots[slot];
+        if (timeout.mNext != null) {
+            timeout.mNext.mPrevious = timeout;
+        }
+        slots[slot] = timeout;
+        ++mCount;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.mSlot < 0) {
+            return;
+        }
+        if (timeout.mPrevious != null) {
+            timeout.mPrevious.mNext = timeout.mNext;
+        } else {
+            timeout.mSlots[timeout.mSlot] = timeout.mNext;
+        }
+        if (timeout.mNext != null) {
+            timeout.mNext.mPrevious = timeout.mPrevious;
+        }
+        timeout.mPrevious = null;
+        timeout.mNext = null;
+        timeout.mSlots = null;
+        timeout.mSlot = -1;
+        --mCount;
+    }
+
+    /**
+     * Moves the timeouts of every coarser wheel which reaches a new slot at the current tick down
+     * to the finer wheels, coarsest first.
+     */
+    private void cascade() {
+        int level = 1;
+        while (level < LEVELS && (mCurrentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+            ++level;
+        }
+        for (--level; level >= 1; --level) {
+            Timeout[] slots = mWheels[level];
+            int slot = (int) (mCurrentTick >> (SLOT_BITS * level)) & SLOT_MASK;
+            Timeout timeout = slots[slot];
+            while (timeout != null) {
+                Timeout next = timeout.mNext;
+                unlink(timeout);
+                insertOrExpire(timeout);
+                timeout = next;
+            }
+        }
+    }
+
+    private void insertOrExpire(Timeout timeout) {
+        if (timeout.mDeadline <= mCurrentTick) {
+            run(timeout);
+        } else {
+            insert(timeout);
+        }
+    }
+
+    private void expire() {
+        Timeout[] slots = mWheels[0];
+        int slot = (int) mCurrentTick & SLOT_MASK;
+        Timeout timeout = slots[slot];
+        while (timeout != null) {
+            Timeout next = timeout.mNext;
+            unlink(timeout);
+            run(timeout);
+            timeout = next;
+        }
+    }
+
+    private static void run(Timeout timeout) {
+        if (STATE.compareAndSet(timeout, STATE_PENDING, STATE_EXPIRED)) {
+            try {
+                timeout.mTask.run();
+            } catch (RuntimeException e) {
+                // One broken task must not stop every other timeout.
+                Log.e(TAG, "Timeout task failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * A single-elimination tournament which runs its matches concurrently on a pool of tables.
+ *
+ * <p>The bracket is a complete binary tree over the seeded players, padded with byes. A match is
+ * queued as soon as both of its players are known and is played on the next free table, so later
+ * rounds start while other parts of the bracket are still playing. The tournament is driven
+ * entirely by table results: all of its state is confined to a single executor and no thread is
+ * held per match, so any number of matches may be in progress at once.
+ */
+public class Tournament {
+    private static final String TAG = Tournament.class.getSimpleName();
+
+    // Drawn matches are replayed this many times before the higher seed advances.
+    private static final int MAX_REPLAYS = 2;
+
+    /**
+     * A place where matches are played, such as a receiver device.
+     */
+    public interface Table {
+        /**
+         * Starts playing match and returns without waiting for it to end. The result must be
+         * reported exactly once through callback, from any thread.
+         */
+        void play(Match match, ResultCallback callback);
+    }
+
+    /**
+     * A class which receives the result of a match from a table.
+     */
+    public interface ResultCallback {
+        /**
+         * @param winner the name of the winning player, or null if the match was drawn
+         */
+        void onMatchResult(Match match, String winner);
+
+        /**
+         * Reports that match could not be played to a result because of an error on the side of
+         * loser, who forfeits it.
+         */
+        void onMatchForfeited(Match match, String loser, String reason);
+    }
+
+    /**
+     * A class which follows the progress of a tournament, called on the tournament's executor.
+     */
+    public interface Listener {
+        void onMatchStarted(Match match);
+
+        void onMatchFinished(Match match);
+
+        /**
+         * @param champion the name of the winner, or null if there were no players
+         */
+        void onTournamentFinished(String champion);
+    }
+
+    /**
+     * A match between two players at one node of the bracket.
+     */
+    public static final class Match {
+        private final int mNode;
+        private final int mRound;
+        private final String mPlayer1;
+        private final String mPlayer2;
+        private Table mTable;
+        private String mWinner;
+        private int mDraws;
+        private boolean mForfeit;
+
+        private Match(int node, int round, String player1, String player2) {
+            mNode = node;
+            mRound = round;
+            mPlayer1 = player1;
+            mPlayer2 = player2;
+        }
+
+        /**
+         * Returns the round of this match, counting from 1 for the first round.
+         */
+        public int getRound() {
+            return mRound;
+        }
+
+        /**
+         * Returns the higher seeded player.
+         */
+        public String getPlayer1() {
+            return mPlayer1;
+        }
+
+        public String getPlayer2() {
+            return mPlayer2;
+        }
+
+        /**
+         * Returns the table the match is being or was last played on.
+         */
+        public Table getTable() {
+            return mTable;
+        }
+
+        /**
+         * Returns the winner, or null while the match is undecided.
+         */
+        public String getWinner() {
+            return mWinner;
+        }
+
+        /**
+         * Returns the number of times this match was drawn and replayed.
+         */
+        public int getDraws() {
+            return mDraws;
+        }
+
+        /**
+         * Returns whether the match was decided by a forfeit rather than on the board.
+         */
+        public boolean isForfeit() {
+            return mForfeit;
+        }
+    }
+
+    private final Executor mExecutor;
+    private final Listener mListener;
+    private final ArrayDeque<Table> mFreeTables = new ArrayDeque<Table>();
+    private final ArrayDeque<Match> mWaitingMatches = new ArrayDeque<Match>();
+    private final int mLeaves;
+    private final int mRounds;
+    // Heap-ordered bracket: node 1 is the final, leaves start at mLeaves.
+    private final String[] mNodeWinners;
+    private final boolean[] mNodeResolved;
+    private int mMatchesInProgress;
+    private boolean mFinished;
+
+    /**
+     * Creates a tournament between players, in seed order, played on tables.
+     *
+     * @param executor the executor all tournament state is confined to; it must run tasks in order
+     */
+    public Tournament(List<String> players, Collection<? extends Table> tables, Executor executor,
+            Listener listener) {
+        if (tables.isEmpty()) {
+            throw new IllegalArgumentException("A tournament needs at least one table");
+        }
+        mExecutor = executor;
+        mListener = listener;
+        mFreeTables.addAll(tables);
+
+        int leaves = 1;
+        int rounds = 0;
+        while (leaves < players.size()) {
+            leaves <<= 1;
+            ++rounds;
+        }
+        mLeaves = leaves;
+        mRounds = rounds;
+        mNodeWinners = new String[leaves * 2];
+        mNodeResolved = new boolean[leaves * 2];
+        int[] order = seedOrder(leaves);
+        for (int i = 0; i < leaves; ++i) {
+            int seed = order[i];
+            mNodeWinners[leaves + i] = (seed < players.size()) ? players.get(seed) : null;
+            mNodeResolved[leaves + i] = true;
+        }
+    }
+
+    /**
+     * Returns the standard bracket order of seeds, so that the top seeds meet as late as possible.
+     */
+    private static int[] seedOrder(int leaves) {
+        int[] order = {0};
+        while (order.length < leaves) {
+            int[] next = new int[order.length * 2];
+            for (int i = 0; i < order.length; ++i) {
+                next[i * 2] = order[i];
+                next[i * 2 + 1] = order.length * 2 - 1 - order[i];
+            }
+            order = next;
+        }
+        return order;
+    }
+
+    /**
+     * Queues every first round match and starts as many as there are tables.
+     */
+    public void start() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mLeaves == 1) {
+                    finish(mNodeWinners[1]);
+                    return;
+                }
+                for (int node = mLeaves / 2; node < mLeaves; ++node) {
+                    resolve(node);
+                }
+                schedule();
+            }
+        });
+    }
+
+    /**
+     * Returns the number of matches currently being played. Must be called on the executor.
+     */
+    public int getMatchesInProgress() {
+        return mMatchesInProgress;
+    }
+
+    /**
+     * Returns the number of matches waiting for a free table. Must be called on the executor.
+     */
+    public int getMatchesWaiting() {
+        return mWaitingMatches.size();
+    }
+
+    /**
+     * Resolves node if both of its children are resolved, by queueing a match, advancing a player
+     * past a bye, or propagating an empty slot, and continues up the bracket.
+     */
+    private void resolve(int node) {
+        while (node >= 1) {
+            int left = node * 2;
+            int right = left + 1;
+            if (mNodeResolved[node] || !mNodeResolved[left] || !mNodeResolved[right]) {
+                return;
+            }
+            String player1 = mNodeWinners[left];
+            String player2 = mNodeWinners[right];
+            if (player1 != null && player2 != null) {
+                mWaitingMatches.add(new Match(node, roundOf(node), player1, player2));
+                return;
+            }
+            mNodeResolved[node] = true;
+            mNodeWinners[node] = (player1 != null) ? player1 : player2;
+            if (node == 1) {
+                finish(mNodeWinners[1]);
+                return;
+            }
+            node /= 2;
+        }
+    }
+
+    private int roundOf(int node) {
+        int depth = 0;
+        while (node > 1) {
+            node /= 2;
+            ++depth;
+        }
+        return mRounds - depth;
+    }
+
+    /**
+     * Starts waiting matches on free tables.
+     */
+    private void schedule() {
+        while (!mFreeTables.isEmpty() && !mWaitingMatches.isEmpty()) {
+            final Match match = mWaitingMatches.poll();
+            match.mTable = mFreeTables.poll();
+            ++mMatchesInProgress;
+            mListener.onMatchStarted(match);
+            try {
+                match.mTable.play(match, new ResultCallback() {
+                    @Override
+                    public void onMatchResult(final Match result, final String winner) {
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                onResult(result, winner);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onMatchForfeited(final Match result, final String loser,
+                            final String reason) {
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                onForfeit(result, loser, reason);
+                            }
+                        });
+                    }
+                });
+            } catch (RuntimeException e) {
+                // A broken table is taken out of the pool and its match is tried elsewhere.
+                Log.e(TAG, "Table failed to start a match", e);
+                --mMatchesInProgress;
+                mWaitingMatches.addFirst(match);
+                if (mFreeTables.isEmpty() && mMatchesInProgress == 0) {
+                    Log.e(TAG, "No tables left, abandoning the tournament");
+                    finish(null);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void onResult(Match match, String winner) {
+        if (mFinished) {
+            return;
+        }
+        --mMatchesInProgress;
+        mFreeTables.add(match.mTable);
+        if (winner == null && match.mDraws < MAX_REPLAYS) {
+            ++match.mDraws;
+            mWaitingMatches.addFirst(match);
+            schedule();
+        } else {
+            decide(match, (winner != null) ? winner : match.mPlayer1);
+        }
+    }
+
+    private void onForfeit(Match match, String loser, String reason) {
+        if (mFinished) {
+            return;
+        }
+        Log.w(TAG, loser + " forfeits round " + match.mRound + ": " + reason);
+        --mMatchesInProgress;
+        mFreeTables.add(match.mTable);
+        match.mForfeit = true;
+        decide(match, loser.equals(match.mPlayer1) ? match.mPlayer2 : match.mPlayer1);
+    }
+
+    private void decide(Match match, String winner) {
+        match.mWinner = winner;
+        mListener.onMatchFinished(match);
+        mNodeResolved[match.mNode] = true;
+        mNodeWinners[match.mNode] = winner;
+        if (match.mNode == 1) {
+            finish(winner);
+            return;
+        }
+        resolve(match.mNode / 2);
+        schedule();
+    }
+
+    private void finish(String champion) {
+        if (!mFinished) {
+            mFinished = true;
+            mListener.onTournamentFinished(champion);
+        }
+    }
+}
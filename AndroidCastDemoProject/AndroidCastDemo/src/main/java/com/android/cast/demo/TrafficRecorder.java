@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cast.demo;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Captures every payload a {@link GameMessageStream} sends and receives into a compact file, for
+ * replay with the instrumentation tests' {@code TrafficReplayer}. Attach it with
+ * {@link GameMessageStream#setTrafficRecorder(TrafficRecorder)}.
+ *
+ * <p>The file starts with a magic number, followed by one record per payload: a direction byte,
+ * the monotonic nanoseconds since the previous record and the length of the payload as unsigned
+ * varints, and the payload as UTF-8 JSON. Payloads are serialized on the thread which sends or
+ * receives them, and written on a background thread.
+ */
+public class TrafficRecorder {
+    private static final String TAG = TrafficRecorder.class.getSimpleName();
+
+    static final int MAGIC = 0x54545431;
+
+    public static final int DIRECTION_INBOUND = 0;
+    public static final int DIRECTION_OUTBOUND = 1;
+
+    private final File mFile;
+    private final DataOutputStream mOut;
+    private final ExecutorService mWriter;
+    private long mLastNanos;
+    private long mRecords;
+    private boolean mClosed;
+
+    /**
+     * Creates a recorder which writes to file, replacing its contents.
+     */
+    public TrafficRecorder(File file) throws IOException {
+        mFile = file;
+        mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        mOut.writeInt(MAGIC);
+        mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "TrafficRecorder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Records a payload sent or received now. May be called on any thread.
+     *
+     * @param direction DIRECTION_INBOUND or DIRECTION_OUTBOUND
+     */
+    void record(final int direction, JSONObject payload) {
+        final long nanos = System.nanoTime();
+        final String text = payload.toString();
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(direction, nanos, text);
+                }
+            });
+        }
+    }
+
+    private void write(int direction, long nanos, String text) {
+        try {
+            byte[] bytes = text.getBytes("UTF-8");
+            long delta = (mRecords == 0) ? 0 : Math.max(0, nanos - mLastNanos);
+            mLastNanos = nanos;
+            ++mRecords;
+            mOut.writeByte(direction);
+            writeVarint(mOut, delta);
+            writeVarint(mOut, bytes.length);
+            mOut.write(bytes);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write to " + mFile, e);
+        }
+    }
+
+    static void writeVarint(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Writes out every payload recorded so far and closes the file. Payloads recorded afterwards
+     * are dropped.
+     */
+    public void close() {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mOut.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to close " + mFile, e);
+                }
+            }
+        });
+        mWriter.shutdown();
+        try {
+            mWriter.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
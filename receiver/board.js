@@ -73,6 +73,7 @@ function boardReset() {
   this.mContext.beginPath();
   this.mContext.clearRect(this.X, this.Y, this.mContext.canvas.width,
       this.mContext.canvas.height);
+  this.clearLeaderboard();
   this.drawGrid();
   for (var i = 0; i < this.mBoard.length; i++) {
     for (var j = 0; j < this.mBoard[0].length; j++) {
@@ -352,11 +353,44 @@ function boardGetWinningLocation() {
   return this.mWinningLocation;
 }
 
+/**
+ * Draws the best players to the left of the board, replacing any leaderboard
+ * drawn before.
+ * @param {Array.<Object>} players the players, best first, each with a rank,
+ *     name and rating.
+ * @this {board}
+ */
+function boardDrawLeaderboard(players) {
+  this.clearLeaderboard();
+  var x = this.margin;
+  var y = this.Y + 40;
+  var maxWidth = this.X - 2 * this.margin;
+  this.mContext.fillStyle = '#000000';
+  this.mContext.font = 'bold 32px sans-serif';
+  this.mContext.fillText('Leaderboard', x, y, maxWidth);
+  this.mContext.font = '24px sans-serif';
+  for (var i = 0; i < players.length; i++) {
+    y += 40;
+    this.mContext.fillText(players[i].rank + '. ' + players[i].name + '  ' +
+        players[i].rating, x, y, maxWidth);
+  }
+}
+
+/**
+ * Clears the area to the left of the board where the leaderboard is drawn.
+ * @this {board}
+ */
+function boardClearLeaderboard() {
+  this.mContext.clearRect(0, 0, this.X, this.mContext.canvas.height);
+}
+
 
 board.prototype.calcDimensions = boardCalcDimensions;
 board.prototype.clear = boardClear;
+board.prototype.clearLeaderboard = boardClearLeaderboard;
 board.prototype.drawCross = boardDrawCross;
 board.prototype.drawGrid = boardDrawGrid;
+board.prototype.drawLeaderboard = boardDrawLeaderboard;
 board.prototype.drawNaught = boardDrawNaught;
 board.prototype.drawWinningLocation = boardDrawWinningLocation;
 board.prototype.getGameResult = boardGetGameResult;
@@ -34,6 +34,75 @@ var cast = window.cast || {};
     X: 'X'
   };
 
+  /**
+   * Encodes cells in the packed board format: a format byte, the cell count
+   * as a varint and two bits per cell, four to a byte from the lowest bits,
+   * with runs of empty bytes run-length coded when that is shorter, as base64.
+   * @param {Array.<number>} cells the cells, each 0, 1 or 2.
+   * @return {string} the packed board.
+   */
+  TicTacToe.packBoard = function(cells) {
+    var packed = [];
+    for (var i = 0; i < cells.length; i++) {
+      packed[i >> 2] = (packed[i >> 2] || 0) | (cells[i] << ((i & 3) * 2));
+    }
+    var rle = [];
+    for (var i = 0; i < packed.length; ) {
+      if (packed[i] != 0) {
+        rle.push(packed[i++]);
+        continue;
+      }
+      var run = 1;
+      while (i + run < packed.length && packed[i + run] == 0 && run < 255) {
+        run++;
+      }
+      rle.push(0, run);
+      i += run;
+    }
+    var useRle = rle.length < packed.length;
+    var bytes = [useRle ? 0x11 : 0x10];
+    for (var count = cells.length; count > 0x7f; count >>>= 7) {
+      bytes.push((count & 0x7f) | 0x80);
+    }
+    bytes.push(count);
+    bytes = bytes.concat(useRle ? rle : packed);
+    return btoa(String.fromCharCode.apply(null, bytes));
+  };
+
+  /**
+   * Decodes a board encoded by packBoard.
+   * @param {string} packedBoard the packed board.
+   * @return {Array.<number>} the cells.
+   */
+  TicTacToe.unpackBoard = function(packedBoard) {
+    var bytes = atob(packedBoard);
+    var rle = bytes.charCodeAt(0) == 0x11;
+    var count = 0;
+    var position = 1;
+    for (var shift = 0; ; shift += 7) {
+      var b = bytes.charCodeAt(position++);
+      count |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        break;
+      }
+    }
+    var cells = [];
+    while (cells.length < count) {
+      var b = bytes.charCodeAt(position++);
+      if (rle && b == 0) {
+        for (var end = cells.length + bytes.charCodeAt(position++) * 4;
+             cells.length < end && cells.length < count; ) {
+          cells.push(0);
+        }
+        continue;
+      }
+      for (var shift = 0; shift < 8 && cells.length < count; shift += 2) {
+        cells.push((b >> shift) & 3);
+      }
+    }
+    return cells;
+  };
+
   /**
    * Creates a TicTacToe object with an optional board and attaches a
    * cast.receiver.ChannelHandler, which receives messages from the
@@ -94,6 +163,12 @@ var cast = window.cast || {};
     onMessage: function(event) {
       var message = event.message;
       var channel = event.target;
+      // Heartbeats are answered before anything else, so that they measure
+      // the connection rather than the work done for other messages.
+      if (message.command == 'ping') {
+        channel.send({ event: 'pong', request_id: message.request_id });
+        return;
+      }
       console.log('********onMessage********' + JSON.stringify(message));
       console.log('mPlayer1: ' + this.mPlayer1);
       console.log('mPlayer2: ' + this.mPlayer2);
@@ -105,7 +180,11 @@ var cast = window.cast || {};
       } else if (message.command == 'move') {
         this.onMove(channel, message);
       } else if (message.command == 'board_layout_request') {
-        this.onBoardLayoutRequest(channel);
+        this.onBoardLayoutRequest(channel, message);
+      } else if (message.command == 'mirror') {
+        this.onMirror(channel, message);
+      } else if (message.command == 'leaderboard') {
+        this.onLeaderboard(channel, message);
       } else {
         cast.log.error('Invalid message command: ' + message.command);
       }
@@ -208,7 +287,7 @@ var cast = window.cast || {};
           }
         } else {
           console.log('Ignoring the move. It\'s not your turn.');
-          this.sendError(channel, 'It\'s not your turn.');
+          this.sendError(channel, 'It\'s not your turn.', message.request_id);
           return;
         }
       } else if (this.mPlayer2.channel == channel) {
@@ -220,18 +299,20 @@ var cast = window.cast || {};
           }
         } else {
           console.log('Ignoring the move. It\'s not your turn.');
-          this.sendError(channel, 'It\'s not your turn.');
+          this.sendError(channel, 'It\'s not your turn.', message.request_id);
           return;
         }
       } else {
         console.log('Ignorning message. Someone other than the current' +
             'players sent a move.');
-        this.sendError(channel, 'You are not playing the game');
+        this.sendError(channel, 'You are not playing the game',
+            message.request_id);
         return;
       }
 
       if (isMoveValid === false) {
-        this.sendError(channel, 'Your last move was invalid');
+        this.sendError(channel, 'Your last move was invalid',
+            message.request_id);
         return;
       }
 
@@ -240,7 +321,8 @@ var cast = window.cast || {};
                        player: this.mCurrentPlayer,
                        row: message.row,
                        column: message.column,
-                       game_over: isGameOver });
+                       game_over: isGameOver,
+                       request_id: message.request_id });
 
       console.log('isGameOver: ' + isGameOver);
       console.log('winningLoc: ' + this.mBoard.getWinningLocation());
@@ -259,8 +341,9 @@ var cast = window.cast || {};
      * Request event for the board layout: sends the current layout of pieces
      * on the board through the channel.
      * @param {cast.receiver.channel} channel the channel the event came from.
+     * @param {Object} message the request, whose request_id is echoed back.
      */
-    onBoardLayoutRequest: function(channel) {
+    onBoardLayoutRequest: function(channel, message) {
       console.log('****onBoardLayoutRequest');
       var boardLayout = [];
       for (var i = 0; i < 3; i++) {
@@ -268,13 +351,86 @@ var cast = window.cast || {};
           boardLayout[i * 3 + j] = this.mBoard.mBoard[i][j];
         }
       }
-      channel.send({ 'event': 'board_layout_response',
-                     'board': boardLayout });
+      var response = { 'event': 'board_layout_response',
+                       'request_id': message.request_id };
+      if (message.packed) {
+        response.board_packed = TicTacToe.packBoard(boardLayout);
+      } else {
+        response.board = boardLayout;
+      }
+      channel.send(response);
+    },
+
+    /**
+     * Mirror event: replays an event of a game hosted on another receiver, so
+     * that this receiver displays the same board without running the game.
+     * Ignored while any player has joined a game on this receiver, whose board
+     * must only show that game.
+     * @param {cast.receiver.channel} channel the channel the event came from.
+     * @param {Object} message the mirrored event, in the form the hosting
+     *     receiver sent it.
+     */
+    onMirror: function(channel, message) {
+      console.log('****onMirror: ' + message.event);
+      if (this.mPlayer1 != -1 || this.mPlayer2 != -1) {
+        console.log('Ignoring mirror while hosting a game');
+        return;
+      }
+      if (message.event == 'joined') {
+        this.mBoard.reset();
+      } else if (message.event == 'moved') {
+        if (message.player == TicTacToe.PLAYER.X) {
+          this.mBoard.drawCross(message.row, message.column);
+        } else {
+          this.mBoard.drawNaught(message.row, message.column);
+        }
+      } else if (message.event == 'endgame') {
+        if (message.winning_location >= 0) {
+          this.mBoard.mWinningLocation = message.winning_location;
+          this.mBoard.drawWinningLocation();
+        }
+      } else if (message.event == 'board_layout_response') {
+        var board = message.board_packed ?
+            TicTacToe.unpackBoard(message.board_packed) : message.board;
+        this.mBoard.reset();
+        for (var i = 0; i < 3; i++) {
+          for (var j = 0; j < 3; j++) {
+            if (board[i * 3 + j] == this.mBoard.STATE.CROSS) {
+              this.mBoard.drawCross(i, j);
+            } else if (board[i * 3 + j] == this.mBoard.STATE.NAUGHT) {
+              this.mBoard.drawNaught(i, j);
+            }
+          }
+        }
+      }
+    },
+
+    /**
+     * Leaderboard event: shows a sender's best players next to the board until
+     * the next game starts. Ignored while a game is in progress.
+     * @param {cast.receiver.channel} channel the channel the message came from.
+     * @param {Object} message holds the players, best first, each with a
+     *     rank, name and rating.
+     */
+    onLeaderboard: function(channel, message) {
+      console.log('****onLeaderboard');
+      if (this.mPlayer1 != -1 && this.mPlayer2 != -1) {
+        console.log('Ignoring the leaderboard during a game');
+        return;
+      }
+      this.mBoard.drawLeaderboard(message.players || []);
     },
 
-    sendError: function(channel, errorMessage) {
+    /**
+     * Sends an error to a single sender.
+     * @param {cast.receiver.channel} channel the channel to send the error to.
+     * @param {string} errorMessage the description of the error.
+     * @param {string=} opt_requestId the id of the command that failed, if any.
+     */
+    sendError: function(channel, errorMessage, opt_requestId) {
       channel.send({ event: 'error',
-                     message: errorMessage });
+                     message: errorMessage,
+                     request_id: opt_requestId });
     },
 
     broadcastEndGame: function(endState, winningLocation) {